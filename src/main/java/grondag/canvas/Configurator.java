@@ -68,6 +68,24 @@ public class Configurator {
 	public static boolean cullEntityRender = DEFAULTS.cullEntityRender;
 	public static boolean greedyRenderThread = DEFAULTS.greedyRenderThread;
 	public static boolean forceJmxModelLoading = DEFAULTS.forceJmxModelLoading;
+	public static boolean parallelOcclusionRaster = DEFAULTS.parallelOcclusionRaster;
+	public static boolean reprojectOcclusionRaster = DEFAULTS.reprojectOcclusionRaster;
+	public static int occluderPrepassBoxes = DEFAULTS.occluderPrepassBoxes;
+	public static boolean occlusionCullEntities = DEFAULTS.occlusionCullEntities;
+	public static boolean occlusionCullBlockEntities = DEFAULTS.occlusionCullBlockEntities;
+	public static OcclusionRasterSize occlusionRasterSize = DEFAULTS.occlusionRasterSize;
+	public static boolean adaptiveOcclusionRaster = DEFAULTS.adaptiveOcclusionRaster;
+	public static int occlusionBudgetMicros = DEFAULTS.occlusionBudgetMicros;
+	public static boolean parallelTerrainIteration = DEFAULTS.parallelTerrainIteration;
+	public static boolean incrementalTerrainIteration = DEFAULTS.incrementalTerrainIteration;
+	public static boolean connectivityCulling = DEFAULTS.connectivityCulling;
+	public static int terrainIterationBudgetMicros = DEFAULTS.terrainIterationBudgetMicros;
+	public static boolean dedicatedTerrainIterationThread = DEFAULTS.dedicatedTerrainIterationThread;
+	public static int urgentBuildWaitMicros = DEFAULTS.urgentBuildWaitMicros;
+	public static int blockUpdateCoalesceMillis = DEFAULTS.blockUpdateCoalesceMillis;
+	public static boolean partialRebuild = DEFAULTS.partialRebuild;
+	public static boolean tesselationCache = DEFAULTS.tesselationCache;
+	public static int greedyMeshDistance = DEFAULTS.greedyMeshDistance;
 	public static boolean shaderDebug = DEFAULTS.shaderDebug;
 	public static boolean lightmapDebug = DEFAULTS.lightmapDebug;
 	public static boolean conciseErrors = DEFAULTS.conciseErrors;
@@ -79,6 +97,7 @@ public class Configurator {
 	public static boolean debugOcclusionRaster = DEFAULTS.debugOcclusionRaster;
 	public static boolean debugOcclusionBoxes = DEFAULTS.debugOcclusionBoxes;
 	public static boolean traceOcclusionEdgeCases = DEFAULTS.traceOcclusionEdgeCases;
+	public static boolean captureOccluderStream = DEFAULTS.captureOccluderStream;
 	public static boolean enableBufferDebug = DEFAULTS.enableBufferDebug;
 	public static boolean enableLifeCycleDebug = DEFAULTS.enableLifeCycleDebug;
 	//    @LangKey("config.acuity_fancy_fluids")
@@ -151,6 +170,24 @@ public class Configurator {
 		cullEntityRender = config.cullEntityRender;
 		greedyRenderThread = config.greedyRenderThread;
 		forceJmxModelLoading = config.forceJmxModelLoading;
+		parallelOcclusionRaster = config.parallelOcclusionRaster;
+		reprojectOcclusionRaster = config.reprojectOcclusionRaster;
+		occluderPrepassBoxes = config.occluderPrepassBoxes;
+		occlusionCullEntities = config.occlusionCullEntities;
+		occlusionCullBlockEntities = config.occlusionCullBlockEntities;
+		occlusionRasterSize = config.occlusionRasterSize;
+		adaptiveOcclusionRaster = config.adaptiveOcclusionRaster;
+		occlusionBudgetMicros = config.occlusionBudgetMicros;
+		parallelTerrainIteration = config.parallelTerrainIteration;
+		incrementalTerrainIteration = config.incrementalTerrainIteration;
+		connectivityCulling = config.connectivityCulling;
+		terrainIterationBudgetMicros = config.terrainIterationBudgetMicros;
+		dedicatedTerrainIterationThread = config.dedicatedTerrainIterationThread;
+		urgentBuildWaitMicros = config.urgentBuildWaitMicros;
+		blockUpdateCoalesceMillis = config.blockUpdateCoalesceMillis;
+		partialRebuild = config.partialRebuild;
+		tesselationCache = config.tesselationCache;
+		greedyMeshDistance = config.greedyMeshDistance;
 
 		lightmapDebug = config.lightmapDebug;
 		conciseErrors = config.conciseErrors;
@@ -161,6 +198,7 @@ public class Configurator {
 		debugOcclusionBoxes = config.debugOcclusionBoxes;
 		debugOcclusionRaster = config.debugOcclusionRaster;
 		traceOcclusionEdgeCases = config.traceOcclusionEdgeCases;
+		captureOccluderStream = config.captureOccluderStream;
 		enableBufferDebug = config.enableBufferDebug;
 		enableLifeCycleDebug = config.enableLifeCycleDebug;
 	}
@@ -195,6 +233,24 @@ public class Configurator {
 		config.cullEntityRender = cullEntityRender;
 		config.greedyRenderThread = greedyRenderThread;
 		config.forceJmxModelLoading = forceJmxModelLoading;
+		config.parallelOcclusionRaster = parallelOcclusionRaster;
+		config.reprojectOcclusionRaster = reprojectOcclusionRaster;
+		config.occluderPrepassBoxes = occluderPrepassBoxes;
+		config.occlusionCullEntities = occlusionCullEntities;
+		config.occlusionCullBlockEntities = occlusionCullBlockEntities;
+		config.occlusionRasterSize = occlusionRasterSize;
+		config.adaptiveOcclusionRaster = adaptiveOcclusionRaster;
+		config.occlusionBudgetMicros = occlusionBudgetMicros;
+		config.parallelTerrainIteration = parallelTerrainIteration;
+		config.incrementalTerrainIteration = incrementalTerrainIteration;
+		config.connectivityCulling = connectivityCulling;
+		config.terrainIterationBudgetMicros = terrainIterationBudgetMicros;
+		config.dedicatedTerrainIterationThread = dedicatedTerrainIterationThread;
+		config.urgentBuildWaitMicros = urgentBuildWaitMicros;
+		config.blockUpdateCoalesceMillis = blockUpdateCoalesceMillis;
+		config.partialRebuild = partialRebuild;
+		config.tesselationCache = tesselationCache;
+		config.greedyMeshDistance = greedyMeshDistance;
 
 		config.lightmapDebug = lightmapDebug;
 		config.conciseErrors = conciseErrors;
@@ -205,6 +261,7 @@ public class Configurator {
 		config.debugOcclusionBoxes = debugOcclusionBoxes;
 		config.debugOcclusionRaster = debugOcclusionRaster;
 		config.traceOcclusionEdgeCases = traceOcclusionEdgeCases;
+		config.captureOccluderStream = captureOccluderStream;
 		config.enableBufferDebug = enableBufferDebug;
 		config.enableLifeCycleDebug = enableLifeCycleDebug;
 
@@ -483,6 +540,156 @@ public class Configurator {
 				})
 				.build());
 
+		tweaks.addEntry(ENTRY_BUILDER
+				.startBooleanToggle(new TranslatableText("config.canvas.value.parallel_occlusion_raster"), parallelOcclusionRaster)
+				.setDefaultValue(DEFAULTS.parallelOcclusionRaster)
+				.setTooltip(parse("config.canvas.help.parallel_occlusion_raster"))
+				.setSaveConsumer(b -> {
+					parallelOcclusionRaster = b;
+				})
+				.build());
+
+		tweaks.addEntry(ENTRY_BUILDER
+				.startBooleanToggle(new TranslatableText("config.canvas.value.reproject_occlusion_raster"), reprojectOcclusionRaster)
+				.setDefaultValue(DEFAULTS.reprojectOcclusionRaster)
+				.setTooltip(parse("config.canvas.help.reproject_occlusion_raster"))
+				.setSaveConsumer(b -> {
+					reprojectOcclusionRaster = b;
+				})
+				.build());
+
+		tweaks.addEntry(ENTRY_BUILDER
+				.startIntSlider(new TranslatableText("config.canvas.value.occluder_prepass_boxes"), occluderPrepassBoxes, 0, 256)
+				.setDefaultValue(DEFAULTS.occluderPrepassBoxes)
+				.setTooltip(parse("config.canvas.help.occluder_prepass_boxes"))
+				.setSaveConsumer(b -> occluderPrepassBoxes = b)
+				.build());
+
+		tweaks.addEntry(ENTRY_BUILDER
+				.startBooleanToggle(new TranslatableText("config.canvas.value.occlusion_cull_entities"), occlusionCullEntities)
+				.setDefaultValue(DEFAULTS.occlusionCullEntities)
+				.setTooltip(parse("config.canvas.help.occlusion_cull_entities"))
+				.setSaveConsumer(b -> {
+					occlusionCullEntities = b;
+				})
+				.build());
+
+		tweaks.addEntry(ENTRY_BUILDER
+				.startBooleanToggle(new TranslatableText("config.canvas.value.occlusion_cull_block_entities"), occlusionCullBlockEntities)
+				.setDefaultValue(DEFAULTS.occlusionCullBlockEntities)
+				.setTooltip(parse("config.canvas.help.occlusion_cull_block_entities"))
+				.setSaveConsumer(b -> {
+					occlusionCullBlockEntities = b;
+				})
+				.build());
+
+		tweaks.addEntry(ENTRY_BUILDER
+				.startEnumSelector(new TranslatableText("config.canvas.value.occlusion_raster_size"), OcclusionRasterSize.class, occlusionRasterSize)
+				.setDefaultValue(DEFAULTS.occlusionRasterSize)
+				.setTooltip(parse("config.canvas.help.occlusion_raster_size"))
+				.setSaveConsumer(b -> {
+					occlusionRasterSize = b;
+				})
+				.build());
+
+		tweaks.addEntry(ENTRY_BUILDER
+				.startBooleanToggle(new TranslatableText("config.canvas.value.adaptive_occlusion_raster"), adaptiveOcclusionRaster)
+				.setDefaultValue(DEFAULTS.adaptiveOcclusionRaster)
+				.setTooltip(parse("config.canvas.help.adaptive_occlusion_raster"))
+				.setSaveConsumer(b -> {
+					adaptiveOcclusionRaster = b;
+				})
+				.build());
+
+		tweaks.addEntry(ENTRY_BUILDER
+				.startIntSlider(new TranslatableText("config.canvas.value.occlusion_budget_micros"), occlusionBudgetMicros, 500, 20000)
+				.setDefaultValue(DEFAULTS.occlusionBudgetMicros)
+				.setTooltip(parse("config.canvas.help.occlusion_budget_micros"))
+				.setSaveConsumer(b -> occlusionBudgetMicros = b)
+				.build());
+
+		tweaks.addEntry(ENTRY_BUILDER
+				.startBooleanToggle(new TranslatableText("config.canvas.value.parallel_terrain_iteration"), parallelTerrainIteration)
+				.setDefaultValue(DEFAULTS.parallelTerrainIteration)
+				.setTooltip(parse("config.canvas.help.parallel_terrain_iteration"))
+				.setSaveConsumer(b -> {
+					parallelTerrainIteration = b;
+				})
+				.build());
+
+		tweaks.addEntry(ENTRY_BUILDER
+				.startBooleanToggle(new TranslatableText("config.canvas.value.incremental_terrain_iteration"), incrementalTerrainIteration)
+				.setDefaultValue(DEFAULTS.incrementalTerrainIteration)
+				.setTooltip(parse("config.canvas.help.incremental_terrain_iteration"))
+				.setSaveConsumer(b -> {
+					incrementalTerrainIteration = b;
+				})
+				.build());
+
+		tweaks.addEntry(ENTRY_BUILDER
+				.startBooleanToggle(new TranslatableText("config.canvas.value.connectivity_culling"), connectivityCulling)
+				.setDefaultValue(DEFAULTS.connectivityCulling)
+				.setTooltip(parse("config.canvas.help.connectivity_culling"))
+				.setSaveConsumer(b -> {
+					connectivityCulling = b;
+				})
+				.build());
+
+		tweaks.addEntry(ENTRY_BUILDER
+				.startIntSlider(new TranslatableText("config.canvas.value.terrain_iteration_budget_micros"), terrainIterationBudgetMicros, 0, 20000)
+				.setDefaultValue(DEFAULTS.terrainIterationBudgetMicros)
+				.setTooltip(parse("config.canvas.help.terrain_iteration_budget_micros"))
+				.setSaveConsumer(b -> terrainIterationBudgetMicros = b)
+				.build());
+
+		tweaks.addEntry(ENTRY_BUILDER
+				.startBooleanToggle(new TranslatableText("config.canvas.value.dedicated_terrain_iteration_thread"), dedicatedTerrainIterationThread)
+				.setDefaultValue(DEFAULTS.dedicatedTerrainIterationThread)
+				.setTooltip(parse("config.canvas.help.dedicated_terrain_iteration_thread"))
+				.setSaveConsumer(b -> {
+					dedicatedTerrainIterationThread = b;
+				})
+				.build());
+
+		tweaks.addEntry(ENTRY_BUILDER
+				.startIntSlider(new TranslatableText("config.canvas.value.urgent_build_wait_micros"), urgentBuildWaitMicros, 0, 20000)
+				.setDefaultValue(DEFAULTS.urgentBuildWaitMicros)
+				.setTooltip(parse("config.canvas.help.urgent_build_wait_micros"))
+				.setSaveConsumer(b -> urgentBuildWaitMicros = b)
+				.build());
+
+		tweaks.addEntry(ENTRY_BUILDER
+				.startIntSlider(new TranslatableText("config.canvas.value.block_update_coalesce_millis"), blockUpdateCoalesceMillis, 0, 500)
+				.setDefaultValue(DEFAULTS.blockUpdateCoalesceMillis)
+				.setTooltip(parse("config.canvas.help.block_update_coalesce_millis"))
+				.setSaveConsumer(b -> blockUpdateCoalesceMillis = b)
+				.build());
+
+		tweaks.addEntry(ENTRY_BUILDER
+				.startBooleanToggle(new TranslatableText("config.canvas.value.partial_rebuild"), partialRebuild)
+				.setDefaultValue(DEFAULTS.partialRebuild)
+				.setTooltip(parse("config.canvas.help.partial_rebuild"))
+				.setSaveConsumer(b -> {
+					partialRebuild = b;
+				})
+				.build());
+
+		tweaks.addEntry(ENTRY_BUILDER
+				.startBooleanToggle(new TranslatableText("config.canvas.value.tesselation_cache"), tesselationCache)
+				.setDefaultValue(DEFAULTS.tesselationCache)
+				.setTooltip(parse("config.canvas.help.tesselation_cache"))
+				.setSaveConsumer(b -> {
+					tesselationCache = b;
+				})
+				.build());
+
+		tweaks.addEntry(ENTRY_BUILDER
+				.startIntSlider(new TranslatableText("config.canvas.value.greedy_mesh_distance"), greedyMeshDistance, 0, 1024)
+				.setDefaultValue(DEFAULTS.greedyMeshDistance)
+				.setTooltip(parse("config.canvas.help.greedy_mesh_distance"))
+				.setSaveConsumer(b -> greedyMeshDistance = b)
+				.build());
+
 
 		// DEBUG
 		final ConfigCategory debug = builder.getOrCreateCategory(new TranslatableText("config.canvas.category.debug"));
@@ -564,6 +771,13 @@ public class Configurator {
 				.setSaveConsumer(b -> enableLifeCycleDebug = b)
 				.build());
 
+		debug.addEntry(ENTRY_BUILDER
+				.startBooleanToggle(new TranslatableText("config.canvas.value.capture_occluder_stream"), captureOccluderStream)
+				.setDefaultValue(DEFAULTS.captureOccluderStream)
+				.setTooltip(parse("config.canvas.help.capture_occluder_stream"))
+				.setSaveConsumer(b -> captureOccluderStream = b)
+				.build());
+
 		builder.setAlwaysShowTabs(false).setDoesConfirmSave(false);
 
 		return builder.build();
@@ -613,6 +827,28 @@ public class Configurator {
 		}
 	}
 
+	/**
+	 * Occlusion raster dimensions in 8x8 pixel tiles.
+	 */
+	public enum OcclusionRasterSize {
+		LOW(64, 32),
+		NORMAL(128, 64),
+		ULTRAWIDE(128, 32);
+
+		public final int tileWidth;
+		public final int tileHeight;
+
+		OcclusionRasterSize(int tileWidth, int tileHeight) {
+			this.tileWidth = tileWidth;
+			this.tileHeight = tileHeight;
+		}
+
+		@Override
+		public String toString() {
+			return I18n.translate("config.canvas.enum.occlusion_raster_size." + name().toLowerCase());
+		}
+	}
+
 	// LEGACY STUFF
 
 	@SuppressWarnings("hiding")
@@ -668,6 +904,42 @@ public class Configurator {
 		boolean greedyRenderThread = true;
 		@Comment("Use more efficient model loading. Improves chunk rebuild speed and reduces memory use.")
 		boolean forceJmxModelLoading = true;
+		@Comment("Draws terrain occlusion raster with multiple threads. May reduce terrain setup time on machines with many cores. Requires restart.")
+		boolean parallelOcclusionRaster = false;
+		@Comment("Reuses the occlusion raster from the previous frame when the camera turns without moving. Reduces terrain setup time when looking around.")
+		boolean reprojectOcclusionRaster = false;
+		@Comment("Number of largest occluders from regions visible last frame to draw before terrain iteration. Zero disables. Can reject more regions early in dense builds and caves.")
+		int occluderPrepassBoxes = 0;
+		@Comment("Tests entities against the terrain occlusion raster and skips those hidden behind terrain. Requires Better Entity Culling.")
+		boolean occlusionCullEntities = false;
+		@Comment("Tests block entities against the terrain occlusion raster and skips those hidden behind terrain. Block entities that render outside their bounds are always drawn.")
+		boolean occlusionCullBlockEntities = false;
+		@Comment("Resolution of the terrain occlusion raster. Low is faster on machines with few cores. Ultrawide suits very wide screens.")
+		OcclusionRasterSize occlusionRasterSize = OcclusionRasterSize.NORMAL;
+		@Comment("Lowers occlusion raster resolution while terrain setup takes longer than the occlusion time budget, and restores it when there is time to spare.")
+		boolean adaptiveOcclusionRaster = false;
+		@Comment("Time budget in microseconds for terrain setup passes that redraw the occlusion raster. Used by adaptive occlusion raster.")
+		int occlusionBudgetMicros = 4000;
+		@Comment("Splits each level of terrain visibility search across chunk build threads. Helps at high render distances.")
+		boolean parallelTerrainIteration = false;
+		@Comment("When only region data has changed, revisits changed regions instead of repeating the full terrain visibility search.")
+		boolean incrementalTerrainIteration = true;
+		@Comment("Skip terrain regions that can't be seen through the open space of the regions between them and the camera. Reduces terrain iteration work underground.")
+		boolean connectivityCulling = true;
+		@Comment("Time budget in microseconds for each pass of terrain iteration. When exceeded, regions found so far - those nearest the camera - are drawn and iteration continues on the next pass. Zero means unlimited.")
+		int terrainIterationBudgetMicros = 0;
+		@Comment("Runs terrain iteration on its own thread instead of the chunk build pool, so visibility updates don't wait for a build worker. Only applies when terrain setup is off the render thread.")
+		boolean dedicatedTerrainIterationThread = true;
+		@Comment("Longest time in microseconds the render thread waits for worker threads to build regions that must be current this frame, such as regions near the player after a block change. Builds no worker has started by then are done on the render thread. Zero builds them on the render thread as before.")
+		int urgentBuildWaitMicros = 3000;
+		@Comment("Block changes to a region within this many milliseconds of the first change share one rebuild. Reduces rebuilds from redstone clocks, pistons and farms. Changes made by the player are always rebuilt immediately.")
+		int blockUpdateCoalesceMillis = 50;
+		@Comment("Regions near the camera keep their vertex data so block changes only re-tessellate the changed block and its neighbors. Uses more memory. Changes in light still rebuild the whole region.")
+		boolean partialRebuild = true;
+		@Comment("Reuses encoded quads of vanilla block models for blocks with the same state, visible faces, nearby light and colors. Speeds up region builds in terrain with many similar blocks.")
+		boolean tesselationCache = true;
+		@Comment("Regions at least this many blocks from the camera merge matching full-cube faces into larger quads. 0 disables.")
+		int greedyMeshDistance = 0;
 		// DEBUG
 		@Comment("Output runtime per-material shader source. For shader development debugging.")
 		boolean shaderDebug = false;
@@ -691,6 +963,8 @@ public class Configurator {
 		boolean debugOcclusionBoxes = false;
 		@Comment("Log clipping or other non-critical failures detected by terrain occluder. May spam the log.")
 		boolean traceOcclusionEdgeCases = false;
+		@Comment("Saves occluder draws and tests of a terrain iteration to canvas_occluder_stream.bin.gz, at most every 10 seconds. For occlusion test fixtures.")
+		boolean captureOccluderStream = false;
 	}
 
 
@@ -24,6 +24,7 @@ import grondag.canvas.apiimpl.material.MeshMaterialLocator;
 import grondag.canvas.apiimpl.mesh.MeshBuilderImpl;
 import grondag.canvas.apiimpl.rendercontext.BlockRenderContext;
 import grondag.canvas.apiimpl.rendercontext.ItemRenderContext;
+import grondag.canvas.apiimpl.rendercontext.TerrainRenderContext;
 import grondag.canvas.buffer.encoding.VertexEncoders;
 import grondag.canvas.compat.LitematicaHolder;
 import grondag.canvas.light.AoVertexClampFunction;
@@ -31,6 +32,7 @@ import grondag.canvas.light.LightmapHd;
 import grondag.canvas.light.LightmapHdTexture;
 import grondag.canvas.material.MaterialState;
 import grondag.canvas.perf.ChunkRebuildCounters;
+import grondag.canvas.perf.TerrainVisibilityCounters;
 import grondag.canvas.pipeline.ProcessShaders;
 import grondag.canvas.shader.EntityShader;
 import grondag.canvas.shader.GlShaderManager;
@@ -97,7 +99,9 @@ public class Canvas implements Renderer {
 		ProtoRenderRegion.reload();
 		BlockRenderContext.reload();
 		ItemRenderContext.reload();
+		TerrainRenderContext.reload();
 		ChunkRebuildCounters.reset();
+		TerrainVisibilityCounters.reset();
 		ChunkColorCache.invalidate();
 		AoVertexClampFunction.reload();
 		GlShaderManager.INSTANCE.reload();
@@ -72,6 +72,10 @@ public abstract class AbstractBlockRenderContext<T extends BlockRenderView> exte
 	};
 	private int lastColorIndex = -1;
 	private int blockColor = -1;
+	/** When not null, block colors looked up are recorded here as index and color pairs.  For the tesselation cache. */
+	int[] colorLog;
+	/** Entries used in {@link #colorLog}, or -1 if more colors were looked up than it holds. */
+	int colorLogCount;
 	private int fullCubeCache = 0;
 
 
@@ -108,10 +112,35 @@ public abstract class AbstractBlockRenderContext<T extends BlockRenderView> exte
 			lastColorIndex = colorIndex;
 			final int result = 0xFF000000 | blockColorMap.getColor(blockState, region, blockPos, colorIndex);
 			blockColor = result;
+
+			if (colorLog != null) {
+				logColor(colorIndex, result);
+			}
+
 			return result;
 		}
 	}
 
+	private void logColor(int colorIndex, int color) {
+		final int count = colorLogCount;
+
+		if (count >= 0 && count < colorLog.length) {
+			colorLog[count] = colorIndex;
+			colorLog[count + 1] = color;
+			colorLogCount = count + 2;
+		} else {
+			colorLogCount = -1;
+		}
+	}
+
+	/**
+	 * Makes the next call to {@link #random()} reseed for the current block, so that
+	 * models see the same sequence of random values again.
+	 */
+	protected final void resetRandom() {
+		needsRandomRefresh = true;
+	}
+
 	public boolean isFullCube() {
 		if (fullCubeCache == 0) {
 			fullCubeCache = Block.isShapeFullCube(blockState.getCollisionShape(region, blockPos)) ? 1 : -1;
@@ -0,0 +1,365 @@
+/*
+ * Copyright 2019, 2020 grondag
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package grondag.canvas.apiimpl.rendercontext;
+
+import grondag.canvas.Configurator;
+import grondag.canvas.buffer.encoding.VertexCollectorImpl;
+import grondag.canvas.buffer.encoding.VertexCollectorList;
+import grondag.canvas.material.MaterialState;
+import grondag.canvas.material.MaterialVertexFormats;
+import grondag.canvas.mixinterface.Matrix4fExt;
+import grondag.canvas.perf.ChunkRebuildCounters;
+import grondag.canvas.terrain.FastRenderRegion;
+import grondag.canvas.terrain.RenderRegionAddressHelper;
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.objects.Object2ObjectLinkedOpenHashMap;
+import net.fabricmc.fabric.api.renderer.v1.model.FabricBakedModel;
+import net.fabricmc.fabric.api.renderer.v1.model.ModelHelper;
+import net.minecraft.block.BlockState;
+import net.minecraft.client.render.model.BakedModel;
+import net.minecraft.client.render.model.BakedQuad;
+import net.minecraft.client.render.model.MultipartBakedModel;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Encoded quads of recently tesselated blocks, reused for blocks that would produce the same output.
+ * Output of a vanilla model depends only on block state, the quads the position random selects, which
+ * faces are culled, the light in the surrounding 3x3x3 blocks and block colors.  Stone, dirt and other
+ * common blocks in similar light then skip quad transform, lighting and encoding.
+ *
+ * <p>Models that aren't vanilla adapters are never cached.  They receive the world view in
+ * {@code emitBlockQuads} and may read any world state, including render attachments from
+ * {@code RenderAttachedBlockView}, so nothing about their output can be keyed.  Block colors
+ * come from the world too - entries record the colors they were built with and only match
+ * blocks where those colors are the same.
+ *
+ * <p>Not thread-safe.  Each terrain context has its own cache.
+ */
+class BlockTesselationCache {
+	private static final int MAX_ENTRIES = 4096;
+	/** Block colors an entry can record, as index and color pairs.  Blocks that look up more aren't cached. */
+	private static final int COLOR_LOG_SIZE = 8;
+	private static final int VERTEX_STRIDE = MaterialVertexFormats.VANILLA_BLOCKS_AND_ITEMS.vertexStrideInts;
+	private static final int[] NEIGHBOR_OFFSETS = new int[27];
+	private static volatile int invalidationVersion;
+
+	static {
+		int i = 0;
+
+		for (int z = -1; z <= 1; z++) {
+			for (int y = -1; y <= 1; y++) {
+				for (int x = -1; x <= 1; x++) {
+					NEIGHBOR_OFFSETS[i++] = RenderRegionAddressHelper.signedXyzOffset5(x, y, z);
+				}
+			}
+		}
+	}
+
+	private final TerrainRenderContext context;
+	private final IntUnaryOperator blockColors;
+	private final Object2ObjectLinkedOpenHashMap<Key, Entry> entries = new Object2ObjectLinkedOpenHashMap<>(MAX_ENTRIES);
+	private final Key searchKey = new Key();
+	private final int[] colorLog = new int[COLOR_LOG_SIZE];
+	private int[] solidStarts = new int[16];
+	private int version = invalidationVersion;
+	private int hitCount;
+	private int missCount;
+
+	BlockTesselationCache(TerrainRenderContext context) {
+		this.context = context;
+		blockColors = context::indexedColor;
+	}
+
+	/**
+	 * Discards entries of all caches before their next use.  Models, sprites and vertex formats may have changed.
+	 */
+	static void invalidate() {
+		++invalidationVersion;
+	}
+
+	/**
+	 * Call before each region.  Reports counts from the last region and handles invalidation.
+	 */
+	void prepare() {
+		if (ChunkRebuildCounters.ENABLED && (hitCount | missCount) != 0) {
+			ChunkRebuildCounters.countTesselationCache(hitCount, missCount);
+			hitCount = 0;
+			missCount = 0;
+		}
+
+		final int v = invalidationVersion;
+
+		if (version != v) {
+			version = v;
+			entries.clear();
+		}
+	}
+
+	/**
+	 * Emits quads for the block prepared in the context, from the cache when possible.
+	 *
+	 * @return False if the model can't be cached and the caller must emit it.
+	 */
+	boolean tesselate(FabricBakedModel model) {
+		if (!Configurator.tesselationCache || Configurator.hdLightmaps() || !model.isVanillaAdapter()
+				|| model instanceof MultipartBakedModel || !(model instanceof BakedModel)) {
+			// multipart models build new quad lists on every call so can't be keyed by list identity
+			return false;
+		}
+
+		final TerrainRenderContext context = this.context;
+		final BakedModel bakedModel = (BakedModel) model;
+		final BlockState blockState = context.blockState;
+		final Key key = searchKey;
+		int faceMask = 0;
+
+		// same order as FallbackConsumer so the position random selects the same quads
+		for (int i = 0; i < 6; i++) {
+			final List<BakedQuad> quads = bakedModel.getQuads(blockState, ModelHelper.faceFromIndex(i), context.random());
+			key.quads[i] = quads;
+
+			if (!quads.isEmpty() && context.cullTest(i)) {
+				faceMask |= 1 << i;
+			}
+		}
+
+		final List<BakedQuad> insideQuads = bakedModel.getQuads(blockState, null, context.random());
+		key.quads[6] = insideQuads;
+
+		if (faceMask == 0 && insideQuads.isEmpty()) {
+			// nothing would be emitted
+			Arrays.fill(key.quads, null);
+			return true;
+		}
+
+		key.blockState = blockState;
+		key.faceMask = faceMask;
+		captureLight(key.light);
+		key.computeHash();
+
+		final Matrix4fExt matrix = (Matrix4fExt) (Object) context.matrix();
+		final Entry entry = entries.getAndMoveToFirst(key);
+
+		if (entry != null && entry.matchesColors(blockColors)) {
+			++hitCount;
+			entry.emit(context.collectors, matrix.a03(), matrix.a13(), matrix.a23());
+		} else {
+			++missCount;
+			final Key newKey = key.copy();
+			final Entry newEntry = emitAndCapture(model, matrix);
+
+			if (newEntry != null) {
+				if (entries.putAndMoveToFirst(newKey, newEntry) == null && entries.size() > MAX_ENTRIES) {
+					entries.removeLast();
+				}
+			} else if (entry != null) {
+				entries.remove(newKey);
+			}
+		}
+
+		key.blockState = null;
+		Arrays.fill(key.quads, null);
+		return true;
+	}
+
+	/**
+	 * Brightness, AO level and opacity of the block and its neighbors - all inputs of smooth and flat lighting.
+	 */
+	private void captureLight(int[] light) {
+		final FastRenderRegion region = context.region;
+		final int packedXyz5 = RenderRegionAddressHelper.cacheIndexToXyz5(RenderRegionAddressHelper.interiorIndex(context.blockPos));
+
+		for (int i = 0; i < 27; i++) {
+			final int cacheIndex = RenderRegionAddressHelper.fastOffsetRelativeCacheIndex(packedXyz5, NEIGHBOR_OFFSETS[i]);
+			final int brightness = region.cachedBrightness(cacheIndex);
+			// same block and sky light bits the encoders use
+			light[i] = (brightness & 0xFF) | ((brightness >> 8) & 0xFF00) | (region.cachedAoLevel(cacheIndex) << 16) | (region.isClosed(cacheIndex) ? 1 << 24 : 0);
+		}
+	}
+
+	/**
+	 * Emits normally and captures what was appended to each collector.
+	 *
+	 * @return Null if the output can't be cached.
+	 */
+	private Entry emitAndCapture(FabricBakedModel model, Matrix4fExt matrix) {
+		final TerrainRenderContext context = this.context;
+		final VertexCollectorList collectors = context.collectors;
+		final int solidCount = collectors.solidCount();
+		final int translucentStart = collectors.getTranslucent().integerSize();
+
+		if (solidStarts.length < solidCount) {
+			solidStarts = new int[solidCount * 2];
+		}
+
+		for (int i = 0; i < solidCount; i++) {
+			solidStarts[i] = collectors.getSolid(i).integerSize();
+		}
+
+		context.resetRandom();
+		context.colorLog = colorLog;
+		context.colorLogCount = 0;
+
+		try {
+			model.emitBlockQuads(context.region, context.blockState, context.blockPos, context.randomSupplier, context);
+		} finally {
+			context.colorLog = null;
+		}
+
+		if (context.colorLogCount < 0) {
+			return null;
+		}
+
+		return Entry.capture(collectors, translucentStart, solidStarts, solidCount, matrix.a03(), matrix.a13(), matrix.a23(), Arrays.copyOf(colorLog, context.colorLogCount));
+	}
+
+	private static class Key {
+		private final Object[] quads = new Object[7];
+		private final int[] light = new int[27];
+		private BlockState blockState;
+		private int faceMask;
+		private int hash;
+
+		private void computeHash() {
+			int h = System.identityHashCode(blockState) * 31 + faceMask;
+
+			for (final Object q : quads) {
+				h = h * 31 + System.identityHashCode(q);
+			}
+
+			hash = HashCommon.mix(h * 31 + Arrays.hashCode(light));
+		}
+
+		private Key copy() {
+			final Key result = new Key();
+			System.arraycopy(quads, 0, result.quads, 0, 7);
+			System.arraycopy(light, 0, result.light, 0, 27);
+			result.blockState = blockState;
+			result.faceMask = faceMask;
+			result.hash = hash;
+			return result;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+
+			final Key other = (Key) obj;
+
+			if (other.hash != hash || other.blockState != blockState || other.faceMask != faceMask) {
+				return false;
+			}
+
+			// quad lists compare by identity - models return the same list for the same selection
+			for (int i = 0; i < 7; i++) {
+				if (other.quads[i] != quads[i]) {
+					return false;
+				}
+			}
+
+			return Arrays.equals(other.light, light);
+		}
+	}
+
+	static class Entry {
+		private final MaterialState[] states;
+		private final int[][] data;
+		/** Block colors looked up during the build, as index and color pairs. */
+		private final int[] colors;
+
+		private Entry(MaterialState[] states, int[][] data, int[] colors) {
+			this.states = states;
+			this.data = data;
+			this.colors = colors;
+		}
+
+		/**
+		 * Copies what a block appended to each collector, with positions relative to the block.
+		 *
+		 * @param solidStarts Integer size of the first solidCount solid collectors before the block.
+		 * Solid collectors added by the block start empty.
+		 * @param dx Model-space translation of the block.
+		 * @param colors Block colors looked up by the block, as index and color pairs.
+		 */
+		static Entry capture(VertexCollectorList collectors, int translucentStart, int[] solidStarts, int solidCount, float dx, float dy, float dz, int[] colors) {
+			final int newSolidCount = collectors.solidCount();
+			final MaterialState[] states = new MaterialState[newSolidCount + 1];
+			final int[][] data = new int[newSolidCount + 1][];
+			int count = 0;
+
+			for (int i = -1; i < newSolidCount; i++) {
+				final VertexCollectorImpl collector = i == -1 ? collectors.getTranslucent() : collectors.getSolid(i);
+				final int start = i == -1 ? translucentStart : i < solidCount ? solidStarts[i] : 0;
+				final int end = collector.integerSize();
+
+				if (end > start) {
+					final int[] quads = collector.copyRange(start, end);
+
+					// store block-relative positions
+					for (int j = 0; j < quads.length; j += VERTEX_STRIDE) {
+						quads[j] = Float.floatToRawIntBits(Float.intBitsToFloat(quads[j]) - dx);
+						quads[j + 1] = Float.floatToRawIntBits(Float.intBitsToFloat(quads[j + 1]) - dy);
+						quads[j + 2] = Float.floatToRawIntBits(Float.intBitsToFloat(quads[j + 2]) - dz);
+					}
+
+					states[count] = collector.materialState();
+					data[count] = quads;
+					++count;
+				}
+			}
+
+			return new Entry(Arrays.copyOf(states, count), Arrays.copyOf(data, count), colors);
+		}
+
+		/**
+		 * @param blockColors Color of the block being tesselated for a color index.
+		 */
+		boolean matchesColors(IntUnaryOperator blockColors) {
+			final int[] colors = this.colors;
+
+			for (int i = 0; i < colors.length; i += 2) {
+				if (blockColors.applyAsInt(colors[i]) != colors[i + 1]) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+		/**
+		 * Appends the quads with positions translated to a block.  Positions don't always round
+		 * to the same floats as tesselating the block there, but stay within a few ULPs.
+		 */
+		void emit(VertexCollectorList collectors, float dx, float dy, float dz) {
+			final int limit = states.length;
+
+			for (int i = 0; i < limit; i++) {
+				collectors.get(states[i]).addTranslated(data[i], VERTEX_STRIDE, dx, dy, dz);
+			}
+		}
+	}
+}
@@ -65,6 +65,7 @@ public class TerrainRenderContext extends AbstractBlockRenderContext<FastRenderR
 			return region.isClosed(cacheIndex);
 		}
 	};
+	private final BlockTesselationCache tesselationCache = new BlockTesselationCache(this);
 	private int cullCompletionFlags;
 	private int cullResultFlags;
 
@@ -74,11 +75,19 @@ public class TerrainRenderContext extends AbstractBlockRenderContext<FastRenderR
 		collectors.setContext(EncodingContext.TERRAIN);
 	}
 
+	/**
+	 * Discards cached block tesselation of all terrain contexts.  Call when models or textures are reloaded.
+	 */
+	public static void reload() {
+		BlockTesselationCache.invalidate();
+	}
+
 	public TerrainRenderContext prepareRegion(ProtoRenderRegion protoRegion) {
 		nonCullBlockEntities.clear();
 		addedBlockEntities.clear();
 		removedBlockEntities.clear();
 		region.prepare(protoRegion);
+		tesselationCache.prepare();
 
 		if (Configurator.lightSmoothing) {
 			//            final long start = counter.startRun();
@@ -110,7 +119,10 @@ public class TerrainRenderContext extends AbstractBlockRenderContext<FastRenderR
 			prepareForBlock(blockState, blockPos, defaultAo, -1);
 			cullCompletionFlags = 0;
 			cullResultFlags = 0;
-			model.emitBlockQuads(region, blockState, blockPos, randomSupplier, this);
+
+			if (isFluidModel || !tesselationCache.tesselate(model)) {
+				model.emitBlockQuads(region, blockState, blockPos, randomSupplier, this);
+			}
 		} catch (final Throwable var9) {
 			final CrashReport crashReport_1 = CrashReport.create(var9, "Tesselating block in world - Indigo Renderer");
 			final CrashReportSection crashReportElement_1 = crashReport_1.addElement("Block being tesselated");
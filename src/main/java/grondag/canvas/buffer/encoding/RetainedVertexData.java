@@ -0,0 +1,141 @@
+/*
+ * Copyright 2019, 2020 grondag
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package grondag.canvas.buffer.encoding;
+
+import grondag.canvas.material.MaterialState;
+
+import java.util.function.IntConsumer;
+
+/**
+ * Vertex data of a completed region build along with the range of quads emitted by each block.
+ * Lets a later build of the same region re-tessellate only blocks that changed and copy
+ * everything else.  Immutable once captured, so it can be shared between build threads.
+ */
+public class RetainedVertexData {
+	private final MaterialState[] states;
+	private final int[][] data;
+	private final int[][] runs;
+	/** One bit per block index, set if the block was tessellated by the build. */
+	private final long[] renderedBlocks;
+
+	private RetainedVertexData(MaterialState[] states, int[][] data, int[][] runs, long[] renderedBlocks) {
+		this.states = states;
+		this.data = data;
+		this.runs = runs;
+		this.renderedBlocks = renderedBlocks;
+	}
+
+	public long[] renderedBlocks() {
+		return renderedBlocks;
+	}
+
+	/**
+	 * Copies the output of a build that called {@link VertexCollectorList#markBlock(int)}
+	 * after every block.  Must happen before translucent quads are sorted.
+	 *
+	 * @param collectors Collectors of the build.
+	 * @param renderedBlocks One bit per block index, set for blocks the build tessellated.
+	 */
+	public static RetainedVertexData capture(VertexCollectorList collectors, long[] renderedBlocks) {
+		final int solidCount = collectors.solidCount();
+		int count = 0;
+
+		final MaterialState[] states = new MaterialState[solidCount + 1];
+		final int[][] data = new int[solidCount + 1][];
+		final int[][] runs = new int[solidCount + 1][];
+
+		for (int i = -1; i < solidCount; i++) {
+			final VertexCollectorImpl collector = i == -1 ? collectors.getTranslucent() : collectors.getSolid(i);
+
+			if (!collector.isEmpty()) {
+				assert collector.isBlockMarked();
+				states[count] = collector.materialState();
+				data[count] = collector.saveState(null);
+				runs[count] = collector.saveBlockRuns();
+				++count;
+			}
+		}
+
+		if (count < states.length) {
+			final MaterialState[] trimStates = new MaterialState[count];
+			final int[][] trimData = new int[count][];
+			final int[][] trimRuns = new int[count][];
+			System.arraycopy(states, 0, trimStates, 0, count);
+			System.arraycopy(data, 0, trimData, 0, count);
+			System.arraycopy(runs, 0, trimRuns, 0, count);
+			return new RetainedVertexData(trimStates, trimData, trimRuns, renderedBlocks);
+		}
+
+		return new RetainedVertexData(states, data, runs, renderedBlocks);
+	}
+
+	/**
+	 * Fills freshly cleared collectors with retained quads of unchanged blocks and calls the
+	 * tessellator for each changed block in between, so quads stay in block order and the
+	 * result can itself be captured for the next partial build.
+	 *
+	 * @param collectors Target collectors, cleared and prepared for the region.
+	 * @param changedBlocks Indexes of blocks to re-tessellate, ascending and without duplicates.
+	 * @param changedCount Number of valid entries in changedBlocks.
+	 * @param tessellator Emits quads of the given block index, if any, into the collectors.
+	 */
+	public void rebuild(VertexCollectorList collectors, int[] changedBlocks, int changedCount, IntConsumer tessellator) {
+		final int limit = states.length;
+		final VertexCollectorImpl[] targets = new VertexCollectorImpl[limit];
+		final int[] nextRun = new int[limit];
+
+		for (int k = 0; k < limit; k++) {
+			targets[k] = collectors.get(states[k]);
+		}
+
+		for (int c = 0; c < changedCount; c++) {
+			final int blockIndex = changedBlocks[c];
+
+			for (int k = 0; k < limit; k++) {
+				nextRun[k] = copyBefore(k, nextRun[k], blockIndex, targets[k]);
+			}
+
+			tessellator.accept(blockIndex);
+			collectors.markBlock(blockIndex);
+		}
+
+		for (int k = 0; k < limit; k++) {
+			copyBefore(k, nextRun[k], Integer.MAX_VALUE, targets[k]);
+		}
+	}
+
+	/**
+	 * Appends runs of blocks before the given block index and skips the run of that block.
+	 * @return index of the first run after the given block
+	 */
+	private int copyBefore(int k, int fromRun, int blockIndex, VertexCollectorImpl target) {
+		final int[] runs = this.runs[k];
+		final int runCount = runs.length / 2;
+		int toRun = fromRun;
+
+		while (toRun < runCount && runs[toRun * 2] < blockIndex) {
+			++toRun;
+		}
+
+		if (toRun > fromRun) {
+			target.appendBlockRuns(data[k], runs, fromRun, toRun);
+		}
+
+		// NB: blocks are marked once per build so each block has at most one run per collector
+		return toRun < runCount && runs[toRun * 2] == blockIndex ? toRun + 1 : toRun;
+	}
+}
@@ -29,6 +29,7 @@ import net.minecraft.client.render.VertexConsumer;
 import net.minecraft.util.math.MathHelper;
 
 import java.nio.IntBuffer;
+import java.util.Arrays;
 
 public class VertexCollectorImpl implements VertexCollector {
 	private static final ThreadLocal<QuadSorter> quadSorter = new ThreadLocal<QuadSorter>() {
@@ -61,6 +62,16 @@ public class VertexCollectorImpl implements VertexCollector {
 	 * Cached value of {@link #quadCount()}, set when quads are sorted by distance.
 	 */
 	private int sortMaxIndex = 0;
+	/**
+	 * Pairs of block index and first integer of the quads emitted by that block, in emission order.
+	 * Only recorded when the build calls {@link #markBlock(int)}.  Not valid after sorting.
+	 */
+	private int[] blockRuns = new int[64];
+	private int blockRunCount = 0;
+	/**
+	 * Integer size when {@link #markBlock(int)} was last called.
+	 */
+	private int blockMarkSize = 0;
 
 	public VertexCollectorImpl() {
 	}
@@ -74,9 +85,94 @@ public class VertexCollectorImpl implements VertexCollector {
 
 	public void clear() {
 		integerSize = 0;
+		blockRunCount = 0;
+		blockMarkSize = 0;
 		data.reset();
 	}
 
+	/**
+	 * Attributes quads added since the last call to the given block, so they can later be
+	 * copied or replaced as a unit by a partial rebuild of the region.
+	 */
+	public void markBlock(int blockIndex) {
+		if (integerSize != blockMarkSize) {
+			addBlockRun(blockIndex, blockMarkSize);
+			blockMarkSize = integerSize;
+		}
+	}
+
+	private void addBlockRun(int blockIndex, int start) {
+		final int i = blockRunCount * 2;
+
+		if (i == blockRuns.length) {
+			blockRuns = Arrays.copyOf(blockRuns, i * 2);
+		}
+
+		blockRuns[i] = blockIndex;
+		blockRuns[i + 1] = start;
+		++blockRunCount;
+	}
+
+	/**
+	 * True if all quads have been attributed to blocks by {@link #markBlock(int)}.
+	 */
+	public boolean isBlockMarked() {
+		return blockMarkSize == integerSize;
+	}
+
+	public int[] saveBlockRuns() {
+		return Arrays.copyOf(blockRuns, blockRunCount * 2);
+	}
+
+	/**
+	 * Appends retained quads of a range of block runs along with the runs themselves.
+	 *
+	 * @param source Retained data the runs index.
+	 * @param runs Retained block runs.
+	 * @param fromRun First run to append.
+	 * @param toRun Run after the last run to append.
+	 */
+	public void appendBlockRuns(int[] source, int[] runs, int fromRun, int toRun) {
+		final int start = runs[fromRun * 2 + 1];
+		final int end = toRun * 2 < runs.length ? runs[toRun * 2 + 1] : source.length;
+		final int shift = integerSize - start;
+
+		for (int r = fromRun; r < toRun; ++r) {
+			addBlockRun(runs[r * 2], runs[r * 2 + 1] + shift);
+		}
+
+		data.copyFrom(integerSize, source, start, end - start);
+		integerSize += end - start;
+		blockMarkSize = integerSize;
+	}
+
+	/**
+	 * Copies a range of vertex data, for example the quads emitted by one block.
+	 */
+	public int[] copyRange(int from, int to) {
+		final int[] result = new int[to - from];
+		data.copyTo(from, result, 0, to - from);
+		return result;
+	}
+
+	/**
+	 * Appends vertex data with positions offset by the given amounts.
+	 * Positions must be the first three elements of each vertex.
+	 */
+	public void addTranslated(int[] source, int vertexStrideInts, float dx, float dy, float dz) {
+		final int length = source.length;
+		final int base = integerSize;
+		data.copyFrom(base, source, 0, length);
+
+		for (int i = 0; i < length; i += vertexStrideInts) {
+			data.set(base + i, Float.floatToRawIntBits(Float.intBitsToFloat(source[i]) + dx));
+			data.set(base + i + 1, Float.floatToRawIntBits(Float.intBitsToFloat(source[i + 1]) + dy));
+			data.set(base + i + 2, Float.floatToRawIntBits(Float.intBitsToFloat(source[i + 2]) + dz));
+		}
+
+		integerSize += length;
+	}
+
 	public int integerSize() {
 		return integerSize;
 	}
@@ -210,6 +306,8 @@ public class VertexCollectorImpl implements VertexCollector {
 		materialState = state;
 		final int newSize = stateData.length;
 		integerSize = 0;
+		blockRunCount = 0;
+		blockMarkSize = 0;
 
 		if (newSize > 0) {
 			integerSize = newSize;
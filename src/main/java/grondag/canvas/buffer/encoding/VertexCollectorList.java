@@ -63,6 +63,18 @@ public class VertexCollectorList {
 		Arrays.fill(collectors, 1, collectors.length, null);
 	}
 
+	/**
+	 * Attributes quads emitted since the last call to the given block in every collector.
+	 * See {@link VertexCollectorImpl#markBlock(int)}.
+	 */
+	public void markBlock(int blockIndex) {
+		collectors[MaterialState.TRANSLUCENT_INDEX].markBlock(blockIndex);
+
+		for (int i = 0; i < solidCount; i++) {
+			solidCollectors.get(i).markBlock(blockIndex);
+		}
+	}
+
 	public final VertexCollectorImpl getIfExists(MaterialState materialState) {
 		return collectors[materialState.collectorIndex];
 	}
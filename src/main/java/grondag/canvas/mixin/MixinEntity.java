@@ -0,0 +1,57 @@
+/*
+ * Copyright 2019, 2020 grondag
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package grondag.canvas.mixin;
+
+import grondag.canvas.mixinterface.EntityExt;
+import net.minecraft.entity.Entity;
+import org.spongepowered.asm.mixin.Mixin;
+
+@Mixin(Entity.class)
+public class MixinEntity implements EntityExt {
+	private long visibilityVersion = -1;
+	private long visibilityOrigin;
+	private int visibilitySize;
+	private boolean visibilityResult;
+
+	@Override
+	public long canvas_visibilityVersion() {
+		return visibilityVersion;
+	}
+
+	@Override
+	public long canvas_visibilityOrigin() {
+		return visibilityOrigin;
+	}
+
+	@Override
+	public int canvas_visibilitySize() {
+		return visibilitySize;
+	}
+
+	@Override
+	public boolean canvas_visibilityResult() {
+		return visibilityResult;
+	}
+
+	@Override
+	public void canvas_visibility(long version, long origin, int size, boolean result) {
+		visibilityVersion = version;
+		visibilityOrigin = origin;
+		visibilitySize = size;
+		visibilityResult = result;
+	}
+}
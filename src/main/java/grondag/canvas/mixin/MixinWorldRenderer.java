@@ -34,6 +34,7 @@ import net.minecraft.client.util.math.MatrixStack;
 import net.minecraft.client.world.ClientWorld;
 import net.minecraft.entity.Entity;
 import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.BlockView;
 import org.spongepowered.asm.mixin.Mixin;
 import org.spongepowered.asm.mixin.Shadow;
 import org.spongepowered.asm.mixin.injection.At;
@@ -122,6 +123,16 @@ public class MixinWorldRenderer implements WorldRendererExt {
 		ci.cancel();
 	}
 
+	@Inject(at = @At("HEAD"), method = "updateBlock")
+	private void onUpdateBlockHead(BlockView world, BlockPos pos, BlockState oldState, BlockState newState, int flags, CallbackInfo ci) {
+		((CanvasWorldRenderer) (Object) this).beginBlockUpdate(pos);
+	}
+
+	@Inject(at = @At("RETURN"), method = "updateBlock")
+	private void onUpdateBlockReturn(BlockView world, BlockPos pos, BlockState oldState, BlockState newState, int flags, CallbackInfo ci) {
+		((CanvasWorldRenderer) (Object) this).endBlockUpdate();
+	}
+
 	@Redirect(method = "scheduleChunkRender", at = @At(value = "INVOKE", target = "Lnet/minecraft/client/render/BuiltChunkStorage;scheduleRebuild(IIIZ)V"), require = 1)
 	private void onScheduleChunkRender(BuiltChunkStorage storage, int x, int y, int z, boolean urgent) {
 		((CanvasWorldRenderer) (Object) this).scheduleRegionRender(x, y, z, urgent);
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2019, 2020 grondag
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package grondag.canvas.mixinterface;
+
+/**
+ * Caches the outcome of entity visibility tests so they are repeated
+ * only when the view, terrain visibility or entity bounds change.
+ */
+public interface EntityExt {
+	long canvas_visibilityVersion();
+
+	long canvas_visibilityOrigin();
+
+	int canvas_visibilitySize();
+
+	boolean canvas_visibilityResult();
+
+	void canvas_visibility(long version, long origin, int size, boolean result);
+}
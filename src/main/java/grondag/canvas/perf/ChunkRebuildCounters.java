@@ -20,6 +20,8 @@ import grondag.canvas.CanvasMod;
 import grondag.canvas.Configurator;
 import grondag.fermion.sc.concurrency.ConcurrentPerformanceCounter;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 public abstract class ChunkRebuildCounters {
 	public static final boolean ENABLED = Configurator.enablePerformanceTrace;
 	private static final ConcurrentPerformanceCounter buildCounter = new ConcurrentPerformanceCounter();
@@ -28,6 +30,19 @@ public abstract class ChunkRebuildCounters {
 	private static final ThreadLocal<Long> chunkStart = ThreadLocal.withInitial(() -> 0L);
 	private static final ThreadLocal<Long> copyStart = ThreadLocal.withInitial(() -> 0L);
 	private static final ThreadLocal<Long> uploadStart = ThreadLocal.withInitial(() -> 0L);
+	private static final AtomicInteger mainThreadBuildCount = new AtomicInteger();
+	private static final AtomicInteger urgentBuildCount = new AtomicInteger();
+	private static final AtomicInteger lateUrgentBuildCount = new AtomicInteger();
+	private static final AtomicInteger blockUpdateCount = new AtomicInteger();
+	private static final AtomicInteger mergedBlockUpdateCount = new AtomicInteger();
+	private static final AtomicInteger partialBuildCount = new AtomicInteger();
+	private static final AtomicInteger partialBuildBlockCount = new AtomicInteger();
+	private static final AtomicInteger stalePartialBuildCount = new AtomicInteger();
+	private static final AtomicInteger tesselationCacheHitCount = new AtomicInteger();
+	private static final AtomicInteger tesselationCacheMissCount = new AtomicInteger();
+	private static final AtomicInteger mergedRegionCount = new AtomicInteger();
+	private static final AtomicInteger quadsBeforeMergeCount = new AtomicInteger();
+	private static final AtomicInteger quadsAfterMergeCount = new AtomicInteger();
 
 	private ChunkRebuildCounters() {
 	}
@@ -36,6 +51,19 @@ public abstract class ChunkRebuildCounters {
 		buildCounter.clearStats();
 		copyCounter.clearStats();
 		uploadCounter.clearStats();
+		mainThreadBuildCount.set(0);
+		urgentBuildCount.set(0);
+		lateUrgentBuildCount.set(0);
+		blockUpdateCount.set(0);
+		mergedBlockUpdateCount.set(0);
+		partialBuildCount.set(0);
+		partialBuildBlockCount.set(0);
+		stalePartialBuildCount.set(0);
+		tesselationCacheHitCount.set(0);
+		tesselationCacheMissCount.set(0);
+		mergedRegionCount.set(0);
+		quadsBeforeMergeCount.set(0);
+		quadsAfterMergeCount.set(0);
 	}
 
 	public static void startChunk() {
@@ -54,12 +82,88 @@ public abstract class ChunkRebuildCounters {
 
 			final int uploadCount = uploadCounter.runCount();
 			CanvasMod.LOG.info(String.format("Upload time per region for last %d regions = %,dns  total time: %fs", uploadCount, uploadCount == 0 ? 0 : uploadCounter.runTime() / uploadCount, uploadCounter.runTime() / 1000000000d));
+			CanvasMod.LOG.info(String.format("Render thread builds: %d  urgent builds on workers: %d, not done in time: %d", mainThreadBuildCount.get(), urgentBuildCount.get(), lateUrgentBuildCount.get()));
+			CanvasMod.LOG.info(String.format("Block updates received: %d  merged into a pending rebuild: %d", blockUpdateCount.get(), mergedBlockUpdateCount.get()));
+			final int partialCount = partialBuildCount.get();
+			final int cacheHits = tesselationCacheHitCount.get();
+			final int cacheLookups = cacheHits + tesselationCacheMissCount.get();
+			CanvasMod.LOG.info(String.format("Tesselation cache hits: %d  misses: %d  hit rate: %d%%", cacheHits, cacheLookups - cacheHits, cacheLookups == 0 ? 0 : cacheHits * 100 / cacheLookups));
+			CanvasMod.LOG.info(String.format("Partial rebuilds: %d  blocks re-tessellated per partial rebuild: %d  discarded as stale: %d", partialCount, partialCount == 0 ? 0 : partialBuildBlockCount.get() / partialCount, stalePartialBuildCount.get()));
+			final int quadsBeforeMerge = quadsBeforeMergeCount.get();
+			final int quadsAfterMerge = quadsAfterMergeCount.get();
+			CanvasMod.LOG.info(String.format("Regions with merged faces: %d  solid quads before merge: %,d  after: %,d  reduction: %d%%", mergedRegionCount.get(), quadsBeforeMerge, quadsAfterMerge, quadsBeforeMerge == 0 ? 0 : (quadsBeforeMerge - quadsAfterMerge) * 100 / quadsBeforeMerge));
 			reset();
 
 			CanvasMod.LOG.info("");
 		}
 	}
 
+	/**
+	 * Counts a build that stalled the render thread, either because urgent builds are disabled
+	 * or because no worker started an urgent build in time.
+	 */
+	public static void countMainThreadBuild() {
+		mainThreadBuildCount.incrementAndGet();
+	}
+
+	/**
+	 * Counts an urgent build the render thread waited for.
+	 *
+	 * @param late True if the worker had started but not finished when the wait ended.
+	 */
+	public static void countUrgentBuild(boolean late) {
+		urgentBuildCount.incrementAndGet();
+
+		if (late) {
+			lateUrgentBuildCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Counts a block change that marked a region for rebuild.
+	 *
+	 * @param merged True if the region already needed a rebuild, so no extra rebuild results.
+	 */
+	public static void countBlockUpdate(boolean merged) {
+		blockUpdateCount.incrementAndGet();
+
+		if (merged) {
+			mergedBlockUpdateCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Counts a rebuild that copied retained quads for all but the given number of blocks.
+	 */
+	public static void countPartialBuild(int blockCount) {
+		partialBuildCount.incrementAndGet();
+		partialBuildBlockCount.addAndGet(blockCount);
+	}
+
+	/**
+	 * Counts a partial rebuild discarded because another build of the region replaced its retained data.
+	 */
+	public static void countStalePartialBuild() {
+		stalePartialBuildCount.incrementAndGet();
+	}
+
+	/**
+	 * Adds block tesselation cache lookups of one region build.
+	 */
+	public static void countTesselationCache(int hits, int misses) {
+		tesselationCacheHitCount.addAndGet(hits);
+		tesselationCacheMissCount.addAndGet(misses);
+	}
+
+	/**
+	 * Adds solid quad counts before and after face merging of one distant region build.
+	 */
+	public static void countMergedFaces(int quadsBefore, int quadsAfter) {
+		mergedRegionCount.incrementAndGet();
+		quadsBeforeMergeCount.addAndGet(quadsBefore);
+		quadsAfterMergeCount.addAndGet(quadsAfter);
+	}
+
 	public static void startCopy() {
 		copyStart.set(System.nanoTime());
 	}
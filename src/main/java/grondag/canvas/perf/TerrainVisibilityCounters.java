@@ -0,0 +1,119 @@
+/*
+ * Copyright 2019, 2020 grondag
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package grondag.canvas.perf;
+
+import grondag.canvas.CanvasMod;
+import grondag.canvas.Configurator;
+
+/**
+ * Visibility latency - time from the first frame that sees a camera change
+ * to the frame that draws terrain visibility computed for the new view.
+ * Includes time waiting to start, so it shows delays that iteration time alone doesn't.
+ * Render thread only.
+ */
+public abstract class TerrainVisibilityCounters {
+	public static final boolean ENABLED = Configurator.enablePerformanceTrace;
+	private static final int SAMPLE_SIZE = 200;
+
+	/** When the current camera change was first seen, or zero if none is waiting for an iteration. */
+	private static long changeNanos;
+	/** Camera change the running iteration is for, or zero if it started for another reason. */
+	private static long iterationChangeNanos;
+	private static boolean firstResultSeen;
+
+	private static int count;
+	private static long firstResultNanos;
+	private static long firstResultMax;
+	private static long completeNanos;
+	private static long completeMax;
+	private static int partialCount;
+
+	private TerrainVisibilityCounters() {
+	}
+
+	public static void reset() {
+		changeNanos = 0;
+		iterationChangeNanos = 0;
+		clear();
+	}
+
+	private static void clear() {
+		count = 0;
+		firstResultNanos = 0;
+		firstResultMax = 0;
+		completeNanos = 0;
+		completeMax = 0;
+		partialCount = 0;
+	}
+
+	/**
+	 * Call each frame the view differs from the one used by the last iteration started.
+	 */
+	public static void viewChanged() {
+		if (changeNanos == 0) {
+			changeNanos = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Call when an iteration is prepared.
+	 */
+	public static void startIteration(boolean viewChanged) {
+		if (viewChanged) {
+			iterationChangeNanos = changeNanos;
+			changeNanos = 0;
+		} else {
+			iterationChangeNanos = 0;
+		}
+
+		firstResultSeen = false;
+	}
+
+	/**
+	 * Call when the render thread takes regions found by an iteration.
+	 */
+	public static void publish(boolean complete) {
+		final long startNanos = iterationChangeNanos;
+
+		if (startNanos == 0) {
+			return;
+		}
+
+		final long nanos = System.nanoTime() - startNanos;
+
+		if (!firstResultSeen) {
+			firstResultSeen = true;
+			firstResultNanos += nanos;
+			firstResultMax = Math.max(firstResultMax, nanos);
+		}
+
+		if (!complete) {
+			++partialCount;
+			return;
+		}
+
+		iterationChangeNanos = 0;
+		completeNanos += nanos;
+		completeMax = Math.max(completeMax, nanos);
+
+		if (++count == SAMPLE_SIZE) {
+			CanvasMod.LOG.info(String.format("Visibility latency for last %d camera changes: first result avg %,dns max %,dns, complete avg %,dns max %,dns, %d partial results",
+					SAMPLE_SIZE, firstResultNanos / SAMPLE_SIZE, firstResultMax, completeNanos / SAMPLE_SIZE, completeMax, partialCount));
+			clear();
+		}
+	}
+}
@@ -25,7 +25,9 @@ import grondag.canvas.buffer.BindStateManager;
 import grondag.canvas.buffer.VboBuffer;
 import grondag.canvas.compat.*;
 import grondag.canvas.light.LightmapHdTexture;
+import grondag.canvas.mixinterface.EntityExt;
 import grondag.canvas.mixinterface.WorldRendererExt;
+import grondag.canvas.perf.TerrainVisibilityCounters;
 import grondag.canvas.pipeline.BufferDebug;
 import grondag.canvas.pipeline.CanvasFrameBufferHacks;
 import grondag.canvas.shader.GlProgram;
@@ -34,6 +36,8 @@ import grondag.canvas.shader.ShaderContext;
 import grondag.canvas.terrain.BuiltRenderRegion;
 import grondag.canvas.terrain.RenderRegionBuilder;
 import grondag.canvas.terrain.RenderRegionStorage;
+import grondag.canvas.terrain.occlusion.OccluderSnapshot;
+import grondag.canvas.terrain.occlusion.TerrainIterationThread;
 import grondag.canvas.terrain.occlusion.TerrainIterator;
 import grondag.canvas.terrain.occlusion.TerrainOccluder;
 import grondag.canvas.terrain.occlusion.region.OcclusionRegion;
@@ -76,24 +80,38 @@ import org.lwjgl.opengl.GL21;
 import javax.annotation.Nullable;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class CanvasWorldRenderer extends WorldRenderer {
 	public static final int MAX_REGION_COUNT = (32 * 2 + 1) * (32 * 2 + 1) * 16;
 	private static CanvasWorldRenderer instance;
 	public final TerrainOccluder terrainOccluder = new TerrainOccluder();
+	private static final int BLOCK_ENTITY_BOX = PackedBox.pack(0, 0, 0, 1, 1, 1, PackedBox.RANGE_EXTREME);
+	private int[] blockEntityBoxes = new int[64];
+	private int[] blockEntityOrigins = new int[64 * 3];
+	private long[] blockEntityVisibility = new long[1];
 	// TODO: redirect uses in MC WorldRenderer
 	public final Set<BuiltRenderRegion> regionsToRebuild = Sets.newLinkedHashSet();
 	final TerrainLayerRenderer SOLID = new TerrainLayerRenderer("solid", ShaderContext.TERRAIN_SOLID, null);
 	final TerrainLayerRenderer DECAL = new TerrainLayerRenderer("decal", ShaderContext.TERRAIN_DECAL, null);
 	private final RenderRegionStorage renderRegionStorage = new RenderRegionStorage(this);
 	private final TerrainIterator terrainIterator = new TerrainIterator(this);
+	private final TerrainIterationThread terrainIterationThread = new TerrainIterationThread();
 	private final CanvasFrustum frustum = new CanvasFrustum();
 	/**
 	 * Incremented whenever regions are built so visibility search can progress or to indicate visibility might be changed.
 	 * Distinct from occluder state, which indiciates if/when occluder must be reset or redrawn.
 	 */
 	private final AtomicInteger regionDataVersion = new AtomicInteger();
+	/**
+	 * Regions with changed build data since the last terrain iteration was prepared, for incremental iteration.
+	 */
+	private final Set<BuiltRenderRegion> changedRegions = ConcurrentHashMap.newKeySet();
+	/**
+	 * True when the terrain iterator holds results of a completed iteration that incremental iterations can add to.
+	 */
+	private boolean canIterateIncrementally = false;
 	private final BuiltRenderRegion[] visibleRegions = new BuiltRenderRegion[MAX_REGION_COUNT];
 	private final WorldRendererExt wr;
 	private boolean terrainSetupOffThread = Configurator.terrainSetupOffThread;
@@ -102,12 +120,20 @@ public class CanvasWorldRenderer extends WorldRenderer {
 	private int translucentSortPositionVersion;
 	private int viewVersion;
 	private int occluderVersion;
+	/** View version when queued builds were last re-prioritized. */
+	private int buildPriorityViewVersion;
 	private ClientWorld world;
 	private int squaredRenderDistance;
 	private int squaredRetentionDistance;
 	private Vec3d cameraPos;
 	private int lastRegionDataVersion = -1;
 	private int visibleRegionCount = 0;
+	/**
+	 * Incremented when a terrain iteration completes. Entity visibility results are only reused within one version.
+	 */
+	private int terrainVisibilityVersion = 0;
+	/** Block changed by the vanilla block update in progress, if any.  Region renders scheduled without one are full rebuilds. */
+	private @Nullable BlockPos updatedBlockPos;
 	final TerrainLayerRenderer TRANSLUCENT = new TerrainLayerRenderer("translucemt", ShaderContext.TERRAIN_TRANSLUCENT, this::sortTranslucentTerrain);
 
 	public CanvasWorldRenderer(MinecraftClient client, BufferBuilderStorage bufferBuilders) {
@@ -167,6 +193,15 @@ public class CanvasWorldRenderer extends WorldRenderer {
 		regionDataVersion.incrementAndGet();
 	}
 
+	/**
+	 * Like {@link #forceVisibilityUpdate()} but records the region so the
+	 * next iteration can be limited to changed regions.
+	 */
+	public void forceVisibilityUpdate(BuiltRenderRegion region) {
+		changedRegions.add(region);
+		regionDataVersion.incrementAndGet();
+	}
+
 	public RenderRegionBuilder regionBuilder() {
 		return regionBuilder;
 	}
@@ -192,6 +227,9 @@ public class CanvasWorldRenderer extends WorldRenderer {
 		renderRegionStorage.clear();
 		Arrays.fill(visibleRegions, null);
 		terrainIterator.reset();
+		canIterateIncrementally = false;
+		changedRegions.clear();
+		terrainIterator.clearOccluderSnapshot();
 		renderRegionStorage.clear();
 		Arrays.fill(terrainIterator.visibleRegions, null);
 
@@ -226,6 +264,12 @@ public class CanvasWorldRenderer extends WorldRenderer {
 
 		mc.getProfiler().swap("distance");
 		regionStorage.updateCameraDistance(cameraPos, frustumPositionVersion, renderDistance);
+
+		if (buildPriorityViewVersion != frustum.viewVersion()) {
+			buildPriorityViewVersion = frustum.viewVersion();
+			regionBuilder.executor.reprioritize(frustum);
+		}
+
 		MaterialShaderManager.INSTANCE.prepareForFrame(camera);
 		final BlockPos cameraBlockPos = camera.getBlockPos();
 		final BuiltRenderRegion cameraRegion = cameraBlockPos.getY() < 0 || cameraBlockPos.getY() > 255 ? null : regionStorage.getOrCreateRegion(cameraBlockPos);
@@ -248,48 +292,54 @@ public class CanvasWorldRenderer extends WorldRenderer {
 		mc.getProfiler().swap("update");
 
 
+		final int newRegionDataVersion = regionDataVersion.get();
+		final boolean viewChanged = viewVersion != frustum.viewVersion() || occluderVersion != terrainOccluder.version();
+
+		if (viewChanged && TerrainVisibilityCounters.ENABLED) {
+			TerrainVisibilityCounters.viewChanged();
+		}
+
 		if (terrainSetupOffThread) {
 			int state = terrainIterator.state();
 
 			if (state == TerrainIterator.COMPLETE) {
-				final BuiltRenderRegion[] visibleRegions = this.visibleRegions;
-				final int size = terrainIterator.visibleRegionCount;
-				visibleRegionCount = size;
-				System.arraycopy(terrainIterator.visibleRegions, 0, visibleRegions, 0, size);
-				assert size == 0 || visibleRegions[0] != null;
-				scheduleOrBuild(terrainIterator.updateRegions);
+				acceptVisibleRegions(true);
 				terrainIterator.reset();
+				canIterateIncrementally = true;
 				state = TerrainIterator.IDLE;
+			} else if (state == TerrainIterator.SUSPENDED) {
+				acceptVisibleRegions(false);
+				terrainIterator.resume();
+				executeTerrainIteration();
 			}
 
-			final int newRegionDataVersion = regionDataVersion.get();
-
-			if (state == TerrainIterator.IDLE && (newRegionDataVersion != lastRegionDataVersion || viewVersion != frustum.viewVersion() || occluderVersion != terrainOccluder.version())) {
-				viewVersion = frustum.viewVersion();
-				occluderVersion = terrainOccluder.version();
+			if (state == TerrainIterator.IDLE && (newRegionDataVersion != lastRegionDataVersion || viewChanged)) {
 				lastRegionDataVersion = newRegionDataVersion;
-				terrainOccluder.prepareScene(camera, frustum, renderRegionStorage.regionVersion());
-				terrainIterator.prepare(cameraRegion, cameraBlockPos, frustum, renderDistance, shouldCullChunks);
-				regionBuilder.executor.execute(terrainIterator, -1);
+				prepareTerrainIteration(camera, cameraRegion, cameraBlockPos, renderDistance, shouldCullChunks, viewChanged);
+				executeTerrainIteration();
 			}
 		} else {
-			final int newRegionDataVersion = regionDataVersion.get();
+			int state = terrainIterator.state();
 
-			if (newRegionDataVersion != lastRegionDataVersion || viewVersion != frustum.viewVersion() || occluderVersion != terrainOccluder.version()) {
-				viewVersion = frustum.viewVersion();
-				occluderVersion = terrainOccluder.version();
+			if (state == TerrainIterator.IDLE && (newRegionDataVersion != lastRegionDataVersion || viewChanged)) {
 				lastRegionDataVersion = newRegionDataVersion;
+				prepareTerrainIteration(camera, cameraRegion, cameraBlockPos, renderDistance, shouldCullChunks, viewChanged);
+				state = TerrainIterator.READY;
+			}
 
-				terrainOccluder.prepareScene(camera, frustum, renderRegionStorage.regionVersion());
-				terrainIterator.prepare(cameraRegion, cameraBlockPos, frustum, renderDistance, shouldCullChunks);
+			// a suspended iteration continues next frame
+			if (state == TerrainIterator.READY || state == TerrainIterator.RESUMING) {
 				terrainIterator.accept(null);
-
-				final BuiltRenderRegion[] visibleRegions = this.visibleRegions;
-				final int size = terrainIterator.visibleRegionCount;
-				visibleRegionCount = size;
-				System.arraycopy(terrainIterator.visibleRegions, 0, visibleRegions, 0, size);
-				scheduleOrBuild(terrainIterator.updateRegions);
-				terrainIterator.reset();
+				state = terrainIterator.state();
+
+				if (state == TerrainIterator.SUSPENDED) {
+					acceptVisibleRegions(false);
+					terrainIterator.resume();
+				} else if (state == TerrainIterator.COMPLETE) {
+					acceptVisibleRegions(true);
+					terrainIterator.reset();
+					canIterateIncrementally = true;
+				}
 			}
 		}
 
@@ -297,6 +347,94 @@ public class CanvasWorldRenderer extends WorldRenderer {
 		mc.getProfiler().pop();
 	}
 
+	/**
+	 * Takes regions found by the terrain iterator when it is complete or suspended.  When suspended,
+	 * only regions nearest the camera have been found.  Regions they need rebuilt are consumed
+	 * so they aren't scheduled again when the iteration continues.
+	 */
+	private void acceptVisibleRegions(boolean complete) {
+		final TerrainIterator terrainIterator = this.terrainIterator;
+		final BuiltRenderRegion[] visibleRegions = this.visibleRegions;
+		final int size = terrainIterator.visibleRegionCount;
+		visibleRegionCount = size;
+		System.arraycopy(terrainIterator.visibleRegions, 0, visibleRegions, 0, size);
+		assert size == 0 || visibleRegions[0] != null;
+		scheduleOrBuild(terrainIterator.updateRegions);
+		terrainIterator.updateRegions.clear();
+		++terrainVisibilityVersion;
+
+		if (TerrainVisibilityCounters.ENABLED) {
+			TerrainVisibilityCounters.publish(complete);
+		}
+	}
+
+	/**
+	 * Runs the prepared or resumed terrain iteration off the render thread.  The build executor
+	 * runs it before queued builds but still waits for a free worker, so by default it has its own thread.
+	 */
+	private void executeTerrainIteration() {
+		if (Configurator.dedicatedTerrainIterationThread) {
+			terrainIterationThread.execute(terrainIterator);
+		} else {
+			regionBuilder.executor.execute(terrainIterator, -1);
+		}
+	}
+
+	/**
+	 * When only region data has changed since the last completed iteration, the next
+	 * iteration revisits only the changed regions. Otherwise visibility is searched again from the camera.
+	 */
+	private void prepareTerrainIteration(Camera camera, @Nullable BuiltRenderRegion cameraRegion, BlockPos cameraBlockPos, int renderDistance, boolean shouldCullChunks, boolean viewChanged) {
+		final TerrainIterator terrainIterator = this.terrainIterator;
+
+		if (TerrainVisibilityCounters.ENABLED) {
+			TerrainVisibilityCounters.startIteration(viewChanged);
+		}
+
+		if (!viewChanged && canIterateIncrementally && Configurator.incrementalTerrainIteration) {
+			// raster is kept because view and occluder version are unchanged
+			terrainOccluder.prepareScene(camera, frustum, renderRegionStorage.regionVersion());
+			terrainIterator.prepareIncremental(changedRegions);
+		} else {
+			viewVersion = frustum.viewVersion();
+			occluderVersion = terrainOccluder.version();
+			// any change after this will be seen by the iteration or recorded for the next one
+			changedRegions.clear();
+			terrainOccluder.prepareScene(camera, frustum, renderRegionStorage.regionVersion());
+			terrainIterator.prepare(cameraRegion, cameraBlockPos, frustum, renderDistance, shouldCullChunks);
+		}
+	}
+
+	/**
+	 * Tests block entities of one region against the occluder in a single batch. Block entities in
+	 * a region render within their block, and box tests add a block of padding on every side, which
+	 * also covers renderers that extend into a neighbor, such as beds and double chests.
+	 */
+	private long[] testBlockEntities(TerrainOccluder occluder, List<BlockEntity> list) {
+		final int count = list.size();
+
+		if (blockEntityBoxes.length < count) {
+			final int capacity = Integer.highestOneBit(count - 1) << 1;
+			blockEntityBoxes = new int[capacity];
+			blockEntityOrigins = new int[capacity * 3];
+			blockEntityVisibility = new long[(capacity + 63) >> 6];
+		}
+
+		final int[] boxes = blockEntityBoxes;
+		final int[] origins = blockEntityOrigins;
+
+		for (int i = 0, o = 0; i < count; ++i, o += 3) {
+			final BlockPos pos = list.get(i).getPos();
+			boxes[i] = BLOCK_ENTITY_BOX;
+			origins[o] = pos.getX();
+			origins[o + 1] = pos.getY();
+			origins[o + 2] = pos.getZ();
+		}
+
+		occluder.isBoxesVisible(boxes, origins, count, blockEntityVisibility);
+		return blockEntityVisibility;
+	}
+
 	private void scheduleOrBuild(SimpleUnorderedArrayList<BuiltRenderRegion> updateRegions) {
 		final int limit = updateRegions.size();
 		final Set<BuiltRenderRegion> regionsToRebuild = this.regionsToRebuild;
@@ -305,13 +443,16 @@ public class CanvasWorldRenderer extends WorldRenderer {
 			return;
 		}
 
+		final long nanos = System.nanoTime();
+
 		for (int i = 0; i < limit; ++i) {
 			final BuiltRenderRegion region = updateRegions.get(i);
 
 			if (region.needsRebuild()) {
-				if (region.needsImportantRebuild() || region.isNear()) {
+				// near regions waiting for block changes to coalesce are built urgently from regionsToRebuild when due
+				if (region.needsImportantRebuild() || (region.isNear() && region.isRebuildDue(nanos))) {
 					regionsToRebuild.remove(region);
-					region.rebuildOnMainThread();
+					buildUrgently(region);
 					region.markBuilt();
 				} else {
 					regionsToRebuild.add(region);
@@ -322,9 +463,25 @@ public class CanvasWorldRenderer extends WorldRenderer {
 
 	private void buildNearRegion(BuiltRenderRegion region) {
 		if (region.needsRebuild()) {
-			regionsToRebuild.remove(region);
+			if (region.isRebuildDue(System.nanoTime())) {
+				regionsToRebuild.remove(region);
+				buildUrgently(region);
+				region.markBuilt();
+			} else {
+				regionsToRebuild.add(region);
+			}
+		}
+	}
+
+	/**
+	 * For regions that must be drawn current this frame.  Built by workers ahead of other builds
+	 * when enabled, and waited for before terrain is drawn.  Otherwise built on the render thread.
+	 */
+	private void buildUrgently(BuiltRenderRegion region) {
+		if (Configurator.urgentBuildWaitMicros > 0) {
+			regionBuilder.scheduleUrgentBuild(region);
+		} else {
 			region.rebuildOnMainThread();
-			region.markBuilt();
 		}
 	}
 
@@ -508,17 +665,26 @@ public class CanvasWorldRenderer extends WorldRenderer {
 
 		final int visibleRegionCount = this.visibleRegionCount;
 		final Set<BlockEntity> noCullingBlockEntities = wr.canvas_noCullingBlockEntities();
+		final OccluderSnapshot occluderSnapshot = Configurator.occlusionCullBlockEntities ? terrainIterator.occluderSnapshot() : null;
+		final TerrainOccluder blockEntityOccluder = occluderSnapshot == null ? null : occluderSnapshot.occluder();
 
 		for (int regionIndex = 0; regionIndex < visibleRegionCount; ++regionIndex) {
 			assert visibleRegions[regionIndex] != null;
 			assert visibleRegions[regionIndex].getRenderData() != null;
 
-			final List<BlockEntity> list = visibleRegions[regionIndex].getRenderData().getBlockEntities();
+			final BuiltRenderRegion region = visibleRegions[regionIndex];
+			final List<BlockEntity> list = region.getRenderData().getBlockEntities();
+			final int limit = list.size();
 
-			final Iterator<BlockEntity> itBER = list.iterator();
+			// near regions may contain the camera, which box tests report as hidden
+			final long[] visibleBits = blockEntityOccluder != null && limit > 0 && !region.isNear() ? testBlockEntities(blockEntityOccluder, list) : null;
 
-			while (itBER.hasNext()) {
-				final BlockEntity blockEntity = itBER.next();
+			for (int i = 0; i < limit; ++i) {
+				if (visibleBits != null && (visibleBits[i >> 6] & (1L << i)) == 0) {
+					continue;
+				}
+
+				final BlockEntity blockEntity = list.get(i);
 				final BlockPos blockPos = blockEntity.getPos();
 				VertexConsumerProvider outputConsumer = immediate;
 
@@ -905,8 +1071,6 @@ public class CanvasWorldRenderer extends WorldRenderer {
 	}
 
 	private void updateRegions(long endNanos) {
-		regionBuilder.upload();
-
 		final Set<BuiltRenderRegion> regionsToRebuild = this.regionsToRebuild;
 
 		//final long start = Util.getMeasuringTimeNano();
@@ -914,12 +1078,18 @@ public class CanvasWorldRenderer extends WorldRenderer {
 
 		if (!regionsToRebuild.isEmpty()) {
 			final Iterator<BuiltRenderRegion> iterator = regionsToRebuild.iterator();
+			final long nanos = Util.getMeasuringTimeNano();
 
 			while (iterator.hasNext()) {
 				final BuiltRenderRegion builtRegion = iterator.next();
 
-				if (builtRegion.needsImportantRebuild()) {
-					builtRegion.rebuildOnMainThread();
+				// block changes are still coalescing
+				if (!builtRegion.isRebuildDue(nanos)) {
+					continue;
+				}
+
+				if (builtRegion.needsImportantRebuild() || builtRegion.isNear()) {
+					buildUrgently(builtRegion);
 				} else {
 					builtRegion.scheduleRebuild();
 				}
@@ -944,6 +1114,10 @@ public class CanvasWorldRenderer extends WorldRenderer {
 				}
 			}
 		}
+
+		// urgent builds have been running on workers since terrain setup
+		regionBuilder.awaitUrgentBuilds(Configurator.urgentBuildWaitMicros * 1000L);
+		regionBuilder.upload();
 	}
 
 	public CanvasFrustum frustum() {
@@ -966,7 +1140,6 @@ public class CanvasWorldRenderer extends WorldRenderer {
 		((WorldRenderer) wr).updateNoCullingBlockEntities(removedBlockEntities, addedBlockEntities);
 	}
 
-	// PERF: stash frustum version and terrain version in entity - only retest when changed
 	public <T extends Entity> boolean isEntityVisible(T entity) {
 		final Box box = entity.getVisibilityBoundingBox();
 
@@ -989,16 +1162,53 @@ public class CanvasWorldRenderer extends WorldRenderer {
 			z1 = box.maxZ;
 		}
 
+		// tests use block bounds so results stay valid while the entity moves within them
+		final int bx0 = MathHelper.floor(x0);
+		final int by0 = MathHelper.floor(y0);
+		final int bz0 = MathHelper.floor(z0);
+		final int bx1 = MathHelper.ceil(x1);
+		final int by1 = MathHelper.ceil(y1);
+		final int bz1 = MathHelper.ceil(z1);
+		final long origin = BlockPos.asLong(bx0, by0, bz0);
+		final int size = (bx1 - bx0) | ((by1 - by0) << 10) | ((bz1 - bz0) << 20);
+		final OccluderSnapshot occluderSnapshot = Configurator.occlusionCullEntities ? terrainIterator.occluderSnapshot() : null;
+
+		// region visibility and the occluder snapshot change separately, so both are part of the key
+		// NB: a new snapshot is always followed by a new visibility version, so its low bits are enough
+		final long snapshotKey = occluderSnapshot == null ? 0 : 0x100 | (occluderSnapshot.version() & 0xFF);
+		final long version = ((long) terrainVisibilityVersion << 41) | (snapshotKey << 32) | (frustum.viewVersion() & 0xFFFFFFFFL);
+		final EntityExt entityExt = (EntityExt) entity;
+
+		if (entityExt.canvas_visibilityVersion() == version && entityExt.canvas_visibilityOrigin() == origin && entityExt.canvas_visibilitySize() == size) {
+			return entityExt.canvas_visibilityResult();
+		}
+
+		final boolean result = isEntityBoxVisible(occluderSnapshot, bx0, by0, bz0, bx1, by1, bz1);
+		entityExt.canvas_visibility(version, origin, size, result);
+		return result;
+	}
+
+	private boolean isEntityBoxVisible(@Nullable OccluderSnapshot occluderSnapshot, int x0, int y0, int z0, int x1, int y1, int z1) {
 		if (!frustum.isVisible(x0 - 0.5, y0 - 0.5, z0 - 0.5, x1 + 0.5, y1 + 0.5, z1 + 0.5)) {
 			return false;
 		}
 
-		final int rx0 = MathHelper.floor(x0) & 0xFFFFFFF0;
-		final int ry0 = MathHelper.floor(y0) & 0xFFFFFFF0;
-		final int rz0 = MathHelper.floor(z0) & 0xFFFFFFF0;
-		final int rx1 = MathHelper.floor(x1) & 0xFFFFFFF0;
-		final int ry1 = MathHelper.floor(y1) & 0xFFFFFFF0;
-		final int rz1 = MathHelper.floor(z1) & 0xFFFFFFF0;
+		// max bounds are exclusive here but inclusive in region lookup
+		if (!wasSeen(x0, y0, z0, x1 - 1, y1 - 1, z1 - 1)) {
+			return false;
+		}
+
+		// occluder holds the view as of the last completed iteration - same as the visible regions
+		return occluderSnapshot == null || occluderSnapshot.occluder().isBlockBoxVisible(x0, y0, z0, x1, y1, z1);
+	}
+
+	private boolean wasSeen(int x0, int y0, int z0, int x1, int y1, int z1) {
+		final int rx0 = x0 & 0xFFFFFFF0;
+		final int ry0 = y0 & 0xFFFFFFF0;
+		final int rz0 = z0 & 0xFFFFFFF0;
+		final int rx1 = x1 & 0xFFFFFFF0;
+		final int ry1 = y1 & 0xFFFFFFF0;
+		final int rz1 = z1 & 0xFFFFFFF0;
 
 		int flags = rx0 == rz1 ? 0 : 1;
 		if (ry0 != ry1) flags |= 2;
@@ -1041,9 +1251,26 @@ public class CanvasWorldRenderer extends WorldRenderer {
 		return true;
 	}
 
+	/**
+	 * Called by vanilla block updates around the region renders they schedule.  Those renders
+	 * can then re-tessellate only the changed block and its neighbors.
+	 */
+	public void beginBlockUpdate(BlockPos pos) {
+		updatedBlockPos = pos;
+	}
+
+	public void endBlockUpdate() {
+		updatedBlockPos = null;
+	}
+
 	public void scheduleRegionRender(int x, int y, int z, boolean urgent) {
-		regionStorage().scheduleRebuild(x << 4, y << 4, z << 4, urgent);
-		forceVisibilityUpdate();
+		final BuiltRenderRegion region = regionStorage().scheduleRebuild(x << 4, y << 4, z << 4, urgent, updatedBlockPos);
+
+		if (region == null) {
+			forceVisibilityUpdate();
+		} else {
+			forceVisibilityUpdate(region);
+		}
 	}
 
 	@Override
@@ -1062,10 +1289,12 @@ public class CanvasWorldRenderer extends WorldRenderer {
 
 		computeDistances();
 		terrainIterator.reset();
+		canIterateIncrementally = false;
 		terrainSetupOffThread = Configurator.terrainSetupOffThread;
 		regionsToRebuild.clear();
 		if (regionBuilder != null) {
 			regionBuilder.reset();
+			terrainIterator.onExecutorCleared();
 		}
 		renderRegionStorage.clear();
 		terrainOccluder.invalidate();
@@ -283,6 +283,7 @@ public class GlShader {
 
 		if (CanvasGlHelper.useGpuShader4()) {
 			result = StringUtils.replace(result, "//#define USE_FLAT_VARYING", "#define USE_FLAT_VARYING");
+			result = StringUtils.replace(result, "//#define ENABLE_SPRITE_REPEAT", "#define ENABLE_SPRITE_REPEAT");
 		} else {
 			result = StringUtils.replace(result, "#extension GL_EXT_gpu_shader4 : enable", "");
 		}
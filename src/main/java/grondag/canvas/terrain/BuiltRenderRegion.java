@@ -20,6 +20,7 @@ import com.mojang.blaze3d.systems.RenderSystem;
 import grondag.canvas.Configurator;
 import grondag.canvas.apiimpl.rendercontext.TerrainRenderContext;
 import grondag.canvas.apiimpl.util.FaceConstants;
+import grondag.canvas.buffer.encoding.RetainedVertexData;
 import grondag.canvas.buffer.encoding.VertexCollectorImpl;
 import grondag.canvas.buffer.encoding.VertexCollectorList;
 import grondag.canvas.material.EncodingContext;
@@ -33,6 +34,7 @@ import grondag.canvas.terrain.occlusion.region.OcclusionRegion;
 import grondag.canvas.terrain.occlusion.region.PackedBox;
 import grondag.canvas.terrain.render.DrawableChunk;
 import grondag.canvas.terrain.render.UploadableChunk;
+import grondag.canvas.varia.CanvasGlHelper;
 import grondag.fermion.sc.unordered.SimpleUnorderedArrayList;
 import grondag.frex.api.fluid.FluidQuadSupplier;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
@@ -57,15 +59,31 @@ import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.Direction;
 import net.minecraft.util.math.Vec3d;
 
+import javax.annotation.Nullable;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 
 @Environment(EnvType.CLIENT)
 public class BuiltRenderRegion {
 	private static int frameIndex;
+	private static boolean cullByConnectivity;
+	private static final int EAST_FLAG = 1 << FaceConstants.EAST_INDEX;
+	private static final int WEST_FLAG = 1 << FaceConstants.WEST_INDEX;
+	private static final int NORTH_FLAG = 1 << FaceConstants.NORTH_INDEX;
+	private static final int SOUTH_FLAG = 1 << FaceConstants.SOUTH_INDEX;
+	private static final int UP_FLAG = 1 << FaceConstants.UP_INDEX;
+	private static final int DOWN_FLAG = 1 << FaceConstants.DOWN_INDEX;
+	private static final int ALL_FACE_FLAGS = 0x3F;
+	/** Regions nearer than this retain vertex data for partial rebuilds. */
+	private static final int PARTIAL_REBUILD_SQUARED_DISTANCE = 48 * 48;
+	/** More block changes than this between builds cause a full rebuild. */
+	private static final int MAX_CHANGED_BLOCKS = 64;
+	/** Partial rebuilds that would re-tessellate more blocks than this do a full rebuild instead. */
+	private static final int MAX_PARTIAL_BUILD_BLOCKS = 1024;
 	private final RenderRegionBuilder renderRegionBuilder;
 	private final RenderRegionStorage storage;
 	private final AtomicReference<RegionData> renderData;
@@ -87,15 +105,35 @@ public class BuiltRenderRegion {
 	int squaredCameraDistance;
 	private boolean needsRebuild;
 	private boolean needsImportantRebuild;
+	/** When a rebuild for block changes may start.  Set by the first change after the region was last built. */
+	private long rebuildAfterNanos = Long.MIN_VALUE;
 	private volatile RegionBuildState buildState = new RegionBuildState();
 	private DrawableChunk translucentDrawable = DrawableChunk.EMPTY_DRAWABLE;
 	private DrawableChunk solidDrawable = DrawableChunk.EMPTY_DRAWABLE;
 	private int frustumVersion;
 	private boolean frustumResult;
 	private int lastSeenFrameIndex;
+	private int visibleFrameIndex;
+	/** Last terrain iteration, full or incremental, that collected this region for updates. */
+	private int collectedIteration;
+	/** Faces through which neighbors reached this region in the current iteration. Valid when {@link #lastSeenFrameIndex} is current. */
+	private int entryFaceFlags;
+	/** Faces already traversed from this region in the current iteration. Valid when {@link #expandedFrameIndex} is current. */
+	private int exitFaceFlags;
+	private int expandedFrameIndex;
 	private boolean isClosed = false;
 	private boolean isInsideRenderDistance;
-	private final Consumer<TerrainRenderContext> buildTask = this::rebuildOnWorkerThread;
+	final Consumer<TerrainRenderContext> buildTask = this::rebuildOnWorkerThread;
+	/** Packed region-relative positions of block changes since the last build started.  Guarded by the array itself. */
+	private final int[] changedBlocks = new int[MAX_CHANGED_BLOCKS];
+	/** Number of entries in {@link #changedBlocks}, or -1 if the next build must be a full rebuild. */
+	private int changedBlockCount = -1;
+	/** Changes taken for builds that didn't run, in the form returned by {@link #takeChangedBlocks()}.  Guarded by {@link #changedBlocks}. */
+	private @Nullable long[] restoredChangedBlocks;
+	/** Output of the last build with quad ranges by block.  Only kept for regions near the camera. */
+	private final AtomicReference<RetainedVertexData> retainedData = new AtomicReference<>();
+	/** True if the last build merged faces for distance, so the region must be rebuilt if the camera comes closer. */
+	private volatile boolean hasMergedFaces;
 
 
 	public BuiltRenderRegion(CanvasWorldRenderer cwr, RegionChunkReference chunkRef, long packedPos) {
@@ -125,8 +163,13 @@ public class BuiltRenderRegion {
 		}
 	}
 
-	public static void advanceFrameIndex() {
+	/**
+	 * @param cullByConnectivity True if neighbors should only be traversed through faces connected
+	 * to the faces through which the region was reached. Applies until the next call.
+	 */
+	public static void advanceFrameIndex(boolean cullByConnectivity) {
 		++frameIndex;
+		BuiltRenderRegion.cullByConnectivity = cullByConnectivity;
 	}
 
 	// PERF: make this lazy?
@@ -135,9 +178,11 @@ public class BuiltRenderRegion {
 	 * Assumes camera distance update has already happened.
 	 * <p>
 	 * NB: tried a crude hierarchical scheme of checking chunk columns first
-	 * but didn't pay off.  Would probably  need to propagate per-plane results
-	 * over a more efficient region but that might not even help. Is already
-	 * quite fast and typically only one or a few regions per chunk must be tested.
+	 * but didn't pay off.  Is already quite fast and typically only one or a
+	 * few regions per chunk must be tested.  Also measured, and all slower than
+	 * testing every plane: cached 64-block cube and 256-block column masks, and
+	 * per-plane inside margins propagated from parent to child down the iteration.
+	 * Bookkeeping costs more than the few plane tests it saves.
 	 */
 	public boolean isInFrustum(CanvasFrustum frustum) {
 		final int v = frustum.viewVersion();
@@ -146,7 +191,6 @@ public class BuiltRenderRegion {
 			return frustumResult;
 		} else {
 			frustumVersion = v;
-			//  PERF: implement hierarchical tests with propagation of per-plane inside test results
 			final boolean result = frustum.isRegionVisible(this);
 			frustumResult = result;
 			return result;
@@ -157,6 +201,50 @@ public class BuiltRenderRegion {
 		return frameIndex - lastSeenFrameIndex < 4 && occluderResult;
 	}
 
+	/**
+	 * True if the region was enqueued by the current terrain iteration, or by the last
+	 * full iteration when iterating incrementally.
+	 */
+	public boolean wasEnqueued() {
+		return lastSeenFrameIndex == frameIndex;
+	}
+
+	/**
+	 * Records the region as visible in the current terrain iteration.
+	 *
+	 * @return False if already recorded, which happens when an incremental iteration revisits a region.
+	 */
+	public boolean markVisible() {
+		if (visibleFrameIndex == frameIndex) {
+			return false;
+		} else {
+			visibleFrameIndex = frameIndex;
+			return true;
+		}
+	}
+
+	/**
+	 * Records the region as collected for update and deferral lists by the given terrain iteration.
+	 *
+	 * @return False if already recorded, which happens when a region is traversed again for a new entry face.
+	 */
+	public boolean markCollected(int iteration) {
+		if (collectedIteration == iteration) {
+			return false;
+		} else {
+			collectedIteration = iteration;
+			return true;
+		}
+	}
+
+	public boolean isInsideRenderDistance() {
+		return isInsideRenderDistance;
+	}
+
+	public boolean isClosed() {
+		return isClosed;
+	}
+
 	/**
 	 * @return True if nearby.  If not nearby and not outside view distance true if neighbors are loaded.
 	 */
@@ -190,6 +278,11 @@ public class BuiltRenderRegion {
 		occlusionRange = PackedBox.rangeFromSquareBlockDist(squaredCameraDistance);
 		this.squaredCameraDistance = squaredCameraDistance;
 
+		if (hasMergedFaces && !isMergeDistance(squaredCameraDistance)) {
+			hasMergedFaces = false;
+			markForBuild(false);
+		}
+
 		return horizontalSquaredDistance < cwr.maxRetentionDistance();
 	}
 
@@ -205,6 +298,8 @@ public class BuiltRenderRegion {
 			cancel();
 			buildData.set(RegionData.EMPTY);
 			renderData.set(RegionData.EMPTY);
+			retainedData.set(null);
+			markChangedBlock(null);
 			needsRebuild = true;
 		}
 	}
@@ -227,6 +322,193 @@ public class BuiltRenderRegion {
 		needsImportantRebuild = isImportant | (neededRebuild && needsImportantRebuild);
 	}
 
+	/**
+	 * Marks for rebuild after a block change.  Changes within the coalescing window that starts
+	 * with the first change share one rebuild, unless one is important.  Player changes are important.
+	 *
+	 * @return True if the change was merged into a rebuild that was already needed.
+	 */
+	public boolean markForBlockUpdate(boolean isImportant) {
+		final boolean neededRebuild = needsRebuild;
+
+		if (!neededRebuild) {
+			rebuildAfterNanos = System.nanoTime() + Configurator.blockUpdateCoalesceMillis * 1000000L;
+		}
+
+		markForBuild(isImportant);
+		return neededRebuild;
+	}
+
+	/**
+	 * Records a changed block so the next build can re-tessellate only it and its neighbors.
+	 *
+	 * @param pos World position of the changed block, within one block of this region.  Null if
+	 * the change isn't confined to one block, in which case the next build is a full rebuild.
+	 */
+	public void markChangedBlock(@Nullable BlockPos pos) {
+		synchronized (changedBlocks) {
+			final int count = changedBlockCount;
+
+			if (count == -1) {
+				return;
+			}
+
+			if (pos == null || count == MAX_CHANGED_BLOCKS) {
+				changedBlockCount = -1;
+				return;
+			}
+
+			final int x = pos.getX() - origin.getX() + 1;
+			final int y = pos.getY() - origin.getY() + 1;
+			final int z = pos.getZ() - origin.getZ() + 1;
+
+			if ((x | y | z) < 0 || x > 17 || y > 17 || z > 17) {
+				changedBlockCount = -1;
+			} else {
+				changedBlocks[count] = x | (y << 5) | (z << 10);
+				changedBlockCount = count + 1;
+			}
+		}
+	}
+
+	/**
+	 * Takes block changes recorded since the last call.  Changes recorded after this
+	 * will be seen by the next build.  Must be taken together with the world snapshot
+	 * of the build - see {@link #claimProtoRegion()}.
+	 *
+	 * @return One bit per block index, set for changed blocks and their neighbors within the region,
+	 * or null if the build must be a full rebuild.
+	 */
+	private @Nullable long[] takeChangedBlocks() {
+		final int[] changes;
+		final int count;
+		final long[] restored;
+
+		synchronized (changedBlocks) {
+			count = changedBlockCount;
+			changes = count > 0 ? Arrays.copyOf(changedBlocks, count) : null;
+			changedBlockCount = 0;
+			restored = restoredChangedBlocks;
+			restoredChangedBlocks = null;
+		}
+
+		if (count == -1) {
+			return null;
+		}
+
+		final long[] result = restored == null ? new long[RenderRegionAddressHelper.INTERIOR_CACHE_SIZE / 64] : restored;
+
+		for (int c = 0; c < count; c++) {
+			final int packed = changes[c];
+			final int cx = (packed & 31) - 1;
+			final int cy = ((packed >> 5) & 31) - 1;
+			final int cz = ((packed >> 10) & 31) - 1;
+
+			for (int z = Math.max(0, cz - 1); z <= Math.min(15, cz + 1); z++) {
+				for (int y = Math.max(0, cy - 1); y <= Math.min(15, cy + 1); y++) {
+					for (int x = Math.max(0, cx - 1); x <= Math.min(15, cx + 1); x++) {
+						final int i = x | (y << 4) | (z << 8);
+						result[i >> 6] |= 1L << (i & 63);
+					}
+				}
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns changes taken for a build that won't run, so the next build includes them.
+	 *
+	 * @param changes From {@link #takeChangedBlocks()}, null for a full rebuild.
+	 */
+	private void restoreChangedBlocks(@Nullable long[] changes) {
+		if (changes == null) {
+			markChangedBlock(null);
+			return;
+		}
+
+		synchronized (changedBlocks) {
+			if (changedBlockCount == -1) {
+				return;
+			}
+
+			if (restoredChangedBlocks == null) {
+				restoredChangedBlocks = changes;
+			} else {
+				orChangedBlocks(restoredChangedBlocks, changes);
+			}
+		}
+	}
+
+	private static void orChangedBlocks(long[] target, long[] changes) {
+		for (int w = 0; w < target.length; w++) {
+			target[w] |= changes[w];
+		}
+	}
+
+	/**
+	 * Claims a world snapshot for a build, and takes the block changes it includes at the same time.
+	 * Empty snapshots take no changes because their build discards the retained output.
+	 */
+	private ProtoRenderRegion claimProtoRegion() {
+		final ProtoRenderRegion region = ProtoRenderRegion.claim(cwr.getWorld(), origin);
+
+		if (region.hasSnapshot()) {
+			region.changedBlocks = takeChangedBlocks();
+		}
+
+		return region;
+	}
+
+	/**
+	 * Replaces the claim waiting for a build with a new one.  A replaced snapshot never builds, so
+	 * its changes are first added to the new claim, or restored if the new claim takes no changes.
+	 *
+	 * @return The replaced claim, already released.
+	 */
+	private ProtoRenderRegion replaceClaim(ProtoRenderRegion region) {
+		final AtomicReference<ProtoRenderRegion> protoRegion = buildState.protoRegion;
+		final long[] taken = region.changedBlocks;
+
+		while (true) {
+			final ProtoRenderRegion prior = protoRegion.get();
+			final boolean mergePrior = prior != null && prior.hasSnapshot() && region.hasSnapshot();
+
+			if (!mergePrior) {
+				if (region.hasSnapshot()) {
+					region.changedBlocks = taken;
+				}
+			} else if (taken == null || prior.changedBlocks == null) {
+				region.changedBlocks = null;
+			} else {
+				final long[] merged = taken.clone();
+				orChangedBlocks(merged, prior.changedBlocks);
+				region.changedBlocks = merged;
+			}
+
+			// a worker may take the prior claim first, and then it keeps its changes
+			if (protoRegion.compareAndSet(prior, region)) {
+				if (prior != null && prior.hasSnapshot()) {
+					if (!mergePrior) {
+						restoreChangedBlocks(prior.changedBlocks);
+					}
+
+					prior.release();
+				}
+
+				return prior;
+			}
+		}
+	}
+
+	/**
+	 * True if a needed rebuild is important or the coalescing window since the first block change has passed.
+	 */
+	public boolean isRebuildDue(long nanos) {
+		return needsImportantRebuild || nanos >= rebuildAfterNanos;
+	}
+
 	public void markBuilt() {
 		needsRebuild = false;
 		needsImportantRebuild = false;
@@ -241,11 +523,29 @@ public class BuiltRenderRegion {
 	}
 
 	public void scheduleRebuild() {
-		final ProtoRenderRegion region = ProtoRenderRegion.claim(cwr.getWorld(), origin);
-
 		// null region is signal to reschedule
-		if (buildState.protoRegion.getAndSet(region) == ProtoRenderRegion.IDLE) {
-			renderRegionBuilder.executor.execute(buildTask, squaredCameraDistance);
+		if (replaceClaim(claimProtoRegion()) == ProtoRenderRegion.IDLE) {
+			renderRegionBuilder.executor.execute(this);
+		}
+	}
+
+	/**
+	 * Claims region state for a build like {@link #scheduleRebuild()} but leaves submission to
+	 * the caller.  A build of the region already queued will find nothing to do.
+	 */
+	void claimForUrgentBuild() {
+		replaceClaim(claimProtoRegion());
+	}
+
+	/**
+	 * Releases the claim of a build that no worker started, so its changes go to the next build.
+	 */
+	void releaseUrgentClaim() {
+		final ProtoRenderRegion prior = buildState.protoRegion.getAndSet(ProtoRenderRegion.IDLE);
+
+		if (prior != null && prior.hasSnapshot()) {
+			restoreChangedBlocks(prior.changedBlocks);
+			prior.release();
 		}
 	}
 
@@ -258,7 +558,7 @@ public class BuiltRenderRegion {
 			if (buildState.protoRegion.compareAndSet(ProtoRenderRegion.IDLE, ProtoRenderRegion.RESORT_ONLY)) {
 				// null means need to reschedule, otherwise was already scheduled for either
 				// resort or rebuild, or is invalid, not ready to be built.
-				renderRegionBuilder.executor.execute(buildTask, squaredCameraDistance);
+				renderRegionBuilder.executor.execute(this);
 			}
 
 			return true;
@@ -274,13 +574,15 @@ public class BuiltRenderRegion {
 		final RegionBuildState runningState = buildState;
 		final ProtoRenderRegion region = runningState.protoRegion.getAndSet(ProtoRenderRegion.IDLE);
 
-		if (region == null || region == ProtoRenderRegion.INVALID) {
+		// idle when an urgent build of the region already ran
+		if (region == null || region == ProtoRenderRegion.INVALID || region == ProtoRenderRegion.IDLE) {
 			return;
 		}
 
 		if (region == ProtoRenderRegion.EMPTY) {
 			final RegionData chunkData = new RegionData();
 			chunkData.complete(OcclusionRegion.EMPTY_CULL_DATA);
+			retainedData.set(null);
 
 			final int[] oldData = buildData.getAndSet(chunkData).occlusionData;
 
@@ -289,7 +591,7 @@ public class BuiltRenderRegion {
 			}
 
 			// Even if empty the chunk may still be needed for visibility search to progress
-			cwr.forceVisibilityUpdate();
+			cwr.forceVisibilityUpdate(this);
 
 			renderData.set(chunkData);
 			return;
@@ -298,8 +600,13 @@ public class BuiltRenderRegion {
 		// check loaded neighbors and camera distance, abort rebuild and restore needsRebuild if out of view/not ready
 		if (!shouldBuild()) {
 			markForBuild(false);
+
+			if (region.hasSnapshot()) {
+				restoreChangedBlocks(region.changedBlocks);
+			}
+
 			region.release();
-			cwr.forceVisibilityUpdate();
+			cwr.forceVisibilityUpdate(this);
 			return;
 		}
 
@@ -351,25 +658,31 @@ public class BuiltRenderRegion {
 			context.prepareRegion(region);
 			final RegionData chunkData = buildRegionData(context, isNear());
 
-			final int[] oldData = buildData.getAndSet(chunkData).occlusionData;
+			final RegionData oldData = buildData.getAndSet(chunkData);
 
-			if (oldData != null && !Arrays.equals(oldData, chunkData.occlusionData)) {
+			if (oldData.occlusionData != null && !oldData.hasSameOcclusion(chunkData)) {
 				terrainOccluder.invalidate(occluderVersion);
 			}
 
-			cwr.forceVisibilityUpdate();
+			cwr.forceVisibilityUpdate(this);
 
 			final VertexCollectorList collectors = context.collectors;
 
 			if (runningState.protoRegion.get() == ProtoRenderRegion.INVALID) {
 				collectors.clear();
+				restoreChangedBlocks(region.changedBlocks);
 				region.release();
 				return;
 			}
 
-			buildTerrain(context, chunkData);
+			final boolean isCurrent = buildTerrain(context, chunkData, region.changedBlocks);
 
-			if (runningState.protoRegion.get() != ProtoRenderRegion.INVALID) {
+			if (!isCurrent) {
+				// another build replaced the retained data this one started from
+				markChangedBlock(null);
+				markForBuild(false);
+				cwr.forceVisibilityUpdate(this);
+			} else if (runningState.protoRegion.get() != ProtoRenderRegion.INVALID) {
 				final UploadableChunk solidUpload = collectors.toUploadableChunk(EncodingContext.TERRAIN, false);
 				final UploadableChunk translucentUpload = collectors.toUploadableChunk(EncodingContext.TERRAIN, true);
 
@@ -398,13 +711,24 @@ public class BuiltRenderRegion {
 
 	private RegionData buildRegionData(TerrainRenderContext context, boolean isNear) {
 		final RegionData regionData = new RegionData();
-		regionData.complete(context.region.occlusion.build(isNear));
+		final OcclusionRegion occlusion = context.region.occlusion;
+		final int[] occlusionData = occlusion.build(isNear);
+		regionData.complete(occlusionData, occlusion.faceConnectivity());
 		handleBlockEntities(regionData, context);
 		buildData.set(regionData);
 		return regionData;
 	}
 
-	private void buildTerrain(TerrainRenderContext context, RegionData regionData) {
+	/**
+	 * Tessellates the region into the context collectors.  Regions near the camera retain the output
+	 * with the quads of each block, and re-tessellate only changed blocks when the build was
+	 * caused by block changes.  All other quads are copied from the retained output.
+	 *
+	 * @param changedBlocks Taken with the snapshot being built, null for a full rebuild.
+	 * @return False if a partial rebuild started from retained data that another build replaced
+	 * in the meantime, so the output may be missing that build's changes.
+	 */
+	private boolean buildTerrain(TerrainRenderContext context, RegionData regionData, @Nullable long[] changedBlocks) {
 		if (ChunkRebuildCounters.ENABLED) {
 			ChunkRebuildCounters.startChunk();
 		}
@@ -434,7 +758,7 @@ public class BuiltRenderRegion {
 		final BlockRenderManager blockRenderManager = MinecraftClient.getInstance().getBlockRenderManager();
 		final OcclusionRegion occlusionRegion = region.occlusion;
 
-		for (int i = 0; i < RenderRegionAddressHelper.INTERIOR_CACHE_SIZE; i++) {
+		final IntConsumer tessellator = i -> {
 			if (occlusionRegion.shouldRender(i)) {
 				final BlockState blockState = region.getLocalBlockState(i);
 				final FluidState fluidState = blockState.getFluidState();
@@ -471,13 +795,113 @@ public class BuiltRenderRegion {
 					matrixStack.pop();
 				}
 			}
+		};
+
+		final boolean retain = Configurator.partialRebuild && squaredCameraDistance < PARTIAL_REBUILD_SQUARED_DISTANCE;
+		boolean isCurrent = true;
+
+		if (retain) {
+			final long[] renderedBlocks = renderedBlocks(occlusionRegion);
+			final RetainedVertexData base = changedBlocks == null ? null : retainedData.get();
+			final int[] partialBlocks = base == null ? null : partialBuildBlocks(changedBlocks, base.renderedBlocks(), renderedBlocks);
+
+			if (partialBlocks == null) {
+				for (int i = 0; i < RenderRegionAddressHelper.INTERIOR_CACHE_SIZE; i++) {
+					tessellator.accept(i);
+					collectors.markBlock(i);
+				}
+
+				retainedData.set(RetainedVertexData.capture(collectors, renderedBlocks));
+			} else {
+				base.rebuild(collectors, partialBlocks, partialBlocks.length, tessellator);
+				isCurrent = retainedData.compareAndSet(base, RetainedVertexData.capture(collectors, renderedBlocks));
+
+				if (ChunkRebuildCounters.ENABLED) {
+					ChunkRebuildCounters.countPartialBuild(partialBlocks.length);
+
+					if (!isCurrent) {
+						ChunkRebuildCounters.countStalePartialBuild();
+					}
+				}
+			}
+		} else {
+			retainedData.set(null);
+
+			for (int i = 0; i < RenderRegionAddressHelper.INTERIOR_CACHE_SIZE; i++) {
+				tessellator.accept(i);
+			}
+		}
+
+		final boolean mergeFaces = !retain && isMergeDistance(squaredCameraDistance) && CanvasGlHelper.useGpuShader4() && !Configurator.hdLightmaps();
+
+		if (mergeFaces) {
+			RegionFaceMerger.mergeFaces(collectors, xModelOffset, yModelOffset, zModelOffset);
 		}
 
+		hasMergedFaces = mergeFaces;
+
 		regionData.endBuffering((float) (cameraPos.x - xOrigin + xModelOffset), (float) (cameraPos.y - yOrigin + yModelOffset), (float) (cameraPos.z - zOrigin + zModelOffset), collectors);
 
 		if (ChunkRebuildCounters.ENABLED) {
 			ChunkRebuildCounters.completeChunk();
 		}
+
+		return isCurrent;
+	}
+
+	/**
+	 * True if regions this far away should merge faces.  Sprite repeat for merged
+	 * faces needs texture2DGrad, so callers also check for EXT_gpu_shader4.
+	 */
+	private static boolean isMergeDistance(int squaredCameraDistance) {
+		final int distance = Configurator.greedyMeshDistance;
+		return distance > 0 && squaredCameraDistance >= distance * distance;
+	}
+
+	private static long[] renderedBlocks(OcclusionRegion occlusionRegion) {
+		final long[] result = new long[RenderRegionAddressHelper.INTERIOR_CACHE_SIZE / 64];
+
+		for (int i = 0; i < RenderRegionAddressHelper.INTERIOR_CACHE_SIZE; i++) {
+			if (occlusionRegion.shouldRender(i)) {
+				result[i >> 6] |= 1L << (i & 63);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Blocks a partial rebuild must re-tessellate: changed blocks and their neighbors, plus blocks that became
+	 * visible or hidden.  Removing a block can expose interior blocks far from the change, which the
+	 * retained output doesn't have because they were culled by occlusion.
+	 *
+	 * @return Ascending block indexes, or null if a full rebuild is cheaper.
+	 */
+	private static @Nullable int[] partialBuildBlocks(long[] changedBlocks, long[] priorRenderedBlocks, long[] renderedBlocks) {
+		int count = 0;
+
+		for (int w = 0; w < changedBlocks.length; w++) {
+			changedBlocks[w] |= priorRenderedBlocks[w] ^ renderedBlocks[w];
+			count += Long.bitCount(changedBlocks[w]);
+		}
+
+		if (count > MAX_PARTIAL_BUILD_BLOCKS) {
+			return null;
+		}
+
+		final int[] result = new int[count];
+		int n = 0;
+
+		for (int w = 0; w < changedBlocks.length; w++) {
+			long bits = changedBlocks[w];
+
+			while (bits != 0) {
+				result[n++] = (w << 6) | Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+			}
+		}
+
+		return result;
 	}
 
 	private void handleBlockEntities(RegionData regionData, TerrainRenderContext context) {
@@ -523,11 +947,18 @@ public class BuiltRenderRegion {
 	}
 
 	public void rebuildOnMainThread() {
-		final ProtoRenderRegion region = ProtoRenderRegion.claim(cwr.getWorld(), origin);
+		if (ChunkRebuildCounters.ENABLED) {
+			ChunkRebuildCounters.countMainThreadBuild();
+		}
+
+		// a queued build would start from an older snapshot, and its changes belong to this one
+		releaseUrgentClaim();
+		final ProtoRenderRegion region = claimProtoRegion();
 
 		if (region == ProtoRenderRegion.EMPTY) {
 			final RegionData regionData = new RegionData();
 			regionData.complete(OcclusionRegion.EMPTY_CULL_DATA);
+			retainedData.set(null);
 			final int[] oldData = buildData.getAndSet(regionData).occlusionData;
 
 			if (oldData != null && oldData != OcclusionRegion.EMPTY_CULL_DATA) {
@@ -537,22 +968,27 @@ public class BuiltRenderRegion {
 			renderData.set(regionData);
 
 			// Even if empty the chunk may still be needed for visibility search to progress
-			cwr.forceVisibilityUpdate();
+			cwr.forceVisibilityUpdate(this);
 
 			return;
 		}
 
 		final TerrainRenderContext context = renderRegionBuilder.mainThreadContext.prepareRegion(region);
 		final RegionData regionData = buildRegionData(context, isNear());
-		final int[] oldData = buildData.getAndSet(regionData).occlusionData;
+		final RegionData oldData = buildData.getAndSet(regionData);
 
-		if (oldData != null && !Arrays.equals(oldData, regionData.occlusionData)) {
+		if (oldData.occlusionData != null && !oldData.hasSameOcclusion(regionData)) {
 			terrainOccluder.invalidate(occluderVersion);
 		}
 
-		cwr.forceVisibilityUpdate();
+		cwr.forceVisibilityUpdate(this);
 
-		buildTerrain(context, regionData);
+		if (!buildTerrain(context, regionData, region.changedBlocks)) {
+			// a worker build replaced the retained data first - upload anyway because this build has
+			// the changes that made it urgent, and rebuild fully to pick up any it missed
+			markChangedBlock(null);
+			markForBuild(false);
+		}
 
 		if (ChunkRebuildCounters.ENABLED) {
 			ChunkRebuildCounters.startUpload();
@@ -611,28 +1047,96 @@ public class BuiltRenderRegion {
 		return squaredCameraDistance < 768;
 	}
 
+	/**
+	 * Priority of a queued build given the current camera, lower runs sooner.  Regions outside the view
+	 * and regions not visible in the current or last terrain iteration wait behind nearer ones.
+	 */
+	int buildPriority(boolean inFrustum) {
+		int result = squaredCameraDistance;
+
+		if (frameIndex - visibleFrameIndex > 1) {
+			result <<= 1;
+		}
+
+		if (!inFrustum) {
+			result <<= 2;
+		}
+
+		return result;
+	}
+
+	/**
+	 * Frustum test result from the last terrain iteration that reached this region.
+	 * Used to prioritize new builds until queued builds are next re-prioritized.
+	 */
+	boolean lastFrustumResult() {
+		return frustumResult;
+	}
+
+	/**
+	 * Adds neighbors not yet reached in the current iteration to the queue.  When culling by connectivity,
+	 * neighbors are only reached through faces connected to one of the faces through which this region
+	 * was reached.  This stops the iteration from flooding caves and solid ground that can't be seen
+	 * from the camera, before any raster tests are needed.
+	 */
 	public void enqueueUnvistedNeighbors(SimpleUnorderedArrayList<BuiltRenderRegion> queue) {
 		final int index = frameIndex;
+		final int exitFlags = exitFaceFlags();
+		final int priorExitFlags = expandedFrameIndex == index ? exitFaceFlags : 0;
 		lastSeenFrameIndex = index;
+		expandedFrameIndex = index;
+		exitFaceFlags = exitFlags | priorExitFlags;
+
+		if ((exitFlags & EAST_FLAG) != 0) {
+			enqueNeighbor(index, getNeighbor(FaceConstants.EAST_INDEX), WEST_FLAG, queue);
+		}
 
-		enqueNeighbor(index, getNeighbor(FaceConstants.EAST_INDEX), queue);
-		enqueNeighbor(index, getNeighbor(FaceConstants.WEST_INDEX), queue);
-		enqueNeighbor(index, getNeighbor(FaceConstants.NORTH_INDEX), queue);
-		enqueNeighbor(index, getNeighbor(FaceConstants.SOUTH_INDEX), queue);
+		if ((exitFlags & WEST_FLAG) != 0) {
+			enqueNeighbor(index, getNeighbor(FaceConstants.WEST_INDEX), EAST_FLAG, queue);
+		}
+
+		if ((exitFlags & NORTH_FLAG) != 0) {
+			enqueNeighbor(index, getNeighbor(FaceConstants.NORTH_INDEX), SOUTH_FLAG, queue);
+		}
 
-		if (!isTop) {
-			enqueNeighbor(index, getNeighbor(FaceConstants.UP_INDEX), queue);
+		if ((exitFlags & SOUTH_FLAG) != 0) {
+			enqueNeighbor(index, getNeighbor(FaceConstants.SOUTH_INDEX), NORTH_FLAG, queue);
 		}
 
-		if (!isBottom) {
-			enqueNeighbor(index, getNeighbor(FaceConstants.DOWN_INDEX), queue);
+		if (!isTop && (exitFlags & UP_FLAG) != 0) {
+			enqueNeighbor(index, getNeighbor(FaceConstants.UP_INDEX), DOWN_FLAG, queue);
+		}
+
+		if (!isBottom && (exitFlags & DOWN_FLAG) != 0) {
+			enqueNeighbor(index, getNeighbor(FaceConstants.DOWN_INDEX), UP_FLAG, queue);
 		}
 	}
 
-	private void enqueNeighbor(int index, BuiltRenderRegion r, SimpleUnorderedArrayList<BuiltRenderRegion> queue) {
+	/**
+	 * Faces through which the iteration can leave this region.  All faces if the region is near the camera,
+	 * which may be inside it, or if the region wasn't reached through a neighbor.
+	 */
+	private int exitFaceFlags() {
+		if (!cullByConnectivity || lastSeenFrameIndex != frameIndex || isNear()) {
+			return ALL_FACE_FLAGS;
+		} else {
+			return OcclusionRegion.connectedFaces(buildData.get().faceConnectivity, entryFaceFlags);
+		}
+	}
+
+	private void enqueNeighbor(int index, BuiltRenderRegion r, int entryFlag, SimpleUnorderedArrayList<BuiltRenderRegion> queue) {
 		if (r.lastSeenFrameIndex != index) {
 			r.lastSeenFrameIndex = index;
+			r.entryFaceFlags = entryFlag;
 			queue.add(r);
+		} else if ((r.entryFaceFlags & entryFlag) == 0) {
+			r.entryFaceFlags |= entryFlag;
+
+			// Regions traversed before this entry face was known must traverse again if it opens more faces.
+			// Otherwise the region is still waiting in a queue or wasn't visible and will pick it up.
+			if (cullByConnectivity && r.expandedFrameIndex == index && (r.exitFaceFlags() & ~r.exitFaceFlags) != 0) {
+				queue.add(r);
+			}
 		}
 	}
 }
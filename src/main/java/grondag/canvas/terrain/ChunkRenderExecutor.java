@@ -18,47 +18,77 @@ package grondag.canvas.terrain;
 
 import com.google.common.collect.ImmutableList;
 import grondag.canvas.apiimpl.rendercontext.TerrainRenderContext;
+import grondag.canvas.render.CanvasFrustum;
 import grondag.fermion.sc.Sc;
 import net.minecraft.client.MinecraftClient;
 
-import java.util.Comparator;
-import java.util.concurrent.PriorityBlockingQueue;
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
  * Simple executor service with ability to submit privileged tasks
  * that run before non-privileged tasks that have not yet started, plus
  * distance-sorted execution.  Privilege is indicated by distance == -1
  * and privileged tasks run in order of submission.
+ *
+ * <p>Tasks are kept in buckets by distance and run in submission order within a bucket,
+ * so distance order is approximate.  Region builds are moved between buckets by
+ * {@link #reprioritize(CanvasFrustum)} as the camera moves, so builds queued from an
+ * earlier camera position don't run ahead of regions now in front of the camera.
+ *
+ * <p>Each worker has its own buckets, and submissions are spread across them.  A worker takes
+ * from its own nearest bucket unless another worker has a nearer one, and steals from that worker
+ * when its own are empty, so workers finishing small builds at the same time don't all contend
+ * for one lock.  Order across workers is only approximate within a bucket.
  */
 public class ChunkRenderExecutor {
-	private final PriorityBlockingQueue<ChunkBuildTask> queue = new PriorityBlockingQueue<>(1024, new Comparator<ChunkBuildTask>() {
-		@Override
-		public int compare(ChunkBuildTask o1, ChunkBuildTask o2) {
-			return Integer.compare(o1.priority, o2.priority);
-		}
-	});
+	/** Buckets are one region wide.  Last bucket holds everything farther. */
+	private static final int BUCKET_COUNT = 128;
 
-	private final int poolSize = threadCount();
+	private final ConcurrentLinkedQueue<ChunkBuildTask> privileged = new ConcurrentLinkedQueue<>();
+	/** Tasks submitted and not yet taken, including privileged.  Briefly negative when a task is taken before it is counted. */
+	private final AtomicInteger size = new AtomicInteger();
+	private final AtomicInteger nextQueue = new AtomicInteger();
+	private final Object idleLock = new Object();
+	private volatile int idleCount;
+	private final ArrayList<ChunkBuildTask> reprioritizeList = new ArrayList<>();
+	private final Supplier<TerrainRenderContext> contextFactory;
+
+	private final int poolSize;
 
-	@SuppressWarnings("unused")
 	private final ImmutableList<Worker> workers;
+	private final Worker[] workerArray;
 
 	public ChunkRenderExecutor() {
+		this(threadCount(), TerrainRenderContext::new);
+	}
+
+	ChunkRenderExecutor(int poolSize, Supplier<TerrainRenderContext> contextFactory) {
+		this.poolSize = poolSize;
+		this.contextFactory = contextFactory;
 		final ImmutableList.Builder<Worker> builder = ImmutableList.builder();
+		workerArray = new Worker[poolSize];
 
 		for (int i = 0; i < poolSize; i++) {
 			final Worker w = new Worker();
 			builder.add(w);
+			workerArray[i] = w;
+		}
+
+		workers = builder.build();
 
+		for (int i = 0; i < poolSize; i++) {
 			final Thread thread = new Thread(
-					new Worker(),
+					workerArray[i],
 					"Canvas Render Thread - " + i);
 			thread.setDaemon(true);
 			thread.start();
 		}
-
-		workers = builder.build();
 	}
 
 	private static int threadCount() {
@@ -71,45 +101,270 @@ public class ChunkRenderExecutor {
 		return threadCount > 1 ? threadCount : 1;
 	}
 
+	public int poolSize() {
+		return poolSize;
+	}
+
+	private static int bucket(int priority) {
+		return Math.min(BUCKET_COUNT - 1, (int) Math.sqrt(priority) >> 4);
+	}
+
 	public void execute(Consumer<TerrainRenderContext> task, int squaredDistance) {
-		queue.add(new ChunkBuildTask(task, squaredDistance));
+		add(new ChunkBuildTask(task, null, squaredDistance));
+	}
+
+	/**
+	 * Queues a region build at a priority that is updated by {@link #reprioritize(CanvasFrustum)}.
+	 */
+	public void execute(BuiltRenderRegion region) {
+		add(new ChunkBuildTask(region.buildTask, region, region.buildPriority(region.lastFrustumResult())));
+	}
+
+	private void add(ChunkBuildTask task) {
+		if (task.priority == -1) {
+			privileged.offer(task);
+		} else {
+			final Worker[] workers = workerArray;
+			workers[(nextQueue.getAndIncrement() & Integer.MAX_VALUE) % workers.length].queue.add(task);
+		}
+
+		size.incrementAndGet();
+
+		// Workers count themselves idle before checking size, so one of us sees the other's change.
+		if (idleCount > 0) {
+			synchronized (idleLock) {
+				idleLock.notify();
+			}
+		}
+	}
+
+	/**
+	 * Moves queued region builds to buckets for the current camera position and view.
+	 * Builds for regions closed since they were queued are dropped.  Render thread only.
+	 */
+	public void reprioritize(CanvasFrustum frustum) {
+		final ArrayList<ChunkBuildTask> list = reprioritizeList;
+
+		for (final Worker w : workerArray) {
+			final int dropCount = w.queue.reprioritize(frustum, list);
+
+			if (dropCount != 0) {
+				size.addAndGet(-dropCount);
+			}
+		}
+	}
+
+	/**
+	 * Takes the privileged task or the nearest task of any worker, preferring the worker's own queue
+	 * when it is as near as the others.  Waits if there are none.
+	 */
+	private ChunkBuildTask take(TaskQueue own) throws InterruptedException {
+		final Worker[] workers = workerArray;
+
+		while (true) {
+			ChunkBuildTask result = privileged.poll();
+
+			if (result == null) {
+				TaskQueue source = own;
+				int sourceBucket = own.firstBucket;
+
+				for (final Worker w : workers) {
+					final int b = w.queue.firstBucket;
+
+					if (b < sourceBucket) {
+						source = w.queue;
+						sourceBucket = b;
+					}
+				}
+
+				if (sourceBucket < BUCKET_COUNT) {
+					result = source.poll();
+				}
+			}
+
+			if (result != null) {
+				size.decrementAndGet();
+				return result;
+			}
+
+			synchronized (idleLock) {
+				++idleCount;
+
+				try {
+					if (size.get() <= 0) {
+						idleLock.wait();
+					}
+				} finally {
+					--idleCount;
+				}
+			}
+		}
 	}
 
 	public void clear() {
-		queue.clear();
+		// only count what is removed so that concurrent submissions stay counted
+		int removed = 0;
+
+		while (privileged.poll() != null) {
+			++removed;
+		}
+
+		for (final Worker w : workerArray) {
+			removed += w.queue.clear();
+		}
+
+		size.addAndGet(-removed);
 
 		for (final Worker w : workers) {
 			w.context.close();
-			w.context = new TerrainRenderContext();
+			w.context = contextFactory.get();
 		}
 	}
 
 	public boolean isEmpty() {
-		return queue.isEmpty();
+		return size.get() <= 0;
 	}
 
-	private class ChunkBuildTask {
+	private static class ChunkBuildTask {
 		final Consumer<TerrainRenderContext> task;
+		/** Region being built, for re-prioritization.  Null for other tasks, which keep their priority. */
+		@Nullable final BuiltRenderRegion region;
 
 		/**
 		 * Normally squared distance. Use -1 for privileged execution
 		 */
 		final int priority;
 
-		ChunkBuildTask(Consumer<TerrainRenderContext> task, int priority) {
+		ChunkBuildTask(Consumer<TerrainRenderContext> task, @Nullable BuiltRenderRegion region, int priority) {
 			this.task = task;
+			this.region = region;
 			this.priority = priority;
 		}
 	}
 
+	/**
+	 * Distance buckets of one worker.  Locked by the owner, by submitters, and by other workers
+	 * stealing from it.
+	 */
+	private static class TaskQueue {
+		@SuppressWarnings("unchecked")
+		private final ArrayDeque<ChunkBuildTask>[] buckets = new ArrayDeque[BUCKET_COUNT];
+		/** Lowest bucket that may not be empty.  Read without locking by workers choosing where to take from. */
+		private volatile int firstBucket = BUCKET_COUNT;
+
+		TaskQueue() {
+			for (int i = 0; i < BUCKET_COUNT; ++i) {
+				buckets[i] = new ArrayDeque<>();
+			}
+		}
+
+		synchronized void add(ChunkBuildTask task) {
+			final int b = bucket(task.priority);
+			buckets[b].add(task);
+
+			if (b < firstBucket) {
+				firstBucket = b;
+			}
+		}
+
+		synchronized @Nullable ChunkBuildTask poll() {
+			final ArrayDeque<ChunkBuildTask>[] buckets = this.buckets;
+
+			for (int b = firstBucket; b < BUCKET_COUNT; ++b) {
+				final ChunkBuildTask result = buckets[b].poll();
+
+				if (result != null) {
+					firstBucket = buckets[b].isEmpty() ? nextBucket(b + 1) : b;
+					return result;
+				}
+			}
+
+			firstBucket = BUCKET_COUNT;
+			return null;
+		}
+
+		private int nextBucket(int from) {
+			final ArrayDeque<ChunkBuildTask>[] buckets = this.buckets;
+
+			for (int b = from; b < BUCKET_COUNT; ++b) {
+				if (!buckets[b].isEmpty()) {
+					return b;
+				}
+			}
+
+			return BUCKET_COUNT;
+		}
+
+		/**
+		 * @return Number of tasks dropped.
+		 */
+		synchronized int reprioritize(CanvasFrustum frustum, ArrayList<ChunkBuildTask> list) {
+			final ArrayDeque<ChunkBuildTask>[] buckets = this.buckets;
+
+			for (int i = firstBucket; i < BUCKET_COUNT; ++i) {
+				final ArrayDeque<ChunkBuildTask> bucket = buckets[i];
+
+				if (!bucket.isEmpty()) {
+					list.addAll(bucket);
+					bucket.clear();
+				}
+			}
+
+			final int limit = list.size();
+			int first = BUCKET_COUNT;
+			int dropCount = 0;
+
+			for (int i = 0; i < limit; ++i) {
+				final ChunkBuildTask task = list.get(i);
+				final BuiltRenderRegion region = task.region;
+				final int b;
+
+				if (region == null) {
+					b = bucket(task.priority);
+				} else if (region.isClosed()) {
+					++dropCount;
+					continue;
+				} else {
+					b = bucket(region.buildPriority(frustum.isRegionVisible(region)));
+				}
+
+				buckets[b].add(task);
+
+				if (b < first) {
+					first = b;
+				}
+			}
+
+			firstBucket = first;
+			list.clear();
+			return dropCount;
+		}
+
+		/**
+		 * @return Number of tasks removed.
+		 */
+		synchronized int clear() {
+			int result = 0;
+
+			for (final ArrayDeque<ChunkBuildTask> bucket : buckets) {
+				result += bucket.size();
+				bucket.clear();
+			}
+
+			firstBucket = BUCKET_COUNT;
+			return result;
+		}
+	}
+
 	private class Worker implements Runnable {
-		private TerrainRenderContext context = new TerrainRenderContext();
+		private final TaskQueue queue = new TaskQueue();
+		private TerrainRenderContext context = contextFactory.get();
 
 		@Override
 		public void run() {
 			while (true) {
 				try {
-					final ChunkBuildTask t = queue.take();
+					final ChunkBuildTask t = take(queue);
 
 					if (t != null) {
 						t.task.accept(context);
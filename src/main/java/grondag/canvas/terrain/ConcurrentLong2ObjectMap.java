@@ -0,0 +1,566 @@
+/*
+ * Copyright 2019, 2020 grondag
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package grondag.canvas.terrain;
+
+import it.unimi.dsi.fastutil.HashCommon;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+import java.util.function.Predicate;
+
+/**
+ * Lock-free open-addressing map from long keys to objects, for maps that are read and
+ * written by the render thread, the terrain iterator and chunk build workers at once.
+ * <p>
+ * Keys are claimed by compare-and-set on an empty slot and never released. Removal
+ * leaves the entry in place with a null value - a tombstone - that can be revived by a
+ * later insert of the same key. Tombstones are discarded when the table is rebuilt,
+ * which happens when claimed slots pass the load factor.
+ * <p>
+ * Rebuilding doesn't block any operation. Entry objects are shared by the old and new table
+ * so value changes are seen in both. Empty slots of the old table are marked forwarded and
+ * tombstones are marked dead as they are visited, and any operation that reaches either
+ * marker continues in the new table. Threads that insert a key during a rebuild first help
+ * to copy the old table, then look for the key in the old table. If it isn't there they
+ * forward the empty slot that ends its probe sequence and add the key to the new table, so
+ * the key can't also be copied. New keys are added to the new table during a rebuild while
+ * it has room below its load factor for the slots not yet copied. Otherwise the insert
+ * copies the stripes other threads haven't finished and publishes the new table itself.
+ * <p>
+ * Copying a slot more than once is harmless, so no thread waits for a slower one. Dead
+ * markers record the table that set them. An entry that is dead in an older table but was
+ * also copied to a newer one by a late copy of its stripe is a tombstone in the newer
+ * table. Copies skip keys already in the new table.
+ * <p>
+ * {@link #forEach(Consumer)} and pruning visit the current table only, and miss keys added
+ * to a table that is still being filled. {@link #clear(Consumer)} is not safe to call
+ * concurrently with inserts.
+ */
+class ConcurrentLong2ObjectMap<T> {
+	/** Marks empty slots of a table that is being rebuilt. */
+	private static final Entry FORWARDED = new Entry(0, null);
+
+	/** Slots copied at a time by each thread helping with a rebuild. */
+	private static final int REBUILD_STRIPE = 256;
+
+	private static final AtomicReferenceFieldUpdater<Entry, Object> VALUE = AtomicReferenceFieldUpdater.newUpdater(Entry.class, Object.class, "value");
+	private static final AtomicReferenceFieldUpdater<Table, Table> NEXT = AtomicReferenceFieldUpdater.newUpdater(Table.class, Table.class, "next");
+	@SuppressWarnings("rawtypes")
+	private static final AtomicReferenceFieldUpdater<ConcurrentLong2ObjectMap, Table> TABLE = AtomicReferenceFieldUpdater.newUpdater(ConcurrentLong2ObjectMap.class, Table.class, "table");
+
+	/**
+	 * Value of tombstones that were not copied from the table of the given generation to a newer table.
+	 * Lookups in that table or older ones continue in the next table.
+	 */
+	private static class Dead {
+		private final int generation;
+
+		private Dead(int generation) {
+			this.generation = generation;
+		}
+	}
+
+	private static class Entry {
+		private final long key;
+		private volatile Object value;
+
+		private Entry(long key, Object value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	private static class Table {
+		private final AtomicReferenceArray<Entry> slots;
+		private final int mask;
+		private final int maxClaimed;
+		private final AtomicInteger claimed = new AtomicInteger();
+
+		/** One more than the table it was rebuilt from. */
+		private final int generation;
+
+		/** Marks tombstones of this table that were not copied to the next table. */
+		private final Dead dead;
+
+		/** Table being rebuilt into, or null if not rebuilding. Set once. */
+		private volatile Table next;
+
+		/** Start of the next stripe to be copied to the next table. */
+		private final AtomicInteger rebuildCursor = new AtomicInteger();
+
+		/** Count of slots copied to the next table. */
+		private final AtomicInteger rebuildCount = new AtomicInteger();
+
+		/** Non-zero for each stripe that has been copied completely. Each stripe is counted once. */
+		private final AtomicIntegerArray copiedStripes;
+
+		private Table(int capacity, float loadFactor, int generation) {
+			slots = new AtomicReferenceArray<>(capacity);
+			mask = capacity - 1;
+			maxClaimed = HashCommon.maxFill(capacity, loadFactor);
+			this.generation = generation;
+			dead = new Dead(generation);
+			copiedStripes = new AtomicIntegerArray((capacity + REBUILD_STRIPE - 1) / REBUILD_STRIPE);
+		}
+
+		/**
+		 * True if the value marks an entry that wasn't copied from this table or was
+		 * removed from a newer one. The key, if present, is in the next table.
+		 */
+		private boolean isDead(Object value) {
+			return value instanceof Dead && ((Dead) value).generation >= generation;
+		}
+
+		/**
+		 * Entry with the given key, {@link #FORWARDED} if the key may be in the next table, or null if absent.
+		 */
+		private Entry find(long k) {
+			final AtomicReferenceArray<Entry> slots = this.slots;
+			final int mask = this.mask;
+			int i = (int) HashCommon.mix(k) & mask;
+
+			for (int n = 0; n <= mask; ++n) {
+				final Entry e = slots.get(i);
+
+				if (e == null || e == FORWARDED || e.key == k) {
+					return e;
+				}
+
+				i = (i + 1) & mask;
+			}
+
+			return null;
+		}
+	}
+
+	private final int expectedSize;
+	private final float loadFactor;
+	private final AtomicInteger size = new AtomicInteger();
+	private volatile Table table;
+
+	/** Slot where the next incremental prune starts. */
+	private int pruneCursor = 0;
+
+	ConcurrentLong2ObjectMap(int expectedSize, float loadFactor) {
+		this.expectedSize = expectedSize;
+		this.loadFactor = loadFactor;
+		table = new Table(HashCommon.arraySize(expectedSize, loadFactor), loadFactor, 0);
+	}
+
+	/**
+	 * Count of keys with values.
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	public boolean isEmpty() {
+		return size.get() == 0;
+	}
+
+	/**
+	 * Count of slots claimed in the current table, including tombstones.
+	 */
+	int claimedCount() {
+		return table.claimed.get();
+	}
+
+	@SuppressWarnings("unchecked")
+	public T get(long k) {
+		Table t = table;
+
+		while (true) {
+			final Entry e = t.find(k);
+
+			if (e == null) {
+				return null;
+			}
+
+			if (e != FORWARDED) {
+				final Object result = e.value;
+
+				if (!t.isDead(result)) {
+					return result instanceof Dead ? null : (T) result;
+				}
+			}
+
+			t = t.next;
+		}
+	}
+
+	/**
+	 * Function may be called by more than one thread for the same key.
+	 * Only one result is retained and returned to all callers.
+	 */
+	@SuppressWarnings("unchecked")
+	public T computeIfAbsent(long k, LongFunction<? extends T> mappingFunction) {
+		final T result = get(k);
+		return result == null ? (T) insert(k, mappingFunction.apply(k)) : result;
+	}
+
+	/**
+	 * @return Existing value if present, otherwise null and the given value is retained.
+	 */
+	@SuppressWarnings("unchecked")
+	public T putIfAbsent(long k, T value) {
+		final Object result = insert(k, value);
+		return result == value ? null : (T) result;
+	}
+
+	/**
+	 * Stores the value if no value is present.
+	 *
+	 * @return The value retained for the key.
+	 */
+	private Object insert(long k, Object value) {
+		assert value != null;
+		Entry newEntry = null;
+		Table t = table;
+		// table that t is being rebuilt from, if t was reached that way
+		Table prior = null;
+
+		outer:
+		while (true) {
+			if (t.next != null) {
+				helpRebuild(t);
+			}
+
+			final AtomicReferenceArray<Entry> slots = t.slots;
+			final int mask = t.mask;
+			int i = (int) HashCommon.mix(k) & mask;
+
+			for (int n = 0; n <= mask; ++n) {
+				Entry e = slots.get(i);
+
+				if (e == null) {
+					if (t.next == null) {
+						if (!hasRoom(prior, t)) {
+							// Other threads are still copying their last stripes. Rare, because this
+							// thread has already helped. Copy them here instead of waiting, then retry.
+							finishRebuild(prior);
+							continue outer;
+						}
+
+						if (newEntry == null) {
+							newEntry = new Entry(k, value);
+						}
+
+						if (slots.compareAndSet(i, null, newEntry)) {
+							size.incrementAndGet();
+
+							if (t.claimed.incrementAndGet() > t.maxClaimed) {
+								rebuild(t);
+							}
+
+							return value;
+						}
+					} else if (slots.compareAndSet(i, null, FORWARDED)) {
+						// Key isn't in this table. Don't fill a table that is being rebuilt, and
+						// forward the slot so lookups of the key continue in the next table.
+						prior = t;
+						t = t.next;
+						continue outer;
+					}
+
+					// claimed or forwarded since read
+					e = slots.get(i);
+				}
+
+				if (e == FORWARDED) {
+					prior = t;
+					t = t.next;
+					continue outer;
+				}
+
+				if (e.key == k) {
+					while (true) {
+						final Object current = e.value;
+
+						if (t.isDead(current)) {
+							prior = t;
+							t = t.next;
+							continue outer;
+						}
+
+						if (current != null && !(current instanceof Dead)) {
+							return current;
+						}
+
+						if (VALUE.compareAndSet(e, null, value)) {
+							size.incrementAndGet();
+							return value;
+						}
+					}
+				}
+
+				i = (i + 1) & mask;
+			}
+
+			throw new IllegalStateException("ConcurrentLong2ObjectMap table full");
+		}
+	}
+
+	/**
+	 * True if a new key can be added to the table without taking room that entries copied
+	 * from the prior table may still need. Published tables always have room.
+	 */
+	private boolean hasRoom(Table prior, Table t) {
+		return prior == null || table != prior || t.claimed.get() + prior.slots.length() - prior.rebuildCount.get() < t.maxClaimed;
+	}
+
+	/**
+	 * @return Value removed, or null if none.
+	 */
+	@SuppressWarnings("unchecked")
+	public T remove(long k) {
+		Table t = table;
+
+		while (true) {
+			final Entry e = t.find(k);
+
+			if (e == null) {
+				return null;
+			}
+
+			if (e != FORWARDED) {
+				final Object current = e.value;
+
+				if (!t.isDead(current)) {
+					if (current == null || current instanceof Dead) {
+						return null;
+					}
+
+					if (VALUE.compareAndSet(e, current, null)) {
+						size.decrementAndGet();
+						return (T) current;
+					}
+
+					// changed since read - try again
+					continue;
+				}
+			}
+
+			t = t.next;
+		}
+	}
+
+	/**
+	 * Removes all values that match the predicate without blocking other threads.
+	 * Values added or changed concurrently may be missed.
+	 * Not safe to call concurrently with other prune calls.
+	 */
+	public void prune(Predicate<T> pruner) {
+		pruneCursor = 0;
+		pruneIncrementally(pruner, table.mask + 1);
+	}
+
+	/**
+	 * Like {@link #prune(Predicate)} but visits at most the given number of slots, resuming
+	 * where the previous call stopped. Bounds the cost of each call for large maps.
+	 *
+	 * @return True if the end of the table was reached.
+	 */
+	@SuppressWarnings("unchecked")
+	public boolean pruneIncrementally(Predicate<T> pruner, int slotCount) {
+		final Table t = table;
+		final AtomicReferenceArray<Entry> slots = t.slots;
+		final int limit = t.mask + 1;
+		int i = pruneCursor >= limit ? 0 : pruneCursor;
+		final int end = Math.min(limit, i + slotCount);
+
+		for (; i < end; ++i) {
+			final Entry e = slots.get(i);
+
+			if (e != null && e != FORWARDED) {
+				final Object value = e.value;
+
+				if (value != null && !(value instanceof Dead) && pruner.test((T) value) && VALUE.compareAndSet(e, value, null)) {
+					size.decrementAndGet();
+				}
+			}
+		}
+
+		pruneCursor = i == limit ? 0 : i;
+		return i == limit;
+	}
+
+	@SuppressWarnings("unchecked")
+	public void forEach(Consumer<T> consumer) {
+		final AtomicReferenceArray<Entry> slots = table.slots;
+		final int limit = slots.length();
+
+		for (int i = 0; i < limit; ++i) {
+			final Entry e = slots.get(i);
+
+			if (e != null && e != FORWARDED) {
+				final Object value = e.value;
+
+				if (value != null && !(value instanceof Dead)) {
+					consumer.accept((T) value);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes all values, passing each to the given handler.
+	 */
+	public void clear(Consumer<T> clearHandler) {
+		forEach(clearHandler);
+		table = new Table(HashCommon.arraySize(expectedSize, loadFactor), loadFactor, table.generation + 1);
+		size.set(0);
+		pruneCursor = 0;
+	}
+
+	/**
+	 * Starts copying live entries of a full table to a new table. Only one thread
+	 * starts a rebuild of a given table and all threads that insert keys during
+	 * the rebuild help to finish it.
+	 */
+	private void rebuild(Table t) {
+		// don't rebuild a table that isn't published yet - will check again on next insert after it is
+		if (t != table || t.next != null) {
+			return;
+		}
+
+		// Never smaller than the old table so that all live entries fit even if tombstones
+		// are revived during the rebuild. Grows when most claimed slots have values.
+		final int capacity = Math.max(t.mask + 1, HashCommon.arraySize(Math.max(expectedSize, size.get() * 2), loadFactor));
+
+		if (NEXT.compareAndSet(t, null, new Table(capacity, loadFactor, t.generation + 1))) {
+			helpRebuild(t);
+		}
+	}
+
+	/**
+	 * Copies stripes of the table until none are left. Doesn't wait for stripes taken by
+	 * other threads - the thread that finishes the last stripe publishes the next table.
+	 */
+	private void helpRebuild(Table t) {
+		final Table next = t.next;
+		final int limit = t.slots.length();
+
+		while (true) {
+			final int start = t.rebuildCursor.getAndAdd(REBUILD_STRIPE);
+
+			if (start >= limit) {
+				break;
+			}
+
+			copyStripe(t, next, start);
+		}
+	}
+
+	/**
+	 * Like {@link #helpRebuild(Table)} but also copies stripes that other threads took and haven't
+	 * finished, then publishes the next table. Afterwards the table has been replaced.
+	 */
+	private void finishRebuild(Table t) {
+		final Table next = t.next;
+		helpRebuild(t);
+
+		final AtomicIntegerArray copiedStripes = t.copiedStripes;
+		final int stripeCount = copiedStripes.length();
+
+		for (int stripe = 0; stripe < stripeCount; ++stripe) {
+			if (copiedStripes.get(stripe) == 0) {
+				copyStripe(t, next, stripe * REBUILD_STRIPE);
+			}
+		}
+
+		TABLE.compareAndSet(this, t, next);
+	}
+
+	/**
+	 * Copies the stripe starting at the given slot. Other threads may copy the same stripe at the same
+	 * time or later - every step either marks the slot or copies its entry, and either is final.
+	 */
+	private void copyStripe(Table t, Table next, int start) {
+		final AtomicReferenceArray<Entry> slots = t.slots;
+		final int limit = slots.length();
+		final int end = Math.min(limit, start + REBUILD_STRIPE);
+
+		for (int i = start; i < end; ++i) {
+			Entry e = slots.get(i);
+
+			if (e == null) {
+				if (slots.compareAndSet(i, null, FORWARDED)) {
+					continue;
+				}
+
+				// claimed, or forwarded by an insert, since read
+				e = slots.get(i);
+			}
+
+			if (e == FORWARDED) {
+				continue;
+			}
+
+			Object value = e.value;
+
+			// mark tombstones dead so they can't be revived in this table - retry if revived or marked since read
+			while ((value == null || value instanceof Dead && !t.isDead(value)) && !VALUE.compareAndSet(e, value, t.dead)) {
+				value = e.value;
+			}
+
+			if (value != null && !(value instanceof Dead)) {
+				transfer(next, e);
+			}
+		}
+
+		if (t.copiedStripes.compareAndSet(start / REBUILD_STRIPE, 0, 1) && t.rebuildCount.addAndGet(end - start) == limit) {
+			TABLE.compareAndSet(this, t, next);
+		}
+	}
+
+	/**
+	 * Adds a live entry to a table under construction unless the key is there already. The key is
+	 * present if another copy of the same stripe got there first, or if a late copy finds that the entry
+	 * was marked dead and its key inserted again. A late copy can also find the table rebuilt in turn,
+	 * in which case every live entry has been copied already.
+	 */
+	private static void transfer(Table t, Entry e) {
+		final AtomicReferenceArray<Entry> slots = t.slots;
+		final int mask = t.mask;
+		int i = (int) HashCommon.mix(e.key) & mask;
+
+		for (int n = 0; n <= mask; ++n) {
+			Entry current = slots.get(i);
+
+			if (current == null) {
+				if (slots.compareAndSet(i, null, e)) {
+					t.claimed.incrementAndGet();
+					return;
+				}
+
+				current = slots.get(i);
+			}
+
+			if (current == FORWARDED || current.key == e.key) {
+				return;
+			}
+
+			i = (i + 1) & mask;
+		}
+
+		throw new IllegalStateException("ConcurrentLong2ObjectMap table full");
+	}
+}
@@ -28,6 +28,7 @@ import net.minecraft.util.math.BlockPos;
 import net.minecraft.world.chunk.ChunkSection;
 import net.minecraft.world.chunk.WorldChunk;
 
+import javax.annotation.Nullable;
 import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
 
@@ -57,6 +58,11 @@ public class ProtoRenderRegion extends AbstractRenderRegion {
 	final ObjectArrayList<Object> renderData = new ObjectArrayList<>();
 	final ShortArrayList blockEntityPos = new ShortArrayList();
 	PaletteCopy mainSectionCopy;
+	/**
+	 * Block changes the owning region took when this snapshot was claimed, one bit per
+	 * block index.  Null for a full rebuild.  See {@link BuiltRenderRegion}.
+	 */
+	@Nullable long[] changedBlocks;
 
 	public static ProtoRenderRegion claim(ClientWorld world, BlockPos origin) {
 		final ProtoRenderRegion result = POOL.poll();
@@ -253,14 +259,27 @@ public class ProtoRenderRegion extends AbstractRenderRegion {
 
 		blockEntities.clear();
 		renderData.clear();
+		changedBlocks = null;
 
 		release(this);
 	}
 
+	/**
+	 * False for the special values that signal build state instead of holding a world snapshot.
+	 */
+	public boolean hasSnapshot() {
+		return true;
+	}
+
 	private static class DummyRegion extends ProtoRenderRegion {
 		@Override
 		public void release() {
 		}
+
+		@Override
+		public boolean hasSnapshot() {
+			return false;
+		}
 	}
 
 }
@@ -20,12 +20,14 @@ import grondag.canvas.buffer.encoding.VertexCollectorImpl;
 import grondag.canvas.buffer.encoding.VertexCollectorList;
 import grondag.canvas.material.MaterialState;
 import grondag.canvas.shader.ShaderPass;
+import grondag.canvas.terrain.occlusion.region.OcclusionRegion;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
 import net.minecraft.block.entity.BlockEntity;
 
 import javax.annotation.Nullable;
+import java.util.Arrays;
 import java.util.List;
 
 @Environment(EnvType.CLIENT)
@@ -34,6 +36,7 @@ public class RegionData {
 
 	final ObjectArrayList<BlockEntity> blockEntities = new ObjectArrayList<>();
 	int[] occlusionData = null;
+	int faceConnectivity = OcclusionRegion.ALL_FACES_CONNECTED;
 
 	@Nullable
 	int[] translucentState;
@@ -55,7 +58,27 @@ public class RegionData {
 		return occlusionData;
 	}
 
+	/**
+	 * Pairs of faces connected through open space in the region.
+	 * See {@link OcclusionRegion#faceConnectivityBit(int, int)}.
+	 */
+	public int getFaceConnectivity() {
+		return faceConnectivity;
+	}
+
+	/**
+	 * True if the occlusion data of the other instance would give the same occlusion and traversal results.
+	 */
+	public boolean hasSameOcclusion(RegionData other) {
+		return faceConnectivity == other.faceConnectivity && Arrays.equals(occlusionData, other.occlusionData);
+	}
+
 	public void complete(int[] occlusionData) {
+		complete(occlusionData, OcclusionRegion.ALL_FACES_CONNECTED);
+	}
+
+	public void complete(int[] occlusionData, int faceConnectivity) {
 		this.occlusionData = occlusionData;
+		this.faceConnectivity = faceConnectivity;
 	}
 }
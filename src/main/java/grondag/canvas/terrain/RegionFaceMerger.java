@@ -0,0 +1,410 @@
+/*
+ * Copyright 2019, 2020 grondag
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package grondag.canvas.terrain;
+
+import grondag.canvas.buffer.encoding.VertexCollectorImpl;
+import grondag.canvas.buffer.encoding.VertexCollectorList;
+import grondag.canvas.material.MaterialState;
+import grondag.canvas.perf.ChunkRebuildCounters;
+import grondag.canvas.shader.MaterialShaderManager;
+import grondag.canvas.shader.ShaderPass;
+
+/**
+ * Greedy meshing for distant regions. Merges coplanar full-cube faces with identical sprite, sprite orientation,
+ * color, light and AO into larger quads.  Merged quads carry sprite repeat counts in the high
+ * half of the material attribute and the terrain shader tiles the sprite within its atlas bounds.
+ *
+ * <p>Only handles the vanilla terrain vertex format and opaque, default-shader collectors.
+ * Everything else is left as tessellated.
+ */
+final class RegionFaceMerger {
+	// matches vertex layout written by EncoderUtils.bufferQuadDirect1
+	private static final int VERTEX_STRIDE = 8;
+	private static final int QUAD_STRIDE = VERTEX_STRIDE * 4;
+	private static final int COLOR = 3;
+	private static final int UV = 4;
+	private static final int LIGHT = 5;
+	private static final int NORMAL_AO = 6;
+	private static final int MATERIAL = 7;
+
+	private static final int UV_MAX = 0xFFFF;
+	/** Cutout and unmipped shader flags - quads with these need per-face sprite edges. */
+	private static final int CUTOUT_FLAGS = (8 | 16) << 16;
+
+	// packed face: face index 0-2, plane 3-7, min a 8-11, min b 12-15, uv orientation 16-19
+	private static final int U_ALONG_A = 1 << 16;
+	private static final int V_ALONG_A = 1 << 17;
+	/** Set when u or v is at its max in the min a, min b corner - the sprite runs backwards along that axis. */
+	private static final int U_REVERSED = 1 << 18;
+	private static final int V_REVERSED = 1 << 19;
+	private static final int ORIENTATION_MASK = U_ALONG_A | V_ALONG_A | U_REVERSED | V_REVERSED;
+
+	/** Six faces, 17 planes per axis, 16x16 cells per plane. */
+	private static final int LAYER_COUNT = 6 * 17;
+	private static final int CELLS_PER_LAYER = 256;
+
+	private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+	private static class Scratch {
+		/** Quad index + 1 of the candidate face in each cell, zero if none.  Always left clear. */
+		final int[] cells = new int[LAYER_COUNT * CELLS_PER_LAYER];
+		final int[] layerCounts = new int[LAYER_COUNT];
+		final float[] offsets = new float[3];
+		int[] faces = new int[1024];
+		int[] output = new int[QUAD_STRIDE * 1024];
+	}
+
+	private RegionFaceMerger() {
+	}
+
+	/**
+	 * Merges faces of all eligible collectors in place.
+	 *
+	 * @param xOffset Model-space offset of the region origin, as used for tessellation.
+	 */
+	static void mergeFaces(VertexCollectorList collectors, int xOffset, int yOffset, int zOffset) {
+		final Scratch scratch = SCRATCH.get();
+		scratch.offsets[0] = xOffset;
+		scratch.offsets[1] = yOffset;
+		scratch.offsets[2] = zOffset;
+
+		final int limit = collectors.solidCount();
+		int quadsBefore = 0;
+		int quadsAfter = 0;
+
+		for (int i = 0; i < limit; i++) {
+			final VertexCollectorImpl collector = collectors.getSolid(i);
+
+			if (!collector.isEmpty() && isEligible(collector.materialState())) {
+				quadsBefore += collector.quadCount();
+				mergeFaces(collector, scratch);
+				quadsAfter += collector.quadCount();
+			}
+		}
+
+		if (ChunkRebuildCounters.ENABLED) {
+			ChunkRebuildCounters.countMergedFaces(quadsBefore, quadsAfter);
+		}
+	}
+
+	private static boolean isEligible(MaterialState materialState) {
+		return materialState.shaderPass == ShaderPass.SOLID && materialState.shader == MaterialShaderManager.INSTANCE.getDefault();
+	}
+
+	private static void mergeFaces(VertexCollectorImpl collector, Scratch scratch) {
+		final int[] data = collector.copyRange(0, collector.integerSize());
+		final int quadCount = data.length / QUAD_STRIDE;
+
+		if (scratch.faces.length < quadCount) {
+			scratch.faces = new int[quadCount];
+		}
+
+		if (scratch.output.length < data.length) {
+			scratch.output = new int[data.length];
+		}
+
+		final int[] faces = scratch.faces;
+		final int[] cells = scratch.cells;
+		final int[] layerCounts = scratch.layerCounts;
+		final int[] output = scratch.output;
+		int candidateCount = 0;
+
+		for (int q = 0; q < quadCount; q++) {
+			final int face = packFace(data, q * QUAD_STRIDE, scratch.offsets);
+			faces[q] = face;
+
+			if (face != -1) {
+				++candidateCount;
+			}
+		}
+
+		if (candidateCount < 2) {
+			return;
+		}
+
+		int outputSize = 0;
+
+		for (int q = 0; q < quadCount; q++) {
+			final int face = faces[q];
+
+			if (face != -1) {
+				final int cell = cellIndex(face);
+
+				// a second face in the same cell (overlapping models) stays as it was
+				if (cells[cell] == 0) {
+					cells[cell] = q + 1;
+					++layerCounts[cell / CELLS_PER_LAYER];
+					continue;
+				}
+			}
+
+			System.arraycopy(data, q * QUAD_STRIDE, output, outputSize, QUAD_STRIDE);
+			outputSize += QUAD_STRIDE;
+		}
+
+		for (int layer = 0; layer < LAYER_COUNT; layer++) {
+			if (layerCounts[layer] != 0) {
+				outputSize = mergeLayer(data, faces, cells, layer * CELLS_PER_LAYER, output, outputSize, scratch.offsets);
+				layerCounts[layer] = 0;
+			}
+		}
+
+		if (outputSize < data.length) {
+			collector.clear();
+			collector.add(output, outputSize);
+		}
+	}
+
+	/**
+	 * Greedy rectangle cover of one plane.  Emits a quad for each rectangle and clears the cells it covers.
+	 */
+	private static int mergeLayer(int[] data, int[] faces, int[] cells, int layerStart, int[] output, int outputSize, float[] offsets) {
+		for (int b = 0; b < 16; b++) {
+			for (int a = 0; a < 16; a++) {
+				final int q = cells[layerStart + a + b * 16] - 1;
+
+				if (q == -1) {
+					continue;
+				}
+
+				final int base = q * QUAD_STRIDE;
+				int w = 1;
+
+				while (a + w < 16 && matches(data, faces, q, cells[layerStart + a + w + b * 16])) {
+					++w;
+				}
+
+				int h = 1;
+
+				grow:
+				while (b + h < 16) {
+					for (int i = 0; i < w; i++) {
+						if (!matches(data, faces, q, cells[layerStart + a + i + (b + h) * 16])) {
+							break grow;
+						}
+					}
+
+					++h;
+				}
+
+				for (int j = 0; j < h; j++) {
+					for (int i = 0; i < w; i++) {
+						cells[layerStart + a + i + (b + j) * 16] = 0;
+					}
+				}
+
+				emitQuad(data, base, faces[q], a, b, w, h, output, outputSize, offsets);
+				outputSize += QUAD_STRIDE;
+			}
+		}
+
+		return outputSize;
+	}
+
+	/**
+	 * True if the cell holds a face that can share a quad with the given quad.  Faces in the same
+	 * cell layer already share plane and normal so only sprite orientation and the uniform vertex
+	 * attributes need comparing.  Merged quads repeat the orientation of their first face, so faces
+	 * with other rotation or mirroring (random block model variants) must stay separate.
+	 */
+	private static boolean matches(int[] data, int[] faces, int q, int cellValue) {
+		if (cellValue == 0) {
+			return false;
+		}
+
+		final int otherQ = cellValue - 1;
+
+		if (((faces[q] ^ faces[otherQ]) & ORIENTATION_MASK) != 0) {
+			return false;
+		}
+
+		final int base = q * QUAD_STRIDE;
+		final int other = otherQ * QUAD_STRIDE;
+
+		return data[base + COLOR] == data[other + COLOR]
+			&& data[base + LIGHT] == data[other + LIGHT]
+			&& data[base + NORMAL_AO] == data[other + NORMAL_AO]
+			&& data[base + MATERIAL] == data[other + MATERIAL];
+	}
+
+	private static void emitQuad(int[] data, int base, int face, int a, int b, int w, int h, int[] output, int outputSize, float[] offsets) {
+		final int axis = faceAxis(face);
+		final int aAxis = axis == 0 ? 1 : 0;
+		final int bAxis = axis == 2 ? 1 : 2;
+		final float aOffset = offsets[aAxis];
+		final float bOffset = offsets[bAxis];
+		final int minA = (face >> 8) & 0xF;
+		final int minB = (face >> 12) & 0xF;
+
+		System.arraycopy(data, base, output, outputSize, QUAD_STRIDE);
+
+		if (w == 1 && h == 1) {
+			return;
+		}
+
+		final int repeatU = (face & U_ALONG_A) == 0 ? h : w;
+		final int repeatV = (face & V_ALONG_A) == 0 ? h : w;
+		final int material = (data[base + MATERIAL] & 0xFFFF) | ((repeatU | (repeatV << 8)) << 16);
+
+		for (int v = 0; v < 4; v++) {
+			final int i = outputSize + v * VERTEX_STRIDE;
+			final boolean maxA = Float.intBitsToFloat(output[i + aAxis]) - aOffset != minA;
+			final boolean maxB = Float.intBitsToFloat(output[i + bAxis]) - bOffset != minB;
+			output[i + aAxis] = Float.floatToRawIntBits(aOffset + (maxA ? a + w : a));
+			output[i + bAxis] = Float.floatToRawIntBits(bOffset + (maxB ? b + h : b));
+			output[i + MATERIAL] = material;
+		}
+	}
+
+	private static int faceAxis(int face) {
+		return (face & 7) >> 1;
+	}
+
+	private static int cellIndex(int face) {
+		final int layer = (face & 7) * 17 + ((face >> 3) & 0x1F);
+		return layer * CELLS_PER_LAYER + ((face >> 8) & 0xFF);
+	}
+
+	/**
+	 * Identifies quads that exactly cover one block face on a block boundary with uniform
+	 * vertex attributes and the whole sprite mapped edge to edge.
+	 *
+	 * @return Packed face location and sprite orientation, or -1 if the quad can't be merged.
+	 */
+	private static int packFace(int[] data, int base, float[] offsets) {
+		final int color = data[base + COLOR];
+		final int light = data[base + LIGHT];
+		final int normalAo = data[base + NORMAL_AO];
+		final int material = data[base + MATERIAL];
+
+		if ((light & CUTOUT_FLAGS) != 0 || (material >>> 16) != 0) {
+			return -1;
+		}
+
+		for (int v = 1; v < 4; v++) {
+			final int i = base + v * VERTEX_STRIDE;
+
+			if (data[i + COLOR] != color || data[i + LIGHT] != light || data[i + NORMAL_AO] != normalAo || data[i + MATERIAL] != material) {
+				return -1;
+			}
+		}
+
+		final int nx = (byte) normalAo;
+		final int ny = (byte) (normalAo >> 8);
+		final int nz = (byte) (normalAo >> 16);
+		final int axis;
+		final int n;
+
+		if (ny == 0 && nz == 0) {
+			axis = 0;
+			n = nx;
+		} else if (nx == 0 && nz == 0) {
+			axis = 1;
+			n = ny;
+		} else if (nx == 0 && ny == 0) {
+			axis = 2;
+			n = nz;
+		} else {
+			return -1;
+		}
+
+		if (n > -126 && n < 126) {
+			return -1;
+		}
+
+		final int aAxis = axis == 0 ? 1 : 0;
+		final int bAxis = axis == 2 ? 1 : 2;
+		final float plane = Float.intBitsToFloat(data[base + axis]) - offsets[axis];
+		float minA = Float.MAX_VALUE;
+		float minB = Float.MAX_VALUE;
+
+		for (int v = 0; v < 4; v++) {
+			final int i = base + v * VERTEX_STRIDE;
+
+			if (Float.intBitsToFloat(data[i + axis]) - offsets[axis] != plane) {
+				return -1;
+			}
+
+			minA = Math.min(minA, Float.intBitsToFloat(data[i + aAxis]) - offsets[aAxis]);
+			minB = Math.min(minB, Float.intBitsToFloat(data[i + bAxis]) - offsets[bAxis]);
+		}
+
+		if (plane != (int) plane || plane < 0 || plane > 16
+			|| minA != (int) minA || minA < 0 || minA > 15
+			|| minB != (int) minB || minB < 0 || minB > 15) {
+			return -1;
+		}
+
+		int corners = 0;
+		int reversed = 0;
+		// bit 0: u XOR a, bit 1: u XOR b, bit 2: v XOR a, bit 3: v XOR b - each must be constant for an axis to map
+		int orientation0 = 0;
+		int orientation1 = 0;
+
+		for (int v = 0; v < 4; v++) {
+			final int i = base + v * VERTEX_STRIDE;
+			final float da = Float.intBitsToFloat(data[i + aAxis]) - offsets[aAxis] - minA;
+			final float db = Float.intBitsToFloat(data[i + bAxis]) - offsets[bAxis] - minB;
+
+			if ((da != 0 && da != 1) || (db != 0 && db != 1)) {
+				return -1;
+			}
+
+			final int ia = (int) da;
+			final int ib = (int) db;
+			corners |= 1 << (ia | (ib << 1));
+
+			final int uv = data[i + UV];
+			final int u = uv & 0xFFFF;
+			final int uvV = uv >>> 16;
+
+			if ((u != 0 && u != UV_MAX) || (uvV != 0 && uvV != UV_MAX)) {
+				return -1;
+			}
+
+			final int iu = u == 0 ? 0 : 1;
+			final int iv = uvV == 0 ? 0 : 1;
+
+			if (ia == 0 && ib == 0) {
+				reversed = (iu == 0 ? 0 : U_REVERSED) | (iv == 0 ? 0 : V_REVERSED);
+			}
+
+			final int orientation = (iu ^ ia) | ((iu ^ ib) << 1) | ((iv ^ ia) << 2) | ((iv ^ ib) << 3);
+			orientation0 |= ~orientation & 0xF;
+			orientation1 |= orientation;
+		}
+
+		if (corners != 0xF) {
+			return -1;
+		}
+
+		// a relation holds when it is the same (all 0 or all 1) at every corner
+		final int constant = ~(orientation0 & orientation1) & 0xF;
+		final boolean uAlongA = (constant & 1) != 0;
+		final boolean uAlongB = (constant & 2) != 0;
+		final boolean vAlongA = (constant & 4) != 0;
+		final boolean vAlongB = (constant & 8) != 0;
+
+		if (uAlongA == uAlongB || vAlongA == vAlongB || uAlongA == vAlongA) {
+			return -1;
+		}
+
+		final int face = axis * 2 + (n > 0 ? 1 : 0);
+
+		return face | ((int) plane << 3) | ((int) minA << 8) | ((int) minB << 12) | (uAlongA ? U_ALONG_A : 0) | (vAlongA ? V_ALONG_A : 0) | reversed;
+	}
+}
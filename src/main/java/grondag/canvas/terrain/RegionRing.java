@@ -0,0 +1,128 @@
+/*
+ * Copyright 2019, 2020 grondag
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package grondag.canvas.terrain;
+
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.MathHelper;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Dense storage of render regions addressed by world position modulo a power-of-two diameter.
+ * Lookups are plain array indexing with no hashing or locking.
+ * <p>
+ * Positions closer than the diameter on both horizontal axes never share a slot, so as long
+ * as stored regions stay within the radius of the camera each slot holds at most one of them
+ * and slots left behind by camera movement are reused by regions ahead of it.  When a slot is
+ * wanted by two positions, only the first is stored and the caller must keep the other elsewhere.
+ * <p>
+ * Reads are thread-safe. Writes must be serialized by the caller.
+ */
+class RegionRing<T> {
+	private final int radius;
+	private final int diameterBits;
+	private final int mask;
+	private final AtomicReferenceArray<T> slots;
+
+	/**
+	 * Packed origin of the region in each slot. Written before the slot is set
+	 * so a reader that sees a region also sees its key.  Not cleared on removal.
+	 * Atomic so keys are never torn and their reads are ordered between the slot reads in {@link #get(int, int, int)}.
+	 */
+	private final AtomicLongArray keys;
+
+	/**
+	 * @param radius Horizontal distance in regions from the camera that must never share slots.
+	 */
+	RegionRing(int radius) {
+		this.radius = radius;
+		final int diameter = MathHelper.smallestEncompassingPowerOfTwo(radius * 2 + 1);
+		diameterBits = Integer.bitCount(diameter - 1);
+		mask = diameter - 1;
+		slots = new AtomicReferenceArray<>(diameter * diameter * 16);
+		keys = new AtomicLongArray(diameter * diameter * 16);
+	}
+
+	int radius() {
+		return radius;
+	}
+
+	/**
+	 * Vertical range of the ring. Positions outside it can't be stored.
+	 */
+	static boolean isInRange(int y) {
+		return (y & 0xFFFFFF00) == 0;
+	}
+
+	/**
+	 * Coordinates are block positions of region origins - multiples of 16 - with y in range.
+	 */
+	private int index(int x, int y, int z) {
+		return ((((z >> 4) & mask) << diameterBits | ((x >> 4) & mask)) << 4) | (y >> 4);
+	}
+
+	/**
+	 * Coordinates are block positions of region origins - multiples of 16 - with y in range.
+	 * Null if nothing is stored for the position.
+	 */
+	T get(int x, int y, int z) {
+		final int index = index(x, y, z);
+		final T result = slots.get(index);
+
+		if (result == null || keys.get(index) != BlockPos.asLong(x, y, z)) {
+			return null;
+		}
+
+		// Slot may have been recycled between the reads above. A new key is only written after the
+		// slot is emptied, and removed regions are never stored again in the same ring, so if the
+		// slot still holds the same region the key was its own.
+		return slots.get(index) == result ? result : null;
+	}
+
+	/**
+	 * Stores the region unless the slot is taken. Coordinates are those of region origins with y in range.
+	 *
+	 * @return True if stored.
+	 */
+	boolean tryPut(int x, int y, int z, T region) {
+		final int index = index(x, y, z);
+
+		if (slots.get(index) != null) {
+			return false;
+		}
+
+		keys.set(index, BlockPos.asLong(x, y, z));
+		slots.set(index, region);
+		return true;
+	}
+
+	/**
+	 * Removes the region if it is stored at the given position.
+	 */
+	void remove(int x, int y, int z, T region) {
+		slots.compareAndSet(index(x, y, z), region, null);
+	}
+
+	void clear() {
+		final int limit = slots.length();
+
+		for (int i = 0; i < limit; ++i) {
+			slots.set(i, null);
+		}
+	}
+}
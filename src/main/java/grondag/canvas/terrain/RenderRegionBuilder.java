@@ -19,14 +19,22 @@ package grondag.canvas.terrain;
 import com.google.common.collect.Queues;
 import com.mojang.blaze3d.systems.RenderSystem;
 import grondag.canvas.apiimpl.rendercontext.TerrainRenderContext;
+import grondag.canvas.perf.ChunkRebuildCounters;
 
+import java.util.ArrayList;
 import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 
 public class RenderRegionBuilder {
 	public final ChunkRenderExecutor executor = new ChunkRenderExecutor();
 	private final Queue<Runnable> uploadQueue = Queues.newConcurrentLinkedQueue();
 	// for use by render thread rebuilds
 	TerrainRenderContext mainThreadContext = new TerrainRenderContext();
+	// urgent builds submitted since the last wait, render thread only
+	private final ArrayList<UrgentBuild> urgentBuilds = new ArrayList<>();
+	private volatile Thread urgentBuildWaiter;
 
 	public RenderRegionBuilder() {
 		// PERF: limit vertex collectors similarly, somehow
@@ -56,7 +64,82 @@ public class RenderRegionBuilder {
 		return didRun;
 	}
 
+	/**
+	 * Builds the region on a worker ahead of queued builds.  The render thread then waits for it in
+	 * {@link #awaitUrgentBuilds(long)} instead of building it itself.  Render thread only.
+	 */
+	public void scheduleUrgentBuild(BuiltRenderRegion region) {
+		assert RenderSystem.isOnRenderThread();
+
+		if (region.isClosed()) {
+			return;
+		}
+
+		region.claimForUrgentBuild();
+		final UrgentBuild build = new UrgentBuild(region);
+		urgentBuilds.add(build);
+		executor.execute(build, -1);
+	}
+
+	/**
+	 * Waits up to the given time for urgent builds to finish.  Builds no worker has started
+	 * by then are done on the render thread.  Builds still running are left to finish and
+	 * upload normally.  Results are uploaded by the next call to {@link #upload()}.
+	 */
+	public void awaitUrgentBuilds(long waitNanos) {
+		assert RenderSystem.isOnRenderThread();
+
+		final ArrayList<UrgentBuild> builds = urgentBuilds;
+		final int limit = builds.size();
+
+		if (limit == 0) {
+			return;
+		}
+
+		final long deadline = System.nanoTime() + waitNanos;
+		urgentBuildWaiter = Thread.currentThread();
+
+		while (hasPendingUrgentBuild()) {
+			final long remaining = deadline - System.nanoTime();
+
+			if (remaining <= 0) {
+				break;
+			}
+
+			LockSupport.parkNanos(this, remaining);
+		}
+
+		urgentBuildWaiter = null;
+
+		for (int i = 0; i < limit; ++i) {
+			final UrgentBuild build = builds.get(i);
+
+			if (build.state.compareAndSet(UrgentBuild.QUEUED, UrgentBuild.TAKEN)) {
+				// releases the claim of the urgent build first
+				build.region.rebuildOnMainThread();
+			} else if (ChunkRebuildCounters.ENABLED) {
+				ChunkRebuildCounters.countUrgentBuild(build.state.get() != UrgentBuild.DONE);
+			}
+		}
+
+		builds.clear();
+	}
+
+	private boolean hasPendingUrgentBuild() {
+		final ArrayList<UrgentBuild> builds = urgentBuilds;
+		final int limit = builds.size();
+
+		for (int i = 0; i < limit; ++i) {
+			if (builds.get(i).state.get() != UrgentBuild.DONE) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
 	public void reset() {
+		urgentBuilds.clear();
 		executor.clear();
 		mainThreadContext.close();
 		mainThreadContext = new TerrainRenderContext();
@@ -69,4 +152,37 @@ public class RenderRegionBuilder {
 	public boolean isEmpty() {
 		return executor.isEmpty() && uploadQueue.isEmpty();
 	}
+
+	/**
+	 * Runs a region build unless the render thread took it back first.
+	 */
+	private class UrgentBuild implements Consumer<TerrainRenderContext> {
+		static final int QUEUED = 0;
+		static final int STARTED = 1;
+		static final int DONE = 2;
+		static final int TAKEN = 3;
+
+		final BuiltRenderRegion region;
+		final AtomicInteger state = new AtomicInteger(QUEUED);
+
+		UrgentBuild(BuiltRenderRegion region) {
+			this.region = region;
+		}
+
+		@Override
+		public void accept(TerrainRenderContext context) {
+			if (state.compareAndSet(QUEUED, STARTED)) {
+				try {
+					region.buildTask.accept(context);
+				} finally {
+					state.set(DONE);
+					final Thread waiter = urgentBuildWaiter;
+
+					if (waiter != null) {
+						LockSupport.unpark(waiter);
+					}
+				}
+			}
+		}
+	}
 }
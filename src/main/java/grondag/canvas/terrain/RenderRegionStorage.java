@@ -16,12 +16,15 @@
 
 package grondag.canvas.terrain;
 
+import grondag.canvas.perf.ChunkRebuildCounters;
 import grondag.canvas.render.CanvasWorldRenderer;
 import it.unimi.dsi.fastutil.Hash;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.ChunkPos;
 import net.minecraft.util.math.Vec3d;
 
+import javax.annotation.Nullable;
+import java.util.Arrays;
 import java.util.function.Predicate;
 
 public class RenderRegionStorage {
@@ -35,11 +38,58 @@ public class RenderRegionStorage {
 		}
 	};
 	private static final Predicate<RegionChunkReference> CHUNK_REF_PRUNER = RegionChunkReference::isEmpty;
-	// Hat tip to JellySquid for the suggestion of using a hashmap
-	// PERF: lock-free implementation
-	private final HackedLong2ObjectMap<BuiltRenderRegion> regionMap = new HackedLong2ObjectMap<>(8192, Hash.VERY_FAST_LOAD_FACTOR, r -> r.close());
-	private final HackedLong2ObjectMap<RegionChunkReference> chunkRefMap = new HackedLong2ObjectMap<>(2048, Hash.VERY_FAST_LOAD_FACTOR, r -> {
-	});
+
+	/**
+	 * Regions are retained two regions beyond render distance, neighbors of visible regions are
+	 * created one beyond, and the camera may move a region while terrain iteration is running.
+	 */
+	private static final int RING_MARGIN = 3;
+
+	/**
+	 * Map slots visited per frame while pruning, so large maps are pruned over several frames.
+	 */
+	private static final int PRUNE_SLOTS_PER_FRAME = 1024;
+
+	/**
+	 * Lock-free lookup of regions near the camera. Replaced when render distance grows.
+	 */
+	private volatile RegionRing<BuiltRenderRegion> ring = new RegionRing<>(8 + RING_MARGIN);
+
+	/**
+	 * Regions that couldn't be stored in the ring because their slot was taken by a region that hasn't
+	 * been pruned yet, or because they are above or below the world. Rare and only used when non-empty.
+	 */
+	private final ConcurrentLong2ObjectMap<BuiltRenderRegion> overflowMap = new ConcurrentLong2ObjectMap<>(64, Hash.VERY_FAST_LOAD_FACTOR);
+
+	/**
+	 * Regions stored in the ring, for pruning.
+	 */
+	private BuiltRenderRegion[] ringRegions = new BuiltRenderRegion[4096];
+	private int ringRegionCount = 0;
+
+	/**
+	 * Serializes region creation, removal and ring replacement. Lookups never take it.
+	 * <p>
+	 * NB: creation can't be a compare-and-set on the ring alone. A region goes to the overflow map when
+	 * its ring slot holds another region, and if that slot were freed before the overflow insert, another
+	 * thread could put a second region for the same position in the ring. Nor can a losing thread simply
+	 * discard its region, because the constructor retains the chunk reference and closing must happen
+	 * on the render thread.
+	 */
+	private final Object writeLock = new Object();
+
+	private final ConcurrentLong2ObjectMap<RegionChunkReference> chunkRefMap = new ConcurrentLong2ObjectMap<>(2048, Hash.VERY_FAST_LOAD_FACTOR);
+
+	/** Moves overflow regions to the ring when their slot has been freed. Call while holding write lock. */
+	private final Predicate<BuiltRenderRegion> overflowPruner = r -> REGION_PRUNER.test(r) || addToRing(r);
+
+	/**
+	 * Prune passes still to do for each map: the pass in progress, if any, and at most one
+	 * more requested by camera movement since it started.
+	 */
+	private int overflowPrunePasses = 0;
+	private int chunkRefPrunePasses = 0;
+
 	private final CanvasWorldRenderer cwr;
 	private final int regionVersion = -1;
 	private int positionVersion;
@@ -54,53 +104,176 @@ public class RenderRegionStorage {
 	}
 
 	public void clear() {
-		regionMap.clear();
-		chunkRefMap.clear();
+		synchronized (writeLock) {
+			final BuiltRenderRegion[] ringRegions = this.ringRegions;
+			final int limit = ringRegionCount;
+
+			for (int i = 0; i < limit; ++i) {
+				ringRegions[i].close();
+			}
+
+			Arrays.fill(ringRegions, 0, limit, null);
+			ringRegionCount = 0;
+			ring.clear();
+
+			overflowMap.clear(BuiltRenderRegion::close);
+		}
+
+		chunkRefMap.clear(r -> { });
 	}
 
-	public void scheduleRebuild(int x, int y, int z, boolean urgent) {
+	/**
+	 * @param changedPos The changed block if the rebuild is for a single block change, else null.
+	 * @return The region marked for rebuild, or null if it doesn't exist.
+	 */
+	public @Nullable BuiltRenderRegion scheduleRebuild(int x, int y, int z, boolean urgent, @Nullable BlockPos changedPos) {
 		if ((y & 0xFFFFFF00) == 0) {
-			final BuiltRenderRegion region = regionMap.get(BlockPos.asLong(x & 0xFFFFFFF0, y & 0xFFFFFFF0, z & 0xFFFFFFF0));
+			final BuiltRenderRegion region = getRegionIfExists(x, y, z);
 
 			if (region != null) {
-				region.markForBuild(urgent);
+				region.markChangedBlock(changedPos);
+				final boolean merged = region.markForBlockUpdate(urgent);
+
+				if (ChunkRebuildCounters.ENABLED) {
+					ChunkRebuildCounters.countBlockUpdate(merged);
+				}
 			}
+
+			return region;
 		}
+
+		return null;
 	}
 
 	/**
 	 * Called each frame, but only updates when player has moved more than 1 block.
-	 * Uses position version to detect the movement.
+	 * Uses position version to detect the movement. Maps are then pruned over the
+	 * following frames.
 	 */
 	public void updateCameraDistance(Vec3d cameraPos, int positionVersion, int renderDistance) {
-		if (this.positionVersion == positionVersion) {
-			return;
+		if (ring.radius() < renderDistance + RING_MARGIN) {
+			resizeRing(renderDistance + RING_MARGIN);
+		}
+
+		if (this.positionVersion != positionVersion) {
+			this.positionVersion = positionVersion;
+			overflowPrunePasses = Math.min(overflowPrunePasses + 1, 2);
+			chunkRefPrunePasses = Math.min(chunkRefPrunePasses + 1, 2);
+			pruneRegions();
+		}
+
+		if (overflowPrunePasses != 0) {
+			synchronized (writeLock) {
+				if (overflowMap.pruneIncrementally(overflowPruner, PRUNE_SLOTS_PER_FRAME)) {
+					--overflowPrunePasses;
+				}
+			}
 		}
 
-		this.positionVersion = positionVersion;
+		if (chunkRefPrunePasses != 0 && chunkRefMap.pruneIncrementally(CHUNK_REF_PRUNER, PRUNE_SLOTS_PER_FRAME)) {
+			--chunkRefPrunePasses;
+		}
+	}
+
+	private void pruneRegions() {
+		synchronized (writeLock) {
+			final RegionRing<BuiltRenderRegion> ring = this.ring;
+			final BuiltRenderRegion[] ringRegions = this.ringRegions;
+			final int limit = ringRegionCount;
+			int count = 0;
+
+			for (int i = 0; i < limit; ++i) {
+				final BuiltRenderRegion r = ringRegions[i];
+
+				if (REGION_PRUNER.test(r)) {
+					final BlockPos origin = r.getOrigin();
+					ring.remove(origin.getX(), origin.getY(), origin.getZ(), r);
+				} else {
+					ringRegions[count++] = r;
+				}
+			}
+
+			Arrays.fill(ringRegions, count, limit, null);
+			ringRegionCount = count;
+		}
+	}
+
+	private void resizeRing(int radius) {
+		synchronized (writeLock) {
+			final RegionRing<BuiltRenderRegion> newRing = new RegionRing<>(radius);
+			final BuiltRenderRegion[] ringRegions = this.ringRegions;
+			final int limit = ringRegionCount;
+			int count = 0;
+
+			for (int i = 0; i < limit; ++i) {
+				final BuiltRenderRegion r = ringRegions[i];
+				final BlockPos origin = r.getOrigin();
+
+				if (newRing.tryPut(origin.getX(), origin.getY(), origin.getZ(), r)) {
+					ringRegions[count++] = r;
+				} else {
+					overflowMap.putIfAbsent(origin.asLong(), r);
+				}
+			}
+
+			Arrays.fill(ringRegions, count, limit, null);
+			ringRegionCount = count;
+			ring = newRing;
+		}
+	}
+
+	/**
+	 * Call while holding write lock.
+	 */
+	private boolean addToRing(BuiltRenderRegion r) {
+		final BlockPos origin = r.getOrigin();
 
-		regionMap.prune(REGION_PRUNER);
-		chunkRefMap.prune(CHUNK_REF_PRUNER);
+		if (RegionRing.isInRange(origin.getY()) && ring.tryPut(origin.getX(), origin.getY(), origin.getZ(), r)) {
+			if (ringRegionCount == ringRegions.length) {
+				ringRegions = Arrays.copyOf(ringRegions, ringRegionCount * 2);
+			}
+
+			ringRegions[ringRegionCount++] = r;
+			return true;
+		} else {
+			return false;
+		}
 	}
 
 	public int regionCount() {
-		return regionMap.size();
+		return ringRegionCount + overflowMap.size();
 	}
 
 	public int regionVersion() {
 		return regionVersion;
 	}
 
-	private BuiltRenderRegion getOrCreateRegion(long packedOriginPos) {
-		return regionMap.computeIfAbsent(packedOriginPos, k -> {
-			final BuiltRenderRegion result = new BuiltRenderRegion(cwr, chunkRef(k), k);
-			result.updateCameraDistance();
+	private BuiltRenderRegion createRegion(int x, int y, int z) {
+		synchronized (writeLock) {
+			// may have been created by another thread
+			BuiltRenderRegion result = getRegionIfExists(x, y, z);
+
+			if (result == null) {
+				final long packedOriginPos = BlockPos.asLong(x, y, z);
+				result = new BuiltRenderRegion(cwr, chunkRef(packedOriginPos), packedOriginPos);
+				result.updateCameraDistance();
+
+				if (!addToRing(result)) {
+					overflowMap.putIfAbsent(packedOriginPos, result);
+				}
+			}
+
 			return result;
-		});
+		}
 	}
 
 	public BuiltRenderRegion getOrCreateRegion(int x, int y, int z) {
-		return getOrCreateRegion(BlockPos.asLong(x & 0xFFFFFFF0, y & 0xFFFFFFF0, z & 0xFFFFFFF0));
+		x &= 0xFFFFFFF0;
+		y &= 0xFFFFFFF0;
+		z &= 0xFFFFFFF0;
+
+		final BuiltRenderRegion result = getRegionIfExists(x, y, z);
+		return result == null ? createRegion(x, y, z) : result;
 	}
 
 	public BuiltRenderRegion getOrCreateRegion(BlockPos pos) {
@@ -112,7 +285,19 @@ public class RenderRegionStorage {
 	}
 
 	public BuiltRenderRegion getRegionIfExists(int x, int y, int z) {
-		return regionMap.get(BlockPos.asLong(x & 0xFFFFFFF0, y & 0xFFFFFFF0, z & 0xFFFFFFF0));
+		x &= 0xFFFFFFF0;
+		y &= 0xFFFFFFF0;
+		z &= 0xFFFFFFF0;
+
+		if (RegionRing.isInRange(y)) {
+			final BuiltRenderRegion result = ring.get(x, y, z);
+
+			if (result != null || overflowMap.isEmpty()) {
+				return result;
+			}
+		}
+
+		return overflowMap.get(BlockPos.asLong(x, y, z));
 	}
 
 	public boolean wasSeen(int x, int y, int z) {
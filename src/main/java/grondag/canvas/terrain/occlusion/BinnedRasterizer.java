@@ -0,0 +1,317 @@
+/*
+ * Copyright 2019, 2020 grondag
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package grondag.canvas.terrain.occlusion;
+
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static grondag.canvas.terrain.occlusion.Constants.*;
+
+/**
+ * Defers occluder quads drawn to a {@link Rasterizer} and draws them in parallel.
+ * <p>
+ * Quads are binned by the horizontal band(s) of tiles they touch. Each band is one row
+ * of 8x8 tile blocks, which is a contiguous range of the tile array, so threads drawing
+ * different bands never write the same words.  Within a band, quads are drawn in
+ * submission order, but because coverage is only ever OR-ed into the tiles the result is
+ * bit-exact with single-threaded drawing regardless of how bands are scheduled.
+ * <p>
+ * Quads stay pending across tests that don't touch their bands, so a whole traversal level
+ * can accumulate before a flush.  Tests must call {@link #flushIfOverlaps(int, int, int, int)}
+ * first.  Tiles outside pending bands are already final and give the same answer as
+ * drawing everything immediately.
+ * <p>
+ * Not thread-safe for submission: enqueue and flush must happen on the thread that owns the target raster.
+ */
+class BinnedRasterizer {
+	static final int BAND_TILE_HEIGHT = 8;
+	static final int BAND_PIXEL_HEIGHT = BAND_TILE_HEIGHT * TILE_PIXEL_DIAMETER;
+	static final int BAND_PIXEL_SHIFT = Integer.bitCount(BAND_PIXEL_HEIGHT - 1);
+
+	/**
+	 * Set in band mask of quads drawn with {@link Rasterizer#drawOrdered} false.
+	 */
+	static final int UNORDERED_FLAG = 1 << 31;
+
+	/**
+	 * Four projected vertices, stored consecutively so they can be copied to V000..V011 in one pass.
+	 */
+	static final int QUAD_STRIDE = PROJECTED_VERTEX_STRIDE * 4;
+
+	/**
+	 * Below this many quads the hand-off costs more than it saves and quads are drawn on the calling thread.
+	 */
+	static final int MIN_PARALLEL_QUADS = 64;
+
+	private Rasterizer target;
+	private int bandCount;
+	private int allBands;
+	private int preciseHeight;
+	private int preciseHeightClamp;
+
+	/**
+	 * Replaced when the target changes. Helpers read it after the start signal, which orders the write.
+	 */
+	private Rasterizer[] helperRasters;
+	private final AtomicInteger nextBand = new AtomicInteger();
+	private final AtomicInteger activeHelpers = new AtomicInteger();
+	private final Semaphore startSignal = new Semaphore(0);
+	/**
+	 * Unparked by the last helper to finish. Written before the start signal, which orders the write.
+	 */
+	private Thread flushThread;
+
+	private int[] quads = new int[QUAD_STRIDE * 1024];
+	private int[] bandMasks = new int[1024];
+	private int quadCount = 0;
+	/**
+	 * Union of band masks of pending quads.
+	 */
+	private int pendingBands = 0;
+	private final int[] savedVertices = new int[V111 + PROJECTED_VERTEX_STRIDE - V000];
+
+	BinnedRasterizer(Rasterizer target, int helperCount) {
+		helperRasters = new Rasterizer[helperCount];
+		setTarget(target);
+
+		for (int i = 0; i < helperCount; i++) {
+			final int helperIndex = i;
+			final Thread thread = new Thread(() -> runHelper(helperIndex), "Canvas Occlusion Raster Thread - " + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Switches drawing to a different raster, possibly of a different size, without restarting helper threads.
+	 * Pending quads are dropped. Not valid during a flush.
+	 */
+	void setTarget(Rasterizer target) {
+		this.target = target;
+		target.binner = this;
+		bandCount = target.tileHeight / BAND_TILE_HEIGHT;
+		allBands = (1 << bandCount) - 1;
+		preciseHeight = target.preciseHeight;
+		preciseHeightClamp = target.preciseHeightClamp;
+
+		final int helperCount = helperRasters.length;
+		final Rasterizer[] newHelpers = new Rasterizer[helperCount];
+
+		for (int i = 0; i < helperCount; i++) {
+			newHelpers[i] = new Rasterizer(target);
+		}
+
+		helperRasters = newHelpers;
+		quadCount = 0;
+		pendingBands = 0;
+	}
+
+	/**
+	 * Helper count that leaves most cores for chunk building and stays below the band count
+	 * because the calling thread also draws.
+	 */
+	static int defaultHelperCount(Rasterizer target) {
+		return Math.min(target.tileHeight / BAND_TILE_HEIGHT - 1, Math.max(0, Runtime.getRuntime().availableProcessors() / 4));
+	}
+
+	int helperCount() {
+		return helperRasters.length;
+	}
+
+	int pendingQuadCount() {
+		return quadCount;
+	}
+
+	/**
+	 * Captures the projected vertices of a quad already set up in the target raster for later drawing.
+	 */
+	void enqueue(int v0, int v1, int v2, int v3) {
+		final int bands = bandMask(v0, v1, v2, v3);
+
+		if (bands == 0) {
+			return;
+		}
+
+		final int[] data = target.data;
+		final int index = quadCount;
+
+		if (index == bandMasks.length) {
+			bandMasks = Arrays.copyOf(bandMasks, index * 2);
+			quads = Arrays.copyOf(quads, index * 2 * QUAD_STRIDE);
+		}
+
+		final int[] quads = this.quads;
+		final int base = index * QUAD_STRIDE;
+		System.arraycopy(data, v0 + IDX_VERTEX_DATA, quads, base, PROJECTED_VERTEX_STRIDE);
+		System.arraycopy(data, v1 + IDX_VERTEX_DATA, quads, base + PROJECTED_VERTEX_STRIDE, PROJECTED_VERTEX_STRIDE);
+		System.arraycopy(data, v2 + IDX_VERTEX_DATA, quads, base + PROJECTED_VERTEX_STRIDE * 2, PROJECTED_VERTEX_STRIDE);
+		System.arraycopy(data, v3 + IDX_VERTEX_DATA, quads, base + PROJECTED_VERTEX_STRIDE * 3, PROJECTED_VERTEX_STRIDE);
+		bandMasks[index] = target.drawOrdered ? bands : (bands | UNORDERED_FLAG);
+		pendingBands |= bands;
+		quadCount = index + 1;
+	}
+
+	/**
+	 * Draws pending quads if any of them touch a band that a test of the given quad, already
+	 * set up in the target raster, could read.
+	 */
+	void flushIfOverlaps(int v0, int v1, int v2, int v3) {
+		if (quadCount != 0 && (bandMask(v0, v1, v2, v3) & pendingBands) != 0) {
+			// drawing reuses the vertex slots, so keep all box corners for this and later tests of the box
+			final int[] data = target.data;
+			System.arraycopy(data, V000 + IDX_VERTEX_DATA, savedVertices, 0, savedVertices.length);
+			flush();
+			System.arraycopy(savedVertices, 0, data, V000 + IDX_VERTEX_DATA, savedVertices.length);
+		}
+	}
+
+	/**
+	 * Bands of tile rows a quad set up in the target raster can touch, or zero if it is off screen.
+	 */
+	private int bandMask(int v0, int v1, int v2, int v3) {
+		final Rasterizer target = this.target;
+
+		if ((target.needsNearClip(v0) | target.needsNearClip(v1) | target.needsNearClip(v2) | target.needsNearClip(v3)) != 0) {
+			// clipped bounds aren't known until drawing - let every band check
+			return allBands;
+		} else {
+			final int[] data = target.data;
+			int minY = data[v0 + PV_PY + IDX_VERTEX_DATA];
+			int maxY = minY;
+			int y = data[v1 + PV_PY + IDX_VERTEX_DATA];
+			if (y < minY) minY = y; else if (y > maxY) maxY = y;
+			y = data[v2 + PV_PY + IDX_VERTEX_DATA];
+			if (y < minY) minY = y; else if (y > maxY) maxY = y;
+			y = data[v3 + PV_PY + IDX_VERTEX_DATA];
+			if (y < minY) minY = y; else if (y > maxY) maxY = y;
+
+			if (maxY <= 0 || minY >= preciseHeight) {
+				return 0;
+			}
+
+			// same clamping and rounding as Rasterizer.prepareBounds so band assignment matches drawn tiles
+			if (minY < 0) minY = 0;
+			if (maxY > preciseHeightClamp) maxY = preciseHeightClamp;
+			if (minY > preciseHeightClamp) minY = preciseHeightClamp;
+
+			final int minBand = ((minY + SCANT_PRECISE_PIXEL_CENTER) >> PRECISION_BITS) >> BAND_PIXEL_SHIFT;
+			final int maxBand = ((maxY + SCANT_PRECISE_PIXEL_CENTER) >> PRECISION_BITS) >> BAND_PIXEL_SHIFT;
+			return ((1 << (maxBand + 1)) - 1) & ~((1 << minBand) - 1);
+		}
+	}
+
+	/**
+	 * Drops pending quads without drawing them. Use when the target tiles are cleared.
+	 */
+	void clear() {
+		quadCount = 0;
+		pendingBands = 0;
+	}
+
+	/**
+	 * Draws all pending quads into the target tiles. Returns after all drawing is complete.
+	 */
+	void flush() {
+		final int count = quadCount;
+
+		if (count == 0) {
+			return;
+		}
+
+		final int helperCount = helperRasters.length;
+
+		final Rasterizer target = this.target;
+		final boolean drawOrdered = target.drawOrdered;
+
+		if (helperCount == 0 || count < MIN_PARALLEL_QUADS) {
+			final int[] quads = this.quads;
+			final int[] bandMasks = this.bandMasks;
+
+			for (int i = 0; i < count; i++) {
+				System.arraycopy(quads, i * QUAD_STRIDE, target.data, V000 + IDX_VERTEX_DATA, QUAD_STRIDE);
+				target.drawOrdered = (bandMasks[i] & UNORDERED_FLAG) == 0;
+				target.drawQuadImmediate(V000, V001, V010, V011);
+			}
+		} else {
+			flushThread = Thread.currentThread();
+			nextBand.set(0);
+			activeHelpers.set(helperCount);
+			startSignal.release(helperCount);
+
+			drawBands(target);
+
+			// helpers must all finish, not just the bands, because a late helper would read the next batch
+			while (activeHelpers.get() != 0) {
+				LockSupport.park(this);
+			}
+		}
+
+		target.drawOrdered = drawOrdered;
+		quadCount = 0;
+		pendingBands = 0;
+	}
+
+	private void runHelper(int helperIndex) {
+		while (true) {
+			try {
+				startSignal.acquire();
+			} catch (final InterruptedException e) {
+				// NOOP
+				continue;
+			}
+
+			try {
+				drawBands(helperRasters[helperIndex]);
+			} finally {
+				if (activeHelpers.decrementAndGet() == 0) {
+					LockSupport.unpark(flushThread);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Claims and draws bands until none remain. Called concurrently by the flushing thread and helpers.
+	 */
+	private void drawBands(Rasterizer raster) {
+		final int count = quadCount;
+		final int[] quads = this.quads;
+		final int[] bandMasks = this.bandMasks;
+		final int[] data = raster.data;
+		int band;
+
+		final int bandCount = this.bandCount;
+
+		while ((band = nextBand.getAndIncrement()) < bandCount) {
+			final int bandBit = 1 << band;
+			final int minTileOriginY = band << BAND_PIXEL_SHIFT;
+			final int maxTileOriginY = minTileOriginY + BAND_PIXEL_HEIGHT - TILE_PIXEL_DIAMETER;
+
+			for (int i = 0; i < count; i++) {
+				final int bandMask = bandMasks[i];
+
+				if ((bandMask & bandBit) != 0) {
+					System.arraycopy(quads, i * QUAD_STRIDE, data, V000 + IDX_VERTEX_DATA, QUAD_STRIDE);
+					raster.drawOrdered = (bandMask & UNORDERED_FLAG) == 0;
+					raster.drawQuadInBand(V000, V001, V010, V011, minTileOriginY, maxTileOriginY);
+				}
+			}
+		}
+	}
+}
@@ -18,7 +18,6 @@ package grondag.canvas.terrain.occlusion;
 
 import grondag.canvas.Configurator;
 import net.minecraft.util.math.Direction;
-import net.minecraft.util.math.MathHelper;
 
 public class Constants {
 
@@ -40,42 +39,20 @@ public class Constants {
 	static final int PRECISE_PIXEL_SIZE = 1 << PRECISION_BITS;
 	static final int PRECISE_PIXEL_CENTER = PRECISE_PIXEL_SIZE / 2;
 	static final int SCANT_PRECISE_PIXEL_CENTER = PRECISE_PIXEL_CENTER - 1;
-	static final int TILE_WIDTH = 128;
-	static final int TILE_WIDTH_BITS = Integer.bitCount(TILE_WIDTH - 1);
 	static final int TILE_ADDRESS_SHIFT_X = TILE_AXIS_SHIFT; // starts at 6 bits, but bottom 3 are part of low 6 bits
-	static final int PIXEL_WIDTH = TILE_WIDTH * TILE_PIXEL_DIAMETER;
-	static final int MAX_PIXEL_X = PIXEL_WIDTH - 1;
-	static final int HALF_PIXEL_WIDTH = PIXEL_WIDTH / 2;
-	static final int PRECISE_WIDTH = PIXEL_WIDTH << PRECISION_BITS;
-	static final int HALF_PRECISE_WIDTH = PRECISE_WIDTH / 2;
-	/**
-	 * clamp to this to ensure value + half pixel rounds down to last pixel
-	 */
-	static final int PRECISE_WIDTH_CLAMP = PRECISE_WIDTH - PRECISE_PIXEL_CENTER;
-	static final int TILE_HEIGHT = 64;
-	static final int TILE_HEIGHT_BITS = Integer.bitCount(TILE_HEIGHT - 1);
-	static final int TILE_ADDRESS_SHIFT_Y = TILE_ADDRESS_SHIFT_X + TILE_WIDTH_BITS - TILE_AXIS_SHIFT;
-	static final int PIXEL_HEIGHT = TILE_HEIGHT * TILE_PIXEL_DIAMETER;
-	static final int MAX_PIXEL_Y = PIXEL_HEIGHT - 1;
-	static final int HALF_PIXEL_HEIGHT = PIXEL_HEIGHT / 2;
-	static final int PRECISE_HEIGHT = PIXEL_HEIGHT << PRECISION_BITS;
-	static final int HALF_PRECISE_HEIGHT = PRECISE_HEIGHT / 2;
-	/**
-	 * clamp to this to ensure value + half pixel rounds down to last pixel
-	 */
-	static final int PRECISE_HEIGHT_CLAMP = PRECISE_HEIGHT - PRECISE_PIXEL_CENTER;
 	static final int TILE_INDEX_LOW_Y_MASK = TILE_PIXEL_INDEX_MASK << TILE_AXIS_SHIFT;
 	static final int TILE_INDEX_LOW_X_MASK = TILE_PIXEL_INDEX_MASK;
 	static final int TILE_INDEX_LOW_Y = 1 << TILE_AXIS_SHIFT;
-	static final int TILE_INDEX_HIGH_Y = TILE_INDEX_LOW_Y << TILE_ADDRESS_SHIFT_Y;
 	static final int TILE_INDEX_HIGH_X = TILE_INDEX_LOW_Y << TILE_ADDRESS_SHIFT_X;
-	static final int GUARD_SIZE = 512 << PRECISION_BITS;
-	static final int GUARD_MAX = PRECISE_WIDTH + GUARD_SIZE;
-	static final int GUARD_MIN = -GUARD_SIZE;
-	static final int CLIP_RANGE = PRECISE_WIDTH + GUARD_SIZE * 2;
-	static final int CLIP_MASK = ~(MathHelper.smallestEncompassingPowerOfTwo(CLIP_RANGE) - 1);
-	static final int TILE_COUNT = TILE_WIDTH * TILE_HEIGHT;
-	static final long[] EMPTY_BITS = new long[TILE_COUNT];
+	/**
+	 * Raster dimensions are set per instance - see {@link Rasterizer}. Widest and tallest supported raster in tiles.
+	 * Width is limited by the coverage bit rows and height by band masks and coverage blocks.
+	 */
+	static final int MAX_TILE_WIDTH = 128;
+	static final int MAX_TILE_HEIGHT = 224;
+	static final int MAX_TILE_COUNT = MAX_TILE_WIDTH * MAX_TILE_HEIGHT;
+	static final long[] EMPTY_BITS = new long[MAX_TILE_COUNT];
+	static final int[] EMPTY_DEPTHS = new int[MAX_TILE_COUNT];
 	static final int CAMERA_PRECISION_BITS = 12;
 	static final int CAMERA_PRECISION_UNITY = 1 << CAMERA_PRECISION_BITS;
 	static final int CAMERA_PRECISION_CHUNK_MAX = 18 * CAMERA_PRECISION_UNITY;
@@ -259,7 +236,7 @@ public class Constants {
 	static final int DY1 = DX1 + 1;
 	static final int VERTEX_DATA_LENGTH = DY1 + 1;
 	static final int IDX_EVENTS = 0;
-	static final int EVENTS_LENGTH = PIXEL_HEIGHT * 2;
+	static final int EVENTS_LENGTH = MAX_TILE_HEIGHT * TILE_PIXEL_DIAMETER * 2;
 	static final int IDX_VERTEX_DATA = IDX_EVENTS + EVENTS_LENGTH;
 
 	// Boumds of current triangle - pixel coordinates
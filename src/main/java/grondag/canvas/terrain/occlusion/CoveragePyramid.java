@@ -0,0 +1,202 @@
+/*
+ * Copyright 2019, 2020 grondag
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package grondag.canvas.terrain.occlusion;
+
+import static grondag.canvas.terrain.occlusion.Constants.*;
+
+/**
+ * Coarse "fully covered" levels maintained on top of raster tiles so that tests
+ * against covered areas can exit without computing edges.
+ * <p>
+ * Level one has a bit for each super tile - the 8x8 blocks of tiles that are
+ * contiguous in the tile array - giving a 16x8 grid for a 1024x512 raster. Level two
+ * summarizes 4x4 blocks of super tiles, giving a 4x2 grid at the same size.
+ * <p>
+ * Level one rows match the bands drawn by {@link BinnedRasterizer} so concurrent
+ * band drawing never writes the same row.  Level two spans bands and is
+ * rebuilt lazily on the thread doing the testing.
+ */
+class CoveragePyramid {
+	static final int SUPER_TILE_PIXEL_SHIFT = TILE_AXIS_SHIFT + TILE_AXIS_SHIFT;
+	static final int TILES_PER_SUPER_TILE = 64;
+	static final int MAX_SUPER_TILE_COUNT = MAX_TILE_COUNT >> 6;
+
+	static final int BLOCK_SHIFT = 2;
+
+	final int superTileWidth;
+	final int superTileHeight;
+	final int superTileCount;
+	private final int superTileWidthBits;
+	private final int superTileRowMask;
+	private final int blockWidth;
+	private final int blockHeight;
+
+	/**
+	 * Number of full tiles in each super tile.
+	 */
+	private final int[] fullTileCounts;
+
+	/**
+	 * Level one: one row of super tile bits per band.
+	 */
+	final int[] fullRows;
+
+	/**
+	 * Maximum depth of occluders drawn out of order in each row, as float bits.
+	 * Covered areas only hide tests at or beyond this depth.
+	 */
+	private final int[] unorderedRowDepths;
+
+	/**
+	 * Level two: bit per 4x4 block of super tiles, row-major.
+	 */
+	private int fullBlocks = 0;
+
+	/**
+	 * Benign race: only ever set true by drawing threads and read after drawing completes.
+	 */
+	private boolean blocksDirty = false;
+
+	/**
+	 * Dimensions are those of the raster in tiles. See {@link Rasterizer#Rasterizer(int, int)} for limits.
+	 */
+	CoveragePyramid(int tileWidth, int tileHeight) {
+		superTileWidth = tileWidth >> TILE_AXIS_SHIFT;
+		superTileHeight = tileHeight >> TILE_AXIS_SHIFT;
+		superTileCount = superTileWidth * superTileHeight;
+		superTileWidthBits = Integer.bitCount(superTileWidth - 1);
+		superTileRowMask = (1 << superTileWidth) - 1;
+		blockWidth = superTileWidth >> BLOCK_SHIFT;
+		blockHeight = superTileHeight >> BLOCK_SHIFT;
+
+		fullTileCounts = new int[superTileCount];
+		fullRows = new int[superTileHeight];
+		unorderedRowDepths = new int[superTileHeight];
+	}
+
+	/**
+	 * Call when a tile word transitions to fully covered.
+	 */
+	void onTileFull(int tileIndex) {
+		final int superIndex = tileIndex >> 6;
+
+		if (++fullTileCounts[superIndex] == TILES_PER_SUPER_TILE) {
+			fullRows[superIndex >> superTileWidthBits] |= 1 << (superIndex & (superTileWidth - 1));
+			blocksDirty = true;
+		}
+	}
+
+	/**
+	 * Call when an out-of-order draw sets the unordered depth of a tile.
+	 */
+	void onUnorderedDraw(int tileIndex, int depth) {
+		final int row = tileIndex >> (6 + superTileWidthBits);
+
+		if (depth > unorderedRowDepths[row]) {
+			unorderedRowDepths[row] = depth;
+		}
+	}
+
+	void clear() {
+		System.arraycopy(EMPTY_COUNTS, 0, fullTileCounts, 0, superTileCount);
+		System.arraycopy(EMPTY_COUNTS, 0, fullRows, 0, superTileHeight);
+		System.arraycopy(EMPTY_COUNTS, 0, unorderedRowDepths, 0, superTileHeight);
+		fullBlocks = 0;
+		blocksDirty = false;
+	}
+
+	void copyFrom(CoveragePyramid source) {
+		System.arraycopy(source.fullTileCounts, 0, fullTileCounts, 0, superTileCount);
+		System.arraycopy(source.fullRows, 0, fullRows, 0, superTileHeight);
+		System.arraycopy(source.unorderedRowDepths, 0, unorderedRowDepths, 0, superTileHeight);
+		fullBlocks = source.fullBlocks;
+		blocksDirty = source.blocksDirty;
+	}
+
+	private void updateBlocks() {
+		int blocks = 0;
+
+		for (int by = 0; by < blockHeight; by++) {
+			final int row = by << BLOCK_SHIFT;
+			final int rowBits = fullRows[row] & fullRows[row + 1] & fullRows[row + 2] & fullRows[row + 3];
+
+			for (int bx = 0; bx < blockWidth; bx++) {
+				if (((rowBits >> (bx << BLOCK_SHIFT)) & 0xF) == 0xF) {
+					blocks |= 1 << (by * blockWidth + bx);
+				}
+			}
+		}
+
+		fullBlocks = blocks;
+		blocksDirty = false;
+	}
+
+	/**
+	 * True when every pixel in the given inclusive pixel bounds is known to be covered
+	 * by occluders nearer than the given depth (float bits). False means unknown.
+	 * Bounds must be within the raster.
+	 */
+	boolean isCovered(int depth, int minPixelX, int minPixelY, int maxPixelX, int maxPixelY) {
+		final int sx0 = minPixelX >> SUPER_TILE_PIXEL_SHIFT;
+		final int sy0 = minPixelY >> SUPER_TILE_PIXEL_SHIFT;
+		final int sx1 = maxPixelX >> SUPER_TILE_PIXEL_SHIFT;
+		final int sy1 = maxPixelY >> SUPER_TILE_PIXEL_SHIFT;
+
+		for (int sy = sy0; sy <= sy1; sy++) {
+			if (depth < unorderedRowDepths[sy]) {
+				return false;
+			}
+		}
+
+		if (blocksDirty) {
+			updateBlocks();
+		}
+
+		final int fullBlocks = this.fullBlocks;
+
+		if (fullBlocks != 0) {
+			final int bx0 = sx0 >> BLOCK_SHIFT;
+			final int bx1 = sx1 >> BLOCK_SHIFT;
+			final int blockRowMask = ((1 << (bx1 + 1)) - 1) & ~((1 << bx0) - 1);
+			boolean covered = true;
+
+			for (int by = sy0 >> BLOCK_SHIFT, byLimit = sy1 >> BLOCK_SHIFT; by <= byLimit; by++) {
+				if (((fullBlocks >> (by * blockWidth)) & blockRowMask) != blockRowMask) {
+					covered = false;
+					break;
+				}
+			}
+
+			if (covered) {
+				return true;
+			}
+		}
+
+		final int rowMask = ((superTileRowMask << sx0) & superTileRowMask) & ~(superTileRowMask << (sx1 + 1));
+		final int[] fullRows = this.fullRows;
+
+		for (int sy = sy0; sy <= sy1; sy++) {
+			if ((fullRows[sy] & rowMask) != rowMask) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	static final int[] EMPTY_COUNTS = new int[MAX_SUPER_TILE_COUNT];
+}
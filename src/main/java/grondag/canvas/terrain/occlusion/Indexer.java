@@ -32,12 +32,15 @@ abstract class Indexer {
 		return z | ((x & 0b100) << 2) | ((y & 0b100) << 3);
 	}
 
-	static int tileIndex(int tileX, int tileY) {
-		return ((tileY & TILE_AXIS_MASK) << TILE_ADDRESS_SHIFT_Y) | ((tileX & TILE_AXIS_MASK) << TILE_ADDRESS_SHIFT_X) | ((tileY & TILE_PIXEL_INDEX_MASK) << TILE_AXIS_SHIFT) | (tileX & TILE_PIXEL_INDEX_MASK);
+	/**
+	 * Address shift of Y depends on raster width - see {@link Rasterizer#tileAddressShiftY}.
+	 */
+	static int tileIndex(int tileX, int tileY, int tileAddressShiftY) {
+		return ((tileY & TILE_AXIS_MASK) << tileAddressShiftY) | ((tileX & TILE_AXIS_MASK) << TILE_ADDRESS_SHIFT_X) | ((tileY & TILE_PIXEL_INDEX_MASK) << TILE_AXIS_SHIFT) | (tileX & TILE_PIXEL_INDEX_MASK);
 	}
 
-	static int lowIndexFromPixelXY(int x, int y) {
-		return tileIndex(x >>> TILE_AXIS_SHIFT, y >>> TILE_AXIS_SHIFT);
+	static int lowIndexFromPixelXY(int x, int y, int tileAddressShiftY) {
+		return tileIndex(x >>> TILE_AXIS_SHIFT, y >>> TILE_AXIS_SHIFT, tileAddressShiftY);
 	}
 
 	static int pixelIndex(int x, int y) {
@@ -91,6 +91,29 @@ public class Matrix4L {
 		a33 = other.a33;
 	}
 
+	/**
+	 * Writes values in row-major order without fixed-point scale.
+	 */
+	void copyTo(double[] target) {
+		final double scale = 1.0 / MATRIX_PRECISION_UNITY;
+		target[0] = a00 * scale;
+		target[1] = a01 * scale;
+		target[2] = a02 * scale;
+		target[3] = a03 * scale;
+		target[4] = a10 * scale;
+		target[5] = a11 * scale;
+		target[6] = a12 * scale;
+		target[7] = a13 * scale;
+		target[8] = a20 * scale;
+		target[9] = a21 * scale;
+		target[10] = a22 * scale;
+		target[11] = a23 * scale;
+		target[12] = a30 * scale;
+		target[13] = a31 * scale;
+		target[14] = a32 * scale;
+		target[15] = a33 * scale;
+	}
+
 	public boolean matches(Matrix4L other) {
 		return a00 == other.a00 &&
 				a01 == other.a01 &&
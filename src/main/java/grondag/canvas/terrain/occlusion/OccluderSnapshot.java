@@ -0,0 +1,45 @@
+/*
+ * Copyright 2019, 2020 grondag
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package grondag.canvas.terrain.occlusion;
+
+/**
+ * Copy of the terrain occluder as of a completed iteration, published by {@link TerrainIterator}
+ * for visibility tests on the render thread while the next iteration draws into the live occluder.
+ * <p>
+ * Content doesn't change while published. Tests still use scratch state in the occluder, so
+ * they must all happen on one thread - the render thread.
+ */
+public class OccluderSnapshot {
+	private final TerrainOccluder occluder = new TerrainOccluder();
+	private int version;
+
+	void update(TerrainOccluder source, int version) {
+		occluder.copyFrom(source);
+		this.version = version;
+	}
+
+	public TerrainOccluder occluder() {
+		return occluder;
+	}
+
+	/**
+	 * Increases with each published iteration.
+	 */
+	public int version() {
+		return version;
+	}
+}
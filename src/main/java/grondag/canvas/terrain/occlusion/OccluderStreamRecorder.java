@@ -0,0 +1,117 @@
+/*
+ * Copyright 2019, 2020 grondag
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package grondag.canvas.terrain.occlusion;
+
+import grondag.canvas.CanvasMod;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+import static grondag.canvas.terrain.occlusion.Constants.*;
+
+/**
+ * Records the projected quads drawn and tested in a {@link Rasterizer} during one terrain
+ * iteration, so real scenes can be replayed by tests and benchmarks without a running game.
+ * <p>
+ * File format is a gzipped sequence of big-endian ints: {@link #MAGIC}, {@link #VERSION}, tile width and
+ * tile height of the raster, then one record per call: a record type followed by
+ * {@link #QUAD_STRIDE} ints of projected vertex data for the four vertices in call order.
+ * Test records carry the result seen during capture.
+ * <p>
+ * Captures begin with an empty raster, so replaying all records into a cleared raster
+ * of the same size reproduces every test result.
+ */
+final class OccluderStreamRecorder {
+	static final int MAGIC = 0x4F434353;
+	static final int VERSION = 1;
+	static final int DRAW_ORDERED = 0;
+	static final int DRAW_UNORDERED = 1;
+	static final int TEST_HIDDEN = 2;
+	static final int TEST_VISIBLE = 3;
+	static final int QUAD_STRIDE = PROJECTED_VERTEX_STRIDE * 4;
+	static final int RECORD_STRIDE = QUAD_STRIDE + 1;
+
+	private final int tileWidth;
+	private final int tileHeight;
+	private int[] records = new int[RECORD_STRIDE * 4096];
+	private int size = 0;
+
+	OccluderStreamRecorder(Rasterizer raster) {
+		tileWidth = raster.tileWidth;
+		tileHeight = raster.tileHeight;
+	}
+
+	void recordDraw(Rasterizer raster, int v0, int v1, int v2, int v3) {
+		record(raster, raster.drawOrdered ? DRAW_ORDERED : DRAW_UNORDERED, v0, v1, v2, v3);
+	}
+
+	void recordTest(Rasterizer raster, boolean visible, int v0, int v1, int v2, int v3) {
+		record(raster, visible ? TEST_VISIBLE : TEST_HIDDEN, v0, v1, v2, v3);
+	}
+
+	private void record(Rasterizer raster, int type, int v0, int v1, int v2, int v3) {
+		assert raster.tileWidth == tileWidth && raster.tileHeight == tileHeight;
+
+		if (size + RECORD_STRIDE > records.length) {
+			records = Arrays.copyOf(records, records.length * 2);
+		}
+
+		final int[] data = raster.data;
+		final int[] records = this.records;
+		final int base = size;
+		records[base] = type;
+		System.arraycopy(data, v0 + IDX_VERTEX_DATA, records, base + 1, PROJECTED_VERTEX_STRIDE);
+		System.arraycopy(data, v1 + IDX_VERTEX_DATA, records, base + 1 + PROJECTED_VERTEX_STRIDE, PROJECTED_VERTEX_STRIDE);
+		System.arraycopy(data, v2 + IDX_VERTEX_DATA, records, base + 1 + PROJECTED_VERTEX_STRIDE * 2, PROJECTED_VERTEX_STRIDE);
+		System.arraycopy(data, v3 + IDX_VERTEX_DATA, records, base + 1 + PROJECTED_VERTEX_STRIDE * 3, PROJECTED_VERTEX_STRIDE);
+		size = base + RECORD_STRIDE;
+	}
+
+	/**
+	 * Writes the capture. Safe to call from another thread once recording has stopped.
+	 */
+	void save(File file) {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file))))) {
+			write(out);
+			CanvasMod.LOG.info(String.format("Saved %d occluder draws and tests to %s", size / RECORD_STRIDE, file.getName()));
+		} catch (final Exception e) {
+			CanvasMod.LOG.warn("Couldn't save occluder stream", e);
+		}
+	}
+
+	/**
+	 * Writes the capture without compression.
+	 */
+	void write(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(tileWidth);
+		out.writeInt(tileHeight);
+
+		final int[] records = this.records;
+		final int size = this.size;
+
+		for (int i = 0; i < size; i++) {
+			out.writeInt(records[i]);
+		}
+	}
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright 2019, 2020 grondag
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package grondag.canvas.terrain.occlusion;
+
+import static grondag.canvas.terrain.occlusion.Constants.*;
+
+/**
+ * Carries occlusion raster content into a new view when the camera turns without moving.
+ * <p>
+ * With the same eye position every pixel ray of the new view is a ray of the old view,
+ * so occluders along it and their order relative to later tests are unchanged.  The only
+ * loss is resampling: a new pixel is covered only if every old pixel its footprint overlaps
+ * was covered, and tiles whose footprint leaves the old view are marked invalid so that
+ * occluders touching them can be drawn again.
+ * <p>
+ * Depth stays conservative because the ratio of new to old view depth is constant along
+ * a ray and, being linear-fractional, has its maximum over a tile at one of the corners.
+ */
+class RasterReprojector {
+	private static final int PIXEL_CORNERS = TILE_PIXEL_DIAMETER + 1;
+
+	/**
+	 * Old views nearly perpendicular to a ray give unreliable results.
+	 */
+	private static final double MIN_OLD_W = 1e-4;
+
+	// dimensions of the raster this instance was created for
+	private final int tileWidth;
+	private final int tileHeight;
+	private final int tileCount;
+	private final int tileAddressShiftY;
+	private final int pixelWidth;
+	private final int pixelHeight;
+	private final int halfPixelWidth;
+	private final int halfPixelHeight;
+	private final int cornersX;
+	private final int cornersY;
+
+	private final long[] sourceTiles;
+	private final int[] sourceDepths;
+	private final int[] sourceUnorderedDepths;
+
+	private final double[] oldMatrix = new double[16];
+	private final double[] newMatrix = new double[16];
+	private final double[] inverse = new double[16];
+
+	/**
+	 * Maps new clip space to old clip space.
+	 */
+	private final double[] transform = new double[16];
+
+	// old pixel coordinates and new/old depth ratio of tile corners - NaN x when invalid
+	private final float[] cornerX;
+	private final float[] cornerY;
+	private final float[] cornerRatio;
+
+	// same for pixel corners within a single tile
+	private final float[] pixelCornerX = new float[PIXEL_CORNERS * PIXEL_CORNERS];
+	private final float[] pixelCornerY = new float[PIXEL_CORNERS * PIXEL_CORNERS];
+
+	/**
+	 * Super tiles, by row, with one or more tiles not fully represented by the last reprojection.
+	 */
+	private final int[] invalidRows;
+
+	private float outX, outY, outRatio;
+
+	/**
+	 * Only valid for rasters of the same size as the given one.
+	 */
+	RasterReprojector(Rasterizer raster) {
+		tileWidth = raster.tileWidth;
+		tileHeight = raster.tileHeight;
+		tileCount = raster.tileCount;
+		tileAddressShiftY = raster.tileAddressShiftY;
+		pixelWidth = raster.pixelWidth;
+		pixelHeight = raster.pixelHeight;
+		halfPixelWidth = raster.halfPixelWidth;
+		halfPixelHeight = raster.halfPixelHeight;
+		cornersX = tileWidth + 1;
+		cornersY = tileHeight + 1;
+
+		sourceTiles = new long[tileCount];
+		sourceDepths = new int[tileCount];
+		sourceUnorderedDepths = new int[tileCount];
+		cornerX = new float[cornersX * cornersY];
+		cornerY = new float[cornersX * cornersY];
+		cornerRatio = new float[cornersX * cornersY];
+		invalidRows = new int[raster.coverage.superTileHeight];
+	}
+
+	boolean isSameSize(Rasterizer raster) {
+		return tileWidth == raster.tileWidth && tileHeight == raster.tileHeight;
+	}
+
+	/**
+	 * Replaces raster content drawn with the old matrix by a conservative reprojection
+	 * into the new one. Both matrices must be camera-relative with the same eye position.
+	 * Returns false, leaving the raster cleared, if the view change can't be reprojected.
+	 */
+	boolean reproject(Rasterizer raster, Matrix4L oldMvp, Matrix4L newMvp) {
+		assert isSameSize(raster);
+		System.arraycopy(raster.tiles, 0, sourceTiles, 0, tileCount);
+		System.arraycopy(raster.depths, 0, sourceDepths, 0, tileCount);
+		System.arraycopy(raster.unorderedDepths, 0, sourceUnorderedDepths, 0, tileCount);
+		raster.clear();
+
+		oldMvp.copyTo(oldMatrix);
+		newMvp.copyTo(newMatrix);
+
+		if (!invert(newMatrix, inverse)) {
+			return false;
+		}
+
+		multiply(oldMatrix, inverse, transform);
+
+		for (int cy = 0; cy < cornersY; cy++) {
+			for (int cx = 0; cx < cornersX; cx++) {
+				final int i = cy * cornersX + cx;
+				transformPixel(cx << TILE_AXIS_SHIFT, cy << TILE_AXIS_SHIFT);
+				cornerX[i] = outX;
+				cornerY[i] = outY;
+				cornerRatio[i] = outRatio;
+			}
+		}
+
+		final long[] tiles = raster.tiles;
+		final int[] depths = raster.depths;
+		final int[] unorderedDepths = raster.unorderedDepths;
+		final CoveragePyramid coverage = raster.coverage;
+		final int[] invalidRows = this.invalidRows;
+		System.arraycopy(CoveragePyramid.EMPTY_COUNTS, 0, invalidRows, 0, invalidRows.length);
+
+		for (int ty = 0; ty < tileHeight; ty++) {
+			for (int tx = 0; tx < tileWidth; tx++) {
+				final int c00 = ty * cornersX + tx;
+				final int c10 = c00 + 1;
+				final int c01 = c00 + cornersX;
+				final int c11 = c01 + 1;
+
+				// extended by half a pixel to include the old pixel centers around the footprint - see reprojectPixels
+				final float x0 = Math.min(Math.min(cornerX[c00], cornerX[c10]), Math.min(cornerX[c01], cornerX[c11])) - 0.5f;
+				final float x1 = Math.max(Math.max(cornerX[c00], cornerX[c10]), Math.max(cornerX[c01], cornerX[c11])) + 0.5f;
+				final float y0 = Math.min(Math.min(cornerY[c00], cornerY[c10]), Math.min(cornerY[c01], cornerY[c11])) - 0.5f;
+				final float y1 = Math.max(Math.max(cornerY[c00], cornerY[c10]), Math.max(cornerY[c01], cornerY[c11])) + 0.5f;
+
+				// NaN comparisons are false, so invalid corners fail here
+				if (!(x0 >= 0 && y0 >= 0 && x1 < pixelWidth && y1 < pixelHeight)) {
+					invalidRows[ty >> TILE_AXIS_SHIFT] |= 1 << (tx >> TILE_AXIS_SHIFT);
+					continue;
+				}
+
+				final int minTileX = ((int) x0) >> TILE_AXIS_SHIFT;
+				final int minTileY = ((int) y0) >> TILE_AXIS_SHIFT;
+				final int maxTileX = ((int) x1) >> TILE_AXIS_SHIFT;
+				final int maxTileY = ((int) y1) >> TILE_AXIS_SHIFT;
+
+				long all = -1L;
+				long any = 0;
+				int maxDepth = 0;
+				int maxUnorderedDepth = 0;
+
+				for (int oy = minTileY; oy <= maxTileY; oy++) {
+					for (int ox = minTileX; ox <= maxTileX; ox++) {
+						final int oldIndex = Indexer.tileIndex(ox, oy, tileAddressShiftY);
+						final long word = sourceTiles[oldIndex];
+						all &= word;
+						any |= word;
+						maxDepth = Math.max(maxDepth, sourceDepths[oldIndex]);
+						maxUnorderedDepth = Math.max(maxUnorderedDepth, sourceUnorderedDepths[oldIndex]);
+					}
+				}
+
+				if (any == 0) {
+					continue;
+				}
+
+				final int tileIndex = Indexer.tileIndex(tx, ty, tileAddressShiftY);
+				final long word = all == -1L ? -1L : reprojectPixels(tx, ty);
+
+				if (word == 0) {
+					continue;
+				}
+
+				final float ratio = Math.max(Math.max(cornerRatio[c00], cornerRatio[c10]), Math.max(cornerRatio[c01], cornerRatio[c11]));
+				tiles[tileIndex] = word;
+				depths[tileIndex] = scaleDepth(maxDepth, ratio);
+
+				if (maxUnorderedDepth != 0) {
+					final int unorderedDepth = scaleDepth(maxUnorderedDepth, ratio);
+					unorderedDepths[tileIndex] = unorderedDepth;
+					coverage.onUnorderedDraw(tileIndex, unorderedDepth);
+				}
+
+				if (word == -1L) {
+					coverage.onTileFull(tileIndex);
+				}
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * True if no tile within the given pixel bounds was invalid in the last reprojection.
+	 * Bounds must be within the raster.
+	 */
+	boolean isValid(int minPixelX, int minPixelY, int maxPixelX, int maxPixelY) {
+		final int sx0 = minPixelX >> CoveragePyramid.SUPER_TILE_PIXEL_SHIFT;
+		final int sx1 = maxPixelX >> CoveragePyramid.SUPER_TILE_PIXEL_SHIFT;
+		final int rowMask = ((1 << (sx1 + 1)) - 1) & ~((1 << sx0) - 1);
+
+		for (int sy = minPixelY >> CoveragePyramid.SUPER_TILE_PIXEL_SHIFT, syLimit = maxPixelY >> CoveragePyramid.SUPER_TILE_PIXEL_SHIFT; sy <= syLimit; sy++) {
+			if ((invalidRows[sy] & rowMask) != 0) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * For tiles partially covered in the old view. Sets each pixel whose footprint only
+	 * overlaps covered old pixels, counting the footprint out to the old pixel centers
+	 * around it. Old pixels are covered when their center is, so the new pixel center
+	 * then lies among covered sample points instead of only within covered pixels
+	 * that an occluder edge may cross.
+	 */
+	private long reprojectPixels(int tileX, int tileY) {
+		final int baseX = tileX << TILE_AXIS_SHIFT;
+		final int baseY = tileY << TILE_AXIS_SHIFT;
+
+		for (int py = 0; py < PIXEL_CORNERS; py++) {
+			for (int px = 0; px < PIXEL_CORNERS; px++) {
+				final int i = py * PIXEL_CORNERS + px;
+				transformPixel(baseX + px, baseY + py);
+				pixelCornerX[i] = outX;
+				pixelCornerY[i] = outY;
+			}
+		}
+
+		long word = 0;
+
+		for (int py = 0; py < TILE_PIXEL_DIAMETER; py++) {
+			for (int px = 0; px < TILE_PIXEL_DIAMETER; px++) {
+				final int c00 = py * PIXEL_CORNERS + px;
+				final int c10 = c00 + 1;
+				final int c01 = c00 + PIXEL_CORNERS;
+				final int c11 = c01 + 1;
+
+				// tile corners were valid and homography preserves convexity, so pixel corners are too
+				final int x0 = (int) (Math.min(Math.min(pixelCornerX[c00], pixelCornerX[c10]), Math.min(pixelCornerX[c01], pixelCornerX[c11])) - 0.5f);
+				final int x1 = (int) (Math.max(Math.max(pixelCornerX[c00], pixelCornerX[c10]), Math.max(pixelCornerX[c01], pixelCornerX[c11])) + 0.5f);
+				final int y0 = (int) (Math.min(Math.min(pixelCornerY[c00], pixelCornerY[c10]), Math.min(pixelCornerY[c01], pixelCornerY[c11])) - 0.5f);
+				final int y1 = (int) (Math.max(Math.max(pixelCornerY[c00], pixelCornerY[c10]), Math.max(pixelCornerY[c01], pixelCornerY[c11])) + 0.5f);
+
+				if (isSourceCovered(x0, y0, x1, y1)) {
+					word |= 1L << Indexer.pixelIndex(px, py);
+				}
+			}
+		}
+
+		return word;
+	}
+
+	private boolean isSourceCovered(int x0, int y0, int x1, int y1) {
+		for (int y = y0; y <= y1; y++) {
+			for (int x = x0; x <= x1; x++) {
+				if ((sourceTiles[Indexer.lowIndexFromPixelXY(x, y, tileAddressShiftY)] & Indexer.pixelMask(x, y)) == 0) {
+					return false;
+				}
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Maps a pixel corner of the new view to old pixel coordinates.
+	 */
+	private void transformPixel(int pixelX, int pixelY) {
+		final double nx = (double) pixelX / halfPixelWidth - 1;
+		final double ny = (double) pixelY / halfPixelHeight - 1;
+		final double[] m = transform;
+
+		// any clip z works because the eye is shared - all points on the ray map to the same old pixel
+		final double x = m[0] * nx + m[1] * ny + m[2] * 0.5 + m[3];
+		final double y = m[4] * nx + m[5] * ny + m[6] * 0.5 + m[7];
+		final double w = m[12] * nx + m[13] * ny + m[14] * 0.5 + m[15];
+
+		if (w < MIN_OLD_W) {
+			outX = Float.NaN;
+			outY = Float.NaN;
+			outRatio = Float.NaN;
+		} else {
+			final double iw = 1.0 / w;
+			outX = (float) ((x * iw + 1) * halfPixelWidth);
+			outY = (float) ((y * iw + 1) * halfPixelHeight);
+			outRatio = (float) iw;
+		}
+	}
+
+	private static int scaleDepth(int depthBits, float ratio) {
+		return depthBits == 0 ? 0 : Float.floatToRawIntBits(Math.nextUp(Float.intBitsToFloat(depthBits) * ratio));
+	}
+
+	private static void multiply(double[] a, double[] b, double[] out) {
+		for (int row = 0; row < 4; row++) {
+			for (int col = 0; col < 4; col++) {
+				out[row * 4 + col] = a[row * 4] * b[col] + a[row * 4 + 1] * b[4 + col] + a[row * 4 + 2] * b[8 + col] + a[row * 4 + 3] * b[12 + col];
+			}
+		}
+	}
+
+	/**
+	 * Gauss-Jordan with partial pivoting. Returns false if singular.
+	 */
+	private static boolean invert(double[] m, double[] out) {
+		final double[] a = new double[32];
+
+		for (int row = 0; row < 4; row++) {
+			for (int col = 0; col < 4; col++) {
+				a[row * 8 + col] = m[row * 4 + col];
+				a[row * 8 + 4 + col] = row == col ? 1 : 0;
+			}
+		}
+
+		for (int col = 0; col < 4; col++) {
+			int pivot = col;
+
+			for (int row = col + 1; row < 4; row++) {
+				if (Math.abs(a[row * 8 + col]) > Math.abs(a[pivot * 8 + col])) {
+					pivot = row;
+				}
+			}
+
+			final double p = a[pivot * 8 + col];
+
+			if (Math.abs(p) < 1e-12) {
+				return false;
+			}
+
+			if (pivot != col) {
+				for (int k = 0; k < 8; k++) {
+					final double t = a[col * 8 + k];
+					a[col * 8 + k] = a[pivot * 8 + k];
+					a[pivot * 8 + k] = t;
+				}
+			}
+
+			for (int k = 0; k < 8; k++) {
+				a[col * 8 + k] /= p;
+			}
+
+			for (int row = 0; row < 4; row++) {
+				if (row != col) {
+					final double f = a[row * 8 + col];
+
+					if (f != 0) {
+						for (int k = 0; k < 8; k++) {
+							a[row * 8 + k] -= f * a[col * 8 + k];
+						}
+					}
+				}
+			}
+		}
+
+		for (int row = 0; row < 4; row++) {
+			System.arraycopy(a, row * 8 + 4, out, row * 4, 4);
+		}
+
+		return true;
+	}
+}
@@ -22,7 +22,6 @@ import grondag.canvas.Configurator;
 import org.apache.commons.lang3.StringUtils;
 
 import static grondag.canvas.terrain.occlusion.Constants.*;
-import static grondag.canvas.terrain.occlusion.Indexer.tileIndex;
 import static grondag.canvas.terrain.occlusion.Matrix4L.MATRIX_PRECISION_HALF;
 
 
@@ -32,10 +31,123 @@ import static grondag.canvas.terrain.occlusion.Matrix4L.MATRIX_PRECISION_HALF;
 class Rasterizer {
 	final Matrix4L mvpMatrix = new Matrix4L();
 	final int[] data = new int[DATA_LENGTH];
-	final long[] tiles = new long[TILE_COUNT];
+	final long[] tiles;
+	final CoveragePyramid coverage;
+
+	/**
+	 * Conservative maximum depth of occluders drawn in each tile, as float bits of clip-space w.
+	 * Every covered pixel has an occluder at or nearer than this depth.
+	 */
+	final int[] depths;
+
+	/**
+	 * Like {@link #depths} but only for occluders drawn out of near-to-far order. Zero if none.
+	 * Covered pixels drawn in order are guaranteed to be in front of anything tested later
+	 * and so only the out-of-order content needs to be compared to test depth.
+	 */
+	final int[] unorderedDepths;
+
+	/**
+	 * False when drawing occluders that may be farther than regions tested later.
+	 */
+	boolean drawOrdered = true;
+	private int drawDepth;
+	private int testDepth;
 	private final EventFiller[] EVENT_FILLERS = new EventFiller[0x1000];
 	long nextRasterOutputTime;
 
+	/**
+	 * When non-null, quad draws are deferred to the binner and drawn in parallel on flush.
+	 */
+	BinnedRasterizer binner = null;
+
+	/**
+	 * When non-null, quad draws and tests are recorded for offline replay.
+	 */
+	OccluderStreamRecorder recorder = null;
+
+	/**
+	 * Raster dimensions. Tiles are always 8x8 pixels, but the number of tiles is set at construction.
+	 */
+	final int tileWidth;
+	final int tileHeight;
+	final int tileCount;
+	final int tileAddressShiftY;
+	final int tileIndexHighY;
+	final int pixelWidth;
+	final int pixelHeight;
+	final int maxPixelY;
+	final int halfPixelWidth;
+	final int halfPixelHeight;
+	final int preciseWidth;
+	final int preciseHeight;
+	final int halfPreciseWidth;
+	final int halfPreciseHeight;
+
+	/**
+	 * clamp to these to ensure value + half pixel rounds down to last pixel
+	 */
+	final int preciseWidthClamp;
+	final int preciseHeightClamp;
+
+	/**
+	 * Width must be a power of two no greater than {@link Constants#MAX_TILE_WIDTH} and at least 8.
+	 * Height must be a multiple of 32 no greater than {@link Constants#MAX_TILE_HEIGHT}.
+	 */
+	Rasterizer(int tileWidth, int tileHeight) {
+		assert Integer.bitCount(tileWidth) == 1 && tileWidth >= 8 && tileWidth <= MAX_TILE_WIDTH;
+		assert (tileHeight & 31) == 0 && tileHeight > 0 && tileHeight <= MAX_TILE_HEIGHT;
+
+		this.tileWidth = tileWidth;
+		this.tileHeight = tileHeight;
+		tileCount = tileWidth * tileHeight;
+		tileAddressShiftY = TILE_ADDRESS_SHIFT_X + Integer.bitCount(tileWidth - 1) - TILE_AXIS_SHIFT;
+		tileIndexHighY = TILE_INDEX_LOW_Y << tileAddressShiftY;
+		pixelWidth = tileWidth * TILE_PIXEL_DIAMETER;
+		pixelHeight = tileHeight * TILE_PIXEL_DIAMETER;
+		maxPixelY = pixelHeight - 1;
+		halfPixelWidth = pixelWidth / 2;
+		halfPixelHeight = pixelHeight / 2;
+		preciseWidth = pixelWidth << PRECISION_BITS;
+		preciseHeight = pixelHeight << PRECISION_BITS;
+		halfPreciseWidth = preciseWidth / 2;
+		halfPreciseHeight = preciseHeight / 2;
+		preciseWidthClamp = preciseWidth - PRECISE_PIXEL_CENTER;
+		preciseHeightClamp = preciseHeight - PRECISE_PIXEL_CENTER;
+
+		tiles = new long[tileCount];
+		coverage = new CoveragePyramid(tileWidth, tileHeight);
+		depths = new int[tileCount];
+		unorderedDepths = new int[tileCount];
+	}
+
+	/**
+	 * For rasterizers that draw into tiles owned by another instance.
+	 */
+	Rasterizer(Rasterizer owner) {
+		tileWidth = owner.tileWidth;
+		tileHeight = owner.tileHeight;
+		tileCount = owner.tileCount;
+		tileAddressShiftY = owner.tileAddressShiftY;
+		tileIndexHighY = owner.tileIndexHighY;
+		pixelWidth = owner.pixelWidth;
+		pixelHeight = owner.pixelHeight;
+		maxPixelY = owner.maxPixelY;
+		halfPixelWidth = owner.halfPixelWidth;
+		halfPixelHeight = owner.halfPixelHeight;
+		preciseWidth = owner.preciseWidth;
+		preciseHeight = owner.preciseHeight;
+		halfPreciseWidth = owner.halfPreciseWidth;
+		halfPreciseHeight = owner.halfPreciseHeight;
+		preciseWidthClamp = owner.preciseWidthClamp;
+		preciseHeightClamp = owner.preciseHeightClamp;
+
+		tiles = owner.tiles;
+		coverage = owner.coverage;
+		depths = owner.depths;
+		unorderedDepths = owner.unorderedDepths;
+	}
+
 	{
 		EVENT_FILLERS[EVENT_0123_RRRR] = () -> {
 			populateLeftEvents();
@@ -477,28 +589,150 @@ class Rasterizer {
 
 	}
 
+	/**
+	 * Source must be the same size - see {@link #isSameSize(Rasterizer)}.
+	 */
 	final void copyFrom(Rasterizer source) {
+		assert isSameSize(source);
+
+		if (source.binner != null) {
+			source.binner.flush();
+		}
+
+		if (binner != null) {
+			binner.clear();
+		}
+
 		mvpMatrix.copyFrom(source.mvpMatrix);
 		System.arraycopy(source.data, 0, data, 0, DATA_LENGTH);
-		System.arraycopy(source.tiles, 0, tiles, 0, TILE_COUNT);
+		System.arraycopy(source.tiles, 0, tiles, 0, tileCount);
+		System.arraycopy(source.depths, 0, depths, 0, tileCount);
+		System.arraycopy(source.unorderedDepths, 0, unorderedDepths, 0, tileCount);
+		coverage.copyFrom(source.coverage);
+	}
+
+	final void clear() {
+		if (binner != null) {
+			binner.clear();
+		}
+
+		System.arraycopy(EMPTY_BITS, 0, tiles, 0, tileCount);
+		System.arraycopy(EMPTY_DEPTHS, 0, depths, 0, tileCount);
+		System.arraycopy(EMPTY_DEPTHS, 0, unorderedDepths, 0, tileCount);
+		coverage.clear();
 	}
 
 	final void drawQuad(int v0, int v1, int v2, int v3) {
+		if (recorder != null) {
+			recorder.recordDraw(this, v0, v1, v2, v3);
+		}
+
+		if (binner == null) {
+			drawQuadImmediate(v0, v1, v2, v3);
+		} else {
+			binner.enqueue(v0, v1, v2, v3);
+		}
+	}
+
+	final void drawQuadImmediate(int v0, int v1, int v2, int v3) {
+		final int boundsResult = prepareBounds(v0, v1, v2, v3);
+
+		if (boundsResult == BOUNDS_OUTSIDE_OR_TOO_SMALL) {
+			return;
+		}
+
+		// Don't draw single points
+		if ((data[IDX_MIN_PIX_X] == data[IDX_MAX_PIX_X] && data[IDX_MIN_PIX_Y] == data[IDX_MAX_PIX_Y])) {
+			return;
+		}
+
+		drawDepth = maxDepth(v0, v1, v2, v3);
+		drawQuad();
+	}
+
+	/**
+	 * Like {@link #drawQuadImmediate(int, int, int, int)} but only touches tile rows
+	 * within the given range of tile origins.  Rows outside the range are left for other threads.
+	 */
+	final void drawQuadInBand(int v0, int v1, int v2, int v3, int minBandTileOriginY, int maxBandTileOriginY) {
 		final int boundsResult = prepareBounds(v0, v1, v2, v3);
 
 		if (boundsResult == BOUNDS_OUTSIDE_OR_TOO_SMALL) {
 			return;
 		}
 
+		final int[] data = this.data;
+
 		// Don't draw single points
 		if ((data[IDX_MIN_PIX_X] == data[IDX_MAX_PIX_X] && data[IDX_MIN_PIX_Y] == data[IDX_MAX_PIX_Y])) {
 			return;
 		}
 
+		final int minTileOriginY = data[IDX_TILE_ORIGIN_Y];
+
+		if (minTileOriginY > maxBandTileOriginY || data[IDX_MAX_TILE_ORIGIN_Y] < minBandTileOriginY) {
+			return;
+		}
+
+		if (minTileOriginY < minBandTileOriginY) {
+			data[IDX_TILE_ORIGIN_Y] = minBandTileOriginY;
+			data[IDX_TILE_INDEX] = tileIndex(data[IDX_TILE_ORIGIN_X] >> TILE_AXIS_SHIFT, minBandTileOriginY >> TILE_AXIS_SHIFT);
+		}
+
+		if (data[IDX_MAX_TILE_ORIGIN_Y] > maxBandTileOriginY) {
+			data[IDX_MAX_TILE_ORIGIN_Y] = maxBandTileOriginY;
+		}
+
+		drawDepth = maxDepth(v0, v1, v2, v3);
 		drawQuad();
 	}
 
+	/**
+	 * Farthest depth of a quad as float bits. Any point on a planar quad,
+	 * clipped or not, is no farther than its farthest vertex.
+	 */
+	private int maxDepth(int v0, int v1, int v2, int v3) {
+		final int[] data = this.data;
+		final float w = Math.max(
+				Math.max(Float.intBitsToFloat(data[v0 + PV_W + IDX_VERTEX_DATA]), Float.intBitsToFloat(data[v1 + PV_W + IDX_VERTEX_DATA])),
+				Math.max(Float.intBitsToFloat(data[v2 + PV_W + IDX_VERTEX_DATA]), Float.intBitsToFloat(data[v3 + PV_W + IDX_VERTEX_DATA])));
+
+		return w > 0 ? Float.floatToRawIntBits(w) : 0;
+	}
+
+	/**
+	 * Nearest depth of a quad as float bits, or zero if any part may be at or behind the camera.
+	 */
+	private int minDepth(int v0, int v1, int v2, int v3) {
+		final int[] data = this.data;
+		final float w = Math.min(
+				Math.min(Float.intBitsToFloat(data[v0 + PV_W + IDX_VERTEX_DATA]), Float.intBitsToFloat(data[v1 + PV_W + IDX_VERTEX_DATA])),
+				Math.min(Float.intBitsToFloat(data[v2 + PV_W + IDX_VERTEX_DATA]), Float.intBitsToFloat(data[v3 + PV_W + IDX_VERTEX_DATA])));
+
+		return w > 0 ? Float.floatToRawIntBits(w) : 0;
+	}
+
 	boolean testQuad(int v0, int v1, int v2, int v3) {
+		if (binner != null) {
+			binner.flushIfOverlaps(v0, v1, v2, v3);
+		}
+
+		final boolean result = testQuadImmediate(v0, v1, v2, v3);
+
+		if (recorder != null) {
+			recorder.recordTest(this, result, v0, v1, v2, v3);
+		}
+
+		return result;
+	}
+
+	private boolean testQuadImmediate(int v0, int v1, int v2, int v3) {
+		testDepth = minDepth(v0, v1, v2, v3);
+
+		if (isQuadCovered(v0, v1, v2, v3)) {
+			return false;
+		}
+
 		final int boundsResult = prepareBounds(v0, v1, v2, v3);
 
 		if (boundsResult == BOUNDS_OUTSIDE_OR_TOO_SMALL) {
@@ -508,12 +742,62 @@ class Rasterizer {
 		if ((data[IDX_MIN_PIX_X] == data[IDX_MAX_PIX_X] && data[IDX_MIN_PIX_Y] == data[IDX_MAX_PIX_Y])) {
 			final int px = data[IDX_MIN_PIX_X];
 			final int py = data[IDX_MIN_PIX_Y];
-			return px >= 0 && py >= 0 && px < PIXEL_WIDTH && py < PIXEL_HEIGHT && testPixel(px, py);
+			return px >= 0 && py >= 0 && px < pixelWidth && py < pixelHeight
+					&& (testPixel(px, py) || testDepth < unorderedDepths[lowIndexFromPixelXY(px, py)]);
 		} else {
 			return testQuad();
 		}
 	}
 
+	/**
+	 * Checks screen bounds of an unclipped quad against the coverage pyramid.
+	 * Much cheaper than computing edges when the quad is behind covered areas.
+	 * Returns false when unknown or when the quad needs clipping.
+	 */
+	boolean isQuadCovered(int v0, int v1, int v2, int v3) {
+		if ((needsNearClip(v0) | needsNearClip(v1) | needsNearClip(v2) | needsNearClip(v3)) != 0) {
+			return false;
+		}
+
+		final int[] data = this.data;
+		int minX = data[v0 + PV_PX + IDX_VERTEX_DATA];
+		int maxX = minX;
+		int minY = data[v0 + PV_PY + IDX_VERTEX_DATA];
+		int maxY = minY;
+
+		int x = data[v1 + PV_PX + IDX_VERTEX_DATA];
+		if (x < minX) minX = x; else if (x > maxX) maxX = x;
+		x = data[v2 + PV_PX + IDX_VERTEX_DATA];
+		if (x < minX) minX = x; else if (x > maxX) maxX = x;
+		x = data[v3 + PV_PX + IDX_VERTEX_DATA];
+		if (x < minX) minX = x; else if (x > maxX) maxX = x;
+
+		int y = data[v1 + PV_PY + IDX_VERTEX_DATA];
+		if (y < minY) minY = y; else if (y > maxY) maxY = y;
+		y = data[v2 + PV_PY + IDX_VERTEX_DATA];
+		if (y < minY) minY = y; else if (y > maxY) maxY = y;
+		y = data[v3 + PV_PY + IDX_VERTEX_DATA];
+		if (y < minY) minY = y; else if (y > maxY) maxY = y;
+
+		// off screen - let normal path handle it
+		if (maxY <= 0 || minY >= preciseHeight || maxX <= 0 || minX >= preciseWidth) {
+			return false;
+		}
+
+		if (minX < 0) minX = 0;
+		if (minY < 0) minY = 0;
+		if (maxX > preciseWidthClamp) maxX = preciseWidthClamp;
+		if (maxY > preciseHeightClamp) maxY = preciseHeightClamp;
+		if (minX > preciseWidthClamp) minX = preciseWidthClamp;
+		if (minY > preciseHeightClamp) minY = preciseHeightClamp;
+
+		return coverage.isCovered(testDepth,
+				(minX + SCANT_PRECISE_PIXEL_CENTER) >> PRECISION_BITS,
+				(minY + SCANT_PRECISE_PIXEL_CENTER) >> PRECISION_BITS,
+				(maxX + SCANT_PRECISE_PIXEL_CENTER) >> PRECISION_BITS,
+				(maxY + SCANT_PRECISE_PIXEL_CENTER) >> PRECISION_BITS);
+	}
+
 	boolean testQuad() {
 		final int[] data = this.data;
 		final int minTileOriginX = data[IDX_MIN_TILE_ORIGIN_X];
@@ -553,14 +837,19 @@ class Rasterizer {
 	}
 
 	boolean testQuadInner() {
-		final long word = tiles[data[IDX_TILE_INDEX]];
+		final int tileIndex = data[IDX_TILE_INDEX];
+		final long word = tiles[tileIndex];
+		final boolean behind = testDepth >= unorderedDepths[tileIndex];
 
 		// nothing to test if fully occluded
-		if (word == -1L) {
+		if (word == -1L && behind) {
 			return false;
 		}
 
-		return (~word & computeTileCoverage()) != 0;
+		final long mask = computeTileCoverage();
+
+		// covered pixels may be farther than test quad if drawn out of order
+		return (~word & mask) != 0 || (!behind && mask != 0);
 	}
 
 	void drawQuad() {
@@ -600,8 +889,8 @@ class Rasterizer {
 	}
 
 	void drawQuadInner() {
-		assert data[IDX_TILE_ORIGIN_Y] < PIXEL_HEIGHT;
-		assert data[IDX_TILE_ORIGIN_X] < PIXEL_WIDTH;
+		assert data[IDX_TILE_ORIGIN_Y] < pixelHeight;
+		assert data[IDX_TILE_ORIGIN_X] < pixelWidth;
 		assert data[IDX_TILE_ORIGIN_X] >= 0;
 
 		final int tileIndex = data[IDX_TILE_INDEX];
@@ -610,8 +899,29 @@ class Rasterizer {
 
 		// nothing to do if fully occluded
 		if (word != -1L) {
-			word |= computeTileCoverage();
+			final long mask = computeTileCoverage();
+
+			if (mask == 0) {
+				return;
+			}
+
+			word |= mask;
 			tiles[tileIndex] = word;
+
+			final int drawDepth = this.drawDepth;
+
+			if (drawDepth > depths[tileIndex]) {
+				depths[tileIndex] = drawDepth;
+			}
+
+			if (!drawOrdered && drawDepth > unorderedDepths[tileIndex]) {
+				unorderedDepths[tileIndex] = drawDepth;
+				coverage.onUnorderedDraw(tileIndex, drawDepth);
+			}
+
+			if (word == -1L) {
+				coverage.onTileFull(tileIndex);
+			}
 		}
 	}
 
@@ -654,8 +964,8 @@ class Rasterizer {
 		final float w = (intW + (extW - intW) * wt);
 		final float iw = 1f / w;
 
-		data[IDX_CLIP_X] = Math.round(iw * x * HALF_PRECISE_WIDTH) + HALF_PRECISE_WIDTH;
-		data[IDX_CLIP_Y] = Math.round(iw * y * HALF_PRECISE_HEIGHT) + HALF_PRECISE_HEIGHT;
+		data[IDX_CLIP_X] = Math.round(iw * x * halfPreciseWidth) + halfPreciseWidth;
+		data[IDX_CLIP_Y] = Math.round(iw * y * halfPreciseHeight) + halfPreciseHeight;
 	}
 
 	int prepareBounds(int v0, int v1, int v2, int v3) {
@@ -785,15 +1095,15 @@ class Rasterizer {
 		if (dy0 < minY) minY = dy0;
 		else if (dy0 > maxY) maxY = dy0;
 
-		if (((maxY - 1) | (maxX - 1) | (PRECISE_HEIGHT - 1 - minY) | (PRECISE_WIDTH - 1 - minX)) < 0) {
+		if (((maxY - 1) | (maxX - 1) | (preciseHeight - 1 - minY) | (preciseWidth - 1 - minX)) < 0) {
 
 		}
 
-		if (maxY <= 0 || minY >= PRECISE_HEIGHT) {
+		if (maxY <= 0 || minY >= preciseHeight) {
 			return BOUNDS_OUTSIDE_OR_TOO_SMALL;
 		}
 
-		if (maxX <= 0 || minX >= PRECISE_WIDTH) {
+		if (maxX <= 0 || minX >= preciseWidth) {
 			return BOUNDS_OUTSIDE_OR_TOO_SMALL;
 		}
 
@@ -801,11 +1111,11 @@ class Rasterizer {
 			minX = 0;
 		}
 
-		if (maxX >= PRECISE_WIDTH_CLAMP) {
-			maxX = PRECISE_WIDTH_CLAMP;
+		if (maxX >= preciseWidthClamp) {
+			maxX = preciseWidthClamp;
 
-			if (minX > PRECISE_WIDTH_CLAMP) {
-				minX = PRECISE_WIDTH_CLAMP;
+			if (minX > preciseWidthClamp) {
+				minX = preciseWidthClamp;
 			}
 		}
 
@@ -813,11 +1123,11 @@ class Rasterizer {
 			minY = 0;
 		}
 
-		if (maxY >= PRECISE_HEIGHT_CLAMP) {
-			maxY = PRECISE_HEIGHT_CLAMP;
+		if (maxY >= preciseHeightClamp) {
+			maxY = preciseHeightClamp;
 
-			if (minY > PRECISE_HEIGHT_CLAMP) {
-				minY = PRECISE_HEIGHT_CLAMP;
+			if (minY > preciseHeightClamp) {
+				minY = preciseHeightClamp;
 			}
 		}
 
@@ -929,11 +1239,11 @@ class Rasterizer {
 		if (dy0 < minY) minY = dy0;
 		else if (dy0 > maxY) maxY = dy0;
 
-		if (maxY <= 0 || minY >= PRECISE_HEIGHT) {
+		if (maxY <= 0 || minY >= preciseHeight) {
 			return BOUNDS_OUTSIDE_OR_TOO_SMALL;
 		}
 
-		if (maxX <= 0 || minX >= PRECISE_WIDTH) {
+		if (maxX <= 0 || minX >= preciseWidth) {
 			return BOUNDS_OUTSIDE_OR_TOO_SMALL;
 		}
 
@@ -941,11 +1251,11 @@ class Rasterizer {
 			minX = 0;
 		}
 
-		if (maxX >= PRECISE_WIDTH_CLAMP) {
-			maxX = PRECISE_WIDTH_CLAMP;
+		if (maxX >= preciseWidthClamp) {
+			maxX = preciseWidthClamp;
 
-			if (minX > PRECISE_WIDTH_CLAMP) {
-				minX = PRECISE_WIDTH_CLAMP;
+			if (minX > preciseWidthClamp) {
+				minX = preciseWidthClamp;
 			}
 		}
 
@@ -953,11 +1263,11 @@ class Rasterizer {
 			minY = 0;
 		}
 
-		if (maxY >= PRECISE_HEIGHT_CLAMP) {
-			maxY = PRECISE_HEIGHT_CLAMP;
+		if (maxY >= preciseHeightClamp) {
+			maxY = preciseHeightClamp;
 
-			if (minY > PRECISE_HEIGHT_CLAMP) {
-				minY = PRECISE_HEIGHT_CLAMP;
+			if (minY > preciseHeightClamp) {
+				minY = preciseHeightClamp;
 			}
 		}
 
@@ -1067,11 +1377,11 @@ class Rasterizer {
 		else if (dy0 > maxY) maxY = dy0;
 
 
-		if (maxY <= 0 || minY >= PRECISE_HEIGHT) {
+		if (maxY <= 0 || minY >= preciseHeight) {
 			return BOUNDS_OUTSIDE_OR_TOO_SMALL;
 		}
 
-		if (maxX <= 0 || minX >= PRECISE_WIDTH) {
+		if (maxX <= 0 || minX >= preciseWidth) {
 			return BOUNDS_OUTSIDE_OR_TOO_SMALL;
 		}
 
@@ -1079,11 +1389,11 @@ class Rasterizer {
 			minX = 0;
 		}
 
-		if (maxX >= PRECISE_WIDTH_CLAMP) {
-			maxX = PRECISE_WIDTH_CLAMP;
+		if (maxX >= preciseWidthClamp) {
+			maxX = preciseWidthClamp;
 
-			if (minX > PRECISE_WIDTH_CLAMP) {
-				minX = PRECISE_WIDTH_CLAMP;
+			if (minX > preciseWidthClamp) {
+				minX = preciseWidthClamp;
 			}
 		}
 
@@ -1091,11 +1401,11 @@ class Rasterizer {
 			minY = 0;
 		}
 
-		if (maxY >= PRECISE_HEIGHT_CLAMP) {
-			maxY = PRECISE_HEIGHT_CLAMP;
+		if (maxY >= preciseHeightClamp) {
+			maxY = preciseHeightClamp;
 
-			if (minY > PRECISE_HEIGHT_CLAMP) {
-				minY = PRECISE_HEIGHT_CLAMP;
+			if (minY > preciseHeightClamp) {
+				minY = preciseHeightClamp;
 			}
 		}
 
@@ -1198,12 +1508,12 @@ class Rasterizer {
 		if (dy0 < minY) minY = dy0;
 		else if (dy0 > maxY) maxY = dy0;
 
-		if (maxY <= 0 || minY >= PRECISE_HEIGHT) {
+		if (maxY <= 0 || minY >= preciseHeight) {
 			return BOUNDS_OUTSIDE_OR_TOO_SMALL;
 		}
 
 
-		if (maxX <= 0 || minX >= PRECISE_WIDTH) {
+		if (maxX <= 0 || minX >= preciseWidth) {
 			return BOUNDS_OUTSIDE_OR_TOO_SMALL;
 		}
 
@@ -1211,11 +1521,11 @@ class Rasterizer {
 			minX = 0;
 		}
 
-		if (maxX >= PRECISE_WIDTH_CLAMP) {
-			maxX = PRECISE_WIDTH_CLAMP;
+		if (maxX >= preciseWidthClamp) {
+			maxX = preciseWidthClamp;
 
-			if (minX > PRECISE_WIDTH_CLAMP) {
-				minX = PRECISE_WIDTH_CLAMP;
+			if (minX > preciseWidthClamp) {
+				minX = preciseWidthClamp;
 			}
 		}
 
@@ -1223,11 +1533,11 @@ class Rasterizer {
 			minY = 0;
 		}
 
-		if (maxY >= PRECISE_HEIGHT_CLAMP) {
-			maxY = PRECISE_HEIGHT_CLAMP;
+		if (maxY >= preciseHeightClamp) {
+			maxY = preciseHeightClamp;
 
-			if (minY > PRECISE_HEIGHT_CLAMP) {
-				minY = PRECISE_HEIGHT_CLAMP;
+			if (minY > preciseHeightClamp) {
+				minY = preciseHeightClamp;
 			}
 		}
 
@@ -1299,7 +1609,7 @@ class Rasterizer {
 		if (position == EDGE_TOP) {
 			final int py = ((y0In + SCANT_PRECISE_PIXEL_CENTER) >> PRECISION_BITS) + 1;
 
-			if (py == MAX_PIXEL_Y) return;
+			if (py == maxPixelY) return;
 
 			final int y1 = data[IDX_MAX_TILE_ORIGIN_Y] + 7;
 			final int start = IDX_EVENTS + (py < 0 ? 0 : (py << 1));
@@ -1308,7 +1618,7 @@ class Rasterizer {
 			assert limit < EVENTS_LENGTH + IDX_EVENTS;
 
 			for (int y = start; y <= limit; ) {
-				data[y++] = PIXEL_WIDTH;
+				data[y++] = pixelWidth;
 				data[y++] = -1;
 			}
 		} else if (position == EDGE_BOTTOM) {
@@ -1318,12 +1628,12 @@ class Rasterizer {
 
 			final int y0 = data[IDX_MIN_PIX_Y] & TILE_AXIS_MASK;
 			final int start = IDX_EVENTS + (y0 << 1);
-			final int limit = IDX_EVENTS + (py > MAX_PIXEL_Y ? (MAX_PIXEL_Y << 1) : (py << 1));
+			final int limit = IDX_EVENTS + (py > maxPixelY ? (maxPixelY << 1) : (py << 1));
 
 			assert limit < EVENTS_LENGTH + IDX_EVENTS;
 
 			for (int y = start; y < limit; ) {
-				data[y++] = PIXEL_WIDTH;
+				data[y++] = pixelWidth;
 				data[y++] = -1;
 			}
 		} else {
@@ -1385,7 +1695,7 @@ class Rasterizer {
 
 		// difference from left: is high index in pairs
 		for (int y = (y0 << 1) + 1; y <= limit; y += 2) {
-			data[IDX_EVENTS + y] = PIXEL_WIDTH;
+			data[IDX_EVENTS + y] = pixelWidth;
 		}
 	}
 
@@ -1970,22 +2280,30 @@ class Rasterizer {
 	//	}
 
 	void setupVertex(final int baseIndex, final int x, final int y, final int z) {
-		final int[] data = this.data;
 		final Matrix4L mvpMatrix = this.mvpMatrix;
 
-		final float tx = mvpMatrix.transformVec4X(x, y, z) * Matrix4L.FLOAT_CONVERSION;
-		final float ty = mvpMatrix.transformVec4Y(x, y, z) * Matrix4L.FLOAT_CONVERSION;
-		final float w = mvpMatrix.transformVec4W(x, y, z) * Matrix4L.FLOAT_CONVERSION;
+		setupVertex(baseIndex,
+				mvpMatrix.transformVec4X(x, y, z) * Matrix4L.FLOAT_CONVERSION,
+				mvpMatrix.transformVec4Y(x, y, z) * Matrix4L.FLOAT_CONVERSION,
+				mvpMatrix.transformVec4Z(x, y, z) * Matrix4L.FLOAT_CONVERSION,
+				mvpMatrix.transformVec4W(x, y, z) * Matrix4L.FLOAT_CONVERSION);
+	}
+
+	/**
+	 * For vertices already transformed to clip space.
+	 */
+	void setupVertex(final int baseIndex, final float tx, final float ty, final float tz, final float w) {
+		final int[] data = this.data;
 
 		data[baseIndex + PV_X + IDX_VERTEX_DATA] = Float.floatToRawIntBits(tx);
 		data[baseIndex + PV_Y + IDX_VERTEX_DATA] = Float.floatToRawIntBits(ty);
-		data[baseIndex + PV_Z + IDX_VERTEX_DATA] = Float.floatToRawIntBits(mvpMatrix.transformVec4Z(x, y, z) * Matrix4L.FLOAT_CONVERSION);
+		data[baseIndex + PV_Z + IDX_VERTEX_DATA] = Float.floatToRawIntBits(tz);
 		data[baseIndex + PV_W + IDX_VERTEX_DATA] = Float.floatToRawIntBits(w);
 
 		if (w != 0) {
 			final float iw = 1f / w;
-			final int px = Math.round(tx * iw * HALF_PRECISE_WIDTH) + HALF_PRECISE_WIDTH;
-			final int py = Math.round(ty * iw * HALF_PRECISE_HEIGHT) + HALF_PRECISE_HEIGHT;
+			final int px = Math.round(tx * iw * halfPreciseWidth) + halfPreciseWidth;
+			final int py = Math.round(ty * iw * halfPreciseHeight) + halfPreciseHeight;
 
 			data[baseIndex + PV_PX + IDX_VERTEX_DATA] = px;
 			data[baseIndex + PV_PY + IDX_VERTEX_DATA] = py;
@@ -2017,7 +2335,7 @@ class Rasterizer {
 		}
 
 		assert data[IDX_TILE_INDEX] == tileIndex(data[IDX_TILE_ORIGIN_X] >> TILE_AXIS_SHIFT, data[IDX_TILE_ORIGIN_Y] >> TILE_AXIS_SHIFT);
-		assert data[IDX_TILE_ORIGIN_X] < PIXEL_WIDTH;
+		assert data[IDX_TILE_ORIGIN_X] < pixelWidth;
 	}
 
 	void moveTileLeft() {
@@ -2038,13 +2356,13 @@ class Rasterizer {
 		data[IDX_TILE_ORIGIN_Y] += 8;
 
 		if ((data[IDX_TILE_INDEX] & TILE_INDEX_LOW_Y_MASK) == TILE_INDEX_LOW_Y_MASK) {
-			data[IDX_TILE_INDEX] = (data[IDX_TILE_INDEX] & ~TILE_INDEX_LOW_Y_MASK) + TILE_INDEX_HIGH_Y;
+			data[IDX_TILE_INDEX] = (data[IDX_TILE_INDEX] & ~TILE_INDEX_LOW_Y_MASK) + tileIndexHighY;
 		} else {
 			data[IDX_TILE_INDEX] += TILE_INDEX_LOW_Y;
 		}
 
 		assert data[IDX_TILE_INDEX] == tileIndex(data[IDX_TILE_ORIGIN_X] >> TILE_AXIS_SHIFT, data[IDX_TILE_ORIGIN_Y] >> TILE_AXIS_SHIFT);
-		assert data[IDX_TILE_ORIGIN_Y] < PIXEL_HEIGHT;
+		assert data[IDX_TILE_ORIGIN_Y] < pixelHeight;
 	}
 
 	void pushTile() {
@@ -2202,18 +2520,39 @@ class Rasterizer {
 			return false;
 		}
 
-		final int px = (int) (HALF_PIXEL_WIDTH + (MATRIX_PRECISION_HALF + HALF_PIXEL_WIDTH * mvpMatrix.transformVec4X(x, y, z)) / w);
-		final int py = (int) (HALF_PIXEL_HEIGHT + (MATRIX_PRECISION_HALF + HALF_PIXEL_HEIGHT * mvpMatrix.transformVec4Y(x, y, z)) / w);
+		final int px = (int) (halfPixelWidth + (MATRIX_PRECISION_HALF + halfPixelWidth * mvpMatrix.transformVec4X(x, y, z)) / w);
+		final int py = (int) (halfPixelHeight + (MATRIX_PRECISION_HALF + halfPixelHeight * mvpMatrix.transformVec4Y(x, y, z)) / w);
+
+		return px >= 0 && py >= 0 && px < pixelWidth && py < pixelHeight && testPixel(px, py);
+	}
 
-		return px >= 0 && py >= 0 && px < PIXEL_WIDTH && py < PIXEL_HEIGHT && testPixel(px, py);
+	final boolean isSameSize(Rasterizer other) {
+		return tileWidth == other.tileWidth && tileHeight == other.tileHeight;
+	}
+
+	final int tileIndex(int tileX, int tileY) {
+		return Indexer.tileIndex(tileX, tileY, tileAddressShiftY);
+	}
+
+	final int lowIndexFromPixelXY(int x, int y) {
+		return Indexer.lowIndexFromPixelXY(x, y, tileAddressShiftY);
 	}
 
 	boolean testPixel(int x, int y) {
-		return (tiles[Indexer.lowIndexFromPixelXY(x, y)] & (1L << (Indexer.pixelIndex(x, y)))) == 0;
+		return (tiles[lowIndexFromPixelXY(x, y)] & (1L << (Indexer.pixelIndex(x, y)))) == 0;
 	}
 
 	void drawPixel(int x, int y) {
-		tiles[Indexer.lowIndexFromPixelXY(x, y)] |= (1L << (Indexer.pixelIndex(x, y)));
+		final int tileIndex = lowIndexFromPixelXY(x, y);
+		final long word = tiles[tileIndex];
+
+		if (word != -1L) {
+			tiles[tileIndex] = word | (1L << (Indexer.pixelIndex(x, y)));
+
+			if (tiles[tileIndex] == -1L) {
+				coverage.onTileFull(tileIndex);
+			}
+		}
 	}
 
 	@FunctionalInterface
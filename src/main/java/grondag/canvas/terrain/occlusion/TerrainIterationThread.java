@@ -0,0 +1,72 @@
+/*
+ * Copyright 2019, 2020 grondag
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package grondag.canvas.terrain.occlusion;
+
+import grondag.canvas.CanvasMod;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs terrain iteration on its own thread so that visibility updates are never
+ * queued behind region builds, which can occupy every build worker for several frames.
+ *
+ * <p>There is no completion callback. The iterator state is the handoff: the render thread
+ * sees {@link TerrainIterator#COMPLETE} or {@link TerrainIterator#SUSPENDED} on the first
+ * frame after the thread publishes it.
+ *
+ * <p>Sleeps when there is no iteration to run, so costs nothing while the camera is still.
+ */
+public class TerrainIterationThread implements Runnable {
+	private final AtomicReference<TerrainIterator> pending = new AtomicReference<>();
+	private Thread thread;
+
+	/**
+	 * Render thread only. At most one iteration can be pending or running.
+	 */
+	public void execute(TerrainIterator iterator) {
+		final boolean queued = pending.compareAndSet(null, iterator);
+		assert queued : "Terrain iteration submitted while another is pending";
+
+		if (thread == null) {
+			thread = new Thread(this, "Canvas Terrain Iteration Thread");
+			thread.setDaemon(true);
+			thread.start();
+		} else {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			final TerrainIterator iterator = pending.getAndSet(null);
+
+			if (iterator == null) {
+				// spurious wake-ups only cost an extra check
+				LockSupport.park(this);
+				continue;
+			}
+
+			try {
+				iterator.accept(null);
+			} catch (final Exception e) {
+				CanvasMod.LOG.error("Unhandled error during terrain iteration. Impact unknown.", e);
+			}
+		}
+	}
+}
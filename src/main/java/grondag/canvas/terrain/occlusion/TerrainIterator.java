@@ -21,16 +21,22 @@ import grondag.canvas.apiimpl.rendercontext.TerrainRenderContext;
 import grondag.canvas.render.CanvasFrustum;
 import grondag.canvas.render.CanvasWorldRenderer;
 import grondag.canvas.terrain.BuiltRenderRegion;
+import grondag.canvas.terrain.ChunkRenderExecutor;
 import grondag.canvas.terrain.RegionData;
 import grondag.canvas.terrain.RenderRegionStorage;
 import grondag.canvas.terrain.occlusion.region.OcclusionRegion;
+import grondag.canvas.terrain.occlusion.region.PackedBox;
 import grondag.fermion.sc.unordered.SimpleUnorderedArrayList;
 import grondag.fermion.varia.Useful;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.Vec3i;
 
 import javax.annotation.Nullable;
+import java.util.Iterator;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.Consumer;
 
 public class TerrainIterator implements Consumer<TerrainRenderContext> {
@@ -38,11 +44,16 @@ public class TerrainIterator implements Consumer<TerrainRenderContext> {
 	public static final int READY = 1;
 	public static final int RUNNING = 2;
 	public static final int COMPLETE = 3;
+	/** Out of time before finishing.  Regions found so far can be drawn and {@link #accept} continues the iteration. */
+	public static final int SUSPENDED = 4;
+	/** Suspended iteration that will continue when {@link #accept} is next called. */
+	public static final int RESUMING = 5;
 	public final SimpleUnorderedArrayList<BuiltRenderRegion> updateRegions = new SimpleUnorderedArrayList<>();
 	public final BuiltRenderRegion[] visibleRegions = new BuiltRenderRegion[CanvasWorldRenderer.MAX_REGION_COUNT];
 	private final SimpleUnorderedArrayList<BuiltRenderRegion> regionListA = new SimpleUnorderedArrayList<>();
 	private final SimpleUnorderedArrayList<BuiltRenderRegion> regionListB = new SimpleUnorderedArrayList<>();
 	private final CanvasFrustum frustum = new CanvasFrustum();
+	private final CanvasWorldRenderer cwr;
 	private final RenderRegionStorage renderRegionStorage;
 	private final TerrainOccluder terrainOccluder;
 	private final AtomicInteger state = new AtomicInteger(IDLE);
@@ -53,7 +64,68 @@ public class TerrainIterator implements Consumer<TerrainRenderContext> {
 	private boolean chunkCullingEnabled = true;
 	private volatile boolean cancelled = false;
 
+	/**
+	 * Double buffer of occluder copies for render thread tests. The buffer written at the end of an
+	 * iteration is never the published one, and a new iteration can only start after the render thread
+	 * calls {@link #prepare}, so a snapshot obtained during a frame is not overwritten until after
+	 * that frame's setup. Writes and the swap happen on the iterating thread.
+	 */
+	private final OccluderSnapshot[] snapshots = {new OccluderSnapshot(), new OccluderSnapshot()};
+	private final AtomicReference<OccluderSnapshot> publishedSnapshot = new AtomicReference<>();
+	private int snapshotVersion = 0;
+
+	// min-heap of pre-pass candidates: high bits are screen area estimate, low bits index the box arrays
+	private long[] prepassHeap = new long[64];
+	private int[] prepassBoxes = new int[64];
+	private BuiltRenderRegion[] prepassRegions = new BuiltRenderRegion[64];
+
+	// results of frustum and build checks for each region in the current level, by level index
+	private int[][] levelVisData = new int[1024][];
+	private byte[] levelFlags = new byte[1024];
+	private static final byte FLAG_NEEDS_UPDATE = 1;
+	private static final byte FLAG_DEFERRED = 2;
+
+	private boolean incremental;
+	/** Advanced by every iteration, full or incremental. */
+	private int iterationIndex;
+	private final SimpleUnorderedArrayList<BuiltRenderRegion> changedRegions = new SimpleUnorderedArrayList<>();
+
+	/**
+	 * Regions in view and render distance that couldn't be visited because neighbor chunks weren't loaded.
+	 * Nothing signals when that changes, so incremental iterations revisit them.
+	 */
+	private final SimpleUnorderedArrayList<BuiltRenderRegion> deferredRegions = new SimpleUnorderedArrayList<>();
+
+	// Levels at least this large are checked in parallel when enabled. Smaller levels aren't worth the handoff.
+	private static final int PARALLEL_LEVEL_MIN = 512;
+	private static final int PARALLEL_STRIPE = 128;
+
+	// State of parallel level checks. Level and size are published by the volatile write of the generation,
+	// which is odd while a level is open. Helpers still queued when a level closes serve the next level.
+	private final AtomicInteger levelCursor = new AtomicInteger();
+	private final AtomicInteger levelHelpers = new AtomicInteger();
+	private final AtomicInteger queuedLevelHelpers = new AtomicInteger();
+	private volatile int levelGeneration;
+	private SimpleUnorderedArrayList<BuiltRenderRegion> parallelLevel;
+	private int parallelLevelSize;
+	// unparked by the last helper to finish, written before the level opens
+	private Thread levelThread;
+
+	// state kept between time slices
+	private SimpleUnorderedArrayList<BuiltRenderRegion> currentLevel = regionListA;
+	private SimpleUnorderedArrayList<BuiltRenderRegion> nextLevel = regionListB;
+	/** Index of the next region to visit in the current level.  Levels are visited from the end. */
+	private int levelIndex;
+	/** True if the current level has been checked and is being visited. */
+	private boolean levelChecked;
+	private int foundRegionCount;
+	private int iterationOccluderVersion;
+	private boolean redrawOccluders;
+	/** Time spent iterating, excluding time suspended. */
+	private long activeNanos;
+
 	public TerrainIterator(CanvasWorldRenderer cwr) {
+		this.cwr = cwr;
 		renderRegionStorage = cwr.regionStorage();
 		terrainOccluder = cwr.terrainOccluder;
 	}
@@ -65,7 +137,33 @@ public class TerrainIterator implements Consumer<TerrainRenderContext> {
 		this.frustum.copy(frustum);
 		this.renderDistance = renderDistance;
 		this.chunkCullingEnabled = chunkCullingEnabled;
+		incremental = false;
+
+		state.set(READY);
+		cancelled = false;
+	}
+
+	/**
+	 * Prepares an iteration that only revisits regions with changed build data and regions that
+	 * become reachable through them. Newly visible regions are added to those of the last iteration.
+	 * Only valid when an iteration completed since the last full iteration was prepared and
+	 * the view and occluder version haven't changed since.
+	 *
+	 * @param changedRegions Regions changed since the last iteration was prepared. Taken from the set.
+	 */
+	public void prepareIncremental(Set<BuiltRenderRegion> changedRegions) {
+		assert state.get() == IDLE;
+		final SimpleUnorderedArrayList<BuiltRenderRegion> list = this.changedRegions;
+		list.clear();
 
+		final Iterator<BuiltRenderRegion> it = changedRegions.iterator();
+
+		while (it.hasNext()) {
+			list.add(it.next());
+			it.remove();
+		}
+
+		incremental = true;
 		state.set(READY);
 		cancelled = false;
 	}
@@ -74,189 +172,618 @@ public class TerrainIterator implements Consumer<TerrainRenderContext> {
 		return state.get();
 	}
 
+	/**
+	 * Marks a suspended iteration to continue on the next call to {@link #accept}.
+	 * Regions found so far and the regions they need rebuilt must be consumed before this call.
+	 */
+	public void resume() {
+		final boolean resumed = state.compareAndSet(SUSPENDED, RESUMING);
+		assert resumed;
+	}
+
+	/**
+	 * Occluder as of the last completed iteration, or null if occluder snapshots aren't enabled.
+	 * Holders must obtain it again each frame. Render thread only.
+	 */
+	public @Nullable OccluderSnapshot occluderSnapshot() {
+		return publishedSnapshot.get();
+	}
+
+	public void clearOccluderSnapshot() {
+		publishedSnapshot.set(null);
+	}
+
+	/**
+	 * Call after the chunk build executor discards queued tasks, which may include level helpers.
+	 */
+	public void onExecutorCleared() {
+		queuedLevelHelpers.set(0);
+	}
+
+	private void publishOccluderSnapshot() {
+		if (Configurator.occlusionCullEntities || Configurator.occlusionCullBlockEntities) {
+			final OccluderSnapshot snapshot = publishedSnapshot.get() == snapshots[0] ? snapshots[1] : snapshots[0];
+			snapshot.update(terrainOccluder, ++snapshotVersion);
+			publishedSnapshot.set(snapshot);
+		} else {
+			publishedSnapshot.set(null);
+		}
+	}
+
 	public void reset() {
 		cancelled = true;
-		state.compareAndSet(COMPLETE, IDLE);
+
+		if (!state.compareAndSet(COMPLETE, IDLE)) {
+			state.compareAndSet(SUSPENDED, IDLE);
+		}
 	}
 
 	@Override
 	public void accept(TerrainRenderContext ignored) {
-		assert state.get() == READY;
+		final int priorState = state.get();
+		assert priorState == READY || priorState == RESUMING;
 		state.set(RUNNING);
 
+		final long startNanos = System.nanoTime();
+		final int budgetMicros = Configurator.terrainIterationBudgetMicros;
+		final long deadlineNanos = budgetMicros > 0 ? startNanos + budgetMicros * 1000L : Long.MAX_VALUE;
+
+		if (priorState == READY) {
+			start();
+		}
+
+		final boolean finished = iterate(deadlineNanos);
+		activeNanos += System.nanoTime() - startNanos;
+
+		if (cancelled) {
+			state.set(IDLE);
+			this.visibleRegionCount = 0;
+		} else if (!finished) {
+			// regions found so far are nearest first and won't change, so render thread can draw them
+			this.visibleRegionCount = foundRegionCount;
+			state.set(SUSPENDED);
+		} else {
+			assert state.get() == RUNNING;
+			terrainOccluder.flush();
+			terrainOccluder.endStreamCapture();
+
+			if (redrawOccluders) {
+				terrainOccluder.reportRedrawNanos(activeNanos);
+			}
+
+			publishOccluderSnapshot();
+			this.visibleRegionCount = foundRegionCount;
+			state.set(COMPLETE);
+
+			if (Configurator.debugOcclusionRaster) {
+				terrainOccluder.outputRaster();
+			}
+		}
+	}
+
+	/**
+	 * Sets up the first level of the iteration.
+	 */
+	private void start() {
 		final boolean chunkCullingEnabled = this.chunkCullingEnabled;
+		redrawOccluders = chunkCullingEnabled && terrainOccluder.needsRedraw();
+		activeNanos = 0;
 		final int renderDistance = this.renderDistance;
 		final CanvasFrustum frustum = this.frustum;
 		final RenderRegionStorage regionStorage = renderRegionStorage;
-		final boolean redrawOccluder = terrainOccluder.needsRedraw();
 		final int occluderVersion = terrainOccluder.version();
+		iterationOccluderVersion = occluderVersion;
 		final BuiltRenderRegion[] visibleRegions = this.visibleRegions;
-		int visibleRegionCount = 0;
+		final int lastVisibleRegionCount = this.visibleRegionCount;
+		final boolean incremental = this.incremental;
+		int visibleRegionCount = incremental ? lastVisibleRegionCount : 0;
 		updateRegions.clear();
+		++iterationIndex;
+		terrainOccluder.beginStreamCapture(redrawOccluders && !incremental);
+
+		if (!incremental && Configurator.occluderPrepassBoxes > 0 && chunkCullingEnabled && terrainOccluder.needsRedraw()) {
+			drawLargestOccluders(lastVisibleRegionCount, Configurator.occluderPrepassBoxes);
+		}
 
 		SimpleUnorderedArrayList<BuiltRenderRegion> currentLevel = regionListA;
 		currentLevel.clear();
 		SimpleUnorderedArrayList<BuiltRenderRegion> nextLevel = regionListB;
 		nextLevel.clear();
 
-		BuiltRenderRegion.advanceFrameIndex();
-		if (cameraRegion == null) {
-			// prime visible when above or below world and camera region is null
-			final int y = cameraBlockPos.getY() > 0 ? 248 : 8;
-			final int x = cameraBlockPos.getX();
-			final int z = cameraBlockPos.getZ();
+		if (incremental) {
+			final SimpleUnorderedArrayList<BuiltRenderRegion> changedRegions = this.changedRegions;
+			final SimpleUnorderedArrayList<BuiltRenderRegion> deferredRegions = this.deferredRegions;
 
-			final int limit = Useful.getLastDistanceSortedOffsetIndex(renderDistance);
+			// Regions not enqueued by the last full iteration are reached through their
+			// neighbors if they become reachable. Regions it already visited keep their results.
+			for (int i = changedRegions.size() - 1; i >= 0; --i) {
+				final BuiltRenderRegion region = changedRegions.get(i);
 
-			for (int i = 0; i < limit; ++i) {
-				final Vec3i offset = Useful.getDistanceSortedCircularOffset(i);
+				if (region.wasEnqueued() && !region.isClosed()) {
+					currentLevel.add(region);
+				}
+			}
 
-				final BuiltRenderRegion region = regionStorage.getOrCreateRegion((offset.getX() << 4) + x, y, (offset.getZ() << 4) + z);
+			for (int i = deferredRegions.size() - 1; i >= 0; --i) {
+				final BuiltRenderRegion region = deferredRegions.get(i);
 
-				if (region != null && region.isInFrustum(frustum)) {
+				if (!region.isClosed()) {
 					currentLevel.add(region);
 				}
 			}
+
+			changedRegions.clear();
+			deferredRegions.clear();
 		} else {
-			final RegionData regionData = cameraRegion.getBuildData();
-			final int[] visData = regionData.getOcclusionData();
+			// connectivity is only known for regions reached through a neighbor
+			BuiltRenderRegion.advanceFrameIndex(chunkCullingEnabled && Configurator.connectivityCulling && cameraRegion != null);
+			deferredRegions.clear();
+
+			if (cameraRegion == null) {
+				// prime visible when above or below world and camera region is null
+				final int y = cameraBlockPos.getY() > 0 ? 248 : 8;
+				final int x = cameraBlockPos.getX();
+				final int z = cameraBlockPos.getZ();
+
+				final int limit = Useful.getLastDistanceSortedOffsetIndex(renderDistance);
+
+				for (int i = 0; i < limit; ++i) {
+					final Vec3i offset = Useful.getDistanceSortedCircularOffset(i);
 
-			if (visData != OcclusionRegion.EMPTY_CULL_DATA && visData != null) {
-				visibleRegions[visibleRegionCount++] = cameraRegion;
+					final BuiltRenderRegion region = regionStorage.getOrCreateRegion((offset.getX() << 4) + x, y, (offset.getZ() << 4) + z);
 
-				if (redrawOccluder || cameraRegion.occluderVersion != occluderVersion) {
-					terrainOccluder.prepareRegion(cameraRegion.getOrigin(), cameraRegion.occlusionRange);
-					terrainOccluder.occlude(visData);
+					if (region != null && region.isInFrustum(frustum)) {
+						currentLevel.add(region);
+					}
 				}
+			} else {
+				final RegionData regionData = cameraRegion.getBuildData();
+				final int[] visData = regionData.getOcclusionData();
+
+				if (visData != OcclusionRegion.EMPTY_CULL_DATA && visData != null) {
+					if (cameraRegion.markVisible()) {
+						visibleRegions[visibleRegionCount++] = cameraRegion;
+					}
+
+					if (cameraRegion.occluderVersion != occluderVersion || terrainOccluder.needsRedraw(cameraRegion)) {
+						terrainOccluder.prepareRegion(cameraRegion.getOrigin(), cameraRegion.occlusionRange);
+						terrainOccluder.occlude(visData);
+					}
+				}
+
+				cameraRegion.occluderVersion = occluderVersion;
+				cameraRegion.enqueueUnvistedNeighbors(currentLevel);
+				cameraRegion.occluderResult = true;
 			}
 
-			cameraRegion.occluderVersion = occluderVersion;
-			cameraRegion.enqueueUnvistedNeighbors(currentLevel);
-			cameraRegion.occluderResult = true;
+			assert !currentLevel.isEmpty();
 		}
 
-		assert !currentLevel.isEmpty();
+		this.currentLevel = currentLevel;
+		this.nextLevel = nextLevel;
+		levelChecked = false;
+		foundRegionCount = visibleRegionCount;
+	}
 
+	/**
+	 * Visits regions level by level, nearest first, until there are none left or the deadline passes.
+	 * All state needed to resume is kept in fields.  Resumes within a level if the deadline passed there.
+	 *
+	 * @return True if the iteration is finished, false if cancelled or out of time.
+	 */
+	private boolean iterate(long deadlineNanos) {
+		final boolean chunkCullingEnabled = this.chunkCullingEnabled;
+		final int occluderVersion = iterationOccluderVersion;
+		final BuiltRenderRegion[] visibleRegions = this.visibleRegions;
+		final boolean incremental = this.incremental;
+		final SimpleUnorderedArrayList<BuiltRenderRegion> deferredRegions = this.deferredRegions;
+		int visibleRegionCount = foundRegionCount;
+		SimpleUnorderedArrayList<BuiltRenderRegion> currentLevel = this.currentLevel;
+		SimpleUnorderedArrayList<BuiltRenderRegion> nextLevel = this.nextLevel;
+		int levelIndex = this.levelIndex;
+		// ensures progress in each slice even if the deadline has already passed
+		int visitCount = 0;
 
 		// PERF: look for ways to improve branch prediction
 		while (!cancelled) {
-			if (currentLevel.isEmpty()) {
-				if (nextLevel.isEmpty()) {
-					break;
+			if (!levelChecked) {
+				if (currentLevel.isEmpty()) {
+					if (nextLevel.isEmpty()) {
+						break;
+					} else {
+						final SimpleUnorderedArrayList<BuiltRenderRegion> swapLevel = currentLevel;
+						currentLevel = nextLevel;
+						nextLevel = swapLevel;
+						nextLevel.clear();
+					}
+				}
+
+				final int levelSize = currentLevel.size();
+				checkLevel(currentLevel, levelSize);
+				levelIndex = levelSize - 1;
+				levelChecked = true;
+			}
+
+			final int[][] levelVisData = this.levelVisData;
+			final byte[] levelFlags = this.levelFlags;
+
+			// occlusion tests and neighbor traversal stay serial and in the same order as before
+			for (; levelIndex >= 0 && !cancelled; --levelIndex) {
+				if ((++visitCount & 63) == 0 && System.nanoTime() > deadlineNanos) {
+					this.currentLevel = currentLevel;
+					this.nextLevel = nextLevel;
+					this.levelIndex = levelIndex;
+					foundRegionCount = visibleRegionCount;
+					return false;
+				}
+
+				final BuiltRenderRegion builtRegion = currentLevel.get(levelIndex);
+				final int[] visData = levelVisData[levelIndex];
+				final int flags = levelFlags[levelIndex];
+
+				if ((flags & (FLAG_NEEDS_UPDATE | FLAG_DEFERRED)) != 0 && builtRegion.markCollected(iterationIndex)) {
+					if ((flags & FLAG_NEEDS_UPDATE) != 0) {
+						updateRegions.add(builtRegion);
+					}
+
+					if ((flags & FLAG_DEFERRED) != 0) {
+						deferredRegions.add(builtRegion);
+					}
+				}
+
+				// not in view, not ready to build or no occlusion data yet
+				if (visData == null) {
+					continue;
+				}
+
+				// for empty regions, check neighbors if visible but don't add to visible set
+				if (visData == OcclusionRegion.EMPTY_CULL_DATA) {
+					if (Configurator.cullEntityRender) {
+						if (builtRegion.occluderVersion == occluderVersion) {
+							// reuse prior test results
+							if (builtRegion.occluderResult) {
+								builtRegion.enqueueUnvistedNeighbors(nextLevel);
+							}
+						} else {
+							builtRegion.occluderVersion = occluderVersion;
+
+							if (!chunkCullingEnabled || builtRegion.isNear() || terrainOccluder.isEmptyRegionVisible(builtRegion.getOrigin())) {
+								builtRegion.enqueueUnvistedNeighbors(nextLevel);
+								builtRegion.occluderResult = true;
+							} else {
+								builtRegion.occluderResult = false;
+							}
+						}
+					} else {
+						builtRegion.enqueueUnvistedNeighbors(nextLevel);
+						builtRegion.occluderVersion = occluderVersion;
+						builtRegion.occluderResult = false;
+					}
+
+					continue;
+				}
+
+				if (!chunkCullingEnabled || builtRegion.isNear()) {
+					builtRegion.enqueueUnvistedNeighbors(nextLevel);
+
+					if (builtRegion.markVisible()) {
+						visibleRegions[visibleRegionCount++] = builtRegion;
+					}
+
+					if (builtRegion.occluderVersion != occluderVersion || terrainOccluder.needsRedraw(builtRegion)) {
+						terrainOccluder.prepareRegion(builtRegion.getOrigin(), builtRegion.occlusionRange);
+						occlude(visData, incremental);
+					}
+
+					builtRegion.occluderVersion = occluderVersion;
+					builtRegion.occluderResult = true;
+				} else if (builtRegion.occluderVersion == occluderVersion) {
+					// reuse prior test results
+					if (builtRegion.occluderResult) {
+						builtRegion.enqueueUnvistedNeighbors(nextLevel);
+
+						if (builtRegion.markVisible()) {
+							visibleRegions[visibleRegionCount++] = builtRegion;
+						}
+
+						// will already have been drawn if occluder view version hasn't changed
+						// and may be carried over by reprojection if only the view direction changed
+						if (terrainOccluder.needsRedraw(builtRegion)) {
+							terrainOccluder.prepareRegion(builtRegion.getOrigin(), builtRegion.occlusionRange);
+							occlude(visData, incremental);
+						}
+					}
 				} else {
-					final SimpleUnorderedArrayList<BuiltRenderRegion> swapLevel = currentLevel;
-					currentLevel = nextLevel;
-					nextLevel = swapLevel;
-					nextLevel.clear();
+					terrainOccluder.prepareRegion(builtRegion.getOrigin(), builtRegion.occlusionRange);
+
+					if (terrainOccluder.isBoxVisible(visData[OcclusionRegion.CULL_DATA_REGION_BOUNDS])) {
+						builtRegion.enqueueUnvistedNeighbors(nextLevel);
+
+						if (builtRegion.markVisible()) {
+							visibleRegions[visibleRegionCount++] = builtRegion;
+						}
+
+						builtRegion.occluderVersion = occluderVersion;
+						builtRegion.occluderResult = true;
+
+						// these must always be drawn - will be additive if view hasn't changed
+						occlude(visData, incremental);
+					} else {
+						// note that we don't update occluder version in this case
+						// casues some chunks not to render if set - reason doesn't seem clear but
+						// didn't actually contribute any information to occluder and should not be tied to it
+						builtRegion.occluderResult = false;
+					}
 				}
 			}
 
-			final BuiltRenderRegion builtRegion = currentLevel.removeLast();
+			if (levelIndex < 0) {
+				currentLevel.clear();
+				levelChecked = false;
+			}
+		}
+
+		this.currentLevel = currentLevel;
+		this.nextLevel = nextLevel;
+		this.levelIndex = levelIndex;
+		foundRegionCount = visibleRegionCount;
+		return !cancelled;
+	}
+
+	/**
+	 * Regions aren't visited in distance order by incremental iterations.
+	 */
+	private void occlude(int[] visData, boolean incremental) {
+		if (incremental) {
+			terrainOccluder.occludeUnordered(visData);
+		} else {
+			terrainOccluder.occlude(visData);
+		}
+	}
+
+	/**
+	 * Runs frustum and build checks for every region in the level and saves the results by level index.
+	 * Results don't depend on the order of checks, so large levels can be split across chunk build threads.
+	 */
+	private void checkLevel(SimpleUnorderedArrayList<BuiltRenderRegion> level, int size) {
+		if (levelVisData.length < size) {
+			final int newSize = Integer.highestOneBit(size) << 1;
+			levelVisData = new int[newSize][];
+			levelFlags = new byte[newSize];
+		}
+
+		if (Configurator.parallelTerrainIteration && size >= PARALLEL_LEVEL_MIN) {
+			checkLevelInParallel(level, size);
+		} else {
+			checkRange(level, 0, size);
+		}
+	}
+
+	private void checkRange(SimpleUnorderedArrayList<BuiltRenderRegion> level, int start, int end) {
+		final CanvasFrustum frustum = this.frustum;
+		final int[][] levelVisData = this.levelVisData;
+		final byte[] levelFlags = this.levelFlags;
+
+		for (int i = start; i < end; ++i) {
+			final BuiltRenderRegion builtRegion = level.get(i);
+			levelVisData[i] = null;
 
 			// don't visit if not in frustum
 			if (!builtRegion.isInFrustum(frustum)) {
+				levelFlags[i] = 0;
 				continue;
 			}
 
 			// don't visit if region is outside near distance and doesn't have all 4 neighbors loaded
 			// also checks for outside of render distance
 			if (!builtRegion.shouldBuild()) {
+				levelFlags[i] = builtRegion.isInsideRenderDistance() ? FLAG_DEFERRED : 0;
 				continue;
 			}
 
-			final RegionData regionData = builtRegion.getBuildData();
-			final int[] visData = regionData.getOcclusionData();
+			final int[] visData = builtRegion.getBuildData().getOcclusionData();
+			levelVisData[i] = visData;
+			levelFlags[i] = visData == null || builtRegion.needsRebuild() ? FLAG_NEEDS_UPDATE : 0;
+		}
+	}
+
+	/**
+	 * Splits the level into stripes claimed by this thread and by helper tasks on the chunk
+	 * build executor. This thread always takes part, so the level completes even if no helper
+	 * gets to run. Helpers that start while no level is open do nothing. Helpers already
+	 * queued count toward the helpers wanted for a level, so the priority lane shared with
+	 * urgent builds never holds more helpers than there are build threads.
+	 */
+	private void checkLevelInParallel(SimpleUnorderedArrayList<BuiltRenderRegion> level, int size) {
+		levelThread = Thread.currentThread();
+		parallelLevel = level;
+		parallelLevelSize = size;
+		levelCursor.set(0);
+		++levelGeneration;
+
+		final ChunkRenderExecutor executor = cwr.regionBuilder().executor;
+		final int helperCount = Math.min(executor.poolSize(), (size - 1) / PARALLEL_STRIPE) - queuedLevelHelpers.get();
+
+		for (int i = 0; i < helperCount; ++i) {
+			queuedLevelHelpers.incrementAndGet();
+			executor.execute(c -> helpCheckLevel(), -1);
+		}
 
-			if (visData == null) {
-				updateRegions.add(builtRegion);
-				continue;
-			}
+		checkStripes(level, size);
+
+		// close the level then wait for helpers still checking a stripe
+		++levelGeneration;
+
+		while (levelHelpers.get() != 0) {
+			LockSupport.park(this);
+		}
+	}
+
+	private void helpCheckLevel() {
+		queuedLevelHelpers.decrementAndGet();
+		levelHelpers.incrementAndGet();
+
+		// level can't change while this helper is counted
+		if ((levelGeneration & 1) == 1) {
+			checkStripes(parallelLevel, parallelLevelSize);
+		}
+
+		if (levelHelpers.decrementAndGet() == 0) {
+			LockSupport.unpark(levelThread);
+		}
+	}
 
-			if (builtRegion.needsRebuild()) {
-				updateRegions.add(builtRegion);
+	private void checkStripes(SimpleUnorderedArrayList<BuiltRenderRegion> level, int size) {
+		while (true) {
+			final int start = levelCursor.getAndAdd(PARALLEL_STRIPE);
+
+			if (start >= size) {
+				return;
 			}
 
-			// for empty regions, check neighbors if visible but don't add to visible set
-			if (visData == OcclusionRegion.EMPTY_CULL_DATA) {
-				if (Configurator.cullEntityRender) {
-					if (builtRegion.occluderVersion == occluderVersion) {
-						// reuse prior test results
-						if (builtRegion.occluderResult) {
-							builtRegion.enqueueUnvistedNeighbors(nextLevel);
-						}
-					} else {
-						builtRegion.occluderVersion = occluderVersion;
+			checkRange(level, start, Math.min(size, start + PARALLEL_STRIPE));
+		}
+	}
 
-						if (!chunkCullingEnabled || builtRegion.isNear() || terrainOccluder.isEmptyRegionVisible(builtRegion.getOrigin())) {
-							builtRegion.enqueueUnvistedNeighbors(nextLevel);
-							builtRegion.occluderResult = true;
-						} else {
-							builtRegion.occluderResult = false;
-						}
-					}
-				} else {
-					builtRegion.enqueueUnvistedNeighbors(nextLevel);
-					builtRegion.occluderVersion = occluderVersion;
-					builtRegion.occluderResult = false;
-				}
+	/**
+	 * Draws the occluder boxes with the largest estimated screen area from regions that were
+	 * visible last frame, before traversal starts. These are drawn out of order because they
+	 * may be farther than regions tested early in the traversal.
+	 *
+	 * <p>Boxes in occlusion data are sorted by volume, largest first, so the scan of a region
+	 * stops at the first box that doesn't make the cut. A smaller box that happens to be
+	 * nearer may be missed, which only means fewer regions are rejected early.
+	 */
+	private void drawLargestOccluders(int regionCount, int maxBoxes) {
+		if (prepassHeap.length < maxBoxes) {
+			prepassHeap = new long[maxBoxes];
+			prepassBoxes = new int[maxBoxes];
+			prepassRegions = new BuiltRenderRegion[maxBoxes];
+		}
+
+		final long[] heap = prepassHeap;
+		final int[] boxes = prepassBoxes;
+		final BuiltRenderRegion[] regions = prepassRegions;
+		final BuiltRenderRegion[] visibleRegions = this.visibleRegions;
+		final CanvasFrustum frustum = this.frustum;
+		final BlockPos cameraBlockPos = this.cameraBlockPos;
+		final int cameraX = cameraBlockPos.getX();
+		final int cameraY = cameraBlockPos.getY();
+		final int cameraZ = cameraBlockPos.getZ();
+		int size = 0;
+
+		for (int i = 0; i < regionCount; i++) {
+			final BuiltRenderRegion region = visibleRegions[i];
 
+			if (region == null || !region.isInFrustum(frustum)) {
 				continue;
 			}
 
-			if (!chunkCullingEnabled || builtRegion.isNear()) {
-				builtRegion.enqueueUnvistedNeighbors(nextLevel);
-				visibleRegions[visibleRegionCount++] = builtRegion;
+			final int[] visData = region.getBuildData().getOcclusionData();
 
-				if (redrawOccluder || builtRegion.occluderVersion != occluderVersion) {
-					terrainOccluder.prepareRegion(builtRegion.getOrigin(), builtRegion.occlusionRange);
-					terrainOccluder.occlude(visData);
-				}
+			if (visData == null || visData == OcclusionRegion.EMPTY_CULL_DATA) {
+				continue;
+			}
 
-				builtRegion.occluderVersion = occluderVersion;
-				builtRegion.occluderResult = true;
-			} else if (builtRegion.occluderVersion == occluderVersion) {
-				// reuse prior test results
-				if (builtRegion.occluderResult) {
-					builtRegion.enqueueUnvistedNeighbors(nextLevel);
-					visibleRegions[visibleRegionCount++] = builtRegion;
+			final BlockPos origin = region.getOrigin();
+			final int dx = origin.getX() - cameraX;
+			final int dy = origin.getY() - cameraY;
+			final int dz = origin.getZ() - cameraZ;
+			final int occlusionRange = region.occlusionRange;
+			final int limit = visData.length;
 
-					// will already have been drawn if occluder view version hasn't changed
-					if (redrawOccluder) {
-						terrainOccluder.prepareRegion(builtRegion.getOrigin(), builtRegion.occlusionRange);
-						terrainOccluder.occlude(visData);
-					}
-				}
-			} else {
-				terrainOccluder.prepareRegion(builtRegion.getOrigin(), builtRegion.occlusionRange);
+			for (int j = OcclusionRegion.CULL_DATA_FIRST_BOX; j < limit; j++) {
+				final int box = visData[j];
 
-				if (terrainOccluder.isBoxVisible(visData[OcclusionRegion.CULL_DATA_REGION_BOUNDS])) {
-					builtRegion.enqueueUnvistedNeighbors(nextLevel);
-					visibleRegions[visibleRegionCount++] = builtRegion;
-					builtRegion.occluderVersion = occluderVersion;
-					builtRegion.occluderResult = true;
+				if (occlusionRange > PackedBox.range(box)) {
+					break;
+				}
 
-					// these must always be drawn - will be additive if view hasn't changed
-					terrainOccluder.occlude(visData);
+				final long key = ((long) Float.floatToRawIntBits(screenAreaEstimate(box, dx, dy, dz)) << 32);
+
+				if (size < maxBoxes) {
+					boxes[size] = box;
+					regions[size] = region;
+					heapPush(heap, size, key | size);
+					++size;
+				} else if (key > (heap[0] & 0xFFFFFFFF00000000L)) {
+					final int slot = (int) heap[0];
+					boxes[slot] = box;
+					regions[slot] = region;
+					heapReplaceTop(heap, size, key | slot);
 				} else {
-					// note that we don't update occluder version in this case
-					// casues some chunks not to render if set - reason doesn't seem clear but
-					// didn't actually contribute any information to occluder and should not be tied to it
-					builtRegion.occluderResult = false;
+					break;
 				}
 			}
 		}
 
-		if (cancelled) {
-			state.set(IDLE);
-			this.visibleRegionCount = 0;
-		} else {
-			assert state.get() == RUNNING;
-			state.set(COMPLETE);
-			this.visibleRegionCount = visibleRegionCount;
+		final TerrainOccluder terrainOccluder = this.terrainOccluder;
 
-			if (Configurator.debugOcclusionRaster) {
-				terrainOccluder.outputRaster();
+		for (int i = 0; i < size; i++) {
+			final int slot = (int) heap[i];
+			final BuiltRenderRegion region = regions[slot];
+			terrainOccluder.prepareRegion(region.getOrigin(), region.occlusionRange);
+			terrainOccluder.occludeUnordered(boxes[slot]);
+			regions[slot] = null;
+		}
+	}
+
+	/**
+	 * Surface area of the box divided by squared distance from camera to box center.
+	 * Always positive so float bits sort the same as values.
+	 */
+	private static float screenAreaEstimate(int box, int dx, int dy, int dz) {
+		final int x0 = PackedBox.x0(box);
+		final int y0 = PackedBox.y0(box);
+		final int z0 = PackedBox.z0(box);
+		final int sx = PackedBox.x1(box) - x0;
+		final int sy = PackedBox.y1(box) - y0;
+		final int sz = PackedBox.z1(box) - z0;
+		final float cx = dx + x0 + sx * 0.5f;
+		final float cy = dy + y0 + sy * 0.5f;
+		final float cz = dz + z0 + sz * 0.5f;
+		return (sx * sy + sy * sz + sx * sz) / (cx * cx + cy * cy + cz * cz + 1f);
+	}
+
+	private static void heapPush(long[] heap, int size, long key) {
+		int i = size;
+
+		while (i > 0) {
+			final int parent = (i - 1) >> 1;
+
+			if (heap[parent] <= key) {
+				break;
+			}
+
+			heap[i] = heap[parent];
+			i = parent;
+		}
+
+		heap[i] = key;
+	}
+
+	private static void heapReplaceTop(long[] heap, int size, long key) {
+		int i = 0;
+
+		while (true) {
+			int child = (i << 1) + 1;
+
+			if (child >= size) {
+				break;
 			}
+
+			if (child + 1 < size && heap[child + 1] < heap[child]) {
+				++child;
+			}
+
+			if (heap[child] >= key) {
+				break;
+			}
+
+			heap[i] = heap[child];
+			i = child;
 		}
+
+		heap[i] = key;
 	}
 }
@@ -17,6 +17,8 @@
 package grondag.canvas.terrain.occlusion;
 
 import grondag.canvas.CanvasMod;
+import grondag.canvas.Configurator;
+import grondag.canvas.Configurator.OcclusionRasterSize;
 import grondag.canvas.mixinterface.Matrix4fExt;
 import grondag.canvas.render.CanvasFrustum;
 import grondag.canvas.terrain.BuiltRenderRegion;
@@ -34,10 +36,56 @@ import java.util.concurrent.atomic.AtomicInteger;
 import static grondag.canvas.terrain.occlusion.Constants.*;
 
 public class TerrainOccluder {
+	/**
+	 * Reprojection erodes coverage at silhouettes by up to a pixel each time, so limit consecutive reuse.
+	 */
+	static final int MAX_CONSECUTIVE_REPROJECTIONS = 8;
+
+	/**
+	 * Consecutive redraws over budget before the raster size is reduced, and under budget before it is restored.
+	 */
+	private static final int OVER_BUDGET_PASSES = 4;
+	private static final int UNDER_BUDGET_PASSES = 120;
+
+	/**
+	 * Largest extent that fits in a packed box coordinate.
+	 */
+	private static final int MAX_PACKED_BOX_SIZE = 31;
+
+	/**
+	 * For each face outcome, bit per box corner (x << 2 | y << 1 | z) that lies on a visible face.
+	 */
+	private static final int[] OUTCOME_CORNERS = new int[128];
+
+	static {
+		for (int outcome = 0; outcome < 128; outcome++) {
+			int corners = 0;
+
+			for (int corner = 0; corner < 8; corner++) {
+				final boolean x = (corner & 4) != 0;
+				final boolean y = (corner & 2) != 0;
+				final boolean z = (corner & 1) != 0;
+
+				if (((outcome & UP) != 0 && y) || ((outcome & DOWN) != 0 && !y)
+						|| ((outcome & EAST) != 0 && x) || ((outcome & WEST) != 0 && !x)
+						|| ((outcome & SOUTH) != 0 && z) || ((outcome & NORTH) != 0 && !z)) {
+					corners |= 1 << corner;
+				}
+			}
+
+			OUTCOME_CORNERS[outcome] = corners;
+		}
+	}
+
 	private final Matrix4L baseMvpMatrix = new Matrix4L();
+	private final Matrix4L previousMvpMatrix = new Matrix4L();
 
-	private final Rasterizer raster = new Rasterizer();
+	/**
+	 * Replaced when the raster size changes. See {@link #prepareScene(Camera, CanvasFrustum, int)}.
+	 */
+	private Rasterizer raster = new Rasterizer(Configurator.occlusionRasterSize.tileWidth, Configurator.occlusionRasterSize.tileHeight);
 	private final AtomicInteger occluderVersion = new AtomicInteger();
+	private final PreparedBoxTest[] preparedBoxTests = new PreparedBoxTest[128];
 	private final BoxTest[] boxTests = new BoxTest[128];
 	private final BoxDraw[] boxDraws = new BoxDraw[128];
 	private long viewX;
@@ -52,8 +100,100 @@ public class TerrainOccluder {
 	private int regionVersion = -1;
 	private boolean forceRedraw = false;
 	private boolean needsRedraw = false;
+	private RasterReprojector reprojector = null;
+	private boolean reprojected = false;
+	private int reprojectionCount = 0;
+
+	// adaptive raster size
+	private int overBudgetCount = 0;
+	private int underBudgetCount = 0;
+	private boolean reducedRaster = false;
+	private long nextStreamCaptureTime;
+
+	// structure-of-arrays buffers for batched box tests - corner arrays are corner-major
+	private int batchCapacity = 0;
+	private int[] batchOutcomes;
+	private int[] batchX0, batchY0, batchZ0, batchX1, batchY1, batchZ1;
+	private long[] batchTx, batchTy, batchTz, batchTw;
+	private float[] batchClipX, batchClipY, batchClipZ, batchClipW;
 
 	{
+		preparedBoxTests[0] = () -> false;
+
+		preparedBoxTests[UP] = () -> raster.testQuad(V110, V010, V011, V111);
+
+		preparedBoxTests[DOWN] = () -> raster.testQuad(V000, V100, V101, V001);
+
+		preparedBoxTests[EAST] = () -> raster.testQuad(V101, V100, V110, V111);
+
+		preparedBoxTests[WEST] = () -> raster.testQuad(V000, V001, V011, V010);
+
+		preparedBoxTests[NORTH] = () -> raster.testQuad(V100, V000, V010, V110);
+
+		preparedBoxTests[SOUTH] = () -> raster.testQuad(V001, V101, V111, V011);
+
+		preparedBoxTests[UP | EAST] = () -> raster.testQuad(V010, V011, V111, V101) ||
+				raster.testQuad(V101, V100, V110, V010);
+
+		preparedBoxTests[UP | WEST] = () -> raster.testQuad(V111, V110, V010, V000) ||
+				raster.testQuad(V000, V001, V011, V111);
+
+		preparedBoxTests[UP | NORTH] = () -> raster.testQuad(V011, V111, V110, V100) ||
+				raster.testQuad(V100, V000, V010, V011);
+
+		preparedBoxTests[UP | SOUTH] = () -> raster.testQuad(V110, V010, V011, V001) ||
+				raster.testQuad(V001, V101, V111, V110);
+
+		preparedBoxTests[DOWN | EAST] = () -> raster.testQuad(V001, V000, V100, V110) ||
+				raster.testQuad(V110, V111, V101, V001);
+
+		preparedBoxTests[DOWN | WEST] = () -> raster.testQuad(V100, V101, V001, V011) ||
+				raster.testQuad(V011, V010, V000, V100);
+
+		preparedBoxTests[DOWN | NORTH] = () -> raster.testQuad(V101, V001, V000, V010) ||
+				raster.testQuad(V010, V110, V100, V101);
+
+		preparedBoxTests[DOWN | SOUTH] = () -> raster.testQuad(V000, V100, V101, V111) ||
+				raster.testQuad(V111, V011, V001, V000);
+
+		preparedBoxTests[NORTH | EAST] = () -> raster.testQuad(V000, V010, V110, V111) ||
+				raster.testQuad(V111, V101, V100, V000);
+
+		preparedBoxTests[NORTH | WEST] = () -> raster.testQuad(V110, V100, V000, V001) ||
+				raster.testQuad(V001, V011, V010, V110);
+
+		preparedBoxTests[SOUTH | EAST] = () -> raster.testQuad(V011, V001, V101, V100) ||
+				raster.testQuad(V100, V110, V111, V011);
+
+		preparedBoxTests[SOUTH | WEST] = () -> raster.testQuad(V101, V111, V011, V010) ||
+				raster.testQuad(V010, V000, V001, V101);
+
+		preparedBoxTests[UP | EAST | NORTH] = () -> raster.testQuad(V011, V111, V101, V100) ||
+				raster.testQuad(V100, V000, V010, V011);
+
+		preparedBoxTests[UP | WEST | NORTH] = () -> raster.testQuad(V111, V110, V100, V000) ||
+				raster.testQuad(V000, V001, V011, V111);
+
+		preparedBoxTests[UP | EAST | SOUTH] = () -> raster.testQuad(V010, V011, V001, V101) ||
+				raster.testQuad(V101, V100, V110, V010);
+
+		preparedBoxTests[UP | WEST | SOUTH] = () -> raster.testQuad(V110, V010, V000, V001) ||
+				raster.testQuad(V001, V101, V111, V110);
+
+		preparedBoxTests[DOWN | EAST | NORTH] = () -> raster.testQuad(V001, V000, V010, V110) ||
+				raster.testQuad(V110, V111, V101, V001);
+
+		preparedBoxTests[DOWN | WEST | NORTH] = () -> raster.testQuad(V101, V001, V011, V010) ||
+				raster.testQuad(V010, V110, V100, V101);
+
+		preparedBoxTests[DOWN | EAST | SOUTH] = () -> raster.testQuad(V000, V100, V110, V111) ||
+				raster.testQuad(V111, V011, V001, V000);
+
+		preparedBoxTests[DOWN | WEST | SOUTH] = () -> raster.testQuad(V100, V101, V111, V011) ||
+				raster.testQuad(V011, V010, V000, V100);
+
+		////
+
 		boxTests[0] = (x0, y0, z0, x1, y1, z1) -> {
 			return false;
 		};
@@ -63,7 +203,7 @@ public class TerrainOccluder {
 			raster.setupVertex(V011, x0, y1, z1);
 			raster.setupVertex(V110, x1, y1, z0);
 			raster.setupVertex(V111, x1, y1, z1);
-			return raster.testQuad(V110, V010, V011, V111);
+			return preparedBoxTests[UP].apply();
 		};
 
 		boxTests[DOWN] = (x0, y0, z0, x1, y1, z1) -> {
@@ -71,7 +211,7 @@ public class TerrainOccluder {
 			raster.setupVertex(V001, x0, y0, z1);
 			raster.setupVertex(V100, x1, y0, z0);
 			raster.setupVertex(V101, x1, y0, z1);
-			return raster.testQuad(V000, V100, V101, V001);
+			return preparedBoxTests[DOWN].apply();
 		};
 
 		boxTests[EAST] = (x0, y0, z0, x1, y1, z1) -> {
@@ -79,7 +219,7 @@ public class TerrainOccluder {
 			raster.setupVertex(V101, x1, y0, z1);
 			raster.setupVertex(V110, x1, y1, z0);
 			raster.setupVertex(V111, x1, y1, z1);
-			return raster.testQuad(V101, V100, V110, V111);
+			return preparedBoxTests[EAST].apply();
 		};
 
 		boxTests[WEST] = (x0, y0, z0, x1, y1, z1) -> {
@@ -87,7 +227,7 @@ public class TerrainOccluder {
 			raster.setupVertex(V001, x0, y0, z1);
 			raster.setupVertex(V010, x0, y1, z0);
 			raster.setupVertex(V011, x0, y1, z1);
-			return raster.testQuad(V000, V001, V011, V010);
+			return preparedBoxTests[WEST].apply();
 		};
 
 		boxTests[NORTH] = (x0, y0, z0, x1, y1, z1) -> {
@@ -95,7 +235,7 @@ public class TerrainOccluder {
 			raster.setupVertex(V010, x0, y1, z0);
 			raster.setupVertex(V100, x1, y0, z0);
 			raster.setupVertex(V110, x1, y1, z0);
-			return raster.testQuad(V100, V000, V010, V110);
+			return preparedBoxTests[NORTH].apply();
 		};
 
 		boxTests[SOUTH] = (x0, y0, z0, x1, y1, z1) -> {
@@ -103,7 +243,7 @@ public class TerrainOccluder {
 			raster.setupVertex(V011, x0, y1, z1);
 			raster.setupVertex(V101, x1, y0, z1);
 			raster.setupVertex(V111, x1, y1, z1);
-			return raster.testQuad(V001, V101, V111, V011);
+			return preparedBoxTests[SOUTH].apply();
 		};
 
 		// NB: Split across two quads to give more evenly-sized test regions vs potentially one big and one very small
@@ -114,8 +254,7 @@ public class TerrainOccluder {
 			raster.setupVertex(V101, x1, y0, z1);
 			raster.setupVertex(V110, x1, y1, z0);
 			raster.setupVertex(V111, x1, y1, z1);
-			return raster.testQuad(V010, V011, V111, V101) ||
-					raster.testQuad(V101, V100, V110, V010);
+			return preparedBoxTests[UP | EAST].apply();
 		};
 
 		boxTests[UP | WEST] = (x0, y0, z0, x1, y1, z1) -> {
@@ -125,8 +264,7 @@ public class TerrainOccluder {
 			raster.setupVertex(V011, x0, y1, z1);
 			raster.setupVertex(V110, x1, y1, z0);
 			raster.setupVertex(V111, x1, y1, z1);
-			return raster.testQuad(V111, V110, V010, V000) ||
-					raster.testQuad(V000, V001, V011, V111);
+			return preparedBoxTests[UP | WEST].apply();
 		};
 
 		boxTests[UP | NORTH] = (x0, y0, z0, x1, y1, z1) -> {
@@ -136,8 +274,7 @@ public class TerrainOccluder {
 			raster.setupVertex(V100, x1, y0, z0);
 			raster.setupVertex(V110, x1, y1, z0);
 			raster.setupVertex(V111, x1, y1, z1);
-			return raster.testQuad(V011, V111, V110, V100) ||
-					raster.testQuad(V100, V000, V010, V011);
+			return preparedBoxTests[UP | NORTH].apply();
 		};
 
 		boxTests[UP | SOUTH] = (x0, y0, z0, x1, y1, z1) -> {
@@ -147,8 +284,7 @@ public class TerrainOccluder {
 			raster.setupVertex(V101, x1, y0, z1);
 			raster.setupVertex(V110, x1, y1, z0);
 			raster.setupVertex(V111, x1, y1, z1);
-			return raster.testQuad(V110, V010, V011, V001) ||
-					raster.testQuad(V001, V101, V111, V110);
+			return preparedBoxTests[UP | SOUTH].apply();
 		};
 
 		boxTests[DOWN | EAST] = (x0, y0, z0, x1, y1, z1) -> {
@@ -158,8 +294,7 @@ public class TerrainOccluder {
 			raster.setupVertex(V101, x1, y0, z1);
 			raster.setupVertex(V110, x1, y1, z0);
 			raster.setupVertex(V111, x1, y1, z1);
-			return raster.testQuad(V001, V000, V100, V110) ||
-					raster.testQuad(V110, V111, V101, V001);
+			return preparedBoxTests[DOWN | EAST].apply();
 		};
 
 		boxTests[DOWN | WEST] = (x0, y0, z0, x1, y1, z1) -> {
@@ -169,8 +304,7 @@ public class TerrainOccluder {
 			raster.setupVertex(V011, x0, y1, z1);
 			raster.setupVertex(V100, x1, y0, z0);
 			raster.setupVertex(V101, x1, y0, z1);
-			return raster.testQuad(V100, V101, V001, V011) ||
-					raster.testQuad(V011, V010, V000, V100);
+			return preparedBoxTests[DOWN | WEST].apply();
 		};
 
 		boxTests[DOWN | NORTH] = (x0, y0, z0, x1, y1, z1) -> {
@@ -180,8 +314,7 @@ public class TerrainOccluder {
 			raster.setupVertex(V100, x1, y0, z0);
 			raster.setupVertex(V101, x1, y0, z1);
 			raster.setupVertex(V110, x1, y1, z0);
-			return raster.testQuad(V101, V001, V000, V010) ||
-					raster.testQuad(V010, V110, V100, V101);
+			return preparedBoxTests[DOWN | NORTH].apply();
 		};
 
 		boxTests[DOWN | SOUTH] = (x0, y0, z0, x1, y1, z1) -> {
@@ -191,8 +324,7 @@ public class TerrainOccluder {
 			raster.setupVertex(V100, x1, y0, z0);
 			raster.setupVertex(V101, x1, y0, z1);
 			raster.setupVertex(V111, x1, y1, z1);
-			return raster.testQuad(V000, V100, V101, V111) ||
-					raster.testQuad(V111, V011, V001, V000);
+			return preparedBoxTests[DOWN | SOUTH].apply();
 		};
 
 		boxTests[NORTH | EAST] = (x0, y0, z0, x1, y1, z1) -> {
@@ -202,8 +334,7 @@ public class TerrainOccluder {
 			raster.setupVertex(V101, x1, y0, z1);
 			raster.setupVertex(V110, x1, y1, z0);
 			raster.setupVertex(V111, x1, y1, z1);
-			return raster.testQuad(V000, V010, V110, V111) ||
-					raster.testQuad(V111, V101, V100, V000);
+			return preparedBoxTests[NORTH | EAST].apply();
 		};
 
 		boxTests[NORTH | WEST] = (x0, y0, z0, x1, y1, z1) -> {
@@ -213,8 +344,7 @@ public class TerrainOccluder {
 			raster.setupVertex(V011, x0, y1, z1);
 			raster.setupVertex(V100, x1, y0, z0);
 			raster.setupVertex(V110, x1, y1, z0);
-			return raster.testQuad(V110, V100, V000, V001) ||
-					raster.testQuad(V001, V011, V010, V110);
+			return preparedBoxTests[NORTH | WEST].apply();
 		};
 
 		boxTests[SOUTH | EAST] = (x0, y0, z0, x1, y1, z1) -> {
@@ -224,8 +354,7 @@ public class TerrainOccluder {
 			raster.setupVertex(V101, x1, y0, z1);
 			raster.setupVertex(V110, x1, y1, z0);
 			raster.setupVertex(V111, x1, y1, z1);
-			return raster.testQuad(V011, V001, V101, V100) ||
-					raster.testQuad(V100, V110, V111, V011);
+			return preparedBoxTests[SOUTH | EAST].apply();
 		};
 
 		boxTests[SOUTH | WEST] = (x0, y0, z0, x1, y1, z1) -> {
@@ -235,8 +364,7 @@ public class TerrainOccluder {
 			raster.setupVertex(V011, x0, y1, z1);
 			raster.setupVertex(V101, x1, y0, z1);
 			raster.setupVertex(V111, x1, y1, z1);
-			return raster.testQuad(V101, V111, V011, V010) ||
-					raster.testQuad(V010, V000, V001, V101);
+			return preparedBoxTests[SOUTH | WEST].apply();
 		};
 
 		// NB: When three faces are visible, omit nearest vertex and draw two quads instead of three.
@@ -248,8 +376,7 @@ public class TerrainOccluder {
 			raster.setupVertex(V100, x1, y0, z0);
 			raster.setupVertex(V101, x1, y0, z1);
 			raster.setupVertex(V111, x1, y1, z1);
-			return raster.testQuad(V011, V111, V101, V100) ||
-					raster.testQuad(V100, V000, V010, V011);
+			return preparedBoxTests[UP | EAST | NORTH].apply();
 		};
 
 		boxTests[UP | WEST | NORTH] = (x0, y0, z0, x1, y1, z1) -> {
@@ -259,10 +386,7 @@ public class TerrainOccluder {
 			raster.setupVertex(V100, x1, y0, z0);
 			raster.setupVertex(V110, x1, y1, z0);
 			raster.setupVertex(V111, x1, y1, z1);
-			return raster.testQuad(V111, V110, V100, V000) ||
-					raster.testQuad(V000, V001, V011, V111);
-
-
+			return preparedBoxTests[UP | WEST | NORTH].apply();
 		};
 
 		boxTests[UP | EAST | SOUTH] = (x0, y0, z0, x1, y1, z1) -> {
@@ -272,8 +396,7 @@ public class TerrainOccluder {
 			raster.setupVertex(V100, x1, y0, z0);
 			raster.setupVertex(V101, x1, y0, z1);
 			raster.setupVertex(V110, x1, y1, z0);
-			return raster.testQuad(V010, V011, V001, V101) ||
-					raster.testQuad(V101, V100, V110, V010);
+			return preparedBoxTests[UP | EAST | SOUTH].apply();
 		};
 
 		boxTests[UP | WEST | SOUTH] = (x0, y0, z0, x1, y1, z1) -> {
@@ -283,8 +406,7 @@ public class TerrainOccluder {
 			raster.setupVertex(V101, x1, y0, z1);
 			raster.setupVertex(V110, x1, y1, z0);
 			raster.setupVertex(V111, x1, y1, z1);
-			return raster.testQuad(V110, V010, V000, V001) ||
-					raster.testQuad(V001, V101, V111, V110);
+			return preparedBoxTests[UP | WEST | SOUTH].apply();
 		};
 
 		boxTests[DOWN | EAST | NORTH] = (x0, y0, z0, x1, y1, z1) -> {
@@ -294,8 +416,7 @@ public class TerrainOccluder {
 			raster.setupVertex(V101, x1, y0, z1);
 			raster.setupVertex(V110, x1, y1, z0);
 			raster.setupVertex(V111, x1, y1, z1);
-			return raster.testQuad(V001, V000, V010, V110) ||
-					raster.testQuad(V110, V111, V101, V001);
+			return preparedBoxTests[DOWN | EAST | NORTH].apply();
 		};
 
 		boxTests[DOWN | WEST | NORTH] = (x0, y0, z0, x1, y1, z1) -> {
@@ -305,8 +426,7 @@ public class TerrainOccluder {
 			raster.setupVertex(V100, x1, y0, z0);
 			raster.setupVertex(V101, x1, y0, z1);
 			raster.setupVertex(V110, x1, y1, z0);
-			return raster.testQuad(V101, V001, V011, V010) ||
-					raster.testQuad(V010, V110, V100, V101);
+			return preparedBoxTests[DOWN | WEST | NORTH].apply();
 		};
 
 		boxTests[DOWN | EAST | SOUTH] = (x0, y0, z0, x1, y1, z1) -> {
@@ -316,8 +436,7 @@ public class TerrainOccluder {
 			raster.setupVertex(V100, x1, y0, z0);
 			raster.setupVertex(V110, x1, y1, z0);
 			raster.setupVertex(V111, x1, y1, z1);
-			return raster.testQuad(V000, V100, V110, V111) ||
-					raster.testQuad(V111, V011, V001, V000);
+			return preparedBoxTests[DOWN | EAST | SOUTH].apply();
 		};
 
 		boxTests[DOWN | WEST | SOUTH] = (x0, y0, z0, x1, y1, z1) -> {
@@ -327,8 +446,7 @@ public class TerrainOccluder {
 			raster.setupVertex(V100, x1, y0, z0);
 			raster.setupVertex(V101, x1, y0, z1);
 			raster.setupVertex(V111, x1, y1, z1);
-			return raster.testQuad(V100, V101, V111, V011) ||
-					raster.testQuad(V011, V010, V000, V100);
+			return preparedBoxTests[DOWN | WEST | SOUTH].apply();
 		};
 
 		////
@@ -613,6 +731,11 @@ public class TerrainOccluder {
 
 	public void copyFrom(TerrainOccluder source) {
 		baseMvpMatrix.copyFrom(source.baseMvpMatrix);
+
+		if (!raster.isSameSize(source.raster)) {
+			replaceRaster(source.raster.tileWidth, source.raster.tileHeight);
+		}
+
 		raster.copyFrom(source.raster);
 		viewX = source.viewX;
 		viewY = source.viewY;
@@ -632,6 +755,10 @@ public class TerrainOccluder {
 
 		forceRedraw = source.forceRedraw;
 		needsRedraw = source.needsRedraw;
+
+		previousMvpMatrix.copyFrom(source.previousMvpMatrix);
+		reprojected = false;
+		reprojectionCount = MAX_CONSECUTIVE_REPROJECTIONS;
 	}
 
 	/**
@@ -662,28 +789,48 @@ public class TerrainOccluder {
 	}
 
 	public void prepareRegion(BlockPos origin, int occlusionRange) {
+		prepareRegion(origin.getX(), origin.getY(), origin.getZ(), occlusionRange);
+	}
+
+	public void prepareRegion(int originX, int originY, int originZ, int occlusionRange) {
 		this.occlusionRange = occlusionRange;
 
 		// PERF: could perhaps reuse CameraRelativeCenter values in BuildRenderRegion that are used by Frustum
-		offsetX = (int) ((origin.getX() << CAMERA_PRECISION_BITS) - viewX);
-		offsetY = (int) ((origin.getY() << CAMERA_PRECISION_BITS) - viewY);
-		offsetZ = (int) ((origin.getZ() << CAMERA_PRECISION_BITS) - viewZ);
+		offsetX = (int) ((originX << CAMERA_PRECISION_BITS) - viewX);
+		offsetY = (int) ((originY << CAMERA_PRECISION_BITS) - viewY);
+		offsetZ = (int) ((originZ << CAMERA_PRECISION_BITS) - viewZ);
 
 		final Matrix4L mvpMatrix = raster.mvpMatrix;
 		mvpMatrix.copyFrom(baseMvpMatrix);
 		mvpMatrix.translate(offsetX, offsetY, offsetZ, CAMERA_PRECISION_BITS);
 	}
 
+	/**
+	 * Completes any deferred occluder drawing. Tests draw the pending occluders they overlap
+	 * implicitly, but this should be called at the end of a scene so the raster is complete.
+	 */
+	public void flush() {
+		final BinnedRasterizer binner = raster.binner;
+
+		if (binner != null) {
+			binner.flush();
+		}
+	}
+
 	public void outputRaster() {
+		flush();
+
 		final long t = System.currentTimeMillis();
 
 		if (t >= raster.nextRasterOutputTime) {
 			raster.nextRasterOutputTime = t + 1000;
 
-			final NativeImage nativeImage = new NativeImage(PIXEL_WIDTH, PIXEL_HEIGHT, false);
+			final int pixelWidth = raster.pixelWidth;
+			final int pixelHeight = raster.pixelHeight;
+			final NativeImage nativeImage = new NativeImage(pixelWidth, pixelHeight, false);
 
-			for (int x = 0; x < PIXEL_WIDTH; x++) {
-				for (int y = 0; y < PIXEL_HEIGHT; y++) {
+			for (int x = 0; x < pixelWidth; x++) {
+				for (int y = 0; y < pixelHeight; y++) {
 					nativeImage.setPixelColor(x, y, raster.testPixel(x, y) ? -1 : 0xFF000000);
 				}
 			}
@@ -705,6 +852,36 @@ public class TerrainOccluder {
 		}
 	}
 
+	/**
+	 * Starts recording occluder draws and tests for {@link #endStreamCapture()} if
+	 * capture is enabled, at most every ten seconds. Drops any capture not ended.
+	 *
+	 * @param redraw True if the iteration starts from an empty raster, as replay requires.
+	 */
+	public void beginStreamCapture(boolean redraw) {
+		raster.recorder = null;
+
+		if (redraw && Configurator.captureOccluderStream) {
+			final long t = System.currentTimeMillis();
+
+			if (t >= nextStreamCaptureTime) {
+				nextStreamCaptureTime = t + 10000;
+				raster.recorder = new OccluderStreamRecorder(raster);
+			}
+		}
+	}
+
+	public void endStreamCapture() {
+		final OccluderStreamRecorder recorder = raster.recorder;
+
+		if (recorder != null) {
+			raster.recorder = null;
+
+			@SuppressWarnings("resource") final File file = new File(MinecraftClient.getInstance().runDirectory, "canvas_occluder_stream.bin.gz");
+			Util.getIoWorkerExecutor().execute(() -> recorder.save(file));
+		}
+	}
+
 	/**
 	 * Check if needs redrawn and prep for redraw if  so.
 	 * When false, regions should be drawn only if their occluder version is not current.
@@ -718,14 +895,32 @@ public class TerrainOccluder {
 	 * @param regionVersion    Needed because chunk camera position update whenever a chunk boundary is crossed by Frustum doesn't care.
 	 */
 	public void prepareScene(Camera camera, CanvasFrustum frustum, int regionVersion) {
-		final int viewVersion = frustum.viewVersion();
-		final int positionVersion = frustum.positionVersion();
+		final Vec3d vec3d = camera.getPos();
+		prepareScene(vec3d.getX(), vec3d.getY(), vec3d.getZ(), frustum.projectionMatrix(), frustum.modelMatrix(), frustum.viewVersion(), frustum.positionVersion(), regionVersion);
+	}
+
+	/**
+	 * Same as {@link #prepareScene(Camera, CanvasFrustum, int)} with the camera and frustum state passed directly.
+	 */
+	void prepareScene(double cameraX, double cameraY, double cameraZ, Matrix4fExt projectionMatrix, Matrix4fExt modelMatrix, int viewVersion, int positionVersion, int regionVersion) {
+		final OcclusionRasterSize size = reducedRaster ? OcclusionRasterSize.LOW : Configurator.occlusionRasterSize;
+
+		if (raster.tileWidth != size.tileWidth || raster.tileHeight != size.tileHeight) {
+			replaceRaster(size.tileWidth, size.tileHeight);
+			invalidate();
+		}
+
+		// created here instead of in constructor so that copies used only for testing don't start threads
+		if (Configurator.parallelOcclusionRaster && raster.binner == null) {
+			raster.binner = new BinnedRasterizer(raster, BinnedRasterizer.defaultHelperCount(raster));
+		}
+
+		boolean sameEye = false;
 
 		if (this.viewVersion != viewVersion) {
 			final Matrix4L baseMvpMatrix = this.baseMvpMatrix;
+			previousMvpMatrix.copyFrom(baseMvpMatrix);
 			final Matrix4L tempMatrix = raster.mvpMatrix;
-			final Matrix4fExt projectionMatrix = frustum.projectionMatrix();
-			final Matrix4fExt modelMatrix = frustum.modelMatrix();
 
 			baseMvpMatrix.loadIdentity();
 
@@ -735,17 +930,23 @@ public class TerrainOccluder {
 			tempMatrix.copyFrom(modelMatrix);
 			baseMvpMatrix.multiply(tempMatrix);
 
-			final Vec3d vec3d = camera.getPos();
-			viewX = Math.round(vec3d.getX() * CAMERA_PRECISION_UNITY);
-			viewY = Math.round(vec3d.getY() * CAMERA_PRECISION_UNITY);
-			viewZ = Math.round(vec3d.getZ() * CAMERA_PRECISION_UNITY);
+			final long x = Math.round(cameraX * CAMERA_PRECISION_UNITY);
+			final long y = Math.round(cameraY * CAMERA_PRECISION_UNITY);
+			final long z = Math.round(cameraZ * CAMERA_PRECISION_UNITY);
+			sameEye = x == viewX && y == viewY && z == viewZ;
+			viewX = x;
+			viewY = y;
+			viewZ = z;
 		}
 
+		reprojected = false;
+
 		if (forceRedraw) {
 			this.viewVersion = viewVersion;
 			this.positionVersion = positionVersion;
 			this.regionVersion = regionVersion;
-			System.arraycopy(EMPTY_BITS, 0, raster.tiles, 0, TILE_COUNT);
+			raster.clear();
+			reprojectionCount = 0;
 			forceRedraw = false;
 			needsRedraw = true;
 		} else if (this.positionVersion != positionVersion || this.regionVersion != regionVersion) {
@@ -753,12 +954,21 @@ public class TerrainOccluder {
 			this.viewVersion = viewVersion;
 			this.positionVersion = positionVersion;
 			this.regionVersion = regionVersion;
-			System.arraycopy(EMPTY_BITS, 0, raster.tiles, 0, TILE_COUNT);
+			raster.clear();
+			reprojectionCount = 0;
 			needsRedraw = true;
 		} else if (this.viewVersion != viewVersion) {
 			this.viewVersion = viewVersion;
-			System.arraycopy(EMPTY_BITS, 0, raster.tiles, 0, TILE_COUNT);
-			needsRedraw = true;
+
+			if (sameEye && Configurator.reprojectOcclusionRaster && reprojectionCount < MAX_CONSECUTIVE_REPROJECTIONS && reproject()) {
+				++reprojectionCount;
+				reprojected = true;
+				needsRedraw = false;
+			} else {
+				raster.clear();
+				reprojectionCount = 0;
+				needsRedraw = true;
+			}
 		} else {
 			needsRedraw = false;
 		}
@@ -766,10 +976,132 @@ public class TerrainOccluder {
 
 	}
 
+	Rasterizer raster() {
+		return raster;
+	}
+
+	/**
+	 * Pending draws are dropped. Content must be cleared or copied afterwards.
+	 */
+	private void replaceRaster(int tileWidth, int tileHeight) {
+		final Rasterizer newRaster = new Rasterizer(tileWidth, tileHeight);
+		final BinnedRasterizer binner = raster.binner;
+
+		if (binner != null) {
+			binner.setTarget(newRaster);
+		}
+
+		raster = newRaster;
+		reprojector = null;
+	}
+
+	/**
+	 * Reports the time taken by a terrain iteration that redrew the raster. When adaptive raster size
+	 * is enabled, the raster drops to the lowest size after consecutive passes over budget and is
+	 * restored after a longer run of passes well under budget. Takes effect at the next scene.
+	 */
+	public void reportRedrawNanos(long nanos) {
+		if (!Configurator.adaptiveOcclusionRaster || Configurator.occlusionRasterSize == OcclusionRasterSize.LOW) {
+			reducedRaster = false;
+			overBudgetCount = 0;
+			underBudgetCount = 0;
+			return;
+		}
+
+		final long budget = Configurator.occlusionBudgetMicros * 1000L;
+
+		if (nanos > budget) {
+			underBudgetCount = 0;
+
+			if (!reducedRaster && ++overBudgetCount >= OVER_BUDGET_PASSES) {
+				reducedRaster = true;
+				overBudgetCount = 0;
+			}
+		} else {
+			overBudgetCount = 0;
+
+			// reduced raster is faster, so only restore when there is room for the difference
+			if (reducedRaster && nanos * 2 < budget && ++underBudgetCount >= UNDER_BUDGET_PASSES) {
+				reducedRaster = false;
+				underBudgetCount = 0;
+			}
+		}
+	}
+
+	private boolean reproject() {
+		if (reprojector == null) {
+			reprojector = new RasterReprojector(raster);
+		}
+
+		flush();
+		return reprojector.reproject(raster, previousMvpMatrix, baseMvpMatrix);
+	}
+
 	public boolean needsRedraw() {
 		return needsRedraw;
 	}
 
+	/**
+	 * True if occluders of a region previously found visible must be drawn again.
+	 * This is always the case after the raster is cleared. After reprojection, only
+	 * regions that touch screen area outside of the previous view need to be redrawn.
+	 */
+	public boolean needsRedraw(BuiltRenderRegion region) {
+		return needsRedraw(region.getOrigin(), region.occlusionRange);
+	}
+
+	boolean needsRedraw(BlockPos origin, int occlusionRange) {
+		if (needsRedraw) {
+			return true;
+		}
+
+		if (!reprojected) {
+			return false;
+		}
+
+		prepareRegion(origin, occlusionRange);
+
+		final Rasterizer raster = this.raster;
+		final int[] data = raster.data;
+		raster.setupVertex(V000, 0, 0, 0);
+		raster.setupVertex(V001, 0, 0, 16);
+		raster.setupVertex(V010, 0, 16, 0);
+		raster.setupVertex(V011, 0, 16, 16);
+		raster.setupVertex(V100, 16, 0, 0);
+		raster.setupVertex(V101, 16, 0, 16);
+		raster.setupVertex(V110, 16, 16, 0);
+		raster.setupVertex(V111, 16, 16, 16);
+
+		int minX = Integer.MAX_VALUE;
+		int minY = Integer.MAX_VALUE;
+		int maxX = Integer.MIN_VALUE;
+		int maxY = Integer.MIN_VALUE;
+
+		for (int v = V000; v <= V111; v += PROJECTED_VERTEX_STRIDE) {
+			if (raster.needsNearClip(v) != 0) {
+				return true;
+			}
+
+			final int x = data[v + PV_PX + IDX_VERTEX_DATA];
+			final int y = data[v + PV_PY + IDX_VERTEX_DATA];
+			minX = Math.min(minX, x);
+			minY = Math.min(minY, y);
+			maxX = Math.max(maxX, x);
+			maxY = Math.max(maxY, y);
+		}
+
+		// off screen - draw would do nothing
+		if (maxX <= 0 || maxY <= 0 || minX >= raster.preciseWidth || minY >= raster.preciseHeight) {
+			return false;
+		}
+
+		return !reprojector.isValid(
+				Math.max(0, minX) >> PRECISION_BITS,
+				Math.max(0, minY) >> PRECISION_BITS,
+				Math.min(raster.preciseWidth - 1, maxX) >> PRECISION_BITS,
+				Math.min(raster.preciseHeight - 1, maxY) >> PRECISION_BITS);
+	}
+
 	/**
 	 * Does not rely on winding order but instead the distance from
 	 * plane with known facing to camera position.
@@ -810,6 +1142,186 @@ public class TerrainOccluder {
 		return boxTests[outcome].apply(x0, y0, z0, x1, y1, z1);
 	}
 
+	/**
+	 * Tests many boxes at once, with the same results as calling {@link #prepareRegion(BlockPos, int)}
+	 * and {@link #isBoxVisible(int)} for each box. Origins are block coordinates, three values (x, y, z)
+	 * per box. Sets bit i of resultBits if box i is visible and clears it otherwise, so resultBits
+	 * must hold at least (count + 63) / 64 words.
+	 *
+	 * <p>Corners of all boxes are transformed to clip space in flat primitive loops before
+	 * any coverage test runs, instead of one matrix setup and eight vertex transforms per call.
+	 *
+	 * <p>NB: only for boxes known together and tested against the same raster state. Terrain iteration
+	 * tests each region after drawing the nearer regions of its level, so results for a whole level would
+	 * miss those occluders. Entities are tested one at a time as the entity render loop asks.
+	 */
+	public void isBoxesVisible(int[] packedBoxes, int[] origins, int count, long[] resultBits) {
+		ensureBatchCapacity(count);
+
+		final int[] outcomes = batchOutcomes;
+		final int[] bx0 = batchX0, by0 = batchY0, bz0 = batchZ0;
+		final int[] bx1 = batchX1, by1 = batchY1, bz1 = batchZ1;
+		final long[] btx = batchTx, bty = batchTy, btz = batchTz, btw = batchTw;
+		final long viewX = this.viewX, viewY = this.viewY, viewZ = this.viewZ;
+
+		final Matrix4L m = baseMvpMatrix;
+		final long a00 = m.a00(), a01 = m.a01(), a02 = m.a02(), a03 = m.a03();
+		final long a10 = m.a10(), a11 = m.a11(), a12 = m.a12(), a13 = m.a13();
+		final long a20 = m.a20(), a21 = m.a21(), a22 = m.a22(), a23 = m.a23();
+		final long a30 = m.a30(), a31 = m.a31(), a32 = m.a32(), a33 = m.a33();
+		final int shift = Matrix4L.MATRIX_PRECISION_BITS - CAMERA_PRECISION_BITS;
+
+		// unpack boxes, find visible faces and translate matrix to each origin - same math as prepareRegion
+		for (int i = 0, o = 0; i < count; i++, o += 3) {
+			final int packedBox = packedBoxes[i];
+			final int x0 = PackedBox.x0(packedBox) - 1;
+			final int y0 = PackedBox.y0(packedBox) - 1;
+			final int z0 = PackedBox.z0(packedBox) - 1;
+			final int x1 = PackedBox.x1(packedBox) + 1;
+			final int y1 = PackedBox.y1(packedBox) + 1;
+			final int z1 = PackedBox.z1(packedBox) + 1;
+			bx0[i] = x0;
+			by0[i] = y0;
+			bz0[i] = z0;
+			bx1[i] = x1;
+			by1[i] = y1;
+			bz1[i] = z1;
+
+			final int offsetX = (int) ((origins[o] << CAMERA_PRECISION_BITS) - viewX);
+			final int offsetY = (int) ((origins[o + 1] << CAMERA_PRECISION_BITS) - viewY);
+			final int offsetZ = (int) ((origins[o + 2] << CAMERA_PRECISION_BITS) - viewZ);
+
+			int outcome = 0;
+
+			if (offsetY < -(y1 << CAMERA_PRECISION_BITS)) {
+				outcome |= UP;
+			} else if (offsetY > -(y0 << CAMERA_PRECISION_BITS)) {
+				outcome |= DOWN;
+			}
+
+			if (offsetX < -(x1 << CAMERA_PRECISION_BITS)) {
+				outcome |= EAST;
+			} else if (offsetX > -(x0 << CAMERA_PRECISION_BITS)) {
+				outcome |= WEST;
+			}
+
+			if (offsetZ < -(z1 << CAMERA_PRECISION_BITS)) {
+				outcome |= SOUTH;
+			} else if (offsetZ > -(z0 << CAMERA_PRECISION_BITS)) {
+				outcome |= NORTH;
+			}
+
+			outcomes[i] = outcome;
+
+			final long tx = (long) offsetX << shift;
+			final long ty = (long) offsetY << shift;
+			final long tz = (long) offsetZ << shift;
+			btx[i] = a03 + ((a00 * tx + a01 * ty + a02 * tz + a03 + Matrix4L.MATRIX_PRECISION_HALF) >> Matrix4L.MATRIX_PRECISION_BITS);
+			bty[i] = a13 + ((a10 * tx + a11 * ty + a12 * tz + a13 + Matrix4L.MATRIX_PRECISION_HALF) >> Matrix4L.MATRIX_PRECISION_BITS);
+			btz[i] = a23 + ((a20 * tx + a21 * ty + a22 * tz + a23 + Matrix4L.MATRIX_PRECISION_HALF) >> Matrix4L.MATRIX_PRECISION_BITS);
+			btw[i] = a33 + ((a30 * tx + a31 * ty + a32 * tz + a33 + Matrix4L.MATRIX_PRECISION_HALF) >> Matrix4L.MATRIX_PRECISION_BITS);
+		}
+
+		final float[] clipX = batchClipX, clipY = batchClipY, clipZ = batchClipZ, clipW = batchClipW;
+		final int capacity = batchCapacity;
+
+		// transform corners, one corner of every box per pass so the loop body has no branches
+		for (int corner = 0; corner < 8; corner++) {
+			final int[] xs = (corner & 4) == 0 ? bx0 : bx1;
+			final int[] ys = (corner & 2) == 0 ? by0 : by1;
+			final int[] zs = (corner & 1) == 0 ? bz0 : bz1;
+			final int base = corner * capacity;
+
+			for (int i = 0; i < count; i++) {
+				final int x = xs[i];
+				final int y = ys[i];
+				final int z = zs[i];
+				clipX[base + i] = (a00 * x + a01 * y + a02 * z + btx[i]) * Matrix4L.FLOAT_CONVERSION;
+				clipY[base + i] = (a10 * x + a11 * y + a12 * z + bty[i]) * Matrix4L.FLOAT_CONVERSION;
+				clipZ[base + i] = (a20 * x + a21 * y + a22 * z + btz[i]) * Matrix4L.FLOAT_CONVERSION;
+				clipW[base + i] = (a30 * x + a31 * y + a32 * z + btw[i]) * Matrix4L.FLOAT_CONVERSION;
+			}
+		}
+
+		final Rasterizer raster = this.raster;
+		final PreparedBoxTest[] preparedBoxTests = this.preparedBoxTests;
+
+		for (int i = 0; i < count; i++) {
+			final int outcome = outcomes[i];
+			boolean visible = false;
+
+			if (outcome != 0) {
+				final int corners = OUTCOME_CORNERS[outcome];
+
+				for (int corner = 0, c = i; corner < 8; corner++, c += capacity) {
+					if ((corners & (1 << corner)) != 0) {
+						raster.setupVertex(V000 + corner * PROJECTED_VERTEX_STRIDE, clipX[c], clipY[c], clipZ[c], clipW[c]);
+					}
+				}
+
+				visible = preparedBoxTests[outcome].apply();
+			}
+
+			if (visible) {
+				resultBits[i >> 6] |= 1L << i;
+			} else {
+				resultBits[i >> 6] &= ~(1L << i);
+			}
+		}
+	}
+
+	private void ensureBatchCapacity(int count) {
+		if (count > batchCapacity) {
+			final int capacity = Math.max(64, Integer.highestOneBit(count - 1) << 1);
+			batchCapacity = capacity;
+			batchOutcomes = new int[capacity];
+			batchX0 = new int[capacity];
+			batchY0 = new int[capacity];
+			batchZ0 = new int[capacity];
+			batchX1 = new int[capacity];
+			batchY1 = new int[capacity];
+			batchZ1 = new int[capacity];
+			batchTx = new long[capacity];
+			batchTy = new long[capacity];
+			batchTz = new long[capacity];
+			batchTw = new long[capacity];
+			batchClipX = new float[capacity * 8];
+			batchClipY = new float[capacity * 8];
+			batchClipZ = new float[capacity * 8];
+			batchClipW = new float[capacity * 8];
+		}
+	}
+
+	/**
+	 * Tests a box in block coordinates that need not be aligned to a region, such as the
+	 * bounds of an entity. Max coordinates are exclusive. Boxes too large to pack and boxes
+	 * that contain the camera are always visible.
+	 */
+	public boolean isBlockBoxVisible(int x0, int y0, int z0, int x1, int y1, int z1) {
+		final int dx = x1 - x0;
+		final int dy = y1 - y0;
+		final int dz = z1 - z0;
+
+		if ((dx | dy | dz) > MAX_PACKED_BOX_SIZE) {
+			return true;
+		}
+
+		prepareRegion(x0, y0, z0, 0);
+
+		// isBoxVisible reports boxes around the camera as hidden because there is no face to test
+		final int offsetX = this.offsetX;
+		final int offsetY = this.offsetY;
+		final int offsetZ = this.offsetZ;
+
+		if (offsetX >= -((dx + 1) << CAMERA_PRECISION_BITS) && offsetX <= (1 << CAMERA_PRECISION_BITS)
+				&& offsetY >= -((dy + 1) << CAMERA_PRECISION_BITS) && offsetY <= (1 << CAMERA_PRECISION_BITS)
+				&& offsetZ >= -((dz + 1) << CAMERA_PRECISION_BITS) && offsetZ <= (1 << CAMERA_PRECISION_BITS)) {
+			return true;
+		}
+
+		return isBoxVisible(PackedBox.pack(0, 0, 0, dx, dy, dz, PackedBox.RANGE_EXTREME));
+	}
+
 	public boolean isEmptyRegionVisible(BlockPos origin) {
 		prepareRegion(origin, 0);
 		return isBoxVisible(PackedBox.FULL_BOX);
@@ -871,6 +1383,27 @@ public class TerrainOccluder {
 		}
 	}
 
+	/**
+	 * Like {@link #occlude(int[])} but for occluders that may be farther than regions
+	 * tested afterwards, for example occluders drawn ahead of or outside the near-to-far
+	 * traversal. Tests compare against the depth of these occluders instead of assuming
+	 * they are in front.
+	 */
+	public void occludeUnordered(int[] visData) {
+		raster.drawOrdered = false;
+		occlude(visData);
+		raster.drawOrdered = true;
+	}
+
+	/**
+	 * Draws a single box of the current region as an out-of-order occluder.
+	 */
+	public void occludeUnordered(int packedBox) {
+		raster.drawOrdered = false;
+		occludeInner(packedBox);
+		raster.drawOrdered = true;
+	}
+
 	/**
 	 * Returns value with face flags set when all such
 	 * faces in the region are at least 64 blocks away camera.
@@ -947,6 +1480,14 @@ public class TerrainOccluder {
 		return outcome;
 	}
 
+	/**
+	 * Tests the visible faces of a box with the vertices it needs already set up.
+	 */
+	@FunctionalInterface
+	interface PreparedBoxTest {
+		boolean apply();
+	}
+
 	@FunctionalInterface
 	interface BoxTest {
 		boolean apply(int x0, int y0, int z0, int x1, int y1, int z1);
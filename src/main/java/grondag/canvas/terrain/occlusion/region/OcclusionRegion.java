@@ -16,6 +16,7 @@
 
 package grondag.canvas.terrain.occlusion.region;
 
+import grondag.canvas.apiimpl.util.FaceConstants;
 import it.unimi.dsi.fastutil.ints.IntArrayFIFOQueue;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
 import net.minecraft.block.BlockRenderType;
@@ -27,6 +28,8 @@ public abstract class OcclusionRegion {
 	public static final int CULL_DATA_REGION_BOUNDS = 0;
 	public static final int CULL_DATA_FIRST_BOX = 1;
 	public static final int[] EMPTY_CULL_DATA = {PackedBox.EMPTY_BOX};
+	/** Face connectivity of a region in which every face can see every other face. */
+	public static final int ALL_FACES_CONNECTED = (1 << 15) - 1;
 	// PERF: do we need space for exterior positions in all cases?
 	static final int RENDERABLE_OFFSET = TOTAL_CACHE_WORDS;
 	static final int EXTERIOR_VISIBLE_OFFSET = RENDERABLE_OFFSET + TOTAL_CACHE_WORDS;
@@ -57,10 +60,70 @@ public abstract class OcclusionRegion {
 		}
 	}
 
+	/** Index is from face * 6 + to face, value is the bit for the pair, or zero when the faces are the same. */
+	private static final int[] FACE_PAIR_BITS = new int[36];
+
+	/**
+	 * First index is destination face, second is a set of entry face flags.
+	 * Value is the union of pair bits connecting the destination with any of the entry faces.
+	 */
+	private static final int[][] CONNECTED_FROM_MASKS = new int[6][64];
+
+	/** Union of pair bits for every pair within a set of face flags. */
+	private static final int[] FACE_SET_CONNECTIVITY = new int[64];
+
+	static {
+		int bit = 0;
+
+		for (int i = 0; i < 6; ++i) {
+			for (int j = i + 1; j < 6; ++j) {
+				FACE_PAIR_BITS[i * 6 + j] = 1 << bit;
+				FACE_PAIR_BITS[j * 6 + i] = 1 << bit;
+				++bit;
+			}
+		}
+
+		assert bit == 15;
+
+		for (int to = 0; to < 6; ++to) {
+			for (int flags = 0; flags < 64; ++flags) {
+				int mask = 0;
+
+				for (int from = 0; from < 6; ++from) {
+					if ((flags & (1 << from)) != 0) {
+						mask |= FACE_PAIR_BITS[from * 6 + to];
+					}
+				}
+
+				CONNECTED_FROM_MASKS[to][flags] = mask;
+			}
+		}
+
+		for (int flags = 0; flags < 64; ++flags) {
+			int mask = 0;
+
+			for (int from = 0; from < 6; ++from) {
+				if ((flags & (1 << from)) != 0) {
+					mask |= CONNECTED_FROM_MASKS[from][flags];
+				}
+			}
+
+			FACE_SET_CONNECTIVITY[flags] = mask;
+		}
+	}
+
+	private static final int WEST_FLAG = 1 << FaceConstants.WEST_INDEX;
+	private static final int EAST_FLAG = 1 << FaceConstants.EAST_INDEX;
+	private static final int DOWN_FLAG = 1 << FaceConstants.DOWN_INDEX;
+	private static final int UP_FLAG = 1 << FaceConstants.UP_INDEX;
+	private static final int NORTH_FLAG = 1 << FaceConstants.NORTH_INDEX;
+	private static final int SOUTH_FLAG = 1 << FaceConstants.SOUTH_INDEX;
+
 	public final BoxFinder boxFinder = new BoxFinder(new AreaFinder());
 	private final IntArrayFIFOQueue queue = new IntArrayFIFOQueue();
 	private final long[] bits = new long[WORD_COUNT];
 	private int openCount;
+	private int faceConnectivity;
 	private int minRenderableX;
 	private int minRenderableY;
 	private int minRenderableZ;
@@ -445,6 +508,8 @@ public abstract class OcclusionRegion {
 	//	public static final RegionOcclusionData ALL_CLOSED;
 
 	public int[] build(boolean isNear) {
+		faceConnectivity = 0;
+
 		if (openCount == 0) {
 			// only surface blocks are visible, and only if not covered
 
@@ -461,23 +526,65 @@ public abstract class OcclusionRegion {
 		}
 	}
 
+	/**
+	 * Pairs of faces that can see each other through open space, computed by the last call to {@link #build(boolean)}.
+	 * Zero if the region is fully closed.  See {@link #faceConnectivityBit(int, int)}.
+	 */
+	public int faceConnectivity() {
+		return faceConnectivity;
+	}
+
+	/**
+	 * Bit set in {@link #faceConnectivity()} when the given faces are connected.
+	 * Six faces give fifteen distinct pairs, same as vanilla chunk occlusion data.
+	 */
+	public static int faceConnectivityBit(int fromFaceIndex, int toFaceIndex) {
+		return FACE_PAIR_BITS[fromFaceIndex * 6 + toFaceIndex];
+	}
+
+	/**
+	 * Mask of faces reachable from any of the given entry faces.
+	 * Faces given as entry faces are not included unless they connect to another entry face.
+	 */
+	public static int connectedFaces(int faceConnectivity, int entryFaceFlags) {
+		int result = 0;
+
+		for (int to = 0; to < 6; ++to) {
+			if ((faceConnectivity & CONNECTED_FROM_MASKS[to][entryFaceFlags]) != 0) {
+				result |= 1 << to;
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Visits every open position connected to the given position and records which pairs of faces
+	 * the open space connects, like vanilla chunk occlusion data.
+	 */
 	private void fill(int xyz4) {
-		final int faceBits = 0;
 		setVisited(xyz4);
-		visit(xyz4, faceBits);
+		int faceFlags = visit(xyz4, 0);
 
 		while (!queue.isEmpty()) {
 			final int nextXyz4 = queue.dequeueInt();
-			visit(nextXyz4, faceBits);
+			faceFlags = visit(nextXyz4, faceFlags);
 		}
+
+		faceConnectivity |= FACE_SET_CONNECTIVITY[faceFlags];
 	}
 
-	private void visit(int xyz4, int faceBits) {
+	/**
+	 * @return Face flags with flags of any faces the position touches added.
+	 */
+	private int visit(int xyz4, int faceFlags) {
 		final int x = xyz4 & 0xF;
 
 		if (x == 0) {
+			faceFlags |= WEST_FLAG;
 			enqueIfUnvisited(xyz4 + 1);
 		} else if (x == 15) {
+			faceFlags |= EAST_FLAG;
 			enqueIfUnvisited(xyz4 - 1);
 		} else {
 			enqueIfUnvisited(xyz4 - 1);
@@ -487,8 +594,10 @@ public abstract class OcclusionRegion {
 		final int y = xyz4 & 0xF0;
 
 		if (y == 0) {
+			faceFlags |= DOWN_FLAG;
 			enqueIfUnvisited(xyz4 + 0x10);
 		} else if (y == 0xF0) {
+			faceFlags |= UP_FLAG;
 			enqueIfUnvisited(xyz4 - 0x10);
 		} else {
 			enqueIfUnvisited(xyz4 - 0x10);
@@ -498,13 +607,17 @@ public abstract class OcclusionRegion {
 		final int z = xyz4 & 0xF00;
 
 		if (z == 0) {
+			faceFlags |= NORTH_FLAG;
 			enqueIfUnvisited(xyz4 + 0x100);
 		} else if (z == 0xF00) {
+			faceFlags |= SOUTH_FLAG;
 			enqueIfUnvisited(xyz4 - 0x100);
 		} else {
 			enqueIfUnvisited(xyz4 - 0x100);
 			enqueIfUnvisited(xyz4 + 0x100);
 		}
+
+		return faceFlags;
 	}
 
 	private void enqueIfUnvisited(int xyz4) {
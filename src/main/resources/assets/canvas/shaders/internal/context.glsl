@@ -23,5 +23,8 @@
 
 //#define USE_FLAT_VARYING
 
+// true if merged terrain faces may repeat their sprite - requires texture2DGrad
+//#define ENABLE_SPRITE_REPEAT
+
 #define TARGET_BASECOLOR 0
 #define TARGET_EMISSIVE -1
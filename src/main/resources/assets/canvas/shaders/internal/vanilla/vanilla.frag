@@ -56,9 +56,23 @@ vec4 light(frx_FragmentData fragData) {
 	#endif
 }
 
+vec4 spriteColor() {
+	#if defined(CONTEXT_IS_BLOCK) && defined(ENABLE_SPRITE_REPEAT)
+	if (_cvv_repeatUv.z > 0.5) {
+		// wrap within the sprite but take gradients from the unwrapped coordinates
+		// so the mip level doesn't jump at sprite edges
+		vec2 scaled = _cvv_repeatUv.xy * _cvv_spriteBounds.zw;
+		vec2 uv = _cvv_spriteBounds.xy + fract(_cvv_repeatUv.xy) * _cvv_spriteBounds.zw;
+		return texture2DGrad(frxs_spriteAltas, uv, dFdx(scaled), dFdy(scaled));
+	}
+	#endif
+
+	return texture2D(frxs_spriteAltas, _cvv_texcoord, _cv_getFlag(_CV_FLAG_UNMIPPED) * -4.0);
+}
+
 void main() {
 	frx_FragmentData fragData = frx_FragmentData (
-	texture2D(frxs_spriteAltas, _cvv_texcoord, _cv_getFlag(_CV_FLAG_UNMIPPED) * -4.0),
+	spriteColor(),
 	_cvv_color,
 	frx_matEmissive() ? 1.0 : 0.0,
 	!frx_matDisableDiffuse(),
@@ -49,6 +49,19 @@ void main() {
 	spriteBounds -= fract(spriteBounds);
 	spriteBounds /= vec4(_CV_ATLAS_WIDTH, _CV_ATLAS_HEIGHT, _CV_ATLAS_WIDTH, _CV_ATLAS_HEIGHT);
 
+	#if defined(CONTEXT_IS_BLOCK) && defined(ENABLE_SPRITE_REPEAT)
+	// merged faces encode sprite repeat counts (u | v << 8) in the high half of the material
+	if (in_material.y > 0.0) {
+		float repeatV = floor(in_material.y / 256.0);
+		float repeatU = in_material.y - repeatV * 256.0;
+		_cvv_repeatUv = vec3(data.spriteUV * vec2(repeatU, repeatV), 1.0);
+	} else {
+		_cvv_repeatUv = vec3(0.0, 0.0, 0.0);
+	}
+
+	_cvv_spriteBounds = spriteBounds;
+	#endif
+
 	data.spriteUV = spriteBounds.xy + data.spriteUV * spriteBounds.zw;
 	data.spriteUV = _cv_textureCoord(data.spriteUV, 0);
 
@@ -7,6 +7,12 @@
 
 #ifdef CONTEXT_IS_BLOCK
 varying float _cvv_ao;
+
+#ifdef ENABLE_SPRITE_REPEAT
+// z component is 1.0 when the quad repeats its sprite, 0.0 otherwise
+varying vec3 _cvv_repeatUv;
+varying vec4 _cvv_spriteBounds;
+#endif
 #endif
 
 #if DIFFUSE_SHADING_MODE != DIFFUSE_MODE_NONE
@@ -0,0 +1,243 @@
+package grondag.canvas.apiimpl.rendercontext;
+
+import java.util.Random;
+import java.util.function.IntUnaryOperator;
+
+import org.junit.jupiter.api.Test;
+
+import grondag.canvas.apiimpl.rendercontext.BlockTesselationCache.Entry;
+import grondag.canvas.buffer.encoding.VertexCollectorImpl;
+import grondag.canvas.buffer.encoding.VertexCollectorList;
+import grondag.canvas.material.EncodingContext;
+import grondag.canvas.material.MaterialState;
+import grondag.canvas.material.MaterialVertexFormats;
+import grondag.canvas.shader.ShaderPass;
+
+/**
+ * Cached output placed at another block must match what tesselating the block there gives.
+ *
+ * <p>Blocks are encoded here the way the direct encoders write them, with positions transformed
+ * by the same expression as QuadViewImpl.transformAndAppend for the translation matrix of a terrain
+ * block.  Cached positions are stored relative to the block and translated again, so they can
+ * round differently: by at most an ULP of the position where the block was cached plus an ULP
+ * of the position where it is placed.  Models on the 1/16 grid at whole block positions,
+ * which is most terrain, round the same and must match exactly.
+ */
+class BlockTesselationCacheTest {
+	static final int VERTEX_STRIDE = MaterialVertexFormats.VANILLA_BLOCKS_AND_ITEMS.vertexStrideInts;
+
+	/** Model-space block translations: region offsets within a 256 block render cube plus the position in the region. */
+	static final float[][] TRANSLATIONS = {
+		{0, 0, 0},
+		{3, 200, 17},
+		{250, 7, 131},
+		{15.9f, 255.5f, 0.25f},
+		{128.2f, 64, 240.3f}
+	};
+
+	/** Full cube up face and side face. */
+	static final float[][] CUBE = {
+		{0, 1, 0, 0, 1, 1, 1, 1, 1, 1, 1, 0},
+		{0, 0, 0, 0, 1, 0, 1, 1, 0, 1, 0, 0}
+	};
+
+	/** Both planes of a cross model, as used by plants, and a slab-high face on the 1/16 grid. */
+	static final float[][] CROSS = {
+		{0.1464466f, 0, 0.1464466f, 0.1464466f, 1, 0.1464466f, 0.8535534f, 1, 0.8535534f, 0.8535534f, 0, 0.8535534f},
+		{0.1464466f, 0, 0.8535534f, 0.1464466f, 1, 0.8535534f, 0.8535534f, 1, 0.1464466f, 0.8535534f, 0, 0.1464466f},
+		{0.0625f, 0.5f, 0.0625f, 0.0625f, 0.5f, 0.9375f, 0.9375f, 0.5f, 0.9375f, 0.9375f, 0.5f, 0.0625f}
+	};
+
+	static MaterialState solid() {
+		return MaterialState.getDefault(ShaderPass.SOLID);
+	}
+
+	static VertexCollectorList newCollectors() {
+		final VertexCollectorList collectors = new VertexCollectorList();
+		collectors.setContext(EncodingContext.TERRAIN);
+		return collectors;
+	}
+
+	/**
+	 * Appends quads of a model translated to a block, as the encoders do.
+	 *
+	 * @param color Block color of every vertex, from a color provider or white.
+	 */
+	static void tesselate(VertexCollectorImpl collector, float[][] model, int color, float[] translation) {
+		final int[] vertex = new int[VERTEX_STRIDE];
+
+		for (int q = 0; q < model.length; q++) {
+			for (int v = 0; v < 4; v++) {
+				final float x = model[q][v * 3];
+				final float y = model[q][v * 3 + 1];
+				final float z = model[q][v * 3 + 2];
+				vertex[0] = Float.floatToRawIntBits(1f * x + 0f * y + 0f * z + translation[0]);
+				vertex[1] = Float.floatToRawIntBits(0f * x + 1f * y + 0f * z + translation[1]);
+				vertex[2] = Float.floatToRawIntBits(0f * x + 0f * y + 1f * z + translation[2]);
+				vertex[3] = color;
+				vertex[4] = (v & 2) == 0 ? 0 : 0xFFFF;
+				vertex[5] = 0xF0 | (0xD0 << 8);
+				vertex[6] = (127 << 8) | (0x7F << 24);
+				vertex[7] = 0x2A + q;
+				collector.add(vertex, VERTEX_STRIDE);
+			}
+		}
+	}
+
+	/**
+	 * Tesselates a block after other blocks, so collectors don't start empty, and captures it
+	 * as the cache does.
+	 *
+	 * @param afterSolid True if a block before it added the solid collector, otherwise this block adds it.
+	 */
+	static Entry tesselateAndCapture(float[][] solidModel, float[][] translucentModel, int color, float[] translation, int[] colors, boolean afterSolid) {
+		final VertexCollectorList collectors = newCollectors();
+		tesselate(collectors.getTranslucent(), CUBE, -1, TRANSLATIONS[1]);
+
+		if (afterSolid) {
+			tesselate(collectors.get(solid()), CUBE, -1, TRANSLATIONS[1]);
+		}
+
+		final int solidCount = collectors.solidCount();
+		final int translucentStart = collectors.getTranslucent().integerSize();
+		final int[] solidStarts = new int[solidCount];
+
+		for (int i = 0; i < solidCount; i++) {
+			solidStarts[i] = collectors.getSolid(i).integerSize();
+		}
+
+		tesselate(collectors.get(solid()), solidModel, color, translation);
+		tesselate(collectors.getTranslucent(), translucentModel, color, translation);
+		return Entry.capture(collectors, translucentStart, solidStarts, solidCount, translation[0], translation[1], translation[2], colors);
+	}
+
+	/**
+	 * Compares cached output emitted after other blocks with tesselating there.
+	 *
+	 * @param exact True if positions must round the same.
+	 */
+	static void assertSameOutput(Entry entry, float[][] solidModel, float[][] translucentModel, int color, float[] cachedAt, float[] placedAt, boolean exact) {
+		final VertexCollectorList cached = newCollectors();
+		final VertexCollectorList tesselated = newCollectors();
+		tesselate(cached.get(solid()), CUBE, -1, TRANSLATIONS[2]);
+		tesselate(tesselated.get(solid()), CUBE, -1, TRANSLATIONS[2]);
+
+		entry.emit(cached, placedAt[0], placedAt[1], placedAt[2]);
+		tesselate(tesselated.get(solid()), solidModel, color, placedAt);
+		tesselate(tesselated.getTranslucent(), translucentModel, color, placedAt);
+
+		assertSameOutput(cached.get(solid()), tesselated.get(solid()), cachedAt, placedAt, exact);
+		assertSameOutput(cached.getTranslucent(), tesselated.getTranslucent(), cachedAt, placedAt, exact);
+	}
+
+	static void assertSameOutput(VertexCollectorImpl cached, VertexCollectorImpl tesselated, float[] cachedAt, float[] placedAt, boolean exact) {
+		assert cached.integerSize() == tesselated.integerSize();
+		final int[] c = cached.copyRange(0, cached.integerSize());
+		final int[] t = tesselated.copyRange(0, tesselated.integerSize());
+
+		for (int i = 0; i < c.length; i++) {
+			final int attribute = i % VERTEX_STRIDE;
+
+			if (attribute > 2 || exact) {
+				assert c[i] == t[i] : "Cached output differs at " + i + " for block cached at " + str(cachedAt) + " and placed at " + str(placedAt);
+			} else {
+				final float cachedPos = Float.intBitsToFloat(c[i]);
+				final float tesselatedPos = Float.intBitsToFloat(t[i]);
+				// same position tesselated where the block was cached
+				final float capturedPos = tesselatedPos - placedAt[attribute] + cachedAt[attribute];
+				final float tolerance = Math.ulp(capturedPos) + Math.ulp(tesselatedPos);
+
+				assert Math.abs(cachedPos - tesselatedPos) <= tolerance : "Cached position " + cachedPos + " differs from " + tesselatedPos
+						+ " for block cached at " + str(cachedAt) + " and placed at " + str(placedAt);
+			}
+		}
+	}
+
+	static String str(float[] translation) {
+		return translation[0] + ", " + translation[1] + ", " + translation[2];
+	}
+
+	@Test
+	void testTwoPositions() {
+		for (final float[] cachedAt : TRANSLATIONS) {
+			final Entry cube = tesselateAndCapture(CUBE, CUBE, -1, cachedAt, new int[0], true);
+			final Entry cross = tesselateAndCapture(CROSS, new float[0][], -1, cachedAt, new int[0], false);
+
+			for (final float[] placedAt : TRANSLATIONS) {
+				final boolean wholeBlocks = isWhole(cachedAt) && isWhole(placedAt);
+				assertSameOutput(cube, CUBE, CUBE, -1, cachedAt, placedAt, wholeBlocks);
+				assertSameOutput(cross, CROSS, new float[0][], -1, cachedAt, placedAt, false);
+			}
+		}
+	}
+
+	/**
+	 * Random model positions, including off-grid models at offset positions like flowers.
+	 */
+	@Test
+	void testRandomPositions() {
+		final Random r = new Random(42);
+
+		for (int i = 0; i < 10000; i++) {
+			final float[][] model = new float[1][12];
+
+			for (int j = 0; j < 12; j++) {
+				model[0][j] = r.nextInt(4) == 0 ? r.nextInt(17) / 16f : r.nextFloat();
+			}
+
+			final float[] cachedAt = randomTranslation(r);
+			final float[] placedAt = randomTranslation(r);
+			final Entry entry = tesselateAndCapture(model, new float[0][], -1, cachedAt, new int[0], r.nextBoolean());
+			assertSameOutput(entry, model, new float[0][], -1, cachedAt, placedAt, false);
+		}
+	}
+
+	static float[] randomTranslation(Random r) {
+		final float[] result = new float[3];
+
+		for (int i = 0; i < 3; i++) {
+			result[i] = r.nextInt(256);
+
+			if (r.nextBoolean()) {
+				// random offset of plants
+				result[i] += (r.nextInt(16) / 15f - 0.5f) * 0.5f;
+			}
+		}
+
+		return result;
+	}
+
+	static boolean isWhole(float[] translation) {
+		return translation[0] == (int) translation[0] && translation[1] == (int) translation[1] && translation[2] == (int) translation[2];
+	}
+
+	/**
+	 * Blocks with a color provider, like grass and leaves, only reuse output where the provider
+	 * gives the colors the entry was built with.
+	 */
+	@Test
+	void testColorProvider() {
+		final int grass = 0xFF79C05A;
+		final int dryGrass = 0xFFBFB755;
+		final float[] cachedAt = TRANSLATIONS[1];
+		final float[] placedAt = TRANSLATIONS[2];
+
+		// looked up color index 0, as the tinted faces of grass blocks do
+		final Entry entry = tesselateAndCapture(CUBE, new float[0][], grass, cachedAt, new int[] {0, grass}, true);
+
+		final IntUnaryOperator sameBiome = i -> i == 0 ? grass : -1;
+		assert entry.matchesColors(sameBiome);
+		assertSameOutput(entry, CUBE, new float[0][], grass, cachedAt, placedAt, true);
+
+		// another biome tints the same block differently and must tesselate again
+		assert !entry.matchesColors(i -> i == 0 ? dryGrass : -1);
+
+		// every logged color must match
+		final Entry twoColors = tesselateAndCapture(CUBE, new float[0][], grass, cachedAt, new int[] {0, grass, 1, dryGrass}, false);
+		assert twoColors.matchesColors(i -> i == 0 ? grass : dryGrass);
+		assert !twoColors.matchesColors(i -> grass);
+
+		// blocks without a color provider match anywhere
+		assert tesselateAndCapture(CUBE, new float[0][], -1, cachedAt, new int[0], false).matchesColors(i -> dryGrass);
+	}
+}
@@ -0,0 +1,299 @@
+package grondag.canvas.buffer.encoding;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import grondag.canvas.material.EncodingContext;
+import grondag.canvas.material.MaterialState;
+import grondag.canvas.shader.ShaderPass;
+
+/**
+ * A partial rebuild must leave every collector exactly as a full build of the changed region
+ * would, block runs included, or the next partial rebuild splices quads into the wrong place.
+ *
+ * <p>Regions are stand-ins: each block has a variant that decides which layers it emits to
+ * and how many quads, and every integer of a quad is derived from block, variant, layer and
+ * position so a misplaced or stale quad can't compare equal.
+ */
+class RetainedVertexDataTest {
+	static final int BLOCK_COUNT = 4096;
+	static final int QUAD_INTS = 28;
+	static final int LAYER_COUNT = 3;
+
+	static MaterialState[] layers() {
+		return new MaterialState[] {
+			MaterialState.getDefault(ShaderPass.SOLID),
+			MaterialState.getDefault(ShaderPass.DECAL),
+			MaterialState.getDefault(ShaderPass.TRANSLUCENT)
+		};
+	}
+
+	/**
+	 * Random changes of a random region, then random changes of the result, each compared
+	 * with a full build.  Change counts cover single blocks up to every block in the region.
+	 */
+	@Test
+	void testPartialRebuild() {
+		final MaterialState[] layers = layers();
+		final Random r = new Random(42);
+
+		for (final int changeCount : new int[] {1, 2, 17, 300, 2000, BLOCK_COUNT}) {
+			final int[] world = randomWorld(r);
+			RetainedVertexData base = RetainedVertexData.capture(fullBuild(layers, world), renderedBlocks(world));
+
+			for (int pass = 0; pass < 3; pass++) {
+				final int[] changed = change(r, world, changeCount);
+				final VertexCollectorList partial = partialBuild(layers, base, world, changed);
+				assertSameLayers(layers, fullBuild(layers, world), partial, changeCount);
+
+				// the spliced output is the base of the next rebuild
+				base = RetainedVertexData.capture(partial, renderedBlocks(world));
+			}
+		}
+	}
+
+	/**
+	 * Layers that lose every block stay empty and layers that the base didn't have are added.
+	 */
+	@Test
+	void testLayerChanges() {
+		final MaterialState[] layers = layers();
+		final int[] world = new int[BLOCK_COUNT];
+
+		// decal and translucent blocks in the middle of solid ones
+		for (int i = 0; i < BLOCK_COUNT; i += 5) {
+			world[i] = variant(1, 0, 0);
+		}
+
+		for (int i = 1000; i < 1100; i++) {
+			world[i] = variant(0, 2, 3);
+		}
+
+		final RetainedVertexData base = RetainedVertexData.capture(fullBuild(layers, world), renderedBlocks(world));
+
+		// decal and translucent blocks become solid
+		final int[] changed = new int[100];
+
+		for (int i = 0; i < 100; i++) {
+			changed[i] = 1000 + i;
+			world[1000 + i] = variant(2, 0, 0);
+		}
+
+		VertexCollectorList partial = partialBuild(layers, base, world, changed);
+		assertSameLayers(layers, fullBuild(layers, world), partial, changed.length);
+		assert partial.getTranslucent().isEmpty();
+		assert partial.get(layers[1]).isEmpty();
+
+		// then translucent again, and solid blocks removed at both ends of the region
+		final RetainedVertexData next = RetainedVertexData.capture(partial, renderedBlocks(world));
+		final int[] changedAgain = {0, 5, 1050, BLOCK_COUNT - 1};
+		world[0] = 0;
+		world[5] = 0;
+		world[1050] = variant(0, 0, 4);
+		world[BLOCK_COUNT - 1] = variant(0, 3, 1);
+
+		partial = partialBuild(layers, next, world, changedAgain);
+		assertSameLayers(layers, fullBuild(layers, world), partial, changedAgain.length);
+		assert !partial.getTranslucent().isEmpty();
+	}
+
+	/**
+	 * A base without any quads, as for a region that was all air.
+	 */
+	@Test
+	void testEmptyBase() {
+		final MaterialState[] layers = layers();
+		final int[] world = new int[BLOCK_COUNT];
+		final RetainedVertexData base = RetainedVertexData.capture(fullBuild(layers, world), renderedBlocks(world));
+		final int[] changed = {0, 7, 64, 4000};
+
+		for (final int i : changed) {
+			world[i] = variant(i & 3, 1, 2);
+		}
+
+		assertSameLayers(layers, fullBuild(layers, world), partialBuild(layers, base, world, changed), changed.length);
+	}
+
+	/**
+	 * @return Block variant with the given number of quads per layer, 0 to 7.  Never zero,
+	 * which is air, so blocks without quads still count as rendered.
+	 */
+	static int variant(int solidQuads, int decalQuads, int translucentQuads) {
+		return solidQuads | (decalQuads << 3) | (translucentQuads << 6) | (1 << 9);
+	}
+
+	static int quadCount(int variant, int layer) {
+		return (variant >> (layer * 3)) & 7;
+	}
+
+	static int[] randomWorld(Random r) {
+		final int[] world = new int[BLOCK_COUNT];
+
+		for (int i = 0; i < BLOCK_COUNT; i++) {
+			world[i] = randomVariant(r);
+		}
+
+		return world;
+	}
+
+	/**
+	 * About a third of blocks are air, and some blocks emit nothing though they aren't.
+	 */
+	static int randomVariant(Random r) {
+		if (r.nextInt(3) == 0) {
+			return 0;
+		}
+
+		final int solid = r.nextInt(4) == 0 ? 0 : r.nextInt(5);
+		final int decal = r.nextInt(4) == 0 ? r.nextInt(5) : 0;
+		final int translucent = r.nextInt(3) == 0 ? r.nextInt(5) : 0;
+		// random tag so that blocks with the same quad counts still give different quads
+		return variant(solid, decal, translucent) | (r.nextInt(0x10000) << 10);
+	}
+
+	/**
+	 * Changes the given number of random blocks: removed, added, changed, or marked changed
+	 * without a change.
+	 *
+	 * @return Ascending indexes of changed blocks.
+	 */
+	static int[] change(Random r, int[] world, int count) {
+		final boolean[] isChanged = new boolean[BLOCK_COUNT];
+		int n = 0;
+
+		while (n < count) {
+			final int i = r.nextInt(BLOCK_COUNT);
+
+			if (!isChanged[i]) {
+				isChanged[i] = true;
+				++n;
+			}
+		}
+
+		final int[] result = new int[count];
+		n = 0;
+
+		for (int i = 0; i < BLOCK_COUNT; i++) {
+			if (isChanged[i]) {
+				result[n++] = i;
+
+				switch (r.nextInt(4)) {
+					case 0:
+						world[i] = 0;
+						break;
+					case 1:
+						// NB: unchanged blocks that are re-tessellated must give the same quads
+						break;
+					default:
+						world[i] = randomVariant(r);
+						break;
+				}
+			}
+		}
+
+		return result;
+	}
+
+	static long[] renderedBlocks(int[] world) {
+		final long[] result = new long[BLOCK_COUNT / 64];
+
+		for (int i = 0; i < BLOCK_COUNT; i++) {
+			if (world[i] != 0) {
+				result[i >> 6] |= 1L << (i & 63);
+			}
+		}
+
+		return result;
+	}
+
+	static VertexCollectorList newCollectors() {
+		final VertexCollectorList collectors = new VertexCollectorList();
+		collectors.setContext(EncodingContext.TERRAIN);
+		return collectors;
+	}
+
+	/**
+	 * Same order of calls as a retained build in BuiltRenderRegion.buildTerrain.
+	 */
+	static VertexCollectorList fullBuild(MaterialState[] layers, int[] world) {
+		final VertexCollectorList collectors = newCollectors();
+
+		for (int i = 0; i < BLOCK_COUNT; i++) {
+			tessellate(collectors, layers, world, i);
+			collectors.markBlock(i);
+		}
+
+		return collectors;
+	}
+
+	static VertexCollectorList partialBuild(MaterialState[] layers, RetainedVertexData base, int[] world, int[] changed) {
+		final VertexCollectorList collectors = newCollectors();
+		base.rebuild(collectors, changed, changed.length, i -> tessellate(collectors, layers, world, i));
+		return collectors;
+	}
+
+	static void tessellate(VertexCollectorList collectors, MaterialState[] layers, int[] world, int blockIndex) {
+		final int variant = world[blockIndex];
+
+		// layers in reverse so emission order isn't the same as collector order
+		for (int layer = LAYER_COUNT - 1; layer >= 0; layer--) {
+			final int quadCount = quadCount(variant, layer);
+
+			if (quadCount == 0) {
+				continue;
+			}
+
+			final VertexCollectorImpl collector = collectors.get(layers[layer]);
+			final int[] quad = new int[QUAD_INTS];
+
+			for (int q = 0; q < quadCount; q++) {
+				for (int j = 0; j < QUAD_INTS; j++) {
+					quad[j] = (blockIndex << 20) ^ variant * 31 ^ (layer << 16) ^ (q << 8) ^ j;
+				}
+
+				collector.add(quad, QUAD_INTS);
+			}
+		}
+	}
+
+	static void assertSameLayers(MaterialState[] layers, VertexCollectorList expected, VertexCollectorList actual, int changeCount) {
+		int expectedSize = 0;
+		int actualSize = 0;
+
+		for (int layer = 0; layer < LAYER_COUNT; layer++) {
+			final VertexCollectorImpl e = expected.contains(layers[layer]) ? expected.getIfExists(layers[layer]) : null;
+			final VertexCollectorImpl a = actual.contains(layers[layer]) ? actual.getIfExists(layers[layer]) : null;
+
+			assert Arrays.equals(data(e), data(a)) : "Vertex data of layer " + layer + " differs after " + changeCount + " changes";
+			assert Arrays.equals(runs(e), runs(a)) : "Block runs of layer " + layer + " differ after " + changeCount + " changes";
+			assert a == null || a.isBlockMarked();
+
+			expectedSize += e == null ? 0 : e.integerSize();
+			actualSize += a == null ? 0 : a.integerSize();
+		}
+
+		// no quads in collectors of other materials
+		assert expectedSize == totalSize(expected);
+		assert actualSize == totalSize(actual);
+	}
+
+	static int[] data(VertexCollectorImpl collector) {
+		return collector == null || collector.isEmpty() ? new int[0] : collector.saveState(null);
+	}
+
+	static int[] runs(VertexCollectorImpl collector) {
+		return collector == null ? new int[0] : collector.saveBlockRuns();
+	}
+
+	static int totalSize(VertexCollectorList collectors) {
+		int result = collectors.getTranslucent().integerSize();
+
+		for (int i = 0; i < collectors.solidCount(); i++) {
+			result += collectors.getSolid(i).integerSize();
+		}
+
+		return result;
+	}
+}
@@ -0,0 +1,352 @@
+package grondag.canvas.render;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Compares testing each region against all frustum planes with propagating plane results down
+ * the traversal.  With propagation each region passes its neighbors, per plane, how many region
+ * steps they stay fully inside that plane, and neighbors only test planes without steps left.
+ * The camera turns a full circle over the frames so that regions are seen at every angle.
+ *
+ * <p>Regions are visited breadth-first from the camera region as terrain iteration does, and
+ * hidden regions don't reach their neighbors.  Both ways must find the same regions visible.
+ *
+ * <p>CanvasFrustum can't be constructed outside the game because it depends on mixin interfaces,
+ * so the plane tests here mirror the ones in CanvasFrustum, with the same plane extraction.
+ */
+class FrustumCullPerf {
+	static final int FRAMES = 360;
+	static final float MIN_GAP = 0.0001f;
+	static final float CAMERA_X = 8.5f;
+	static final float CAMERA_Y = 72.5f;
+	static final float CAMERA_Z = 8.5f;
+	/** Bits per plane of propagated step counts. */
+	static final int STEP_BITS = 6;
+	static final int MAX_STEPS = (1 << STEP_BITS) - 1;
+
+	// plane order is left, right, near, top, bottom
+	final float[] px = new float[5];
+	final float[] py = new float[5];
+	final float[] pz = new float[5];
+	final float[] regionExtent = new float[5];
+	/** Inverse of the most a plane distance can change in one region step. */
+	final float[] inverseStep = new float[5];
+
+	int diameter;
+	/** Region centers relative to camera. */
+	float[] cx, cy, cz;
+	boolean[] present;
+	int regionCount;
+	/** Grid indices of regions visited in each frame, in traversal order. */
+	int[][] order;
+	/** Position in order of the region each region was reached from, or -1 for the camera region. */
+	int[][] parent;
+	/** Propagated step counts of each visited region, STEP_BITS per plane. */
+	int[] steps = new int[0];
+
+	/**
+	 * Regions are stored by grid index so that neighbors can be found.  Grid positions
+	 * outside the render distance circle are skipped.
+	 */
+	void prepareRegions(int renderDistance) {
+		diameter = 2 * renderDistance + 1;
+		final int limit = diameter * diameter * 16;
+		cx = new float[limit];
+		cy = new float[limit];
+		cz = new float[limit];
+		present = new boolean[limit];
+		regionCount = 0;
+
+		for (int rx = -renderDistance; rx <= renderDistance; ++rx) {
+			for (int rz = -renderDistance; rz <= renderDistance; ++rz) {
+				if (rx * rx + rz * rz > renderDistance * renderDistance) continue;
+
+				for (int ry = 0; ry < 16; ++ry) {
+					final int n = ((rx + renderDistance) * diameter + rz + renderDistance) * 16 + ry;
+					present[n] = true;
+					cx[n] = (rx << 4) + 8 - CAMERA_X;
+					cy[n] = (ry << 4) + 8 - CAMERA_Y;
+					cz[n] = (rz << 4) + 8 - CAMERA_Z;
+					++regionCount;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Breadth-first traversal of each frame from the camera region.  Frustum tests decide
+	 * which regions are reached, so the order is the same for flat and propagated tests.
+	 */
+	void prepareTraversal(int renderDistance) {
+		final int limit = present.length;
+		final int[] queue = new int[limit];
+		final int[] from = new int[limit];
+		final boolean[] seen = new boolean[limit];
+		final int cameraRegion = (renderDistance * diameter + renderDistance) * 16 + ((int) CAMERA_Y >> 4);
+		order = new int[FRAMES][];
+		parent = new int[FRAMES][];
+
+		for (int frame = 0; frame < FRAMES; ++frame) {
+			preparePlanes(frame, pitch(frame), renderDistance);
+			Arrays.fill(seen, false);
+			int head = 0;
+			int tail = 0;
+			queue[tail] = cameraRegion;
+			from[tail++] = -1;
+			seen[cameraRegion] = true;
+
+			while (head < tail) {
+				final int i = head++;
+				final int region = queue[i];
+
+				if (from[i] != -1 && !isRegionVisible(region)) continue;
+
+				final int ry = region & 15;
+				final int column = region >> 4;
+
+				tail = enqueue(queue, from, seen, tail, i, ry > 0 ? region - 1 : -1);
+				tail = enqueue(queue, from, seen, tail, i, ry < 15 ? region + 1 : -1);
+				tail = enqueue(queue, from, seen, tail, i, column >= diameter ? region - diameter * 16 : -1);
+				tail = enqueue(queue, from, seen, tail, i, column < diameter * (diameter - 1) ? region + diameter * 16 : -1);
+				tail = enqueue(queue, from, seen, tail, i, column % diameter > 0 ? region - 16 : -1);
+				tail = enqueue(queue, from, seen, tail, i, column % diameter < diameter - 1 ? region + 16 : -1);
+			}
+
+			order[frame] = Arrays.copyOf(queue, tail);
+			parent[frame] = Arrays.copyOf(from, tail);
+		}
+	}
+
+	int enqueue(int[] queue, int[] from, boolean[] seen, int tail, int fromIndex, int region) {
+		if (region >= 0 && present[region] && !seen[region]) {
+			seen[region] = true;
+			queue[tail] = region;
+			from[tail] = fromIndex;
+			return tail + 1;
+		}
+
+		return tail;
+	}
+
+	static int pitch(int frame) {
+		return (frame % 60) - 30;
+	}
+
+	/**
+	 * Perspective with 70 degree vertical field of view times a rotation for yaw and pitch,
+	 * then planes extracted the same way as CanvasFrustum.
+	 */
+	void preparePlanes(float yawDegrees, float pitchDegrees, int renderDistance) {
+		final float far = renderDistance * 16 * 4;
+		final float near = 0.05f;
+		final float f = (float) (1 / Math.tan(Math.toRadians(35)));
+		final float aspect = 16f / 9f;
+
+		final float[][] proj = {
+				{f / aspect, 0, 0, 0},
+				{0, f, 0, 0},
+				{0, 0, (far + near) / (near - far), 2 * far * near / (near - far)},
+				{0, 0, -1, 0}};
+
+		final double yaw = Math.toRadians(yawDegrees);
+		final double pitch = Math.toRadians(pitchDegrees);
+		final float sy = (float) Math.sin(yaw), cyaw = (float) Math.cos(yaw);
+		final float sp = (float) Math.sin(pitch), cp = (float) Math.cos(pitch);
+
+		// rotate about y by yaw, then about x by pitch
+		final float[][] view = {
+				{cyaw, 0, sy, 0},
+				{sp * sy, cp, -sp * cyaw, 0},
+				{-cp * sy, sp, cp * cyaw, 0},
+				{0, 0, 0, 1}};
+
+		final float[][] m = new float[4][4];
+
+		for (int r = 0; r < 4; ++r) {
+			for (int c = 0; c < 4; ++c) {
+				float sum = 0;
+
+				for (int k = 0; k < 4; ++k) {
+					sum += proj[r][k] * view[k][c];
+				}
+
+				m[r][c] = sum;
+			}
+		}
+
+		setPlane(0, m[3][0] + m[0][0], m[3][1] + m[0][1], m[3][2] + m[0][2], m[3][3] + m[0][3]);
+		setPlane(1, m[3][0] - m[0][0], m[3][1] - m[0][1], m[3][2] - m[0][2], m[3][3] - m[0][3]);
+		setPlane(2, m[3][0] + m[2][0], m[3][1] + m[2][1], m[3][2] + m[2][2], m[3][3] + m[2][3]);
+		setPlane(3, m[3][0] - m[1][0], m[3][1] - m[1][1], m[3][2] - m[1][2], m[3][3] - m[1][3]);
+		setPlane(4, m[3][0] + m[1][0], m[3][1] + m[1][1], m[3][2] + m[1][2], m[3][3] + m[1][3]);
+	}
+
+	void setPlane(int i, float x, float y, float z, float w) {
+		final float mag = (float) (-1 / Math.sqrt(x * x + y * y + z * z));
+		x *= mag;
+		y *= mag;
+		z *= mag;
+		w *= mag;
+		px[i] = x;
+		py[i] = y;
+		pz[i] = z;
+		regionExtent[i] = w - 8 * (Math.abs(x) + Math.abs(y) + Math.abs(z));
+		inverseStep[i] = 1f / (16 * Math.max(Math.abs(x), Math.max(Math.abs(y), Math.abs(z))));
+	}
+
+	/** Same as CanvasFrustum.isRegionVisible(BuiltRenderRegion), which tests all planes. */
+	boolean isRegionVisible(int region) {
+		final float x = cx[region];
+		final float y = cy[region];
+		final float z = cz[region];
+		final float[] px = this.px, py = this.py, pz = this.pz, regionExtent = this.regionExtent;
+
+		if (x * px[0] + y * py[0] + z * pz[0] + regionExtent[0] > MIN_GAP) {
+			return false;
+		}
+
+		if (x * px[1] + y * py[1] + z * pz[1] + regionExtent[1] > MIN_GAP) {
+			return false;
+		}
+
+		if (x * px[2] + y * py[2] + z * pz[2] + regionExtent[2] > MIN_GAP) {
+			return false;
+		}
+
+		if (x * px[3] + y * py[3] + z * pz[3] + regionExtent[3] > MIN_GAP) {
+			return false;
+		}
+
+		return !(x * px[4] + y * py[4] + z * pz[4] + regionExtent[4] > MIN_GAP);
+	}
+
+	long runFlat(int renderDistance, boolean[][] results) {
+		long visible = 0;
+
+		for (int frame = 0; frame < FRAMES; ++frame) {
+			preparePlanes(frame, pitch(frame), renderDistance);
+			final int[] regions = order[frame];
+			final int limit = regions.length;
+
+			for (int i = 0; i < limit; ++i) {
+				final boolean v = isRegionVisible(regions[i]);
+
+				if (results != null) {
+					results[frame][i] = v;
+				}
+
+				if (v) {
+					++visible;
+				}
+			}
+		}
+
+		return visible;
+	}
+
+	/**
+	 * Planes with steps left from the parent are skipped and pass one step less to neighbors.
+	 * Other planes are tested, and a region inside a plane passes the number of whole region steps
+	 * that can't take a neighbor's center past the plane.
+	 */
+	long runPropagated(int renderDistance, boolean[][] results) {
+		long visible = 0;
+
+		for (int frame = 0; frame < FRAMES; ++frame) {
+			preparePlanes(frame, pitch(frame), renderDistance);
+			final float[] px = this.px, py = this.py, pz = this.pz, regionExtent = this.regionExtent, inverseStep = this.inverseStep;
+			final int[] regions = order[frame];
+			final int[] from = parent[frame];
+			final int limit = regions.length;
+
+			if (steps.length < limit) {
+				steps = new int[limit];
+			}
+
+			final int[] steps = this.steps;
+
+			for (int i = 0; i < limit; ++i) {
+				final int region = regions[i];
+				final int parentSteps = from[i] == -1 ? 0 : steps[from[i]];
+				final float x = cx[region];
+				final float y = cy[region];
+				final float z = cz[region];
+				int regionSteps = 0;
+				boolean v = true;
+
+				for (int p = 0; p < 5; ++p) {
+					final int shift = p * STEP_BITS;
+					final int inherited = (parentSteps >>> shift) & MAX_STEPS;
+
+					if (inherited != 0) {
+						regionSteps |= (inherited - 1) << shift;
+						continue;
+					}
+
+					final float d = x * px[p] + y * py[p] + z * pz[p] + regionExtent[p];
+
+					if (d > MIN_GAP) {
+						v = false;
+						break;
+					}
+
+					regionSteps |= Math.min((int) (-d * inverseStep[p]), MAX_STEPS) << shift;
+				}
+
+				steps[i] = regionSteps;
+
+				if (results != null) {
+					assert results[frame][i] == v : "Propagated result differs";
+				}
+
+				if (v) {
+					++visible;
+				}
+			}
+		}
+
+		return visible;
+	}
+
+	@Test
+	void test() {
+		for (final int renderDistance : new int[] {16, 32}) {
+			prepareRegions(renderDistance);
+			prepareTraversal(renderDistance);
+			long visited = 0;
+
+			for (final int[] regions : order) {
+				visited += regions.length;
+			}
+
+			// warm up and confirm both give the same result for every region
+			final boolean[][] results = new boolean[FRAMES][];
+
+			for (int frame = 0; frame < FRAMES; ++frame) {
+				results[frame] = new boolean[order[frame].length];
+			}
+
+			final long flatVisible = runFlat(renderDistance, results);
+			assert runPropagated(renderDistance, results) == flatVisible;
+
+			for (int i = 0; i < 4; ++i) {
+				runFlat(renderDistance, null);
+				runPropagated(renderDistance, null);
+			}
+
+			long n = System.nanoTime();
+			runFlat(renderDistance, null);
+			final long flatNanos = System.nanoTime() - n;
+
+			n = System.nanoTime();
+			runPropagated(renderDistance, null);
+			final long propagatedNanos = System.nanoTime() - n;
+
+			System.out.println("RD" + renderDistance + " " + regionCount + " regions, " + (visited / FRAMES) + " visited and " + (flatVisible / FRAMES) + " visible per frame");
+			System.out.println("RD" + renderDistance + " all planes: " + (flatNanos / FRAMES / 1000) + "us per frame");
+			System.out.println("RD" + renderDistance + " propagated plane steps: " + (propagatedNanos / FRAMES / 1000) + "us per frame");
+		}
+	}
+}
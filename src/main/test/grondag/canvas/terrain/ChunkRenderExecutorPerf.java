@@ -0,0 +1,136 @@
+package grondag.canvas.terrain;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.Test;
+
+import grondag.canvas.apiimpl.rendercontext.TerrainRenderContext;
+
+/**
+ * Throughput of the work-stealing executor against the single priority queue it replaced,
+ * on synthetic builds.  Most tasks are tiny, like empty or all-air sections, so workers
+ * finish together and contend to take the next task.  A few are full builds.
+ */
+class ChunkRenderExecutorPerf {
+	static final int TASK_COUNT = 200000;
+	/** Spin iterations of a small and a full build. */
+	static final int SMALL_WORK = 50;
+	static final int LARGE_WORK = 20000;
+	/** One task in this many is a full build. */
+	static final int LARGE_INTERVAL = 64;
+
+	static volatile long sink;
+
+	interface Executor {
+		void execute(Consumer<TerrainRenderContext> task, int squaredDistance);
+	}
+
+	/** The executor before work stealing: every worker takes from one priority queue. */
+	static class SharedQueueExecutor implements Executor {
+		static class Task {
+			final Consumer<TerrainRenderContext> task;
+			final int priority;
+
+			Task(Consumer<TerrainRenderContext> task, int priority) {
+				this.task = task;
+				this.priority = priority;
+			}
+		}
+
+		final PriorityBlockingQueue<Task> queue = new PriorityBlockingQueue<>(1024, (o1, o2) -> Integer.compare(o1.priority, o2.priority));
+
+		SharedQueueExecutor(int poolSize) {
+			for (int i = 0; i < poolSize; i++) {
+				final Thread thread = new Thread(() -> {
+					while (true) {
+						try {
+							queue.take().task.accept(null);
+						} catch (final InterruptedException e) {
+							// NOOP
+						}
+					}
+				});
+
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+
+		@Override
+		public void execute(Consumer<TerrainRenderContext> task, int squaredDistance) {
+			queue.add(new Task(task, squaredDistance));
+		}
+	}
+
+	static long spin(int iterations) {
+		long h = iterations;
+
+		for (int i = 0; i < iterations; ++i) {
+			h = h * 0x9E3779B97F4A7C15L + i;
+		}
+
+		return h;
+	}
+
+	/**
+	 * Submits all tasks at random distances, as the render thread does after a large camera move,
+	 * and waits for all to run.
+	 *
+	 * @return Regions per second.
+	 */
+	static long run(Executor executor) {
+		final CountDownLatch done = new CountDownLatch(TASK_COUNT);
+		final Random r = new Random(42);
+		final Consumer<TerrainRenderContext> small = c -> {
+			if (spin(SMALL_WORK) == 0) {
+				sink++;
+			}
+
+			done.countDown();
+		};
+
+		final Consumer<TerrainRenderContext> large = c -> {
+			if (spin(LARGE_WORK) == 0) {
+				sink++;
+			}
+
+			done.countDown();
+		};
+
+		final long start = System.nanoTime();
+
+		for (int i = 0; i < TASK_COUNT; ++i) {
+			final int distance = r.nextInt(512);
+			executor.execute(i % LARGE_INTERVAL == 0 ? large : small, distance * distance);
+		}
+
+		try {
+			done.await();
+		} catch (final InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+
+		return TASK_COUNT * 1000000000L / (System.nanoTime() - start);
+	}
+
+	@Test
+	void test() {
+		for (final int poolSize : new int[] {1, 2, 4, 8, 15}) {
+			final SharedQueueExecutor shared = new SharedQueueExecutor(poolSize);
+			final ChunkRenderExecutor stealing = new ChunkRenderExecutor(poolSize, () -> null);
+
+			// warm up
+			run(shared);
+			run(stealing::execute);
+
+			final long sharedRate = run(shared);
+			final long stealingRate = run(stealing::execute);
+
+			System.out.println(poolSize + " workers, shared priority queue: " + sharedRate + " regions/sec");
+			System.out.println(poolSize + " workers, work stealing: " + stealingRate + " regions/sec");
+		}
+	}
+}
@@ -0,0 +1,167 @@
+package grondag.canvas.terrain;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongFunction;
+import java.util.function.Predicate;
+
+import it.unimi.dsi.fastutil.Hash;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Contention benchmark of the lock-free map against the stamped-lock map.
+ * Workers mostly read, with some inserts and removals, like chunk build workers
+ * and the terrain iterator looking up regions during fast flight.  One more
+ * thread prunes continuously, like the render thread.
+ */
+class ConcurrentLong2ObjectMapPerf {
+	static final int KEY_COUNT = 16384;
+	static final int OPS_PER_THREAD = 4000000;
+	static final LongFunction<Long> FACTORY = k -> k;
+	static final Predicate<Long> PRUNER = v -> (v & 0xFF) == 0;
+
+	interface MapOps {
+		Long get(long k);
+
+		Long computeIfAbsent(long k);
+
+		void remove(long k);
+
+		void prune();
+	}
+
+	static MapOps hacked() {
+		final HackedLong2ObjectMap<Long> map = new HackedLong2ObjectMap<>(KEY_COUNT, Hash.VERY_FAST_LOAD_FACTOR, v -> { });
+
+		return new MapOps() {
+			@Override
+			public Long get(long k) {
+				return map.get(k);
+			}
+
+			@Override
+			public Long computeIfAbsent(long k) {
+				return map.computeIfAbsent(k, FACTORY);
+			}
+
+			@Override
+			public void remove(long k) {
+				map.remove(k);
+			}
+
+			@Override
+			public void prune() {
+				map.prune(PRUNER);
+			}
+		};
+	}
+
+	static MapOps concurrent() {
+		final ConcurrentLong2ObjectMap<Long> map = new ConcurrentLong2ObjectMap<>(KEY_COUNT, Hash.VERY_FAST_LOAD_FACTOR);
+
+		return new MapOps() {
+			@Override
+			public Long get(long k) {
+				return map.get(k);
+			}
+
+			@Override
+			public Long computeIfAbsent(long k) {
+				return map.computeIfAbsent(k, FACTORY);
+			}
+
+			@Override
+			public void remove(long k) {
+				map.remove(k);
+			}
+
+			@Override
+			public void prune() {
+				map.prune(PRUNER);
+			}
+		};
+	}
+
+	static long run(MapOps map, int threadCount) {
+		for (int k = 0; k < KEY_COUNT; ++k) {
+			map.computeIfAbsent(k);
+		}
+
+		final Runnable[] workers = new Runnable[threadCount];
+		final long[] sinks = new long[threadCount];
+		final AtomicBoolean done = new AtomicBoolean();
+
+		for (int t = 0; t < threadCount; ++t) {
+			final int thread = t;
+
+			workers[t] = () -> {
+				final Random r = new Random(thread);
+				long sink = 0;
+
+				for (int i = 0; i < OPS_PER_THREAD; ++i) {
+					final long k = r.nextInt(KEY_COUNT);
+					final int op = r.nextInt(100);
+
+					if (op < 90) {
+						final Long v = map.get(k);
+
+						if (v != null) {
+							sink += v;
+						}
+					} else if (op < 98) {
+						sink += map.computeIfAbsent(k);
+					} else {
+						map.remove(k);
+					}
+				}
+
+				sinks[thread] = sink;
+			};
+		}
+
+		final Thread pruner = new Thread(() -> {
+			while (!done.get()) {
+				map.prune();
+				Thread.yield();
+			}
+		});
+
+		final long start = System.nanoTime();
+		pruner.start();
+		ConcurrentLong2ObjectMapTest.runThreads(workers);
+		final long nanos = System.nanoTime() - start;
+		done.set(true);
+
+		try {
+			pruner.join();
+		} catch (final InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+
+		long sink = 0;
+
+		for (final long s : sinks) {
+			sink += s;
+		}
+
+		assert sink != 0;
+
+		return nanos;
+	}
+
+	@Test
+	void test() {
+		for (final int threadCount : new int[] {1, 2, 4, 8}) {
+			// warm up
+			run(hacked(), threadCount);
+			run(concurrent(), threadCount);
+
+			final long hackedNanos = run(hacked(), threadCount);
+			final long concurrentNanos = run(concurrent(), threadCount);
+			final long ops = (long) OPS_PER_THREAD * threadCount;
+
+			System.out.println(threadCount + " threads, stamped lock map: " + (ops * 1000 / hackedNanos) + " ops/us");
+			System.out.println(threadCount + " threads, lock-free map: " + (ops * 1000 / concurrentNanos) + " ops/us");
+		}
+	}
+}
@@ -0,0 +1,247 @@
+package grondag.canvas.terrain;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import it.unimi.dsi.fastutil.Hash;
+import org.junit.jupiter.api.Test;
+
+class ConcurrentLong2ObjectMapTest {
+	static final int THREADS = 4;
+	static final int KEYS_PER_THREAD = 4096;
+	static final int OPS_PER_THREAD = 2000000;
+
+	static class Value {
+		final long key;
+		volatile boolean stale;
+
+		Value(long key) {
+			this.key = key;
+		}
+	}
+
+	/** Spreads keys so that neighboring threads interleave in the table. */
+	static long key(int thread, int index) {
+		return ((long) index * THREADS + thread) * 0x9E3779B97F4A7C15L;
+	}
+
+	static void runThreads(Runnable[] tasks) {
+		final CountDownLatch start = new CountDownLatch(1);
+		final Thread[] threads = new Thread[tasks.length];
+		final Throwable[] failure = new Throwable[1];
+
+		for (int i = 0; i < tasks.length; ++i) {
+			final Runnable task = tasks[i];
+
+			threads[i] = new Thread(() -> {
+				try {
+					start.await();
+					task.run();
+				} catch (final Throwable e) {
+					synchronized (failure) {
+						failure[0] = e;
+					}
+				}
+			});
+
+			threads[i].start();
+		}
+
+		start.countDown();
+
+		for (final Thread t : threads) {
+			try {
+				t.join();
+			} catch (final InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		if (failure[0] != null) {
+			throw new AssertionError(failure[0]);
+		}
+	}
+
+	/**
+	 * Each thread inserts and removes its own keys and checks them against what it expects
+	 * while reading keys of other threads. Small initial size forces many concurrent rebuilds.
+	 */
+	@Test
+	void ownedKeys() {
+		final ConcurrentLong2ObjectMap<Value> map = new ConcurrentLong2ObjectMap<>(16, Hash.DEFAULT_LOAD_FACTOR);
+		final Value[][] expected = new Value[THREADS][KEYS_PER_THREAD];
+		final Runnable[] tasks = new Runnable[THREADS];
+
+		for (int t = 0; t < THREADS; ++t) {
+			final int thread = t;
+			final Value[] mine = expected[t];
+
+			tasks[t] = () -> {
+				final Random r = new Random(thread);
+
+				for (int i = 0; i < OPS_PER_THREAD; ++i) {
+					final int index = r.nextInt(KEYS_PER_THREAD);
+					final long k = key(thread, index);
+
+					switch (r.nextInt(4)) {
+						case 0: {
+							final Value v = new Value(k);
+							final Value prior = map.putIfAbsent(k, v);
+							assert prior == mine[index];
+
+							if (prior == null) {
+								mine[index] = v;
+							}
+
+							break;
+						}
+
+						case 1: {
+							final Value prior = map.remove(k);
+							assert prior == mine[index];
+							mine[index] = null;
+							break;
+						}
+
+						case 2: {
+							assert map.get(k) == mine[index];
+							break;
+						}
+
+						default: {
+							final long other = key(r.nextInt(THREADS), r.nextInt(KEYS_PER_THREAD));
+							final Value v = map.get(other);
+							assert v == null || v.key == other;
+							break;
+						}
+					}
+				}
+			};
+		}
+
+		runThreads(tasks);
+
+		int count = 0;
+
+		for (int t = 0; t < THREADS; ++t) {
+			for (int i = 0; i < KEYS_PER_THREAD; ++i) {
+				assert map.get(key(t, i)) == expected[t][i];
+
+				if (expected[t][i] != null) {
+					++count;
+				}
+			}
+		}
+
+		assert map.size() == count;
+		System.out.println("Owned keys: " + count + " values, " + map.claimedCount() + " slots claimed");
+	}
+
+	/**
+	 * All threads create the same keys at once while one thread prunes incrementally.
+	 * Every thread must see the same value for a key until it is pruned.
+	 */
+	@Test
+	void sharedKeys() {
+		final int keyCount = KEYS_PER_THREAD * THREADS;
+		final ConcurrentLong2ObjectMap<Value> map = new ConcurrentLong2ObjectMap<>(16, Hash.DEFAULT_LOAD_FACTOR);
+		final AtomicReferenceArray<Value> winners = new AtomicReferenceArray<>(keyCount);
+		final Runnable[] tasks = new Runnable[THREADS + 1];
+
+		for (int t = 0; t < THREADS; ++t) {
+			final int thread = t;
+
+			tasks[t] = () -> {
+				final Random r = new Random(thread);
+
+				for (int i = 0; i < OPS_PER_THREAD; ++i) {
+					final int index = r.nextInt(keyCount);
+					final long k = key(0, index);
+					final Value v = map.computeIfAbsent(k, Value::new);
+					assert v.key == k;
+
+					// first to see a value records it, later callers must see the same one unless it was pruned
+					if (!winners.compareAndSet(index, null, v)) {
+						final Value w = winners.get(index);
+
+						if (w != v) {
+							// one of them was retrieved before the other was pruned
+							assert w.stale || v.stale;
+							winners.compareAndSet(index, w, v);
+						}
+					}
+
+					if ((i & 0xFF) == 0) {
+						v.stale = true;
+					}
+				}
+			};
+		}
+
+		tasks[THREADS] = () -> {
+			for (int i = 0; i < 20000; ++i) {
+				map.pruneIncrementally(v -> v.stale, 256);
+			}
+		};
+
+		runThreads(tasks);
+
+		map.prune(v -> v.stale);
+
+		map.forEach(v -> {
+			assert !v.stale;
+			assert map.get(v.key) == v;
+		});
+
+		System.out.println("Shared keys: " + map.size() + " values, " + map.claimedCount() + " slots claimed");
+	}
+
+	/**
+	 * Threads add keys ahead and remove keys behind, like regions around a moving camera.
+	 * Tombstones must be discarded by rebuilds so the table doesn't grow without bound.
+	 */
+	@Test
+	void movingKeys() {
+		final int window = 1024;
+		final ConcurrentLong2ObjectMap<Value> map = new ConcurrentLong2ObjectMap<>(16, Hash.DEFAULT_LOAD_FACTOR);
+		final Runnable[] tasks = new Runnable[THREADS];
+		final int[] maxClaimed = new int[1];
+
+		for (int t = 0; t < THREADS; ++t) {
+			final int thread = t;
+
+			tasks[t] = () -> {
+				for (int i = 0; i < OPS_PER_THREAD / 2; ++i) {
+					final long k = key(thread, i);
+					final Value v = new Value(k);
+					assert map.putIfAbsent(k, v) == null;
+					assert map.get(k) == v;
+
+					if (i >= window) {
+						final long old = key(thread, i - window);
+						final Value prior = map.remove(old);
+						assert prior != null && prior.key == old;
+					}
+
+					if (thread == 0 && (i & 0xFF) == 0) {
+						maxClaimed[0] = Math.max(maxClaimed[0], map.claimedCount());
+					}
+				}
+			};
+		}
+
+		runThreads(tasks);
+
+		assert map.size() == window * THREADS;
+
+		for (int t = 0; t < THREADS; ++t) {
+			for (int i = OPS_PER_THREAD / 2 - window; i < OPS_PER_THREAD / 2; ++i) {
+				assert map.get(key(t, i)).key == key(t, i);
+			}
+		}
+
+		assert maxClaimed[0] < window * THREADS * 8;
+		System.out.println("Moving keys: " + map.size() + " values, at most " + maxClaimed[0] + " slots claimed");
+	}
+}
@@ -0,0 +1,203 @@
+package grondag.canvas.terrain;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import grondag.canvas.buffer.encoding.VertexCollectorImpl;
+import grondag.canvas.buffer.encoding.VertexCollectorList;
+import grondag.canvas.material.EncodingContext;
+import grondag.canvas.material.MaterialState;
+import grondag.canvas.shader.ShaderPass;
+
+/**
+ * Faces are up faces of blocks in one layer of a region, laid out as EncoderUtils.bufferQuadDirect1
+ * writes them.  Vertices go around the face starting at its min corner and the sprite corner of each
+ * vertex is rotated by a quarter turn per step of rotation, like a rotated block model.
+ */
+class RegionFaceMergerTest {
+	static final int VERTEX_STRIDE = 8;
+	static final int QUAD_STRIDE = VERTEX_STRIDE * 4;
+	static final int UV = 4;
+	static final int MATERIAL = 7;
+
+	static final int X_OFFSET = 32;
+	static final int Y_OFFSET = 64;
+	static final int Z_OFFSET = -16;
+
+	static final int COLOR = 0xFF80C040;
+	static final int LIGHT = 0xF0 | (0xE0 << 8);
+	static final int AO = 0x7F;
+	static final int SPRITE = 0x1234;
+
+	/** Corners of a face in vertex order, as a and b offsets: x and z for up faces. */
+	static final int[][] CORNERS = {{0, 0}, {0, 1}, {1, 1}, {1, 0}};
+
+	static int[] face(int x, int y, int z, int rotation, int color, int light, int ao, int sprite) {
+		final int[] quad = new int[QUAD_STRIDE];
+		// normal straight up
+		final int normalAo = (127 << 8) | (ao << 24);
+
+		for (int v = 0; v < 4; v++) {
+			final int i = v * VERTEX_STRIDE;
+			final int[] uvCorner = CORNERS[(v + rotation) & 3];
+			quad[i] = Float.floatToRawIntBits(X_OFFSET + x + CORNERS[v][0]);
+			quad[i + 1] = Float.floatToRawIntBits(Y_OFFSET + y + 1);
+			quad[i + 2] = Float.floatToRawIntBits(Z_OFFSET + z + CORNERS[v][1]);
+			quad[i + 3] = color;
+			quad[i + UV] = (uvCorner[0] == 0 ? 0 : 0xFFFF) | (uvCorner[1] == 0 ? 0 : 0xFFFF0000);
+			quad[i + 5] = light;
+			quad[i + 6] = normalAo;
+			quad[i + MATERIAL] = sprite;
+		}
+
+		return quad;
+	}
+
+	static int[] face(int x, int y, int z, int rotation) {
+		return face(x, y, z, rotation, COLOR, LIGHT, AO, SPRITE);
+	}
+
+	/**
+	 * Faces of a w by h rectangle of blocks at the origin of the region.
+	 */
+	static int[] faces(int w, int h, int rotation) {
+		final int[] result = new int[w * h * QUAD_STRIDE];
+
+		for (int z = 0; z < h; z++) {
+			for (int x = 0; x < w; x++) {
+				System.arraycopy(face(x, 3, z, rotation), 0, result, (x + z * w) * QUAD_STRIDE, QUAD_STRIDE);
+			}
+		}
+
+		return result;
+	}
+
+	static int[] concat(int[]... quads) {
+		int length = 0;
+
+		for (final int[] q : quads) {
+			length += q.length;
+		}
+
+		final int[] result = new int[length];
+		int n = 0;
+
+		for (final int[] q : quads) {
+			System.arraycopy(q, 0, result, n, q.length);
+			n += q.length;
+		}
+
+		return result;
+	}
+
+	static int[] merge(int[] data) {
+		final VertexCollectorList collectors = new VertexCollectorList();
+		collectors.setContext(EncodingContext.TERRAIN);
+		final VertexCollectorImpl collector = collectors.get(MaterialState.getDefault(ShaderPass.SOLID));
+		collector.add(data, data.length);
+		RegionFaceMerger.mergeFaces(collectors, X_OFFSET, Y_OFFSET, Z_OFFSET);
+		return collector.copyRange(0, collector.integerSize());
+	}
+
+	static float coordinate(int[] quad, int vertex, int axis) {
+		return Float.intBitsToFloat(quad[vertex * VERTEX_STRIDE + axis]);
+	}
+
+	/**
+	 * Checks a single merged quad covers the given blocks and repeats the sprite as given.
+	 */
+	static void assertMerged(int[] merged, int w, int h, int repeatU, int repeatV) {
+		assert merged.length == QUAD_STRIDE : "Merged to " + merged.length / QUAD_STRIDE + " quads";
+
+		for (int v = 0; v < 4; v++) {
+			assert coordinate(merged, v, 0) == X_OFFSET + CORNERS[v][0] * w;
+			assert coordinate(merged, v, 1) == Y_OFFSET + 4;
+			assert coordinate(merged, v, 2) == Z_OFFSET + CORNERS[v][1] * h;
+
+			final int material = merged[v * VERTEX_STRIDE + MATERIAL];
+			assert (material & 0xFFFF) == SPRITE;
+			assert (material >>> 16) == (repeatU | (repeatV << 8)) : "Repeat " + Integer.toHexString(material >>> 16);
+		}
+	}
+
+	@Test
+	void testMergeIdentical() {
+		// u along x and v along z
+		assertMerged(merge(faces(3, 2, 0)), 3, 2, 3, 2);
+
+		// u along z, v along x backwards
+		final int[] rotated = merge(faces(3, 2, 1));
+		assertMerged(rotated, 3, 2, 2, 3);
+
+		// sprite corners stay on the same vertices
+		for (int v = 0; v < 4; v++) {
+			assert rotated[v * VERTEX_STRIDE + UV] == face(0, 3, 0, 1)[v * VERTEX_STRIDE + UV];
+		}
+
+		// a whole layer of the region
+		assertMerged(merge(faces(16, 16, 2)), 16, 16, 16, 16);
+
+		// a single face is left alone
+		final int[] single = face(5, 3, 7, 0);
+		assert Arrays.equals(merge(single), single);
+	}
+
+	@Test
+	void testRefuseOrientation() {
+		assertUnmerged(face(0, 3, 0, 0), face(1, 3, 0, 1));
+		assertUnmerged(face(0, 3, 0, 0), face(0, 3, 1, 2));
+	}
+
+	@Test
+	void testRefuseLight() {
+		assertUnmerged(face(0, 3, 0, 0), face(1, 3, 0, 0, COLOR, LIGHT + 1, AO, SPRITE));
+		assertUnmerged(face(0, 3, 0, 0), face(1, 3, 0, 0, COLOR, 0xF0 | (0xF0 << 8), AO, SPRITE));
+	}
+
+	@Test
+	void testRefuseAo() {
+		assertUnmerged(face(0, 3, 0, 0), face(1, 3, 0, 0, COLOR, LIGHT, 0x40, SPRITE));
+	}
+
+	@Test
+	void testRefuseColor() {
+		assertUnmerged(face(0, 3, 0, 0), face(1, 3, 0, 0, 0xFF80C041, LIGHT, AO, SPRITE));
+		assertUnmerged(face(0, 3, 0, 0), face(1, 3, 0, 0, COLOR, LIGHT, AO, SPRITE + 1));
+	}
+
+	/**
+	 * Faces that can't be merged with their neighbor stay as they were, and matching faces
+	 * beside them still merge.
+	 */
+	static void assertUnmerged(int[] face, int[] other) {
+		final int[] pair = concat(face, other);
+		assert Arrays.equals(merge(pair), pair);
+
+		// the odd face on the end of a row of three keeps the other two from merging past it
+		final int[] row = concat(face(0, 3, 5, 0), face(1, 3, 5, 0));
+		final int[] oddOne = Arrays.copyOf(other, QUAD_STRIDE);
+
+		for (int v = 0; v < 4; v++) {
+			final int i = v * VERTEX_STRIDE;
+			oddOne[i] = Float.floatToRawIntBits(Float.intBitsToFloat(oddOne[i]) - coordinate(other, 0, 0) + X_OFFSET + 2);
+			oddOne[i + 2] = Float.floatToRawIntBits(Float.intBitsToFloat(oddOne[i + 2]) - coordinate(other, 0, 2) + Z_OFFSET + 5);
+		}
+
+		final int[] merged = merge(concat(row, oddOne));
+		assert merged.length == QUAD_STRIDE * 2;
+		int mergedCount = 0;
+
+		for (int q = 0; q < 2; q++) {
+			final int repeat = merged[q * QUAD_STRIDE + MATERIAL] >>> 16;
+
+			if (repeat != 0) {
+				assert repeat == (2 | (1 << 8));
+				assert coordinate(merged, q * 4 + 2, 0) == X_OFFSET + 2;
+				++mergedCount;
+			}
+		}
+
+		assert mergedCount == 1;
+	}
+}
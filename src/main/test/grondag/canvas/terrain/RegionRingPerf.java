@@ -0,0 +1,158 @@
+package grondag.canvas.terrain;
+
+import java.util.ArrayList;
+
+import it.unimi.dsi.fastutil.Hash;
+import org.junit.jupiter.api.Test;
+
+import net.minecraft.util.math.BlockPos;
+
+/**
+ * Compares region lookup through the ring against the hashed map it replaced.
+ * Simulates terrain iteration - each region in render distance and its six neighbors
+ * are looked up every frame - while the camera moves one region per frame so that
+ * regions are created ahead of the camera and pruned behind it.
+ */
+class RegionRingPerf {
+	static final int FRAMES = 64;
+	/** Region coordinate of first camera position.  Away from origin because the map never prunes key zero. */
+	static final int START = 1000;
+
+	static class Region {
+		final int x, y, z;
+
+		Region(int x, int y, int z) {
+			this.x = x;
+			this.y = y;
+			this.z = z;
+		}
+
+		boolean isOutOfRange(int cameraX, int cameraZ, int radius) {
+			final int dx = (x >> 4) - cameraX;
+			final int dz = (z >> 4) - cameraZ;
+			return dx * dx + dz * dz > radius * radius;
+		}
+	}
+
+	static long runMap(int renderDistance) {
+		final HackedLong2ObjectMap<Region> map = new HackedLong2ObjectMap<>(8192, Hash.VERY_FAST_LOAD_FACTOR, r -> { });
+		final int retain = renderDistance + 2;
+		long sink = 0;
+
+		for (int frame = 0; frame < FRAMES; ++frame) {
+			final int cx = START + frame;
+			final int cz = frame >> 1;
+
+			for (int rx = -renderDistance; rx <= renderDistance; ++rx) {
+				for (int rz = -renderDistance; rz <= renderDistance; ++rz) {
+					if (rx * rx + rz * rz > renderDistance * renderDistance) continue;
+
+					for (int ry = 0; ry < 16; ++ry) {
+						final int x = (cx + rx) << 4;
+						final int y = ry << 4;
+						final int z = (cz + rz) << 4;
+						final Region r = map.computeIfAbsent(BlockPos.asLong(x, y, z), k -> new Region(x, y, z));
+						sink += r.y;
+
+						for (int face = 0; face < 6; ++face) {
+							final Region n = map.get(BlockPos.asLong(x + NX[face], y + NY[face], z + NZ[face]));
+
+							if (n != null) {
+								sink += n.x;
+							}
+						}
+					}
+				}
+			}
+
+			map.prune(r -> r.isOutOfRange(cx, cz, retain));
+			sink += map.size();
+		}
+
+		return sink;
+	}
+
+	static long runRing(int renderDistance) {
+		final RegionRing<Region> ring = new RegionRing<>(renderDistance + 3);
+		final ArrayList<Region> live = new ArrayList<>();
+		final int retain = renderDistance + 2;
+		long sink = 0;
+
+		for (int frame = 0; frame < FRAMES; ++frame) {
+			final int cx = START + frame;
+			final int cz = frame >> 1;
+
+			for (int rx = -renderDistance; rx <= renderDistance; ++rx) {
+				for (int rz = -renderDistance; rz <= renderDistance; ++rz) {
+					if (rx * rx + rz * rz > renderDistance * renderDistance) continue;
+
+					for (int ry = 0; ry < 16; ++ry) {
+						final int x = (cx + rx) << 4;
+						final int y = ry << 4;
+						final int z = (cz + rz) << 4;
+						Region r = ring.get(x, y, z);
+
+						if (r == null) {
+							r = new Region(x, y, z);
+							final boolean stored = ring.tryPut(x, y, z, r);
+							assert stored : "Ring slot collision inside radius";
+							live.add(r);
+						}
+
+						sink += r.y;
+
+						for (int face = 0; face < 6; ++face) {
+							final int ny = y + NY[face];
+
+							if (RegionRing.isInRange(ny)) {
+								final Region n = ring.get(x + NX[face], ny, z + NZ[face]);
+
+								if (n != null) {
+									sink += n.x;
+								}
+							}
+						}
+					}
+				}
+			}
+
+			live.removeIf(r -> {
+				if (r.isOutOfRange(cx, cz, retain)) {
+					ring.remove(r.x, r.y, r.z, r);
+					return true;
+				} else {
+					return false;
+				}
+			});
+
+			sink += live.size();
+		}
+
+		return sink;
+	}
+
+	static final int[] NX = {0, 0, 0, 0, -16, 16};
+	static final int[] NY = {-16, 16, 0, 0, 0, 0};
+	static final int[] NZ = {0, 0, -16, 16, 0, 0};
+
+	@Test
+	void test() {
+		for (final int renderDistance : new int[] {16, 32, 48}) {
+			// warm up and confirm both find the same regions
+			final long mapSink = runMap(renderDistance);
+			final long ringSink = runRing(renderDistance);
+			assert mapSink == ringSink;
+
+			long n = System.nanoTime();
+			runMap(renderDistance);
+			final long mapNanos = System.nanoTime() - n;
+
+			n = System.nanoTime();
+			runRing(renderDistance);
+			final long ringNanos = System.nanoTime() - n;
+
+			System.out.println("RD" + renderDistance + " hashed map: " + (mapNanos / FRAMES / 1000) + "us per frame");
+			System.out.println("RD" + renderDistance + " ring: " + (ringNanos / FRAMES / 1000) + "us per frame");
+		}
+	}
+}
@@ -0,0 +1,268 @@
+package grondag.canvas.terrain.occlusion;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import static grondag.canvas.terrain.occlusion.Constants.*;
+
+/**
+ * Binned drawing must be bit-exact with single-threaded drawing at every raster size.
+ * Synthetic scenes are generated from fixed seeds so any failure can be reproduced.
+ * Recorded terrain scenes also check that tests interleaved with deferred draws see the
+ * same results as drawing immediately.
+ */
+class BinnedRasterizerTest {
+	static final int SCENE_COUNT = 40;
+	static final int HELPER_COUNT = 3;
+
+	/**
+	 * Tile dimensions of each raster size. One binner is retargeted to each in turn.
+	 */
+	static final int[][] SIZES = {{128, 64}, {64, 32}, {128, 32}};
+
+	@Test
+	void test() {
+		BinnedRasterizer binner = null;
+
+		for (final int[] size : SIZES) {
+			final Rasterizer reference = new Rasterizer(size[0], size[1]);
+			final Rasterizer binned = new Rasterizer(size[0], size[1]);
+
+			if (binner == null) {
+				binner = new BinnedRasterizer(binned, HELPER_COUNT);
+			} else {
+				binner.setTarget(binned);
+			}
+
+			testSize(reference, binned);
+		}
+	}
+
+	/**
+	 * Records the draws and tests of a terrain occluder traversing {@link OcclusionTestScene#hills()}
+	 * and replays them. Streams saved with the "Capture Occluder Stream" debug option can be
+	 * replayed the same way.
+	 */
+	@Test
+	void testRecordedScene() throws IOException {
+		final TerrainOccluder occluder = new TerrainOccluder();
+		final OcclusionTestScene scene = OcclusionTestScene.hills();
+		scene.prepare(occluder);
+
+		final Rasterizer raster = occluder.raster();
+		final OccluderStreamRecorder recorder = new OccluderStreamRecorder(raster);
+		raster.recorder = recorder;
+		scene.traverse(occluder);
+		raster.recorder = null;
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		recorder.write(new DataOutputStream(bytes));
+
+		final int hiddenCount = replay("hills", new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+		assert hiddenCount > 0 : "Scene has no hidden regions";
+	}
+
+	/**
+	 * Replays a recorded stream into a reference raster that draws immediately and a binned raster
+	 * that defers draws until a test overlaps them. Every test must match the recording in both.
+	 *
+	 * @return Number of tests recorded as hidden.
+	 */
+	static int replay(String name, DataInputStream in) throws IOException {
+		assert in.readInt() == OccluderStreamRecorder.MAGIC : name + " is not an occluder stream";
+		assert in.readInt() == OccluderStreamRecorder.VERSION : name + " has an unsupported version";
+
+		final int tileWidth = in.readInt();
+		final int tileHeight = in.readInt();
+		final Rasterizer reference = new Rasterizer(tileWidth, tileHeight);
+		final Rasterizer binned = new Rasterizer(tileWidth, tileHeight);
+		new BinnedRasterizer(binned, HELPER_COUNT);
+
+		final int[] quad = new int[OccluderStreamRecorder.QUAD_STRIDE];
+		int testCount = 0;
+		int hiddenCount = 0;
+
+		while (true) {
+			final int type;
+
+			try {
+				type = in.readInt();
+			} catch (final EOFException e) {
+				break;
+			}
+
+			for (int i = 0; i < quad.length; i++) {
+				quad[i] = in.readInt();
+			}
+
+			loadQuad(reference, quad);
+			loadQuad(binned, quad);
+
+			if (type == OccluderStreamRecorder.DRAW_ORDERED || type == OccluderStreamRecorder.DRAW_UNORDERED) {
+				reference.drawOrdered = type == OccluderStreamRecorder.DRAW_ORDERED;
+				binned.drawOrdered = reference.drawOrdered;
+				reference.drawQuad(V000, V001, V010, V011);
+				binned.drawQuad(V000, V001, V010, V011);
+				reference.drawOrdered = true;
+				binned.drawOrdered = true;
+			} else {
+				final boolean expected = type == OccluderStreamRecorder.TEST_VISIBLE;
+				assert reference.testQuad(V000, V001, V010, V011) == expected : name + ": test " + testCount + " differs from capture";
+				assert binned.testQuad(V000, V001, V010, V011) == expected : name + ": binned test " + testCount + " differs from capture";
+				++testCount;
+
+				if (!expected) {
+					++hiddenCount;
+				}
+			}
+		}
+
+		binned.binner.flush();
+
+		assert Arrays.equals(reference.tiles, binned.tiles) : "Binned raster differs from reference in " + name;
+		assert Arrays.equals(reference.coverage.fullRows, binned.coverage.fullRows) : "Binned coverage differs from reference in " + name;
+		assert Arrays.equals(reference.depths, binned.depths) : "Binned depth differs from reference in " + name;
+		assert Arrays.equals(reference.unorderedDepths, binned.unorderedDepths) : "Binned unordered depth differs from reference in " + name;
+		checkCoverage(reference);
+		return hiddenCount;
+	}
+
+	static void loadQuad(Rasterizer raster, int[] quad) {
+		System.arraycopy(quad, 0, raster.data, V000 + IDX_VERTEX_DATA, PROJECTED_VERTEX_STRIDE);
+		System.arraycopy(quad, PROJECTED_VERTEX_STRIDE, raster.data, V001 + IDX_VERTEX_DATA, PROJECTED_VERTEX_STRIDE);
+		System.arraycopy(quad, PROJECTED_VERTEX_STRIDE * 2, raster.data, V010 + IDX_VERTEX_DATA, PROJECTED_VERTEX_STRIDE);
+		System.arraycopy(quad, PROJECTED_VERTEX_STRIDE * 3, raster.data, V011 + IDX_VERTEX_DATA, PROJECTED_VERTEX_STRIDE);
+	}
+
+	static void testSize(Rasterizer reference, Rasterizer binned) {
+		for (int scene = 0; scene < SCENE_COUNT; scene++) {
+			// small scenes exercise the inline path, large ones the threaded path
+			final int quadCount = scene % 4 == 0 ? BinnedRasterizer.MIN_PARALLEL_QUADS / 2 : 500 + scene * 100;
+
+			reference.clear();
+			binned.clear();
+
+			drawScene(reference, scene, quadCount);
+			drawScene(binned, scene, quadCount);
+			binned.binner.flush();
+
+			assert binned.binner.pendingQuadCount() == 0;
+			assert Arrays.equals(reference.tiles, binned.tiles) : "Binned raster differs from reference in scene " + scene;
+			assert Arrays.equals(reference.coverage.fullRows, binned.coverage.fullRows) : "Binned coverage differs from reference in scene " + scene;
+			assert Arrays.equals(reference.depths, binned.depths) : "Binned depth differs from reference in scene " + scene;
+			assert Arrays.equals(reference.unorderedDepths, binned.unorderedDepths) : "Binned unordered depth differs from reference in scene " + scene;
+			checkCoverage(reference);
+		}
+	}
+
+	/**
+	 * Coverage pyramid must match tiles and early exits must never reject a quad that the full test would accept.
+	 */
+	static void checkCoverage(Rasterizer raster) {
+		final CoveragePyramid coverage = raster.coverage;
+
+		for (int superIndex = 0; superIndex < coverage.superTileCount; superIndex++) {
+			boolean full = true;
+
+			for (int i = 0; i < 64; i++) {
+				full &= raster.tiles[(superIndex << 6) | i] == -1L;
+			}
+
+			final boolean summary = (coverage.fullRows[superIndex / coverage.superTileWidth] & (1 << (superIndex % coverage.superTileWidth))) != 0;
+			assert full == summary;
+		}
+
+		final Random r = new Random(raster.tiles.length);
+
+		for (int i = 0; i < 1000; i++) {
+			final float x0 = r.nextFloat() * 2f - 1f;
+			final float y0 = r.nextFloat() * 2f - 1f;
+			final float x1 = x0 + 0.05f + r.nextFloat() * 0.5f;
+			final float y1 = y0 + 0.05f + r.nextFloat() * 0.5f;
+			final float w = 0.5f + r.nextFloat() * 50f;
+			setupVertex(raster, V000, x0 * w, y0 * w, 0.5f * w, w);
+			setupVertex(raster, V001, x1 * w, y0 * w, 0.5f * w, w);
+			setupVertex(raster, V010, x1 * w, y1 * w, 0.5f * w, w);
+			setupVertex(raster, V011, x0 * w, y1 * w, 0.5f * w, w);
+
+			final boolean visible = raster.testQuad(V000, V001, V010, V011);
+			assert visible || raster.prepareBounds(V000, V001, V010, V011) == BOUNDS_OUTSIDE_OR_TOO_SMALL || !raster.testQuad();
+		}
+	}
+
+	/**
+	 * Draws the same pseudo-random quads for a given seed. Quads are planar in clip space,
+	 * vary in depth, winding and size and some have vertices behind the near plane.
+	 * Some are drawn as out-of-order occluders.
+	 */
+	static void drawScene(Rasterizer raster, long seed, int quadCount) {
+		final Random r = new Random(seed);
+
+		for (int i = 0; i < quadCount; i++) {
+			final float cx = r.nextFloat() * 2.4f - 1.2f;
+			final float cy = r.nextFloat() * 2.4f - 1.2f;
+			final float size = r.nextInt(64) == 0 ? 0.1f + r.nextFloat() * 0.3f : 0.002f + r.nextFloat() * 0.03f;
+			final float aspect = 0.25f + r.nextFloat() * 2f;
+			final double angle = r.nextDouble() * Math.PI * 2;
+			final float ux = (float) Math.cos(angle) * size;
+			final float uy = (float) Math.sin(angle) * size;
+			final float vx = -uy * aspect;
+			final float vy = ux * aspect;
+			final float w = 0.5f + r.nextFloat() * 50f;
+			final float dw = (r.nextFloat() - 0.5f) * w * 0.2f;
+
+			final int[] order = r.nextBoolean() ? CCW : CW;
+			final int clipCount = r.nextInt(10) == 0 ? 1 + r.nextInt(3) : 0;
+
+			for (int v = 0; v < 4; v++) {
+				final int corner = order[v];
+				final float sx = (corner & 1) == 0 ? -1 : 1;
+				final float sy = (corner & 2) == 0 ? -1 : 1;
+				final float x = cx + sx * ux + sy * vx;
+				final float y = cy + sx * uy + sy * vy;
+
+				if (v < clipCount) {
+					// behind camera - needs near clipping
+					final float vw = -0.5f - r.nextFloat() * 5f;
+					setupVertex(raster, VERTICES[v], x * -vw, y * -vw, 1f, vw);
+				} else {
+					final float vw = w + sx * dw;
+					setupVertex(raster, VERTICES[v], x * vw, y * vw, vw * 0.5f, vw);
+				}
+			}
+
+			raster.drawOrdered = r.nextInt(4) != 0;
+			raster.drawQuad(V000, V001, V010, V011);
+		}
+
+		raster.drawOrdered = true;
+	}
+
+	static final int[] VERTICES = {V000, V001, V010, V011};
+	static final int[] CCW = {0, 1, 3, 2};
+	static final int[] CW = {0, 2, 3, 1};
+
+	/**
+	 * Same outputs as {@link Rasterizer#setupVertex(int, int, int, int)} for given clip-space coordinates.
+	 */
+	static void setupVertex(Rasterizer raster, int baseIndex, float tx, float ty, float tz, float w) {
+		final int[] data = raster.data;
+
+		data[baseIndex + PV_X + IDX_VERTEX_DATA] = Float.floatToRawIntBits(tx);
+		data[baseIndex + PV_Y + IDX_VERTEX_DATA] = Float.floatToRawIntBits(ty);
+		data[baseIndex + PV_Z + IDX_VERTEX_DATA] = Float.floatToRawIntBits(tz);
+		data[baseIndex + PV_W + IDX_VERTEX_DATA] = Float.floatToRawIntBits(w);
+
+		final float iw = 1f / w;
+		data[baseIndex + PV_PX + IDX_VERTEX_DATA] = Math.round(tx * iw * raster.halfPreciseWidth) + raster.halfPreciseWidth;
+		data[baseIndex + PV_PY + IDX_VERTEX_DATA] = Math.round(ty * iw * raster.halfPreciseHeight) + raster.halfPreciseHeight;
+	}
+}
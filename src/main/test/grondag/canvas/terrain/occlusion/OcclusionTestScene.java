@@ -0,0 +1,311 @@
+package grondag.canvas.terrain.occlusion;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
+import net.minecraft.util.math.BlockPos;
+
+import grondag.canvas.mixinterface.Matrix4fExt;
+import grondag.canvas.terrain.occlusion.region.PackedBox;
+
+/**
+ * Camera setup and a generated hills terrain for tests that drive {@link TerrainOccluder}
+ * without a running game. Everything is computed from fixed formulas so results are repeatable.
+ */
+final class OcclusionTestScene {
+	static final float FOV = 70;
+	static final float ASPECT = 2;
+	static final float NEAR = 0.05f;
+	static final float FAR = 512;
+
+	/** Region radius of traversal, same as a render distance of 12 chunks. */
+	static final int RENDER_DISTANCE = 12;
+
+	/** Squared block distance within which regions are drawn without testing, as in terrain iteration. */
+	static final int NEAR_SQUARED_DISTANCE = 576;
+
+	private static final int[][] FACE_OFFSETS = {{1, 0, 0}, {-1, 0, 0}, {0, 1, 0}, {0, -1, 0}, {0, 0, 1}, {0, 0, -1}};
+
+	final double cameraX;
+	final double cameraY;
+	final double cameraZ;
+	final float[] projection;
+	float[] model;
+	int viewVersion = 1;
+
+	OcclusionTestScene(double cameraX, double cameraZ, float yawDegrees, float pitchDegrees) {
+		this.cameraX = cameraX;
+		this.cameraZ = cameraZ;
+		cameraY = height((int) Math.floor(cameraX), (int) Math.floor(cameraZ)) + 7.62;
+		projection = perspective(FOV, ASPECT, NEAR, FAR);
+		model = view(yawDegrees, pitchDegrees);
+	}
+
+	/** Hills camera used by tests that don't care about the exact view. */
+	static OcclusionTestScene hills() {
+		return new OcclusionTestScene(1000.3, -200.7, 215, 12);
+	}
+
+	/**
+	 * Turns the camera in place.  The next {@link #prepare(TerrainOccluder)} sees a new view version
+	 * with the same position, so the occluder may reproject.
+	 */
+	void turn(float yawDegrees, float pitchDegrees) {
+		model = view(yawDegrees, pitchDegrees);
+		++viewVersion;
+	}
+
+	void prepare(TerrainOccluder occluder) {
+		occluder.prepareScene(cameraX, cameraY, cameraZ, matrix(projection), matrix(model), viewVersion, 1, 1);
+	}
+
+	/**
+	 * Traverses regions outward from the camera like terrain iteration: regions near the camera are drawn
+	 * without testing, others are tested before they are drawn and hidden regions don't reach their
+	 * neighbors.  Draws occluders only if the occluder needs a redraw, otherwise only tests.
+	 *
+	 * @return Origins of visible regions in the order visited, packed with {@link BlockPos#asLong(int, int, int)}.
+	 */
+	LongArrayList traverse(TerrainOccluder occluder) {
+		final boolean redraw = occluder.needsRedraw();
+		final float[] mvp = multiply(projection, model);
+		final int cameraRegionX = (int) Math.floor(cameraX) >> 4;
+		final int cameraRegionY = (int) Math.floor(cameraY) >> 4;
+		final int cameraRegionZ = (int) Math.floor(cameraZ) >> 4;
+		final LongOpenHashSet seen = new LongOpenHashSet();
+		final LongArrayList visible = new LongArrayList();
+		List<int[]> level = new ArrayList<>();
+		level.add(new int[] {cameraRegionX, cameraRegionY, cameraRegionZ});
+		seen.add(BlockPos.asLong(cameraRegionX, cameraRegionY, cameraRegionZ));
+		boolean first = true;
+
+		while (!level.isEmpty()) {
+			final List<int[]> next = new ArrayList<>();
+
+			for (int i = level.size() - 1; i >= 0; i--) {
+				final int[] region = level.get(i);
+				final int x = region[0] << 4;
+				final int y = region[1] << 4;
+				final int z = region[2] << 4;
+
+				if (!first && !isInFrustum(mvp, x, y, z)) {
+					continue;
+				}
+
+				final boolean near = first || squaredDistance(x, y, z) <= NEAR_SQUARED_DISTANCE;
+				final int[] visData = visData(x, y, z);
+				final boolean show;
+
+				if (visData == null) {
+					show = near || occluder.isEmptyRegionVisible(new BlockPos(x, y, z));
+				} else {
+					occluder.prepareRegion(x, y, z, occlusionRange(x, y, z));
+					show = near || occluder.isBoxVisible(visData[0]);
+
+					if (show && redraw) {
+						occluder.occlude(visData);
+					}
+				}
+
+				first = false;
+
+				if (show) {
+					visible.add(BlockPos.asLong(x, y, z));
+
+					for (final int[] offset : FACE_OFFSETS) {
+						final int nx = region[0] + offset[0];
+						final int ny = region[1] + offset[1];
+						final int nz = region[2] + offset[2];
+
+						if (ny < 0 || ny > 15 || Math.abs(nx - cameraRegionX) > RENDER_DISTANCE || Math.abs(nz - cameraRegionZ) > RENDER_DISTANCE) {
+							continue;
+						}
+
+						if (seen.add(BlockPos.asLong(nx, ny, nz))) {
+							next.add(new int[] {nx, ny, nz});
+						}
+					}
+				}
+			}
+
+			level = next;
+		}
+
+		occluder.flush();
+		return visible;
+	}
+
+	int squaredDistance(int originX, int originY, int originZ) {
+		final double dx = originX + 8 - cameraX;
+		final double dy = originY + 8 - cameraY;
+		final double dz = originZ + 8 - cameraZ;
+		return (int) (dx * dx + dy * dy + dz * dz);
+	}
+
+	int occlusionRange(int originX, int originY, int originZ) {
+		return PackedBox.rangeFromSquareBlockDist(squaredDistance(originX, originY, originZ));
+	}
+
+	static int height(int x, int z) {
+		return (int) Math.floor(64 + 14 * Math.sin(x / 23.0) + 10 * Math.cos(z / 17.0) + 6 * Math.sin((x + 2 * z) / 9.0) + 3 * Math.cos((3 * x - z) / 5.0));
+	}
+
+	/**
+	 * Occlusion data laid out like OcclusionRegion output: bounds of all solid blocks, then one box
+	 * per 4x4 column group, largest first, with occlusion range by volume.
+	 *
+	 * @return Null if the region has no solid blocks.
+	 */
+	static int[] visData(int originX, int originY, int originZ) {
+		final List<int[]> boxes = new ArrayList<>();
+		int maxTop = 0;
+
+		for (int gx = 0; gx < 16; gx += 4) {
+			for (int gz = 0; gz < 16; gz += 4) {
+				int top = 16;
+
+				for (int x = gx; x < gx + 4; x++) {
+					for (int z = gz; z < gz + 4; z++) {
+						final int columnTop = Math.max(0, Math.min(16, height(originX + x, originZ + z) - originY));
+						top = Math.min(top, columnTop);
+						maxTop = Math.max(maxTop, columnTop);
+					}
+				}
+
+				if (top > 0) {
+					boxes.add(new int[] {gx, 0, gz, gx + 4, top, gz + 4});
+				}
+			}
+		}
+
+		if (maxTop == 0) {
+			return null;
+		}
+
+		if (boxes.size() == 16 && boxes.stream().allMatch(b -> b[4] == 16)) {
+			boxes.clear();
+			boxes.add(new int[] {0, 0, 0, 16, 16, 16});
+		}
+
+		boxes.sort((a, b) -> volume(b) - volume(a));
+
+		final int[] result = new int[boxes.size() + 1];
+		result[0] = PackedBox.pack(0, 0, 0, 16, maxTop, 16, PackedBox.RANGE_EXTREME);
+
+		for (int i = 0; i < boxes.size(); i++) {
+			final int[] b = boxes.get(i);
+			final int v = volume(b);
+			final int range = v >= 1024 ? PackedBox.RANGE_EXTREME : v >= 256 ? PackedBox.RANGE_FAR : v >= 64 ? PackedBox.RANGE_MID : PackedBox.RANGE_NEAR;
+			result[i + 1] = PackedBox.pack(b[0], b[1], b[2], b[3], b[4], b[5], range);
+		}
+
+		return result;
+	}
+
+	private static int volume(int[] box) {
+		return (box[3] - box[0]) * (box[4] - box[1]) * (box[5] - box[2]);
+	}
+
+	private boolean isInFrustum(float[] mvp, int originX, int originY, int originZ) {
+		int allOutside = 0x3F;
+
+		for (int corner = 0; corner < 8; corner++) {
+			final double x = originX + (corner & 1) * 16 - cameraX;
+			final double y = originY + ((corner >> 1) & 1) * 16 - cameraY;
+			final double z = originZ + ((corner >> 2) & 1) * 16 - cameraZ;
+			final double cx = mvp[0] * x + mvp[1] * y + mvp[2] * z + mvp[3];
+			final double cy = mvp[4] * x + mvp[5] * y + mvp[6] * z + mvp[7];
+			final double cz = mvp[8] * x + mvp[9] * y + mvp[10] * z + mvp[11];
+			final double cw = mvp[12] * x + mvp[13] * y + mvp[14] * z + mvp[15];
+			int outside = 0;
+
+			if (cx < -cw) outside |= 1;
+			if (cx > cw) outside |= 2;
+			if (cy < -cw) outside |= 4;
+			if (cy > cw) outside |= 8;
+			if (cz < -cw) outside |= 16;
+			if (cz > cw) outside |= 32;
+
+			allOutside &= outside;
+		}
+
+		return allOutside == 0;
+	}
+
+	static float[] perspective(float fovDegrees, float aspect, float near, float far) {
+		final float f = (float) (1 / Math.tan(Math.toRadians(fovDegrees) / 2));
+
+		return new float[] {
+			f / aspect, 0, 0, 0,
+			0, f, 0, 0,
+			0, 0, (far + near) / (near - far), 2 * far * near / (near - far),
+			0, 0, -1, 0
+		};
+	}
+
+	/** Camera rotation with the same conventions as the game: pitch about x after yaw about y. */
+	static float[] view(float yawDegrees, float pitchDegrees) {
+		final float cp = (float) Math.cos(Math.toRadians(pitchDegrees));
+		final float sp = (float) Math.sin(Math.toRadians(pitchDegrees));
+		final float cy = (float) Math.cos(Math.toRadians(yawDegrees));
+		final float sy = (float) Math.sin(Math.toRadians(yawDegrees));
+
+		final float[] pitch = {
+			1, 0, 0, 0,
+			0, cp, -sp, 0,
+			0, sp, cp, 0,
+			0, 0, 0, 1
+		};
+
+		final float[] yaw = {
+			cy, 0, sy, 0,
+			0, 1, 0, 0,
+			-sy, 0, cy, 0,
+			0, 0, 0, 1
+		};
+
+		return multiply(pitch, yaw);
+	}
+
+	static float[] multiply(float[] a, float[] b) {
+		final float[] result = new float[16];
+
+		for (int row = 0; row < 4; row++) {
+			for (int col = 0; col < 4; col++) {
+				float sum = 0;
+
+				for (int k = 0; k < 4; k++) {
+					sum += a[row * 4 + k] * b[k * 4 + col];
+				}
+
+				result[row * 4 + col] = sum;
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Row-major matrix as the accessor interface that the game's matrices get from a mixin,
+	 * which isn't applied in tests.
+	 */
+	static Matrix4fExt matrix(float[] rowMajor) {
+		final float[] m = rowMajor.clone();
+
+		return (Matrix4fExt) Proxy.newProxyInstance(OcclusionTestScene.class.getClassLoader(), new Class<?>[] {Matrix4fExt.class}, (proxy, method, args) -> {
+			final String name = method.getName();
+			final int index = (name.charAt(1) - '0') * 4 + name.charAt(2) - '0';
+
+			if (args == null) {
+				return m[index];
+			}
+
+			m[index] = (Float) args[0];
+			return null;
+		});
+	}
+}
@@ -0,0 +1,196 @@
+package grondag.canvas.terrain.occlusion;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.junit.jupiter.api.Test;
+
+import net.minecraft.util.math.BlockPos;
+
+import grondag.canvas.Configurator;
+
+/**
+ * A reprojected raster must be conservative: no region may test hidden after reprojection
+ * that tests visible in a raster drawn fresh at the new view from the same occluders.
+ *
+ * <p>The rasterizer samples pixel centers, so seams between occluders and slivers thinner
+ * than a pixel leave holes in some views and not in others. Regions seen only through
+ * such holes in the fresh raster don't count.
+ */
+class RasterReprojectorTest {
+	static final float START_YAW = 215;
+	static final float START_PITCH = 12;
+
+	@Test
+	void testYaw() {
+		testTurns(4, 0);
+	}
+
+	@Test
+	void testPitch() {
+		testTurns(0, 3);
+	}
+
+	@Test
+	void testYawAndPitch() {
+		testTurns(-5, -2.5f);
+	}
+
+	/**
+	 * Draws the hills scene, then turns in equal steps until reprojection hits its limit.
+	 * After each turn the occluders of regions touching invalid tiles are drawn again, as
+	 * terrain iteration does, and every region is compared against a fresh raster.
+	 */
+	static void testTurns(float yawStep, float pitchStep) {
+		final boolean reproject = Configurator.reprojectOcclusionRaster;
+		Configurator.reprojectOcclusionRaster = true;
+
+		try {
+			final OcclusionTestScene scene = OcclusionTestScene.hills();
+			final TerrainOccluder occluder = new TerrainOccluder();
+			scene.prepare(occluder);
+			assert occluder.needsRedraw();
+
+			final LongArrayList drawn = drawnRegions(scene.traverse(occluder));
+			int hiddenCount = 0;
+			int step = 1;
+
+			while (true) {
+				scene.turn(START_YAW + yawStep * step, START_PITCH + pitchStep * step);
+				scene.prepare(occluder);
+
+				if (occluder.needsRedraw()) {
+					break;
+				}
+
+				// redraw regions that touch tiles the old view didn't cover
+				for (int i = 0; i < drawn.size(); i++) {
+					final BlockPos origin = BlockPos.fromLong(drawn.getLong(i));
+					final int range = scene.occlusionRange(origin.getX(), origin.getY(), origin.getZ());
+
+					if (occluder.needsRedraw(origin, range)) {
+						occluder.prepareRegion(origin, range);
+						occluder.occlude(OcclusionTestScene.visData(origin.getX(), origin.getY(), origin.getZ()));
+					}
+				}
+
+				occluder.flush();
+
+				final TerrainOccluder fresh = new TerrainOccluder();
+				scene.prepare(fresh);
+				assert fresh.needsRedraw();
+
+				for (int i = 0; i < drawn.size(); i++) {
+					final BlockPos origin = BlockPos.fromLong(drawn.getLong(i));
+					fresh.prepareRegion(origin, scene.occlusionRange(origin.getX(), origin.getY(), origin.getZ()));
+					fresh.occlude(OcclusionTestScene.visData(origin.getX(), origin.getY(), origin.getZ()));
+				}
+
+				fresh.flush();
+				closeThinGaps(fresh.raster());
+				comparePixels(occluder.raster(), fresh.raster(), step);
+				hiddenCount += compare(scene, occluder, fresh, step);
+				++step;
+			}
+
+			assert step == TerrainOccluder.MAX_CONSECUTIVE_REPROJECTIONS + 1 : "Reprojection stopped after " + (step - 1) + " turns";
+			assert hiddenCount > 0 : "Reprojected rasters hid nothing";
+		} finally {
+			Configurator.reprojectOcclusionRaster = reproject;
+		}
+	}
+
+	/**
+	 * Tests every region within render distance in both occluders.
+	 *
+	 * @return Number of regions hidden in the reprojected raster.
+	 */
+	static int compare(OcclusionTestScene scene, TerrainOccluder reprojected, TerrainOccluder fresh, int step) {
+		final int cameraRegionX = (int) Math.floor(scene.cameraX) >> 4;
+		final int cameraRegionZ = (int) Math.floor(scene.cameraZ) >> 4;
+		final int radius = OcclusionTestScene.RENDER_DISTANCE;
+		int hiddenCount = 0;
+
+		for (int rx = cameraRegionX - radius; rx <= cameraRegionX + radius; rx++) {
+			for (int rz = cameraRegionZ - radius; rz <= cameraRegionZ + radius; rz++) {
+				for (int ry = 0; ry < 16; ry++) {
+					final int x = rx << 4;
+					final int y = ry << 4;
+					final int z = rz << 4;
+					final int[] visData = OcclusionTestScene.visData(x, y, z);
+					final boolean freshVisible;
+					final boolean reprojectedVisible;
+
+					if (visData == null) {
+						freshVisible = fresh.isEmptyRegionVisible(new BlockPos(x, y, z));
+						reprojectedVisible = reprojected.isEmptyRegionVisible(new BlockPos(x, y, z));
+					} else {
+						final int range = scene.occlusionRange(x, y, z);
+						fresh.prepareRegion(x, y, z, range);
+						freshVisible = fresh.isBoxVisible(visData[0]);
+						reprojected.prepareRegion(x, y, z, range);
+						reprojectedVisible = reprojected.isBoxVisible(visData[0]);
+					}
+
+					assert reprojectedVisible || !freshVisible : "Region " + x + ", " + y + ", " + z + " hidden after " + step + " reprojections";
+
+					if (!reprojectedVisible) {
+						++hiddenCount;
+					}
+				}
+			}
+		}
+
+		return hiddenCount;
+	}
+
+	/**
+	 * Region tests only cover a small part of the screen, so also check that every pixel covered
+	 * after reprojection is covered in the fresh raster.
+	 */
+	static void comparePixels(Rasterizer reprojected, Rasterizer fresh, int step) {
+		for (int y = 0; y < fresh.pixelHeight; y++) {
+			for (int x = 0; x < fresh.pixelWidth; x++) {
+				assert reprojected.testPixel(x, y) || !fresh.testPixel(x, y) : "Pixel " + x + ", " + y + " covered only after " + step + " reprojections";
+			}
+		}
+	}
+
+	/**
+	 * Covers open pixels between two covered pixels, horizontally or vertically.
+	 * Tiles are updated directly, so the coverage pyramid may not report them full.
+	 * That only costs early exits.
+	 */
+	static void closeThinGaps(Rasterizer raster) {
+		final LongArrayList gaps = new LongArrayList();
+
+		for (int y = 1; y < raster.pixelHeight - 1; y++) {
+			for (int x = 1; x < raster.pixelWidth - 1; x++) {
+				if (raster.testPixel(x, y) && ((!raster.testPixel(x - 1, y) && !raster.testPixel(x + 1, y)) || (!raster.testPixel(x, y - 1) && !raster.testPixel(x, y + 1)))) {
+					gaps.add(((long) x << 32) | y);
+				}
+			}
+		}
+
+		for (int i = 0; i < gaps.size(); i++) {
+			final int x = (int) (gaps.getLong(i) >> 32);
+			final int y = (int) gaps.getLong(i);
+			raster.tiles[Indexer.lowIndexFromPixelXY(x, y, raster.tileAddressShiftY)] |= Indexer.pixelMask(x, y);
+		}
+	}
+
+	/**
+	 * Visible regions that have occluders, in traversal order.
+	 */
+	static LongArrayList drawnRegions(LongArrayList visible) {
+		final LongArrayList drawn = new LongArrayList();
+
+		for (int i = 0; i < visible.size(); i++) {
+			final BlockPos origin = BlockPos.fromLong(visible.getLong(i));
+
+			if (OcclusionTestScene.visData(origin.getX(), origin.getY(), origin.getZ()) != null) {
+				drawn.add(visible.getLong(i));
+			}
+		}
+
+		return drawn;
+	}
+}
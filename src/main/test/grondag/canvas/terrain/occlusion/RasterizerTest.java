@@ -0,0 +1,203 @@
+package grondag.canvas.terrain.occlusion;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import static grondag.canvas.terrain.occlusion.BinnedRasterizerTest.setupVertex;
+import static grondag.canvas.terrain.occlusion.Constants.*;
+
+/**
+ * Shortcuts in occlusion tests must agree with the per-tile test they skip.
+ * A wrong answer silently culls visible terrain. Scenes come from fixed seeds.
+ */
+class RasterizerTest {
+	static final int SCENE_COUNT = 20;
+	static final int TESTS_PER_SCENE = 2000;
+
+	/**
+	 * The coverage pyramid may only report a quad covered if no tile it touches would show it.
+	 * Runs serial and binned drawing at every raster size, because binned bands update
+	 * the pyramid from several threads.
+	 */
+	@Test
+	void testCoverageEarlyExit() {
+		int coveredCount = 0;
+		int visibleCount = 0;
+
+		for (final int[] size : BinnedRasterizerTest.SIZES) {
+			for (int pass = 0; pass < 2; pass++) {
+				final Rasterizer raster = new Rasterizer(size[0], size[1]);
+
+				if (pass == 1) {
+					new BinnedRasterizer(raster, BinnedRasterizerTest.HELPER_COUNT);
+				}
+
+				for (int scene = 0; scene < SCENE_COUNT; scene++) {
+					raster.clear();
+					drawOccluders(raster, scene);
+
+					if (raster.binner != null) {
+						raster.binner.flush();
+					}
+
+					final Random r = new Random(scene + 1000);
+
+					for (int i = 0; i < TESTS_PER_SCENE; i++) {
+						final float x0 = r.nextFloat() * 2.2f - 1.1f;
+						final float y0 = r.nextFloat() * 2.2f - 1.1f;
+						final float w = 1f + r.nextFloat() * 60f;
+						setupRect(raster, x0, y0, x0 + 0.01f + r.nextFloat() * 0.6f, y0 + 0.01f + r.nextFloat() * 0.6f, w);
+
+						// also leaves the test depth of this quad set for isQuadCovered
+						final boolean visible = raster.testQuad(V000, V001, V010, V011);
+						final boolean covered = raster.isQuadCovered(V000, V001, V010, V011);
+						final boolean tileVisible = testTiles(raster, w);
+
+						assert !(covered && tileVisible) : "Pyramid hides a visible quad in scene " + scene + ", test " + i;
+						assert visible == tileVisible : "Quad test differs from tile test in scene " + scene + ", test " + i;
+
+						if (covered) {
+							++coveredCount;
+						}
+
+						if (visible) {
+							++visibleCount;
+						}
+					}
+				}
+			}
+		}
+
+		// make sure the scenes exercise both outcomes
+		assert coveredCount > 1000 : "Only " + coveredCount + " tests were covered";
+		assert visibleCount > 1000 : "Only " + visibleCount + " tests were visible";
+	}
+
+	/**
+	 * Occluders drawn out of order only hide what is behind them. Checked with serial
+	 * and binned drawing, which must carry the draw order of each queued quad.
+	 */
+	@Test
+	void testUnorderedDepth() {
+		for (int pass = 0; pass < 2; pass++) {
+			final Rasterizer raster = new Rasterizer(128, 64);
+
+			if (pass == 1) {
+				new BinnedRasterizer(raster, BinnedRasterizerTest.HELPER_COUNT);
+			}
+
+			// nearer quad over a farther unordered occluder is visible, farther quad is hidden
+			raster.clear();
+			drawScreen(raster, 40, false);
+			assert testRect(raster, 10);
+			assert !testRect(raster, 50);
+
+			// ordered occluders hide everything tested after them
+			raster.clear();
+			drawScreen(raster, 40, true);
+			assert !testRect(raster, 50);
+			assert !testRect(raster, 10);
+
+			// a full tile isn't updated again, so an ordered draw can't hide what the unordered one didn't
+			raster.clear();
+			drawScreen(raster, 40, false);
+			drawScreen(raster, 5, true);
+			assert testRect(raster, 10);
+			assert !testRect(raster, 50);
+
+			// nor can a nearer unordered draw move the depth forward
+			raster.clear();
+			drawScreen(raster, 40, false);
+			drawScreen(raster, 20, false);
+			assert testRect(raster, 30);
+
+			// farthest unordered draw in a tile wins
+			raster.clear();
+			setupRect(raster, -1.2f, -1.2f, 0f, 1.2f, 20);
+			raster.drawOrdered = false;
+			raster.drawQuad(V000, V001, V010, V011);
+			setupRect(raster, 0f, -1.2f, 1.2f, 1.2f, 40);
+			raster.drawQuad(V000, V001, V010, V011);
+			raster.drawOrdered = true;
+			assert testRect(raster, 30);
+			assert !testRect(raster, 50);
+
+			// partly covered quad behind an unordered occluder is still visible
+			raster.clear();
+			setupRect(raster, -1.2f, -1.2f, 0f, 1.2f, 20);
+			raster.drawOrdered = false;
+			raster.drawQuad(V000, V001, V010, V011);
+			raster.drawOrdered = true;
+			assert testRect(raster, 50);
+		}
+	}
+
+	/**
+	 * Draws an occluder over the whole screen.
+	 */
+	static void drawScreen(Rasterizer raster, float w, boolean ordered) {
+		setupRect(raster, -1.2f, -1.2f, 1.2f, 1.2f, w);
+		raster.drawOrdered = ordered;
+		raster.drawQuad(V000, V001, V010, V011);
+		raster.drawOrdered = true;
+	}
+
+	/**
+	 * Tests a quad near the middle of the screen.
+	 */
+	static boolean testRect(Rasterizer raster, float w) {
+		setupRect(raster, -0.3f, -0.3f, 0.3f, 0.3f, w);
+		return raster.testQuad(V000, V001, V010, V011);
+	}
+
+	/**
+	 * Large screen-aligned occluders at varied depth, a quarter of them drawn out of order.
+	 */
+	static void drawOccluders(Rasterizer raster, long seed) {
+		final Random r = new Random(seed);
+		final int count = 20 + r.nextInt(60);
+
+		for (int i = 0; i < count; i++) {
+			final float x0 = r.nextFloat() * 2.4f - 1.4f;
+			final float y0 = r.nextFloat() * 2.4f - 1.4f;
+			final float w = 2f + r.nextFloat() * 40f;
+			setupRect(raster, x0, y0, x0 + 0.2f + r.nextFloat(), y0 + 0.2f + r.nextFloat(), w);
+			raster.drawOrdered = r.nextInt(4) != 0;
+			raster.drawQuad(V000, V001, V010, V011);
+		}
+
+		raster.drawOrdered = true;
+	}
+
+	/**
+	 * Screen rectangle in normalized device coordinates at constant depth, counter-clockwise.
+	 */
+	static void setupRect(Rasterizer raster, float x0, float y0, float x1, float y1, float w) {
+		setupVertex(raster, V000, x0 * w, y0 * w, 0.5f * w, w);
+		setupVertex(raster, V001, x1 * w, y0 * w, 0.5f * w, w);
+		setupVertex(raster, V010, x1 * w, y1 * w, 0.5f * w, w);
+		setupVertex(raster, V011, x0 * w, y1 * w, 0.5f * w, w);
+	}
+
+	/**
+	 * Same as {@link Rasterizer#testQuad(int, int, int, int)} without the coverage pyramid.
+	 */
+	static boolean testTiles(Rasterizer raster, float minW) {
+		if (raster.prepareBounds(V000, V001, V010, V011) == BOUNDS_OUTSIDE_OR_TOO_SMALL) {
+			return false;
+		}
+
+		final int[] data = raster.data;
+
+		if (data[IDX_MIN_PIX_X] == data[IDX_MAX_PIX_X] && data[IDX_MIN_PIX_Y] == data[IDX_MAX_PIX_Y]) {
+			final int px = data[IDX_MIN_PIX_X];
+			final int py = data[IDX_MIN_PIX_Y];
+
+			return px >= 0 && py >= 0 && px < raster.pixelWidth && py < raster.pixelHeight
+					&& (raster.testPixel(px, py) || Float.floatToRawIntBits(minW) < raster.unorderedDepths[raster.lowIndexFromPixelXY(px, py)]);
+		}
+
+		return raster.testQuad();
+	}
+}
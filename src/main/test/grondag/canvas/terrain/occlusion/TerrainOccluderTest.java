@@ -0,0 +1,103 @@
+package grondag.canvas.terrain.occlusion;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import grondag.canvas.terrain.occlusion.region.PackedBox;
+
+/**
+ * Batch box tests must give the same answer as testing each box on its own.
+ */
+class TerrainOccluderTest {
+	/** Batch sizes around word boundaries of the result bits and growth of the batch buffers. */
+	static final int[] BATCH_SIZES = {1, 7, 63, 64, 65, 200, 1000};
+	static final int BATCHES_PER_SIZE = 20;
+
+	/**
+	 * Compares {@link TerrainOccluder#isBoxesVisible(int[], int[], int, long[])} with
+	 * {@link TerrainOccluder#prepareRegion(int, int, int, int)} and {@link TerrainOccluder#isBoxVisible(int)}
+	 * for random boxes around the camera of the hills scene, some of which contain the camera.
+	 */
+	@Test
+	void testBoxesVisible() {
+		final OcclusionTestScene scene = OcclusionTestScene.hills();
+		final TerrainOccluder occluder = new TerrainOccluder();
+		scene.prepare(occluder);
+		scene.traverse(occluder);
+
+		final int cameraX = (int) Math.floor(scene.cameraX);
+		final int cameraY = (int) Math.floor(scene.cameraY);
+		final int cameraZ = (int) Math.floor(scene.cameraZ);
+		final Random r = new Random(42);
+		int visibleCount = 0;
+		int hiddenCount = 0;
+
+		for (final int count : BATCH_SIZES) {
+			final int[] boxes = new int[count];
+			final int[] origins = new int[count * 3];
+			final long[] resultBits = new long[(count + 63) / 64];
+
+			for (int batch = 0; batch < BATCHES_PER_SIZE; batch++) {
+				for (int i = 0; i < count; i++) {
+					boxes[i] = randomBox(r);
+
+					if (r.nextInt(8) == 0) {
+						// region of the camera or next to it
+						origins[i * 3] = ((cameraX >> 4) + r.nextInt(3) - 1) << 4;
+						origins[i * 3 + 1] = ((cameraY >> 4) + r.nextInt(3) - 1) << 4;
+						origins[i * 3 + 2] = ((cameraZ >> 4) + r.nextInt(3) - 1) << 4;
+					} else {
+						// block origins too, as entity and block entity boxes aren't region-aligned
+						origins[i * 3] = cameraX + r.nextInt(257) - 128;
+						origins[i * 3 + 1] = r.nextInt(256);
+						origins[i * 3 + 2] = cameraZ + r.nextInt(257) - 128;
+					}
+				}
+
+				// results must be cleared as well as set
+				for (int i = 0; i < resultBits.length; i++) {
+					resultBits[i] = r.nextLong();
+				}
+
+				occluder.isBoxesVisible(boxes, origins, count, resultBits);
+
+				for (int i = 0; i < count; i++) {
+					occluder.prepareRegion(origins[i * 3], origins[i * 3 + 1], origins[i * 3 + 2], PackedBox.RANGE_EXTREME);
+					final boolean expected = occluder.isBoxVisible(boxes[i]);
+					final boolean actual = (resultBits[i >> 6] & (1L << i)) != 0;
+
+					assert actual == expected : "Batch of " + count + " differs at box " + i + " " + PackedBox.toString(boxes[i])
+							+ " at " + origins[i * 3] + ", " + origins[i * 3 + 1] + ", " + origins[i * 3 + 2];
+
+					if (expected) {
+						++visibleCount;
+					} else {
+						++hiddenCount;
+					}
+				}
+
+				// bits past the count are left alone
+				if ((count & 63) != 0) {
+					final long prior = resultBits[resultBits.length - 1];
+					occluder.isBoxesVisible(boxes, origins, count, resultBits);
+					assert (resultBits[resultBits.length - 1] >>> (count & 63)) == (prior >>> (count & 63));
+				}
+			}
+		}
+
+		// make sure the scene exercises both outcomes
+		assert visibleCount > 1000 : "Only " + visibleCount + " boxes were visible";
+		assert hiddenCount > 1000 : "Only " + hiddenCount + " boxes were hidden";
+	}
+
+	static int randomBox(Random r) {
+		final int x0 = r.nextInt(16);
+		final int y0 = r.nextInt(16);
+		final int z0 = r.nextInt(16);
+		final int x1 = x0 + 1 + r.nextInt(16 - x0);
+		final int y1 = y0 + 1 + r.nextInt(16 - y0);
+		final int z1 = z0 + 1 + r.nextInt(16 - z0);
+		return PackedBox.pack(x0, y0, z0, x1, y1, z1, PackedBox.RANGE_EXTREME);
+	}
+}
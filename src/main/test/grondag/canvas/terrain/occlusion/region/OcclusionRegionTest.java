@@ -0,0 +1,224 @@
+package grondag.canvas.terrain.occlusion.region;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import net.minecraft.Bootstrap;
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+
+import grondag.canvas.apiimpl.util.FaceConstants;
+import grondag.canvas.terrain.RegionData;
+import grondag.canvas.terrain.RenderRegionAddressHelper;
+
+import static grondag.canvas.terrain.occlusion.region.OcclusionRegion.ALL_FACES_CONNECTED;
+import static grondag.canvas.terrain.occlusion.region.OcclusionRegion.connectedFaces;
+import static grondag.canvas.terrain.occlusion.region.OcclusionRegion.faceConnectivityBit;
+
+/**
+ * Face connectivity decides which neighbors terrain iteration reaches, so a pair missed
+ * here hides terrain that can be seen. Regions are carved from stone with coordinates
+ * relative to the region origin, -1 to 16 for positions of neighbors. Open space is only
+ * filled from the surface where the neighbor position is open, so carved pockets are
+ * opened to a neighbor at one end or both.
+ */
+class OcclusionRegionTest {
+	static final int WEST = FaceConstants.WEST_INDEX;
+	static final int EAST = FaceConstants.EAST_INDEX;
+	static final int DOWN = FaceConstants.DOWN_INDEX;
+	static final int UP = FaceConstants.UP_INDEX;
+	static final int NORTH = FaceConstants.NORTH_INDEX;
+	static final int SOUTH = FaceConstants.SOUTH_INDEX;
+	static final int ALL_FACE_FLAGS = 0x3F;
+
+	static {
+		Bootstrap.initialize();
+	}
+
+	static class TestRegion extends OcclusionRegion {
+		final BlockState stone = Blocks.STONE.getDefaultState();
+		final BlockState air = Blocks.AIR.getDefaultState();
+		final boolean[] open = new boolean[18 * 18 * 18];
+
+		TestRegion(boolean isOpen) {
+			Arrays.fill(open, isOpen);
+		}
+
+		TestRegion carve(int x, int y, int z) {
+			open[(x + 1) + (y + 1) * 18 + (z + 1) * 324] = true;
+			return this;
+		}
+
+		TestRegion fill(int x, int y, int z) {
+			open[(x + 1) + (y + 1) * 18 + (z + 1) * 324] = false;
+			return this;
+		}
+
+		@Override
+		protected BlockState blockStateAtIndex(int index) {
+			final int xyz5 = RenderRegionAddressHelper.cacheIndexToXyz5(index);
+			return open[(xyz5 & 31) + ((xyz5 >> 5) & 31) * 18 + ((xyz5 >> 10) & 31) * 324] ? air : stone;
+		}
+
+		@Override
+		protected boolean closedAtRelativePos(BlockState blockState, int x, int y, int z) {
+			return blockState == stone;
+		}
+
+		int build() {
+			prepare();
+			build(false);
+			return faceConnectivity();
+		}
+	}
+
+	static int flag(int face) {
+		return 1 << face;
+	}
+
+	/** Union of pair bits for every pair of the given faces. */
+	static int pairs(int... faces) {
+		int result = 0;
+
+		for (final int from : faces) {
+			for (final int to : faces) {
+				result |= faceConnectivityBit(from, to);
+			}
+		}
+
+		return result;
+	}
+
+	@Test
+	void testOpenRoom() {
+		final int connectivity = new TestRegion(true).build();
+		assert connectivity == ALL_FACES_CONNECTED;
+
+		// exits are every face but the one entered from, unless two entry faces see each other
+		assert connectedFaces(connectivity, flag(WEST)) == (ALL_FACE_FLAGS & ~flag(WEST));
+		assert connectedFaces(connectivity, flag(WEST) | flag(EAST)) == ALL_FACE_FLAGS;
+
+		// stone room with the middle hollowed out and a door in the west and up faces
+		final TestRegion room = new TestRegion(false);
+
+		for (int x = 1; x < 15; x++) {
+			for (int y = 1; y < 15; y++) {
+				for (int z = 1; z < 15; z++) {
+					room.carve(x, y, z);
+				}
+			}
+		}
+
+		room.carve(-1, 5, 5).carve(0, 5, 5).carve(0, 6, 5).carve(7, 15, 7).carve(7, 16, 7);
+		assert room.build() == pairs(WEST, UP);
+		assert connectedFaces(pairs(WEST, UP), flag(WEST)) == flag(UP);
+		assert connectedFaces(pairs(WEST, UP), flag(EAST)) == 0;
+	}
+
+	@Test
+	void testSealedWall() {
+		final TestRegion region = new TestRegion(true);
+
+		for (int y = 0; y < 16; y++) {
+			for (int z = 0; z < 16; z++) {
+				region.fill(8, y, z);
+			}
+		}
+
+		final int connectivity = region.build();
+		assert connectivity == (pairs(WEST, DOWN, UP, NORTH, SOUTH) | pairs(EAST, DOWN, UP, NORTH, SOUTH));
+		assert (connectivity & faceConnectivityBit(WEST, EAST)) == 0;
+
+		// both sides reach the faces the wall cuts through, but not each other
+		final int sides = flag(DOWN) | flag(UP) | flag(NORTH) | flag(SOUTH);
+		assert connectedFaces(connectivity, flag(WEST)) == sides;
+		assert connectedFaces(connectivity, flag(WEST) | flag(EAST)) == sides;
+
+		// solid regions connect nothing
+		assert new TestRegion(false).build() == 0;
+		assert connectedFaces(0, ALL_FACE_FLAGS) == 0;
+	}
+
+	@Test
+	void testDiagonalTunnel() {
+		// steps alternately east and south from the north west edge to the south east edge
+		final TestRegion stairs = new TestRegion(false);
+
+		for (int i = 0; i < 15; i++) {
+			stairs.carve(i, 8, i).carve(i + 1, 8, i);
+		}
+
+		stairs.carve(15, 8, 15).carve(-1, 8, 0).carve(16, 8, 15);
+		assert stairs.build() == pairs(WEST, NORTH, EAST, SOUTH);
+		assert connectedFaces(pairs(WEST, NORTH, EAST, SOUTH), flag(WEST)) == (flag(NORTH) | flag(EAST) | flag(SOUTH));
+
+		// cells that only share edges aren't connected - each end is a pocket of its own
+		final TestRegion diagonal = new TestRegion(false);
+
+		for (int i = 0; i < 16; i++) {
+			diagonal.carve(i, 8, i);
+		}
+
+		diagonal.carve(-1, 8, 0).carve(16, 8, 15);
+
+		final int connectivity = diagonal.build();
+		assert connectivity == (faceConnectivityBit(WEST, NORTH) | faceConnectivityBit(EAST, SOUTH));
+		assert connectedFaces(connectivity, flag(WEST)) == flag(NORTH);
+		assert connectedFaces(connectivity, flag(SOUTH)) == flag(EAST);
+	}
+
+	/**
+	 * A region traversed before it learns another entry face is queued again only if the new face
+	 * opens exits not yet traversed - the test in BuiltRenderRegion.enqueNeighbor.
+	 */
+	@Test
+	void testNewEntryFace() {
+		// two tunnels, west to up and south to east
+		final TestRegion region = new TestRegion(false);
+
+		for (int x = -1; x < 8; x++) {
+			region.carve(x, 4, 4);
+		}
+
+		for (int y = 4; y < 17; y++) {
+			region.carve(8, y, 4);
+		}
+
+		for (int z = 10; z < 17; z++) {
+			region.carve(10, 10, z);
+		}
+
+		for (int x = 10; x < 17; x++) {
+			region.carve(x, 10, 10);
+		}
+
+		final int connectivity = region.build();
+		assert connectivity == (pairs(WEST, UP) | pairs(SOUTH, EAST));
+
+		final int exited = connectedFaces(connectivity, flag(WEST));
+		assert exited == flag(UP);
+
+		// entering through a face that connects to nothing leads nowhere new
+		assert (connectedFaces(connectivity, flag(WEST) | flag(DOWN)) & ~exited) == 0;
+
+		// entering through the south face opens the east face
+		assert (connectedFaces(connectivity, flag(WEST) | flag(SOUTH)) & ~exited) == flag(EAST);
+	}
+
+	/**
+	 * Regions without build data must not stop traversal.
+	 */
+	@Test
+	void testUnbuiltDefault() {
+		assert RegionData.EMPTY.getFaceConnectivity() == ALL_FACES_CONNECTED;
+		assert new RegionData().getFaceConnectivity() == ALL_FACES_CONNECTED;
+
+		final RegionData data = new RegionData();
+		data.complete(OcclusionRegion.EMPTY_CULL_DATA);
+		assert data.getFaceConnectivity() == ALL_FACES_CONNECTED;
+
+		// a region with no blocks at all
+		assert new TestRegion(true).build() == ALL_FACES_CONNECTED;
+	}
+}